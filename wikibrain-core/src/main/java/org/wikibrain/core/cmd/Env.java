@@ -11,6 +11,7 @@ import org.wikibrain.conf.Configurator;
 import org.wikibrain.conf.DefaultOptionBuilder;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.matrix.MatrixWarmer;
 import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.File;
@@ -66,6 +67,14 @@ public class Env {
             }
         }
 
+        // Set the policy used to page in memory mapped matrices
+        if (configuration.get().hasPath("matrix.loadPolicy")) {
+            MatrixWarmer.configure(
+                    MatrixWarmer.LoadPolicy.valueOf(configuration.get().getString("matrix.loadPolicy").toUpperCase()),
+                    configuration.get().getInt("matrix.warmupRows"),
+                    WpThreadUtils.getMaxThreads());
+        }
+
         // Set the temporary directory if it is specified
         if (configuration.get().hasPath("tmpDir")) {
             System.setProperty("java.io.tmpdir", configuration.get().getString("tmpDir"));
@@ -84,6 +93,7 @@ public class Env {
         LOG.info("using languages " + getLanguages());
         LOG.info("using maxThreads " + WpThreadUtils.getMaxThreads());
         LOG.info("using tmpDir " + tmpDir);
+        LOG.info("using matrix load policy " + MatrixWarmer.getDefaultPolicy());
     }
 
     public List<File> getFiles(FileMatcher ... matchers) {
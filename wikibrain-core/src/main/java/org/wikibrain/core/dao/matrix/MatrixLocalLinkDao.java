@@ -274,7 +274,10 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             matrix = new SparseMatrix(getMatrixFile());
 
             LOG.info("writing transpose of adjacency matrix");
-            SparseMatrixTransposer transposer = new SparseMatrixTransposer(matrix, getTransposeFile());
+            ExternalSparseMatrixTransposer transposer = new ExternalSparseMatrixTransposer(
+                    matrix, getTransposeFile(),
+                    SparseMatrixTransposer.defaultBufferSizeInMbs(),
+                    WpThreadUtils.getMaxThreads());
             transposer.transpose();
 
             LOG.info("loading transpose of adjacency matrix");
@@ -297,8 +300,8 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         }
         List<LocalLink> links = new ArrayList<LocalLink>();
         try {
-            SparseMatrixRow row = outlinks ? matrix.getRow(id.toInt()) : transpose.getRow(id.toInt());
-            if (row == null) {
+            SparseMatrixCursor row = outlinks ? matrix.openCursor() : transpose.openCursor();
+            if (!row.seek(id.toInt())) {
                 return links;
             }
             for (int i = 0; i < row.getNumCols(); i++) {
@@ -394,18 +397,22 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
                 if (packed == null) {
                     return delegate.getCount(daoFilter);
                 }
+                SparseMatrixCursor row = matrix.openCursor();
                 for (int key : packed) {
-                    SparseMatrixRow row = matrix.getRow(key);
-                    count += (row == null) ? 0 : row.getNumCols();
+                    if (row.seek(key)) {
+                        count += row.getNumCols();
+                    }
                 }
             } else if (daoFilter.getDestIds() != null) {
                 List<Integer> packed = getPackedIds(daoFilter);
                 if (packed == null) {
                     return delegate.getCount(daoFilter);
                 }
+                SparseMatrixCursor row = transpose.openCursor();
                 for (int key : packed) {
-                    SparseMatrixRow row = transpose.getRow(key);
-                    count += (row == null) ? 0 : row.getNumCols();
+                    if (row.seek(key)) {
+                        count += row.getNumCols();
+                    }
                 }
             } else {
                 throw new IllegalArgumentException();
@@ -6,6 +6,7 @@ import org.jooq.SQLDialect;
 import org.jooq.TableField;
 import org.wikibrain.core.dao.Dao;
 import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
 import org.wikibrain.core.dao.MetaInfoDao;
 import org.wikibrain.core.lang.LanguageSet;
 
@@ -37,7 +38,9 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
     private final MetaInfoSqlDao metaDao;
     protected WpDataSource wpDs;
     protected SqlCache cache;
-    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private int fetchSize;
+    private int prefetchSize;
+    private long prefetchIdleTimeout;
 
     // Used for directly loading csv files for databases that support it.
     FastLoader loader;
@@ -77,6 +80,9 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
         }
         this.fields = fields;
         this.sqlScriptPrefix = sqlScriptPrefix;
+        this.fetchSize = wpDs.getFetchSize();
+        this.prefetchSize = wpDs.getPrefetchSize();
+        this.prefetchIdleTimeout = wpDs.getPrefetchIdleTimeout();
     }
 
     /**
@@ -127,12 +133,17 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
     }
 
 
+    /**
+     * Finishes loading and creates the indexes dropped by beginLoad().
+     * If the data source is in a bulk load, index creation is deferred until
+     * WpDataSource.endBulkLoad() is called.
+     */
     @Override
     public void endLoad() throws  DaoException {
         if (loader != null) {
             loader.endLoad();
         }
-        executeSqlScriptWithSuffix("-create-indexes.sql");
+        wpDs.deferIndexScript(sqlScriptPrefix + "-create-indexes.sql");
     }
 
     /**
@@ -162,6 +173,31 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
         }
     }
 
+    /**
+     * Enables prefetching for an iterable over a full scan, so that records are
+     * fetched and transformed on a background thread while the caller consumes
+     * earlier results. Only scans that aren't restricted to particular source or
+     * destination ids, and aren't limited to fewer elements than the prefetch size,
+     * are prefetched; lookups of particular ids are left alone.
+     * @param iterable
+     * @param filter The filter that produced the scan.
+     * @return The iterable
+     */
+    protected <I extends SqlDaoIterable<?, ?>> I prefetch(I iterable, DaoFilter filter) {
+        if (prefetchSize > 0 && isFullScan(filter)) {
+            iterable.setPrefetch(prefetchSize);
+            iterable.setIdleTimeout(prefetchIdleTimeout);
+        }
+        iterable.setName(klass.getSimpleName());
+        return iterable;
+    }
+
+    private boolean isFullScan(DaoFilter filter) {
+        return filter.getSourceIds() == null
+            && filter.getDestIds() == null
+            && filter.getLimitOrInfinity() > prefetchSize;
+    }
+
     public int getFetchSize() {
         return fetchSize;
     }
@@ -169,4 +205,16 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
     public void setFetchSize(int fetchSize) {
         this.fetchSize = fetchSize;
     }
+
+    public int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    /**
+     * @param prefetchSize Number of elements buffered ahead of the consumer
+     *                     during full scans, or 0 to disable prefetching.
+     */
+    public void setPrefetchSize(int prefetchSize) {
+        this.prefetchSize = prefetchSize;
+    }
 }
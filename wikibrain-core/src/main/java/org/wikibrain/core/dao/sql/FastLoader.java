@@ -1,47 +1,128 @@
 package org.wikibrain.core.dao.sql;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.jooq.SQLDialect;
 import org.jooq.Table;
 import org.jooq.TableField;
 import org.jooq.tools.jdbc.JDBCUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.utils.WpThreadUtils;
 
+import java.io.*;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Bulk loads data in batch form to speed up insertions.
  *
+ * Rows are loaded using one of several strategies, chosen by default from the database dialect:
+ * <ul>
+ *     <li>BATCH_INSERT: Rows are queued and sent in JDBC batch inserts. Works with any database.</li>
+ *     <li>COPY: Rows are encoded as CSV text as they arrive, and chunks of text are streamed
+ *     to PostgreSQL with COPY ... FROM STDIN.</li>
+ *     <li>CSVREAD: Rows are encoded as CSV text as they arrive and spooled to temporary files
+ *     that H2 reads with CSVREAD.</li>
+ * </ul>
+ *
+ * The CSV strategies encode each row into a per-thread text buffer, so no Object[] is
+ * queued or retained per row, and the database parses rows far faster than it executes inserts.
+ * Binary (byte[]) values are written as hex text, which both databases convert to binary
+ * columns: PostgreSQL's bytea hex format for COPY, and plain hex for H2.
+ * If the database rejects a chunk or spool file, its rows are retried in successively smaller
+ * chunks, so only the rejected rows are skipped (and logged) rather than the whole chunk.
+ *
  * @author Shilad Sen
  */
 public class FastLoader {
 
+    /**
+     * The method used to send rows to the database.
+     */
+    public static enum Strategy {
+        BATCH_INSERT,
+        COPY,
+        CSVREAD;
+
+        /**
+         * @return True if the strategy can be used with the specified dialect.
+         */
+        public boolean supports(SQLDialect dialect) {
+            switch (this) {
+                case COPY:      return dialect == SQLDialect.POSTGRES;
+                case CSVREAD:   return dialect == SQLDialect.H2;
+                default:        return true;
+            }
+        }
+    }
+
     private static final int NUM_INSERTERS = Math.min(WpThreadUtils.getMaxThreads(), 4);
 
     private static final Object POSION_PILL = new Object();
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
     private boolean isPostGisLoader = false;
 
     static final Logger LOG = Logger.getLogger(FastLoader.class.getName());
     static final int BATCH_SIZE = 1000;
 
+    /**
+     * Number of rows in each chunk of CSV text sent to COPY or the spool file.
+     */
+    static final int CHUNK_SIZE = 10000;
+
+    /**
+     * Number of rows in each spool file read by CSVREAD.
+     */
+    static final int SPOOL_SIZE = 1000000;
+
     private final WpDataSource ds;
     private final String table;
     private final String[] fields;
+    private final Strategy strategy;
+    private final String binaryPrefix;
 
     private BlockingQueue<Object[]> rowBuffer =
             new ArrayBlockingQueue<Object[]>(BATCH_SIZE * NUM_INSERTERS * 2);
 
+    // Chunks of CSV text (COPY) or completed spool files (CSVREAD)
+    private BlockingQueue<Object> chunkBuffer =
+            new ArrayBlockingQueue<Object>(NUM_INSERTERS * 2);
+
+    // Per-thread CSV text buffers, which are flushed by endLoad()
+    private final List<CsvChunk> chunks = new ArrayList<CsvChunk>();
+    private final ThreadLocal<CsvChunk> localChunk = new ThreadLocal<CsvChunk>() {
+        @Override
+        protected CsvChunk initialValue() {
+            CsvChunk chunk = new CsvChunk();
+            synchronized (chunks) {
+                chunks.add(chunk);
+            }
+            return chunk;
+        }
+    };
+
+    // The spool file currently being written for CSVREAD
+    private final Object spoolLock = new Object();
+    private File spoolFile = null;
+    private Writer spoolWriter = null;
+    private int spoolRows = 0;
+
     static enum InserterState {
         RUNNING,            // In normal working mode
         FAILED,             // Loader failed, it cannot be used anymore
@@ -49,40 +130,68 @@ public class FastLoader {
         SHUTDOWN            // Already shutdown
     }
 
-    private Thread [] inserters = new Thread[NUM_INSERTERS];
+    private Thread [] inserters;
     private volatile InserterState inserterState = null;
 
+    // Rows rejected by the database when a CSV chunk was retried row by row
+    private final AtomicInteger skippedRows = new AtomicInteger();
+
+    /**
+     * Loads a block of CSV text with a single bulk statement.
+     */
+    private static interface CsvSink {
+        void load(String text) throws SQLException, IOException;
+    }
+
     public FastLoader(WpDataSource ds, TableField[] fields) throws DaoException {
         this(ds, fields[0].getTable().getName(), getFieldNames(fields));
     }
 
+    public FastLoader(WpDataSource ds, TableField[] fields, Strategy strategy) throws DaoException {
+        this(ds, fields[0].getTable().getName(), getFieldNames(fields), strategy, false);
+    }
+
     public FastLoader(WpDataSource ds, String table, String[] fields, boolean isPostGisLoader) throws DaoException {
-        this(ds,table, fields);
-        this.isPostGisLoader = isPostGisLoader;
+        this(ds, table, fields, getDefaultStrategy(ds, isPostGisLoader), isPostGisLoader);
     }
 
     public FastLoader(WpDataSource ds, String table, String[] fields) throws DaoException {
+        this(ds, table, fields, false);
+    }
+
+    public FastLoader(WpDataSource ds, String table, String[] fields, Strategy strategy, boolean isPostGisLoader) throws DaoException {
+        if (!strategy.supports(ds.getDialect())) {
+            throw new IllegalArgumentException("strategy " + strategy + " does not support " + ds.getDialect());
+        }
         this.ds = ds;
         this.table = table;
         this.fields = fields;
+        this.strategy = strategy;
+        this.binaryPrefix = (strategy == Strategy.COPY) ? "\\x" : "";
+        this.isPostGisLoader = isPostGisLoader;
 
+        // H2 serializes writes to a table, so a single thread reads the spool files.
+        inserters = new Thread[strategy == Strategy.CSVREAD ? 1 : NUM_INSERTERS];
         for (int i = 0; i < inserters.length; i++) {
             inserters[i] = new Thread(new Runnable() {
                 public void run() {
                     try {
-                        insertBatches();
+                        if (FastLoader.this.strategy == Strategy.COPY) {
+                            copyChunks();
+                        } else if (FastLoader.this.strategy == Strategy.CSVREAD) {
+                            readSpools();
+                        } else {
+                            insertBatches();
+                        }
                     } catch (DaoException e) {
                         LOG.log(Level.SEVERE, "inserter failed", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
+                        fail();
                     } catch (SQLException e) {
                         LOG.log(Level.SEVERE, "inserter failed", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
+                        fail();
                     } catch (InterruptedException e) {
                         LOG.log(Level.SEVERE, "inserter interrupted", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
+                        fail();
                     }
                 }
             });
@@ -91,6 +200,45 @@ public class FastLoader {
         inserterState = InserterState.RUNNING;
     }
 
+    /**
+     * @return The fastest strategy supported by the data source's dialect.
+     * PostGIS geometries cannot be written as CSV, so they always use batch inserts.
+     */
+    public static Strategy getDefaultStrategy(WpDataSource ds, boolean isPostGisLoader) {
+        if (isPostGisLoader) {
+            return Strategy.BATCH_INSERT;
+        } else if (Strategy.COPY.supports(ds.getDialect())) {
+            return Strategy.COPY;
+        } else if (Strategy.CSVREAD.supports(ds.getDialect())) {
+            return Strategy.CSVREAD;
+        } else {
+            return Strategy.BATCH_INSERT;
+        }
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    private void fail() {
+        inserterState = InserterState.FAILED;
+        rowBuffer.clear();      // allow any existing puts to go through
+        deleteQueuedSpools();
+    }
+
+    /**
+     * Empties the chunk queue, deleting any spool files in it.
+     */
+    private void deleteQueuedSpools() {
+        List<Object> queued = new ArrayList<Object>();
+        chunkBuffer.drainTo(queued);
+        for (Object chunk : queued) {
+            if (chunk instanceof File) {
+                ((File) chunk).delete();
+            }
+        }
+    }
+
     private static String[] getFieldNames(TableField[] fields) {
         String names[] = new String[fields.length];
         for (int i = 0; i < fields.length; i++) {
@@ -118,6 +266,14 @@ public class FastLoader {
         if (values.length != fields.length) {
             throw new IllegalArgumentException();
         }
+        if (strategy != Strategy.BATCH_INSERT) {
+            CsvChunk chunk = localChunk.get();
+            appendCsvRow(chunk.text, values, binaryPrefix);
+            if (++chunk.rows >= CHUNK_SIZE) {
+                flushChunk(chunk);
+            }
+            return;
+        }
         try {
             rowBuffer.put(values);
         } catch (InterruptedException e) {
@@ -191,28 +347,344 @@ public class FastLoader {
         }
     }
 
+    /**
+     * Streams chunks of CSV text to PostgreSQL, one COPY statement per chunk.
+     */
+    private void copyChunks() throws DaoException, SQLException, InterruptedException {
+        Connection cnx = ds.getConnection();
+        try {
+            PGConnection pgCnx = cnx.isWrapperFor(PGConnection.class)
+                    ? cnx.unwrap(PGConnection.class)
+                    : (PGConnection) cnx;
+            final CopyManager copier = pgCnx.getCopyAPI();
+            final String sql = "COPY " + table + " (" + StringUtils.join(fields, ",") + ") FROM STDIN WITH CSV";
+            CsvSink sink = new CsvSink() {
+                @Override
+                public void load(String text) throws SQLException, IOException {
+                    copier.copyIn(sql, new StringReader(text));
+                }
+            };
+
+            while (inserterState != InserterState.FAILED) {
+                Object chunk = chunkBuffer.poll(100, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    continue;
+                } else if (chunk == POSION_PILL) {
+                    chunkBuffer.put(POSION_PILL);
+                    break;
+                }
+                try {
+                    loadChunk(cnx, sink, (String) chunk);
+                } catch (IOException e) {
+                    throw new DaoException(e);
+                }
+            }
+        } finally {
+            AbstractSqlDao.quietlyCloseConn(cnx);
+        }
+    }
+
+    /**
+     * Inserts the contents of each spool file into the table with H2's CSVREAD.
+     */
+    private void readSpools() throws DaoException, SQLException, InterruptedException {
+        Connection cnx = ds.getConnection();
+        Statement statement = null;
+        try {
+            statement = cnx.createStatement();
+            final Statement csvStatement = statement;
+            CsvSink sink = new CsvSink() {
+                @Override
+                public void load(String text) throws SQLException, IOException {
+                    File file = File.createTempFile("wikibrain-" + table, ".csv");
+                    try {
+                        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                        try {
+                            writer.write(text);
+                        } finally {
+                            writer.close();
+                        }
+                        csvStatement.execute(getCsvReadSql(file));
+                    } finally {
+                        file.delete();
+                    }
+                }
+            };
+            while (inserterState != InserterState.FAILED) {
+                Object spool = chunkBuffer.poll(100, TimeUnit.MILLISECONDS);
+                if (spool == null) {
+                    continue;
+                } else if (spool == POSION_PILL) {
+                    chunkBuffer.put(POSION_PILL);
+                    break;
+                }
+                File file = (File) spool;
+                try {
+                    statement.execute(getCsvReadSql(file));
+                    cnx.commit();
+                } catch (SQLException e) {
+                    cnx.rollback();
+                    LOG.log(Level.WARNING, "csv read of " + file + " into " + table + " failed, retrying its rows in chunks: " + e.getMessage());
+                    reloadSpool(cnx, sink, file);
+                } finally {
+                    file.delete();
+                }
+            }
+        } finally {
+            if (statement != null) {
+                JDBCUtils.safeClose(statement);
+            }
+            AbstractSqlDao.quietlyCloseConn(cnx);
+        }
+    }
+
+    private String getCsvReadSql(File file) {
+        String columns = StringUtils.join(fields, ",");
+        return "INSERT INTO " + table + " (" + columns + ") " +
+               "SELECT * FROM CSVREAD('" + file.getAbsolutePath().replace("'", "''") + "', " +
+               "'" + columns + "', 'charset=UTF-8')";
+    }
+
+    /**
+     * Loads the rows of a rejected spool file CHUNK_SIZE rows at a time.
+     */
+    private void reloadSpool(Connection cnx, CsvSink sink, File file) throws DaoException, SQLException {
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            StringBuilder text = new StringBuilder();
+            boolean more = true;
+            while (more) {
+                int rows = 0;
+                while (rows < CHUNK_SIZE && (more = readCsvRow(reader, text))) {
+                    rows++;
+                }
+                if (rows > 0) {
+                    loadChunk(cnx, sink, text.toString());
+                    text.setLength(0);
+                }
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Loads a chunk of CSV text. If the database rejects it, the chunk is split in half
+     * and each half is retried, until the rejected rows are isolated and skipped.
+     */
+    private void loadChunk(Connection cnx, CsvSink sink, String text) throws SQLException, IOException {
+        try {
+            sink.load(text);
+            cnx.commit();
+        } catch (SQLException e) {
+            cnx.rollback();
+            List<String> rows = splitCsvRows(text);
+            if (rows.size() == 1) {
+                skippedRows.incrementAndGet();
+                LOG.log(Level.SEVERE, "skipping row rejected by " + table + ": " + text.trim(), e);
+            } else {
+                LOG.log(Level.WARNING, "load of " + rows.size() + " rows into " + table + " failed, retrying in halves: " + e.getMessage());
+                int mid = rows.size() / 2;
+                loadChunk(cnx, sink, StringUtils.join(rows.subList(0, mid), ""));
+                loadChunk(cnx, sink, StringUtils.join(rows.subList(mid, rows.size()), ""));
+            }
+        }
+    }
+
+    /**
+     * Splits CSV text written by appendCsvRow into rows, each including its newline.
+     */
+    static List<String> splitCsvRows(String text) throws IOException {
+        List<String> rows = new ArrayList<String>();
+        Reader reader = new StringReader(text);
+        StringBuilder row = new StringBuilder();
+        while (readCsvRow(reader, row)) {
+            rows.add(row.toString());
+            row.setLength(0);
+        }
+        return rows;
+    }
+
+    /**
+     * Appends the next CSV row (including its newline) to the buffer.
+     * Newlines inside quoted values do not end the row.
+     * @return False if the reader had no more rows.
+     */
+    static boolean readCsvRow(Reader reader, StringBuilder row) throws IOException {
+        boolean quoted = false;
+        boolean empty = true;
+        int c;
+        while ((c = reader.read()) >= 0) {
+            empty = false;
+            row.append((char) c);
+            if (c == '"') {
+                quoted = !quoted;       // an escaped quote toggles twice
+            } else if (c == '\n' && !quoted) {
+                return true;
+            }
+        }
+        return !empty;
+    }
+
+    /**
+     * Hands the chunk's CSV text to the inserters (COPY) or the current spool file (CSVREAD).
+     */
+    private void flushChunk(CsvChunk chunk) throws DaoException {
+        if (chunk.rows == 0) {
+            return;
+        }
+        String text = chunk.text.toString();
+        int rows = chunk.rows;
+        chunk.text.setLength(0);
+        chunk.rows = 0;
+        try {
+            if (strategy == Strategy.COPY) {
+                chunkBuffer.put(text);
+                return;
+            }
+            synchronized (spoolLock) {
+                if (spoolWriter == null) {
+                    spoolFile = File.createTempFile("wikibrain-" + table, ".csv");
+                    spoolFile.deleteOnExit();
+                    spoolWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spoolFile), "UTF-8"));
+                }
+                spoolWriter.write(text);
+                spoolRows += rows;
+                if (spoolRows >= SPOOL_SIZE) {
+                    closeSpool();
+                }
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        } catch (InterruptedException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * Closes the current spool file and hands it to the inserter.
+     * Must be called while holding spoolLock.
+     */
+    private void closeSpool() throws IOException, InterruptedException {
+        if (spoolWriter == null) {
+            return;
+        }
+        spoolWriter.close();
+        if (inserterState == InserterState.FAILED) {
+            spoolFile.delete();
+        } else {
+            chunkBuffer.put(spoolFile);
+        }
+        spoolWriter = null;
+        spoolFile = null;
+        spoolRows = 0;
+    }
+
+    /**
+     * Appends a row in the CSV dialect understood by both PostgreSQL and H2:
+     * nulls are empty and unquoted, numbers and booleans are unquoted, binary values
+     * are quoted hex digits after binaryPrefix, and everything else is quoted with
+     * embedded quotes doubled.
+     */
+    static void appendCsvRow(StringBuilder text, Object[] values, String binaryPrefix) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            Object value = values[i];
+            if (value == null) {
+                // empty
+            } else if (value instanceof Number || value instanceof Boolean) {
+                text.append(value.toString());
+            } else if (value instanceof byte[]) {
+                text.append('"').append(binaryPrefix);
+                for (byte b : (byte[]) value) {
+                    text.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+                }
+                text.append('"');
+            } else {
+                String s = value.toString();
+                text.append('"');
+                for (int j = 0; j < s.length(); j++) {
+                    char c = s.charAt(j);
+                    if (c == '"') {
+                        text.append('"');
+                    }
+                    text.append(c);
+                }
+                text.append('"');
+            }
+        }
+        text.append('\n');
+    }
+
     public void endLoad() throws DaoException {
         try {
+            if (inserterState == InserterState.RUNNING && strategy != Strategy.BATCH_INSERT) {
+                // Producers are finished, so their partially filled chunks can be flushed.
+                synchronized (chunks) {
+                    for (CsvChunk chunk : chunks) {
+                        flushChunk(chunk);
+                        chunk.text.trimToSize();
+                    }
+                }
+                synchronized (spoolLock) {
+                    closeSpool();
+                }
+            }
             if (inserterState == InserterState.RUNNING) {
-                rowBuffer.put(new Object[]{POSION_PILL});
+                if (strategy == Strategy.BATCH_INSERT) {
+                    rowBuffer.put(new Object[]{POSION_PILL});
+                } else {
+                    chunkBuffer.put(POSION_PILL);
+                }
             }
             inserterState = InserterState.SHUTTING_DOWN;
+        } catch (IOException e) {
+            throw new DaoException(e);
         } catch (InterruptedException e) {
             throw new DaoException(e);
         }
         for (Thread inserter : inserters) {
             if (inserter != null) {
                 try {
-                    inserter.join(60000);
+                    // Queued chunks and spool files hold many rows, so wait for them to finish.
+                    inserter.join(strategy == Strategy.BATCH_INSERT ? 60000 : 0);
                 } catch (InterruptedException e) {
                     throw new DaoException(e);
                 }
             }
         }
+        if (strategy == Strategy.CSVREAD) {
+            // Nothing reads the spool files if the inserter failed
+            deleteQueuedSpools();
+            synchronized (spoolLock) {
+                if (spoolWriter != null) {
+                    IOUtils.closeQuietly(spoolWriter);
+                    spoolFile.delete();
+                    spoolWriter = null;
+                    spoolFile = null;
+                }
+            }
+        }
+        if (skippedRows.get() > 0) {
+            LOG.log(Level.SEVERE, "skipped " + skippedRows.get() + " rows rejected by " + table);
+        }
         inserterState = InserterState.SHUTDOWN;
     }
 
     public void close() throws  DaoException {
         endLoad();
     }
+
+    /**
+     * CSV text for rows loaded by a single thread.
+     */
+    private static class CsvChunk {
+        StringBuilder text = new StringBuilder();
+        int rows = 0;
+    }
 }
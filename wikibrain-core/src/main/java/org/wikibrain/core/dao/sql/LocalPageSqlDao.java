@@ -1,8 +1,11 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
-import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TIntIntMap;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -15,19 +18,26 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Redirect;
 import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.MappedLongIntMap;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 /**
+ * Title lookups by getIdByTitle() use a per-language index from title hashes to page ids.
+ * If the dao has a cache directory, each index is stored there in a memory mapped file
+ * that is built once and then opened in constant time by every process that needs it.
  */
 public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> implements LocalPageDao<T> {
-    private volatile TLongIntHashMap titlesToIds = null;
+    private final Map<Language, MappedLongIntMap> titleIndexes = new ConcurrentHashMap<Language, MappedLongIntMap>();
     private RedirectSqlDao redirectSqlDao;
 
     public LocalPageSqlDao(WpDataSource dataSource) throws DaoException {
@@ -84,7 +94,7 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
                     where(conditions).
                     limit(daoFilter.getLimitOrInfinity()).
                     fetchLazy(getFetchSize());
-            return new SimpleSqlDaoIterable<T>(result, context) {
+            return prefetch(new SimpleSqlDaoIterable<T>(result, context) {
                 @Override
                 public T transform(Record r) {
                     try {
@@ -94,7 +104,7 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
                         return null;
                     }
                 }
-            };
+            }, daoFilter);
         } catch (RuntimeException e) {
             freeJooq(context);
             throw e;
@@ -150,7 +160,7 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
         } else {
             redirectSqlDao = null;
         }
-        titlesToIds = null;
+        titleIndexes.clear();
     }
 
     @Override
@@ -197,18 +207,21 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
 
     @Override
     public int getIdByTitle(String title, Language language, NameSpace nameSpace) throws DaoException {
-        if (titlesToIds==null){
-            buildTitlesToIds();
-        }
-        return titlesToIds.get(Title.longHashCode(language, title, nameSpace));
+        return getTitleIndex(language).get(Title.longHashCode(language, title, nameSpace));
     }
 
     @Override
     public int getIdByTitle(Title title) throws DaoException {
-        if (titlesToIds==null){
-            buildTitlesToIds();
+        return getTitleIndex(title.getLanguage()).get(title.longHashCode());
+    }
+
+    private MappedLongIntMap getTitleIndex(Language language) throws DaoException {
+        MappedLongIntMap index = titleIndexes.get(language);
+        if (index == null) {
+            buildTitleIndex(language);
+            index = titleIndexes.get(language);
         }
-        return titlesToIds.get(title.longHashCode());
+        return index;
     }
 
     /**
@@ -254,63 +267,79 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
         );
     }
 
-    protected synchronized void buildTitlesToIds() throws DaoException {
-        if (titlesToIds != null) {
+    /**
+     * Opens or builds the title index for a language if it is not already open.
+     * The index resolves redirects iff the dao follows redirects. Loaders call this
+     * once the pages (and redirects) have been loaded, so later stages only open it.
+     *
+     * @param language
+     * @throws DaoException
+     */
+    public synchronized void buildTitleIndex(Language language) throws DaoException {
+        if (titleIndexes.containsKey(language)) {
             return;
         }
-        String key = "titlesToIds";
+        String name = "titleIndex." + language.getLangCode();
+        Class dependsOn[] = new Class[] { LocalPage.class, Redirect.class };
         if (redirectSqlDao == null) {
-            key += ".noRedirect";
+            name += ".noRedirect";
+            dependsOn = new Class[] { LocalPage.class };
         }
-        if (cache!=null) {
-            TLongIntHashMap map = (TLongIntHashMap)cache.get(key, LocalPage.class);
-            if (map!=null){
-                titlesToIds = map;
+        try {
+            if (cache != null && cache.isUpToDate(name, dependsOn)) {
+                titleIndexes.put(language, MappedLongIntMap.open(cache.getCacheFile(name)));
                 return;
             }
-        }
-        LOG.info("Building title to id cache. This will only happen once!");
-        int n = getCount(new DaoFilter());
-        DSLContext context = getJooq();
-        try {
-            Cursor<Record> cursor = context.select().
-                    from(Tables.LOCAL_PAGE).
-                    fetchLazy(getFetchSize());
-            TLongIntHashMap map = new TLongIntHashMap(
-                    Constants.DEFAULT_CAPACITY,
-                    Constants.DEFAULT_LOAD_FACTOR,
-                    -1, -1);
+            LOG.info("Building title index for " + language + ". This will only happen once!");
+            TIntIntMap redirects = (redirectSqlDao == null) ? null : redirectSqlDao.getAllRedirectIdsToDestIds(language);
+            TLongList hashes = new TLongArrayList();
+            TIntList ids = new TIntArrayList();
             int numRedirects = 0;
             int numResolved = 0;
-            for (Record record : cursor){
-                long hash = Title.longHashCode(
-                        record.getValue(Tables.LOCAL_PAGE.LANG_ID),
-                        record.getValue(Tables.LOCAL_PAGE.TITLE),
-                        record.getValue(Tables.LOCAL_PAGE.NAME_SPACE));
-                if (redirectSqlDao != null && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)){
-                    numRedirects++;
-                    Integer dest = redirectSqlDao.resolveRedirect(
-                            Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID)),
-                            record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
-                    if (dest != null) {
-                        numResolved++;
-                        map.put(hash, dest);
+            DSLContext context = getJooq();
+            try {
+                Cursor<Record> cursor = context.select().
+                        from(Tables.LOCAL_PAGE).
+                        where(Tables.LOCAL_PAGE.LANG_ID.eq(language.getId())).
+                        fetchLazy(getFetchSize());
+                for (Record record : cursor){
+                    long hash = Title.longHashCode(
+                            record.getValue(Tables.LOCAL_PAGE.LANG_ID),
+                            record.getValue(Tables.LOCAL_PAGE.TITLE),
+                            record.getValue(Tables.LOCAL_PAGE.NAME_SPACE));
+                    if (redirects != null && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)){
+                        numRedirects++;
+                        int dest = redirects.get(record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
+                        if (dest >= 0) {
+                            numResolved++;
+                            hashes.add(hash);
+                            ids.add(dest);
+                        }
+                    }
+                    else{
+                        hashes.add(hash);
+                        ids.add(record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
+                    }
+                    if (hashes.size() % 100000 == 0) {
+                        LOG.info("read title index entry " + hashes.size() + " for " + language);
                     }
                 }
-                else{
-                    map.put(hash, record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
-                }
-                if (map.size() % 10000 == 0) {
-                    LOG.info("built title cache entry " + map.size() + " of " + n);
-                }
+                cursor.close();
+            } finally {
+                freeJooq(context);
             }
-            LOG.info("resolved " + numResolved + " of " + numRedirects + " redirects.");
-            if (cache!=null){
-                cache.put(key, map);
+            if (redirects != null) {
+                LOG.info("resolved " + numResolved + " of " + numRedirects + " redirects.");
             }
-            titlesToIds = map;
-        } finally {
-            freeJooq(context);
+            MappedLongIntMap index;
+            if (cache != null) {
+                index = MappedLongIntMap.write(cache.getCacheFile(name), hashes, ids, -1);
+            } else {
+                index = MappedLongIntMap.build(hashes, ids, -1);
+            }
+            titleIndexes.put(language, index);
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
     }
 
@@ -24,9 +24,13 @@ import java.util.Map;
 public class RawPageSqlDao extends AbstractSqlDao<RawPage> implements RawPageDao {
     public static final int DEFAULT_FETCH_SIZE = 100;
 
+    // Raw pages are large, so buffer fewer of them ahead of the consumer
+    public static final int DEFAULT_PREFETCH_SIZE = 200;
+
     public RawPageSqlDao(WpDataSource dataSource) throws DaoException {
         super(dataSource, INSERT_FIELDS, "/db/raw-page");
         setFetchSize(DEFAULT_FETCH_SIZE);
+        setPrefetchSize(DEFAULT_PREFETCH_SIZE);
     }
 
     private static final TableField [] INSERT_FIELDS = new TableField[] {
@@ -67,12 +71,12 @@ public class RawPageSqlDao extends AbstractSqlDao<RawPage> implements RawPageDao
                 .where(conditions)
                 .limit(daoFilter.getLimitOrInfinity())
                 .fetchLazy(getFetchSize());
-            return new SimpleSqlDaoIterable<RawPage>(result, context) {
+            return prefetch(new SimpleSqlDaoIterable<RawPage>(result, context) {
                 @Override
                 public RawPage transform(Record r) {
                     return buildRawPage(r);
                 }
-            };
+            }, daoFilter);
         } catch (RuntimeException e) {
             freeJooq(context);
             throw e;
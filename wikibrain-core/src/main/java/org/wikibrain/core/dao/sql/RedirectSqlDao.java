@@ -17,6 +17,7 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.Redirect;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
@@ -149,6 +150,21 @@ public class RedirectSqlDao extends AbstractSqlDao<Redirect> implements Redirect
 
     @Override
     public TIntIntMap getAllRedirectIdsToDestIds(Language lang) throws DaoException {
+        String key = "redirectIds." + lang.getLangCode();
+        if (cache != null) {
+            TIntIntMap ids = cache.getIntIntMap(key, Redirect.class);
+            if (ids != null) {
+                return ids;
+            }
+        }
+        TIntIntMap ids = selectAllRedirectIdsToDestIds(lang);
+        if (cache != null) {
+            cache.putIntIntMap(key, ids);
+        }
+        return ids;
+    }
+
+    private TIntIntMap selectAllRedirectIdsToDestIds(Language lang) throws DaoException {
         DSLContext context = getJooq();
         try {
             Cursor<Record> cursor = context.select().
@@ -201,11 +217,18 @@ public class RedirectSqlDao extends AbstractSqlDao<Redirect> implements Redirect
                 return null;
             }
             try {
-                return new RedirectSqlDao(
+                RedirectSqlDao dao = new RedirectSqlDao(
                         getConfigurator().get(
                                 WpDataSource.class,
                                 config.getString("dataSource"))
                 );
+                String cachePath = getConfig().get().getString("dao.sqlCachePath");
+                File cacheDir = new File(cachePath);
+                if (!cacheDir.isDirectory()) {
+                    cacheDir.mkdirs();
+                }
+                dao.useCache(cacheDir);
+                return dao;
             } catch (DaoException e) {
                 throw new ConfigurationException(e);
             }
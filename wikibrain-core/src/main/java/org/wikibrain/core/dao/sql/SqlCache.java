@@ -1,13 +1,36 @@
 package org.wikibrain.core.dao.sql;
 
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.MetaInfoDao;
 import org.wikibrain.core.model.MetaInfo;
+import org.wikibrain.utils.WpIOUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 
+/**
+ * Caches objects built from the database in files that are invalidated when
+ * the MetaInfoDao reports that a class they depend on has been updated.
+ *
+ * Arbitrary objects are stored with java serialization. Int to int maps can
+ * instead be stored with putIntIntMap, which writes them as flat little endian
+ * blocks preceded by a small versioned header. Those files are memory mapped and
+ * bulk copied when read, which is much faster than deserializing the map. A file
+ * whose header does not match the current format version is treated as stale.
+ */
 public class SqlCache {
+    private static final long MAGIC = 0x7762536c43616368L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private static final int TYPE_INT_INT_MAP = 2;
+
     private final MetaInfoDao metaDao;
     private File directory;
 
@@ -28,8 +51,8 @@ public class SqlCache {
      */
     public void put(String name, Object object) throws DaoException {
         try {
-            FileOutputStream fos = new FileOutputStream(getCacheFile(name));
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(getCacheFile(name)));
+            ObjectOutputStream oos = new ObjectOutputStream(os);
             oos.writeObject(object);
             oos.close();
         }
@@ -38,7 +61,13 @@ public class SqlCache {
         }
     }
 
-    private File getCacheFile(String name) {
+    /**
+     * Returns the file in which the named object is stored. Callers may also use it
+     * to store objects in their own format, checking isUpToDate() before reading them.
+     * @param name
+     * @return
+     */
+    public File getCacheFile(String name) {
         return new File(directory, name);
     }
 
@@ -54,9 +83,34 @@ public class SqlCache {
      * @throws DaoException
      */
     public Object get(String name, Class ... dependsOn) throws DaoException {
+        if (!isUpToDate(name, dependsOn)) {
+            return null;
+        }
+        try {
+            InputStream is = new BufferedInputStream(new FileInputStream(getCacheFile(name)));
+            ObjectInputStream ois = new ObjectInputStream(is);
+            Object object = ois.readObject();
+            ois.close();
+            return object;
+        } catch (IOException e) {
+            throw new DaoException(e);
+        } catch (ClassNotFoundException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * Returns true if the named cache file exists and is up to date.
+     *
+     * @param name Name of the cache file
+     * @param dependsOn List of classes the file depends on, as described in get().
+     * @return
+     * @throws DaoException
+     */
+    public boolean isUpToDate(String name, Class ... dependsOn) throws DaoException {
         File cacheFile = getCacheFile(name);
         if (!cacheFile.isFile()) {
-            return null;
+            return false;
         }
         Date cacheTstamp = new Date(cacheFile.lastModified());
         for (Class klass : dependsOn) {
@@ -66,18 +120,125 @@ public class SqlCache {
             }
             Date tableTstamp = info.getLastUpdated();
             if (tableTstamp == null || tableTstamp.after(cacheTstamp)) {
-                return null;
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Save a map to the cache in the binary format.
+     * The no entry key and value of the map are preserved.
+     * @param name
+     * @param map
+     * @throws DaoException
+     */
+    public void putIntIntMap(String name, TIntIntMap map) throws DaoException {
+        writeBinary(name, TYPE_INT_INT_MAP, map.getNoEntryKey(), map.getNoEntryValue(),
+                map.keys(), map.values());
+    }
+
+    /**
+     * Returns the map if it exists and is up to date, otherwise returns null.
+     * @param name Name of the map as passed to "putIntIntMap"
+     * @param dependsOn List of classes the map depends on, as described in get().
+     * @return
+     * @throws DaoException
+     */
+    public TIntIntMap getIntIntMap(String name, Class ... dependsOn) throws DaoException {
+        ByteBuffer buffer = readBinary(name, TYPE_INT_INT_MAP, dependsOn);
+        if (buffer == null) {
+            return null;
+        }
+        int n = buffer.getInt(16);
+        int[] keys = new int[n];
+        int[] values = new int[n];
+        buffer.position(HEADER_SIZE);
+        buffer.asIntBuffer().get(keys);
+        buffer.position(HEADER_SIZE + 4 * n);
+        buffer.asIntBuffer().get(values);
+
+        TIntIntMap map = new TIntIntHashMap(
+                Math.max(n * 2, gnu.trove.impl.Constants.DEFAULT_CAPACITY),
+                gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                (int) buffer.getLong(24), buffer.getInt(20));
+        for (int i = 0; i < n; i++) {
+            map.put(keys[i], values[i]);
+        }
+        return map;
+    }
+
+    /**
+     * Writes a header followed by the keys and the values.
+     * The file is written to a temporary file that is renamed over the entry when
+     * complete (see WpIOUtils.replaceFile), so readers never map a partial file.
+     */
+    private void writeBinary(String name, int type, long noEntryKey, int noEntryValue,
+                             int[] keys, int[] values) throws DaoException {
+        int n = values.length;
+        long size = HEADER_SIZE + 8L * n;
+        if (size > Integer.MAX_VALUE) {
+            throw new DaoException("cache entry " + name + " is too large: " + size + " bytes");
+        }
+        File file = getCacheFile(name);
+        File tmp = new File(directory, name + ".tmp" + System.nanoTime());
         try {
-            FileInputStream fis = new FileInputStream(getCacheFile(name));
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            Object object = ois.readObject();
-            ois.close();
-            return object;
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                raf.setLength(size);
+                MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putLong(0, MAGIC);
+                buffer.putInt(8, VERSION);
+                buffer.putInt(12, type);
+                buffer.putInt(16, n);
+                buffer.putInt(20, noEntryValue);
+                buffer.putLong(24, noEntryKey);
+                buffer.position(HEADER_SIZE);
+                buffer.asIntBuffer().put(keys);
+                buffer.position(HEADER_SIZE + 4 * n);
+                buffer.asIntBuffer().put(values);
+                mapped.force();
+            } finally {
+                raf.close();
+            }
+            WpIOUtils.replaceFile(tmp, file);
         } catch (IOException e) {
+            tmp.delete();
             throw new DaoException(e);
-        } catch (ClassNotFoundException e) {
+        }
+    }
+
+    /**
+     * Maps a file written by writeBinary.
+     * @return A little endian buffer over the entire file, or null if the file
+     * is not up to date or was written with a different format or type.
+     */
+    private ByteBuffer readBinary(String name, int type, Class ... dependsOn) throws DaoException {
+        if (!isUpToDate(name, dependsOn)) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(getCacheFile(name), "r");
+            try {
+                if (raf.length() < HEADER_SIZE) {
+                    return null;
+                }
+                ByteBuffer buffer = raf.getChannel()
+                        .map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getLong(0) != MAGIC
+                ||  buffer.getInt(8) != VERSION
+                ||  buffer.getInt(12) != type) {
+                    return null;
+                }
+                return buffer;
+            } finally {
+                // the mapping remains valid after the channel is closed
+                raf.close();
+            }
+        } catch (IOException e) {
             throw new DaoException(e);
         }
     }
@@ -5,8 +5,14 @@ import org.jooq.DSLContext;
 import org.jooq.Record;
 import org.wikibrain.core.dao.DaoException;
 
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author Ari Weiland
@@ -27,14 +33,50 @@ import java.util.Iterator;
  * <p>
  * This iterable can only be iterated over once, and will throw exceptions
  * if a user tries otherwise.
+ * <p>
+ * If prefetching is enabled with {@link #setPrefetch(int)}, a background thread
+ * fetches and transforms elements into a bounded buffer while the consumer
+ * processes earlier ones. The background thread releases the cursor and
+ * connection when the scan is exhausted or the iterable is closed. It also gives up
+ * if the consumer abandons the iteration without closing it and the iterator is
+ * garbage collected. Optionally, {@link #setIdleTimeout(long)} makes it give up when
+ * the consumer has not taken an element for too long (after which the iterator
+ * throws an exception if it is used again).
+ * <p>
+ * Scans of at least LOG_THRESHOLD elements log their throughput when they finish.
  */
 public abstract class SqlDaoIterable<E, T> implements Iterable<E> {
+    private static final Logger LOG = Logger.getLogger(SqlDaoIterable.class.getName());
+
+    /**
+     * Minimum number of elements in a scan for its throughput to be logged.
+     */
+    public static final int LOG_THRESHOLD = 100000;
+
+    // Placeholders in the prefetch buffer for null elements and the end of the scan.
+    private static final Object NULL = new Object();
+    private static final Object END = new Object();
+
     protected Cursor<Record> result;
     protected Iterator<T> iterator;
     protected Connection conn;
 
-    protected boolean usedUp = false;
-    protected boolean finished = false;
+    protected volatile boolean usedUp = false;
+    protected volatile boolean finished = false;
+
+    private String name = null;
+    private int prefetch = 0;
+    private long idleTimeoutMillis = 0;
+    private BlockingQueue<Object> buffer = null;
+    private WeakReference<Iterator<E>> consumer = null;
+    private volatile Exception prefetchError = null;
+
+    // Scan metrics
+    private long startMillis = -1;
+    private volatile int count = 0;
+    private long consumerWaitNanos = 0;
+    private volatile long producerWaitNanos = 0;
+    private boolean logged = false;
 
     public SqlDaoIterable(Cursor<Record> result, Iterator<T> iterator, DSLContext context){
         this(result, iterator, JooqUtils.getConnection(context));
@@ -63,8 +105,44 @@ public abstract class SqlDaoIterable<E, T> implements Iterable<E> {
      */
     public abstract E transform(T item) throws DaoException;
 
+    /**
+     * Enables prefetching. Must be called before iterator().
+     * @param capacity The maximum number of transformed elements buffered
+     *                 ahead of the consumer, or 0 to disable prefetching.
+     * @return this iterable
+     */
+    public SqlDaoIterable<E, T> setPrefetch(int capacity) {
+        if (usedUp) {
+            throw new IllegalStateException("prefetch must be set before iterating");
+        }
+        this.prefetch = capacity;
+        return this;
+    }
+
+    /**
+     * Sets how long the prefetcher waits for the consumer to take an element before it
+     * assumes the iteration was abandoned and releases the cursor and connection.
+     * @param millis The timeout, or 0 (the default) to wait as long as the iterator is reachable.
+     * @return this iterable
+     */
+    public SqlDaoIterable<E, T> setIdleTimeout(long millis) {
+        this.idleTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sets the name used to describe this scan in log messages.
+     * @param name
+     * @return this iterable
+     */
+    public SqlDaoIterable<E, T> setName(String name) {
+        this.name = name;
+        return this;
+    }
+
     /**
      * Closes this iterable, disabling all functionality.
+     * If prefetching, the background thread closes the cursor and connection.
      */
     public void close() {
         usedUp = true;
@@ -72,18 +150,63 @@ public abstract class SqlDaoIterable<E, T> implements Iterable<E> {
 //        while (iterator.hasNext()) {
 //            iterator.next();
 //        }
-        if (!result.isClosed()) {
+        if (buffer != null) {
+            buffer.clear();     // unblock the background thread if it is waiting
+        } else {
+            closeResources();
+        }
+        logMetrics();
+    }
+
+    /**
+     * Closes the cursor and connection.
+     */
+    protected void closeResources() {
+        if (result != null && !result.isClosed()) {
             result.close();
         }
         AbstractSqlDao.quietlyCloseConn(conn);
     }
 
+    /**
+     * @return True if the consumer's prefetching iterator has been garbage collected.
+     */
+    protected boolean isAbandoned() {
+        return consumer.get() == null;
+    }
+
+    /**
+     * @return The clock used by the prefetcher to measure how long the consumer has been idle.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private synchronized void logMetrics() {
+        if (logged || count < LOG_THRESHOLD) {
+            return;
+        }
+        logged = true;
+        double seconds = Math.max(System.currentTimeMillis() - startMillis, 1) / 1000.0;
+        String message = "scan of " + (name == null ? "sql dao" : name) + " read " + count
+                + " elements in " + seconds + " seconds (" + (int) (count / seconds) + " per second)";
+        if (buffer != null) {
+            message += ", consumer waited " + consumerWaitNanos / 1000000000.0
+                    + " seconds, prefetcher waited " + producerWaitNanos / 1000000000.0 + " seconds";
+        }
+        LOG.info(message);
+    }
+
     @Override
     public Iterator<E> iterator() {
         if (usedUp) {
             throw new IllegalStateException("SqlDaoIterable can only be iterated over once.");
         }
         usedUp = true;
+        startMillis = System.currentTimeMillis();
+        if (prefetch > 0) {
+            return prefetchingIterator();
+        }
         return new Iterator<E>() {
 
             @Override
@@ -109,6 +232,7 @@ public abstract class SqlDaoIterable<E, T> implements Iterable<E> {
                         close();
                         return null;
                     }
+                    count++;
                     return transform(item);
                 } catch (Exception e) {
                     close();
@@ -122,4 +246,124 @@ public abstract class SqlDaoIterable<E, T> implements Iterable<E> {
             }
         };
     }
+
+    /**
+     * Starts a background thread that fetches and transforms elements into the
+     * buffer, and returns an iterator that consumes them.
+     */
+    private Iterator<E> prefetchingIterator() {
+        buffer = new ArrayBlockingQueue<Object>(prefetch);
+        Iterator<E> iter = new Iterator<E>() {
+            private Object next = null;
+
+            @Override
+            public boolean hasNext() {
+                if (finished) {
+                    return false;
+                }
+                if (next == null) {
+                    long start = System.nanoTime();
+                    try {
+                        next = buffer.take();
+                    } catch (InterruptedException e) {
+                        close();
+                        throw new RuntimeException(e);
+                    }
+                    consumerWaitNanos += System.nanoTime() - start;
+                }
+                if (next == END) {
+                    close();
+                    if (prefetchError != null) {
+                        throw new RuntimeException(prefetchError);
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    return null;
+                }
+                Object e = next;
+                next = null;
+                count++;
+                return (e == NULL) ? null : (E) e;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        // The prefetcher only holds a weak reference to the consumer's iterator,
+        // so it can tell when the iterator is abandoned and garbage collected.
+        consumer = new WeakReference<Iterator<E>>(iter);
+        Thread prefetcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!finished && iterator.hasNext()) {
+                        T item = iterator.next();
+                        if (item == null) {
+                            break;
+                        }
+                        E e = transform(item);
+                        if (!offer(e == null ? NULL : e)) {
+                            break;
+                        }
+                    }
+                } catch (Exception e) {
+                    prefetchError = e;
+                } finally {
+                    closeResources();
+                    offer(END);
+                }
+            }
+        }, "prefetch-" + (name == null ? "sql-dao" : name));
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+
+        return iter;
+    }
+
+    /**
+     * Adds an element to the buffer, waiting while it is full.
+     * @return False if the iterable was closed or abandoned before the element could be added.
+     */
+    private boolean offer(Object element) {
+        long start = System.nanoTime();
+        long idleStart = nanoTime();
+        try {
+            while (!buffer.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                if (isAbandoned()) {
+                    if (element != END) {
+                        LOG.warning("prefetcher for " + (name == null ? "sql dao" : name) + " stopped because its iterator was abandoned without being closed");
+                    }
+                    return false;
+                } else if (finished && element != END) {
+                    return false;
+                } else if (finished) {
+                    buffer.clear();
+                } else if (element != END && idleTimeoutMillis > 0
+                        && nanoTime() - idleStart > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)) {
+                    // Let the consumer know why the scan ended if it ever returns.
+                    // (Once END is being offered the cursor is already closed, so there's no rush.)
+                    prefetchError = new DaoException("prefetcher for " + (name == null ? "sql dao" : name)
+                            + " stopped because its consumer was idle for " + idleTimeoutMillis + "ms");
+                    LOG.warning(prefetchError.getMessage());
+                    buffer.clear();
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            LOG.log(Level.WARNING, "prefetcher interrupted", e);
+            return false;
+        } finally {
+            producerWaitNanos += System.nanoTime() - start;
+        }
+    }
 }
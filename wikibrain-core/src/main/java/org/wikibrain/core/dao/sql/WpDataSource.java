@@ -13,6 +13,9 @@ import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.conf.Provider;
 import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.WpThreadUtils;
 
 import javax.sql.DataSource;
 
@@ -21,7 +24,11 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,10 +38,19 @@ import java.util.logging.Logger;
 public class WpDataSource  {
     private static final Logger LOG = Logger.getLogger(WpDataSource.class.getName());
 
+    public static final int DEFAULT_PREFETCH_SIZE = 5000;
+
     private DataSource dataSource;
     private Settings settings;
     private SQLDialect dialect;
 
+    private int fetchSize = AbstractSqlDao.DEFAULT_FETCH_SIZE;
+    private int prefetchSize = DEFAULT_PREFETCH_SIZE;
+    private long prefetchIdleTimeout = 0;
+
+    // Create index scripts deferred until the end of a bulk load, in the order they were deferred
+    private Set<String> deferredIndexScripts = null;
+
     public WpDataSource(DataSource dataSource) throws DaoException {
         this.settings = new Settings();
         this.dataSource = dataSource;
@@ -55,6 +71,8 @@ public class WpDataSource  {
 
     public Connection getConnection() throws SQLException {
         Connection conn = dataSource.getConnection();
+        // Autocommit must also be off for postgres to stream large results
+        // through a server-side cursor instead of reading them into memory.
         if (conn.getAutoCommit()) {
             conn.setAutoCommit(false);
             // Since we're bulk loading, dirty reads are fine. I think....
@@ -63,6 +81,46 @@ public class WpDataSource  {
         return conn;
     }
 
+    public SQLDialect getDialect() {
+        return dialect;
+    }
+
+    /**
+     * @return The number of rows daos fetch from the database at a time when reading
+     * large results. Postgres honors this with server-side cursors; H2 ignores it.
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return The number of elements prefetched by a background thread during
+     * full scans, or 0 if scans are not prefetched.
+     */
+    public int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    public void setPrefetchSize(int prefetchSize) {
+        this.prefetchSize = prefetchSize;
+    }
+
+    /**
+     * @return The milliseconds a prefetching scan waits for its caller to take an
+     * element before releasing its connection, or 0 if it waits indefinitely.
+     */
+    public long getPrefetchIdleTimeout() {
+        return prefetchIdleTimeout;
+    }
+
+    public void setPrefetchIdleTimeout(long prefetchIdleTimeout) {
+        this.prefetchIdleTimeout = prefetchIdleTimeout;
+    }
+
     /**
      * Rollback the current transaction.
      * If a SQLException occurs while rolling back, it logs the error and returns false,
@@ -111,21 +169,11 @@ public class WpDataSource  {
      * @throws DaoException
      */
     public void executeSqlResource(String name) throws DaoException {
-        String script = null;
-        try {
-//            System.out.println(name);
-            script = IOUtils.toString(AbstractSqlDao.class.getResource(name));
-        } catch (IOException e) {
-            throw new DaoException(e);
-        }
-        script = translateSqlScript(script);
+        String script = readSqlResource(name);
         Connection conn=null;
         try {
             conn = getConnection();
-            for (String s : script.split(";")) {
-                if (s.replaceAll(";", "").trim().isEmpty()) {
-                    continue;
-                }
+            for (String s : splitSqlScript(script)) {
                 LOG.fine("executing:\n" + s + "\n=========================================\n");
 
 
@@ -149,6 +197,119 @@ public class WpDataSource  {
         }
     }
 
+    private String readSqlResource(String name) throws DaoException {
+        try {
+            return translateSqlScript(IOUtils.toString(AbstractSqlDao.class.getResource(name)));
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private static List<String> splitSqlScript(String script) {
+        List<String> statements = new ArrayList<String>();
+        for (String s : script.split(";")) {
+            if (!s.trim().isEmpty()) {
+                statements.add(s);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Begins a bulk load spanning one or more daos.
+     *
+     * Daos drop their indexes in beginLoad() as usual, but until endBulkLoad() is called
+     * the index scripts they would run in endLoad() are deferred instead. This keeps the
+     * indexes of every dao in the load from being built while other daos are still loading,
+     * and lets endBulkLoad() build them all at once.
+     */
+    public synchronized void beginBulkLoad() {
+        if (deferredIndexScripts == null) {
+            deferredIndexScripts = new LinkedHashSet<String>();
+        }
+    }
+
+    public synchronized boolean isBulkLoading() {
+        return deferredIndexScripts != null;
+    }
+
+    /**
+     * Defers a create index script until endBulkLoad() is called.
+     * If no bulk load is in progress the script is executed immediately.
+     * @param name Resource path - e.g. "/db/local-page-create-indexes.sql"
+     * @throws DaoException
+     */
+    public void deferIndexScript(String name) throws DaoException {
+        synchronized (this) {
+            if (deferredIndexScripts != null) {
+                deferredIndexScripts.add(name);
+                return;
+            }
+        }
+        executeSqlResource(name);
+    }
+
+    /**
+     * Ends a bulk load and builds all indexes deferred since beginBulkLoad().
+     *
+     * On postgres each index is built on a separate connection, and several are built
+     * concurrently. H2 serializes statements against a database, so there they are built
+     * one at a time. The time taken by each index is logged.
+     * @throws DaoException If any index could not be built.
+     */
+    public void endBulkLoad() throws DaoException {
+        List<String> statements = new ArrayList<String>();
+        synchronized (this) {
+            if (deferredIndexScripts == null) {
+                return;
+            }
+            for (String name : deferredIndexScripts) {
+                statements.addAll(splitSqlScript(readSqlResource(name)));
+            }
+            deferredIndexScripts = null;
+        }
+        int numThreads = (dialect == SQLDialect.POSTGRES)
+                ? Math.min(statements.size(), WpThreadUtils.getMaxThreads())
+                : 1;
+        LOG.info("building " + statements.size() + " deferred indexes using " + numThreads + " threads");
+        long start = System.currentTimeMillis();
+        List<Boolean> built = ParallelForEach.loop(statements, Math.max(numThreads, 1), new Function<String, Boolean>() {
+            public Boolean call(String statement) throws Exception {
+                return buildIndex(statement);
+            }
+        });
+        int failures = 0;
+        for (Boolean b : built) {
+            if (b == null || !b) {
+                failures++;
+            }
+        }
+        LOG.info("built deferred indexes in " + (System.currentTimeMillis() - start) / 1000.0 + " seconds");
+        if (failures > 0) {
+            throw new DaoException("failed to build " + failures + " of " + statements.size() + " deferred indexes");
+        }
+    }
+
+    private boolean buildIndex(String statement) {
+        Connection conn = null;
+        long start = System.currentTimeMillis();
+        try {
+            conn = getConnection();
+            Statement st = conn.createStatement();
+            st.execute(statement + ";");
+            st.close();
+            conn.commit();
+            LOG.info("built index in " + (System.currentTimeMillis() - start) / 1000.0 + " seconds: " + statement.trim());
+            return true;
+        } catch (SQLException e) {
+            rollbackQuietly(conn);
+            LOG.log(Level.SEVERE, "error building index: " + statement.trim(), e);
+            return false;
+        } finally {
+            closeQuietly(conn);
+        }
+    }
+
     public String translateSqlScript(String script) {
         if (dialect == SQLDialect.POSTGRES) {
             script = script.replaceAll(
@@ -252,7 +413,17 @@ public class WpDataSource  {
                 ds.setPassword(config.getString("password"));
                 ds.setPartitionCount(Runtime.getRuntime().availableProcessors());
                 ds.setMaxConnectionsPerPartition(2);
-                return new WpDataSource(ds);
+                WpDataSource wpDs = new WpDataSource(ds);
+                if (config.hasPath("fetchSize")) {
+                    wpDs.setFetchSize(config.getInt("fetchSize"));
+                }
+                if (config.hasPath("prefetch")) {
+                    wpDs.setPrefetchSize(config.getInt("prefetch"));
+                }
+                if (config.hasPath("prefetchIdleTimeout")) {
+                    wpDs.setPrefetchIdleTimeout(config.getMilliseconds("prefetchIdleTimeout"));
+                }
+                return wpDs;
             } catch (ClassNotFoundException e) {
                 throw new ConfigurationException(e);
             } catch (DaoException e) {
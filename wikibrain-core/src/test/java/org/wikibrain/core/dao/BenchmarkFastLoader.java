@@ -9,6 +9,7 @@ import org.wikibrain.core.jooq.Tables;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
@@ -22,6 +23,10 @@ import java.sql.SQLException;
  * non csv load, non-batch: 43K per second
  * non csv load, batch: 363K per second
  *
+ * Runs every FastLoader strategy supported by the database. By default this is an H2
+ * database in tmp/, but a jdbc url, user, and password can be passed as arguments
+ * (e.g. to compare batch inserts against COPY on PostgreSQL).
+ *
  */
 public class BenchmarkFastLoader {
     public static int NUM_ENTRIES = 10000000;
@@ -40,17 +45,38 @@ public class BenchmarkFastLoader {
 
     public static void main(String args[]) throws IOException, DaoException, SQLException {
         File dbPath = new File("tmp/benchmark-loader-db");
-        if (dbPath.exists()) FileUtils.forceDelete(dbPath);
-        dbPath.mkdirs();
-        FileUtils.forceDeleteOnExit(dbPath);
-
         BoneCPDataSource ds = new BoneCPDataSource();
         System.out.println("Establishing new data source");
-        ds.setJdbcUrl("jdbc:h2:" + dbPath.getAbsolutePath() + JDBC_URL_OPTS);
-        ds.setUsername("sa");
-        ds.setPassword("");
+        if (args.length > 0) {
+            // e.g. jdbc:postgresql://localhost/wikibrain user password
+            ds.setJdbcUrl(args[0]);
+            ds.setUsername(args.length > 1 ? args[1] : "");
+            ds.setPassword(args.length > 2 ? args[2] : "");
+        } else {
+            if (dbPath.exists()) FileUtils.forceDelete(dbPath);
+            dbPath.mkdirs();
+            FileUtils.forceDeleteOnExit(dbPath);
+            ds.setJdbcUrl("jdbc:h2:" + dbPath.getAbsolutePath() + JDBC_URL_OPTS);
+            ds.setUsername("sa");
+            ds.setPassword("");
+        }
+        WpDataSource wpDs = new WpDataSource(ds);
+
+        for (FastLoader.Strategy strategy : FastLoader.Strategy.values()) {
+            if (strategy.supports(wpDs.getDialect())) {
+                benchmark(ds, wpDs, strategy);
+            } else {
+                System.err.println("skipping " + strategy + ", which does not support " + wpDs.getDialect());
+            }
+        }
+        ds.close();
+    }
 
-        ds.getConnection().createStatement().execute("DROP TABLE IF EXISTS local_link");
+    private static void benchmark(BoneCPDataSource ds, WpDataSource wpDs, FastLoader.Strategy strategy) throws SQLException, DaoException {
+        System.err.println("benchmarking strategy " + strategy);
+        Connection cnx = ds.getConnection();
+        cnx.setAutoCommit(true);
+        cnx.createStatement().execute("DROP TABLE IF EXISTS local_link");
         String schema = "CREATE TABLE local_link (\n" +
                 "  lang_id SMALLINT NOT NULL,\n" +
                 "  anchor_text TEXT NOT NULL,\n" +
@@ -61,15 +87,15 @@ public class BenchmarkFastLoader {
                 "  location_type SMALLINT NOT NULL\n" +
                 ");\n";
 
-        ds.getConnection().createStatement().execute(schema);
+        cnx.createStatement().execute(schema);
 
-        FastLoader loader = new FastLoader(new WpDataSource(ds), INSERT_FIELDS);
+        FastLoader loader = new FastLoader(wpDs, INSERT_FIELDS, strategy);
 
         long t1 = System.currentTimeMillis();
         for (int i = 0; i < NUM_ENTRIES; i++) {
             loader.load(new Object[] {
                     10,
-                    "Foo bar baz",
+                    "Foo \"bar\", baz",
                     324234,
                     3219,
                     313,
@@ -85,22 +111,24 @@ public class BenchmarkFastLoader {
         long t3 = System.currentTimeMillis();
         System.err.println("load time was " + (t3-t2) / 1000.0 + " seconds");
         System.err.println("loaded " + 1000.0 * NUM_ENTRIES / (t3-t2) + " entries per second");
+        System.err.println("total " + 1000.0 * NUM_ENTRIES / (t3-t1) + " entries per second");
 
-        ResultSet rs = ds.getConnection().createStatement()
+        ResultSet rs = cnx.createStatement()
                 .executeQuery("select count(*) from local_link");
         rs.next();
         System.err.println("inserted " + rs.getInt(1) + " records");
-        rs = ds.getConnection().createStatement()
+        rs = cnx.createStatement()
                 .executeQuery("select * from local_link limit 100000");
 
         while (rs.next()) {
             assert(rs.getInt(1) == 10);
-            assert(rs.getString(2).equals("Foo bar baz"));
+            assert(rs.getString(2).equals("Foo \"bar\", baz"));
             assert(rs.getInt(3) == 324234);
             assert(rs.getInt(4) == 3219);
             assert(rs.getInt(5) == 313);
             assert(rs.getBoolean(6));
             assert(rs.getInt(7) == 99);
         }
+        cnx.close();
     }
 }
@@ -0,0 +1,128 @@
+package org.wikibrain.core.dao;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.sql.FastLoader;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.UniversalLinkSkeletalSqlDao;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.UniversalLink;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestFastLoader {
+    private static final int NUM_ROWS = 25000;
+
+    @Test
+    public void testRejectedRows() throws IOException, ClassNotFoundException, DaoException, SQLException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        for (FastLoader.Strategy strategy : FastLoader.Strategy.values()) {
+            // batch inserts skip a whole batch when one of its rows is rejected
+            if (strategy == FastLoader.Strategy.BATCH_INSERT || !strategy.supports(wpDs.getDialect())) {
+                continue;
+            }
+            String table = "fast_loader_" + strategy.name().toLowerCase();
+            execute(wpDs, "CREATE TABLE " + table + " (id INT, name VARCHAR(100) NOT NULL)");
+
+            // two rows violate the NOT NULL constraint; the rest must still be loaded
+            FastLoader loader = new FastLoader(wpDs, table, new String[] { "id", "name" }, strategy, false);
+            for (int i = 0; i < NUM_ROWS; i++) {
+                String name = (i == 123 || i == 17000) ? null : "page \"" + i + "\",\nline two";
+                loader.load(i, name);
+            }
+            loader.endLoad();
+
+            assertEquals(NUM_ROWS - 2, count(wpDs, "SELECT COUNT(*) FROM " + table));
+            assertEquals(0, count(wpDs, "SELECT COUNT(*) FROM " + table + " WHERE id IN (123, 17000)"));
+            assertEquals(1, count(wpDs, "SELECT COUNT(*) FROM " + table + " WHERE name = 'page \"124\",\nline two'"));
+        }
+    }
+
+    @Test
+    public void testBinaryColumn() throws IOException, ClassNotFoundException, DaoException, SQLException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        Random random = new Random(0);
+        byte[][] values = new byte[100][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new byte[i % 7];
+            random.nextBytes(values[i]);
+        }
+        values[5] = null;
+        for (FastLoader.Strategy strategy : FastLoader.Strategy.values()) {
+            if (!strategy.supports(wpDs.getDialect())) {
+                continue;
+            }
+            String table = "fast_loader_binary_" + strategy.name().toLowerCase();
+            execute(wpDs, "CREATE TABLE " + table + " (id INT, data BYTEA)");
+            FastLoader loader = new FastLoader(wpDs, table, new String[] { "id", "data" }, strategy, false);
+            for (int i = 0; i < values.length; i++) {
+                loader.load(i, values[i]);
+            }
+            loader.endLoad();
+
+            Connection cnx = wpDs.getConnection();
+            try {
+                Statement statement = cnx.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT id, data FROM " + table);
+                int n = 0;
+                while (rs.next()) {
+                    assertTrue(Arrays.equals(values[rs.getInt(1)], rs.getBytes(2)));
+                    n++;
+                }
+                statement.close();
+                assertEquals(values.length, n);
+            } finally {
+                cnx.close();
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryDao() throws IOException, ClassNotFoundException, DaoException, SQLException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        UniversalLinkSkeletalSqlDao dao = new UniversalLinkSkeletalSqlDao(wpDs);
+        LanguageSet langs = new LanguageSet("en,simple,de");
+        dao.beginLoad();
+        dao.save(new UniversalLink(1, 2, 0, langs));
+        dao.save(new UniversalLink(1, 3, 0, new LanguageSet("fr")));
+        dao.endLoad();
+
+        assertEquals(langs.getLanguages(), dao.getUniversalLink(1, 2, 0).getLanguageSet().getLanguages());
+        assertEquals(new LanguageSet("fr").getLanguages(), dao.getUniversalLink(1, 3, 0).getLanguageSet().getLanguages());
+    }
+
+    private static void execute(WpDataSource wpDs, String sql) throws SQLException {
+        Connection cnx = wpDs.getConnection();
+        try {
+            Statement statement = cnx.createStatement();
+            statement.execute(sql);
+            statement.close();
+            cnx.commit();
+        } finally {
+            cnx.close();
+        }
+    }
+
+    private static int count(WpDataSource wpDs, String sql) throws SQLException {
+        Connection cnx = wpDs.getConnection();
+        try {
+            Statement statement = cnx.createStatement();
+            ResultSet rs = statement.executeQuery(sql);
+            rs.next();
+            int n = rs.getInt(1);
+            statement.close();
+            return n;
+        } finally {
+            cnx.close();
+        }
+    }
+}
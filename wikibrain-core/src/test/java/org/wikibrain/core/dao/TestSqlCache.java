@@ -1,6 +1,8 @@
 package org.wikibrain.core.dao;
 
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TLongIntHashMap;
 import org.junit.Test;
 import org.wikibrain.core.dao.sql.MetaInfoSqlDao;
@@ -12,6 +14,7 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
@@ -42,6 +45,53 @@ public class TestSqlCache {
         testCache(cache, md, "a map", map, Boolean.class, Map.class);
     }
 
+    @Test
+    public void testBinary() throws ClassNotFoundException, IOException, SQLException, DaoException, InterruptedException {
+        File tmpDir = File.createTempFile("wikibrain-h2", null);
+        tmpDir.delete();
+        tmpDir.deleteOnExit();
+        tmpDir.mkdirs();
+
+        WpDataSource ds = TestDaoUtil.getWpDataSource();
+
+        MetaInfoSqlDao md = new MetaInfoSqlDao(ds);
+        md.beginLoad();        // create tables
+        md.incrementRecords(Map.class);
+        Thread.currentThread().sleep(1000);
+
+        SqlCache cache = new SqlCache(md, tmpDir);
+
+        Random random = new Random(0);
+        TIntIntMap intMap = new TIntIntHashMap(10, .5f, -1, -7);
+        for (int i = 0; i < 10000; i++) {
+            intMap.put(random.nextInt(), random.nextInt());
+        }
+
+        assertNull(cache.getIntIntMap("intMap", Map.class));
+        cache.putIntIntMap("intMap", intMap);
+        assertNull(cache.getIntIntMap("empty", Map.class));
+        cache.putIntIntMap("empty", new TIntIntHashMap());
+        assertEquals(0, cache.getIntIntMap("empty", Map.class).size());
+
+        // rewriting an entry replaces it
+        intMap.put(12345, 678);
+        cache.putIntIntMap("intMap", intMap);
+
+        TIntIntMap intMap2 = cache.getIntIntMap("intMap", Map.class);
+        assertEquals(intMap, intMap2);
+        assertEquals(-1, intMap2.getNoEntryKey());
+        assertEquals(-7, intMap2.getNoEntryValue());
+
+        // a file written with a different format is treated as stale
+        cache.put("object", "a string");
+        assertNull(cache.getIntIntMap("object", Map.class));
+
+        // as is a file that is older than the classes it depends on
+        Thread.currentThread().sleep(1000);
+        md.incrementRecords(Map.class);
+        assertNull(cache.getIntIntMap("intMap", Map.class));
+    }
+
     private void testCache(SqlCache cache, MetaInfoDao md, String key, Object val, Class ... dependsOn) throws DaoException, InterruptedException {
         cache.put(key, val);
         assertNull(cache.get(key, dependsOn));
@@ -0,0 +1,135 @@
+package org.wikibrain.core.dao;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.sql.SqlDaoIterable;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the prefetcher's abandoned and idle checks with a controllable
+ * iterable over an in-memory list instead of a database cursor.
+ */
+public class TestSqlDaoIterable {
+    private static final int NUM_ITEMS = 100;
+
+    @Test
+    public void testPrefetchReadsEverything() throws Exception {
+        ControlledIterable iterable = new ControlledIterable();
+        iterable.setPrefetch(10);
+        int i = 0;
+        for (Integer item : iterable) {
+            assertEquals(i++, (int) item);
+        }
+        assertEquals(NUM_ITEMS, i);
+        assertTrue(iterable.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAbandonedPrefetchReleasesResources() throws Exception {
+        ControlledIterable iterable = new ControlledIterable();
+        iterable.setPrefetch(1);
+        Iterator<Integer> iter = iterable.iterator();
+        assertEquals(0, (int) iter.next());
+
+        // the prefetcher fills its buffer and blocks, holding the resources
+        assertFalse(iterable.closed.await(300, TimeUnit.MILLISECONDS));
+
+        iterable.abandoned = true;
+        assertTrue(iterable.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testIdleTimeoutIsDisabledByDefault() throws Exception {
+        ControlledIterable iterable = new ControlledIterable();
+        iterable.setPrefetch(1);
+        Iterator<Integer> iter = iterable.iterator();
+        assertEquals(0, (int) iter.next());
+
+        iterable.tick = TimeUnit.DAYS.toNanos(1);
+        assertFalse(iterable.closed.await(300, TimeUnit.MILLISECONDS));
+
+        int n = 1;
+        while (iter.hasNext()) {
+            assertEquals(n++, (int) iter.next());
+        }
+        assertEquals(NUM_ITEMS, n);
+    }
+
+    @Test
+    public void testIdlePrefetchReleasesResources() throws Exception {
+        ControlledIterable iterable = new ControlledIterable();
+        iterable.setPrefetch(1);
+        iterable.setIdleTimeout(1000);
+        Iterator<Integer> iter = iterable.iterator();
+        assertEquals(0, (int) iter.next());
+
+        iterable.tick = TimeUnit.MILLISECONDS.toNanos(600);
+        assertTrue(iterable.closed.await(5, TimeUnit.SECONDS));
+
+        // an idle consumer that comes back is told the scan was cut short
+        try {
+            while (iter.hasNext()) {
+                iter.next();
+            }
+            fail("expected the scan to fail after the idle timeout");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof DaoException);
+        }
+    }
+
+    private static List<Integer> createItems() {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            items.add(i);
+        }
+        return items;
+    }
+
+    /**
+     * An iterable whose abandoned check and idle clock are set by the test,
+     * and that signals when the prefetcher releases its resources. The clock
+     * advances by tick nanoseconds each time it is read.
+     */
+    private static class ControlledIterable extends SqlDaoIterable<Integer, Integer> {
+        final AtomicLong clock = new AtomicLong();
+        volatile long tick = 0;
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean abandoned = false;
+
+        ControlledIterable() {
+            super(null, createItems().iterator(), (Connection) null);
+        }
+
+        @Override
+        public Integer transform(Integer item) {
+            return item;
+        }
+
+        @Override
+        protected void closeResources() {
+            super.closeResources();
+            closed.countDown();
+        }
+
+        @Override
+        protected boolean isAbandoned() {
+            return abandoned;
+        }
+
+        @Override
+        protected long nanoTime() {
+            return clock.addAndGet(tick);
+        }
+    }
+}
@@ -2,10 +2,21 @@ package org.wikibrain.core.dao;
 
 import org.jooq.DSLContext;
 import org.junit.Test;
+import org.wikibrain.core.dao.sql.LocalLinkSqlDao;
+import org.wikibrain.core.dao.sql.RedirectSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
 import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Shilad Sen
@@ -19,4 +30,45 @@ public class TestWpDataSource {
             wpDs.freeJooq(context);
         }
     }
+
+    @Test
+    public void testBulkLoad() throws IOException, ClassNotFoundException, DaoException, SQLException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+        LocalLinkSqlDao linkDao = new LocalLinkSqlDao(wpDs);
+
+        wpDs.beginBulkLoad();
+        assertTrue(wpDs.isBulkLoading());
+        redirectDao.beginLoad();
+        linkDao.beginLoad();
+        redirectDao.save(Language.getByLangCode("en"), 0, 5);
+        redirectDao.endLoad();
+        linkDao.endLoad();
+
+        // indexes are deferred until the bulk load ends
+        assertFalse(getIndexNames(wpDs, "REDIRECT").contains("REDIRECT_IDX_SRC_ID"));
+        assertFalse(getIndexNames(wpDs, "LOCAL_LINK").contains("LOCAL_LINK_IDX_SOURCE_ID"));
+
+        wpDs.endBulkLoad();
+        assertFalse(wpDs.isBulkLoading());
+        assertTrue(getIndexNames(wpDs, "REDIRECT").contains("REDIRECT_IDX_SRC_ID"));
+        assertTrue(getIndexNames(wpDs, "REDIRECT").contains("REDIRECT_IDX_DEST_ID"));
+        assertTrue(getIndexNames(wpDs, "LOCAL_LINK").contains("LOCAL_LINK_IDX_SOURCE_ID"));
+        assertTrue(getIndexNames(wpDs, "LOCAL_LINK").contains("LOCAL_LINK_IDX_DEST_ID"));
+        assertTrue(redirectDao.isRedirect(Language.getByLangCode("en"), 0));
+    }
+
+    private Set<String> getIndexNames(WpDataSource wpDs, String table) throws SQLException {
+        Set<String> names = new HashSet<String>();
+        Connection cnx = wpDs.getConnection();
+        try {
+            ResultSet rs = cnx.getMetaData().getIndexInfo(null, null, table, false, false);
+            while (rs.next()) {
+                names.add(rs.getString("INDEX_NAME"));
+            }
+        } finally {
+            cnx.close();
+        }
+        return names;
+    }
 }
@@ -12,6 +12,7 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.dao.MetaInfoDao;
 import org.wikibrain.core.dao.RawPageDao;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
 import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
@@ -217,6 +218,9 @@ public class DumpLoader {
             rpDao.clear();
             metaDao.clear();
         }
+        // defer the indexes of all daos until every dump is loaded
+        WpDataSource wpDs = conf.get(WpDataSource.class);
+        wpDs.beginBulkLoad();
         lpDao.beginLoad();
         rpDao.beginLoad();
         metaDao.beginLoad();
@@ -230,8 +234,17 @@ public class DumpLoader {
         lpDao.endLoad();
         rpDao.endLoad();
         metaDao.endLoad();
+        wpDs.endBulkLoad();
+
+        // build the title indexes once, so later stages can open them instead of building them
+        if (lpDao instanceof LocalPageSqlDao) {
+            lpDao.setFollowRedirects(false);
+            for (Language lang : env.getLanguages()) {
+                ((LocalPageSqlDao) lpDao).buildTitleIndex(lang);
+            }
+        }
 
         LOG.info("optimizing database.");
-        conf.get(WpDataSource.class).optimize();
+        wpDs.optimize();
     }
 }
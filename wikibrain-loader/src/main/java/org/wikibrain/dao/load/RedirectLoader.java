@@ -136,6 +136,8 @@ public class RedirectLoader {
         }
 
         LOG.info("Begin Load: ");
+        WpDataSource wpDs = conf.get(WpDataSource.class);
+        wpDs.beginBulkLoad();
         redirectLoader.getDao().beginLoad();
         metaDao.beginLoad();
 
@@ -148,9 +150,19 @@ public class RedirectLoader {
 
         redirectLoader.getDao().endLoad();
         metaDao.endLoad();
+        wpDs.endBulkLoad();
+
+        // build the redirect resolving title indexes used by the link loaders
+        LocalPageDao lpDao = conf.get(LocalPageDao.class);
+        if (lpDao instanceof LocalPageSqlDao) {
+            lpDao.setFollowRedirects(true);
+            for (Language l : env.getLanguages()) {
+                ((LocalPageSqlDao) lpDao).buildTitleIndex(l);
+            }
+        }
 
         LOG.info("optimizing database.");
-        conf.get(WpDataSource.class).optimize();
+        wpDs.optimize();
     }
 
 }
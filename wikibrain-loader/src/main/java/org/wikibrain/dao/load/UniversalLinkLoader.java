@@ -148,12 +148,16 @@ public class UniversalLinkLoader {
                 universalLinkSkeletalDao
         );
 
+        // defer the indexes of both link daos until both are loaded
+        WpDataSource wpDs = conf.get(WpDataSource.class);
+        wpDs.beginBulkLoad();
         loader.beginLoad(cmd.hasOption("d"));
         loader.loadLinkMap(mapper.getId());
         loader.endLoad();
+        wpDs.endBulkLoad();
         LOG.log(Level.INFO, "DONE");
 
         LOG.info("optimizing database.");
-        conf.get(WpDataSource.class).optimize();
+        wpDs.optimize();
     }
 }
@@ -80,6 +80,9 @@ public class WikiTextLoader {
             metaDao.clear(LocalCategoryMember.class);
             metaDao.clear(InterLanguageLink.class);
         }
+        // defer the indexes of all daos until every language is parsed
+        WpDataSource wpDs = conf.get(WpDataSource.class);
+        wpDs.beginBulkLoad();
         illDao.beginLoad();
         llDao.beginLoad();
         lcmDao.beginLoad();
@@ -96,9 +99,10 @@ public class WikiTextLoader {
         llDao.endLoad();
         lcmDao.endLoad();
         metaDao.endLoad();
+        wpDs.endBulkLoad();
 
         LOG.info("optimizing database.");
-        conf.get(WpDataSource.class).optimize();
+        wpDs.optimize();
 
         System.out.println("encountered " + metaDao.getInfo(LocalLink.class).getNumErrors() + " parse errors");
 
@@ -119,7 +119,7 @@ public class LuceneIndexer implements Closeable {
             document.add(canonicalTitleField);
             if (!page.isRedirect()) {
                 for (LuceneOptions option : options) {
-                    document.add(builder.buildTextField(page, option.elements));
+                    document.add(builder.buildTextField(page, option.elements, option.termVectors));
                 }
             }
             writer.addDocument(document);
@@ -37,10 +37,16 @@ public class LuceneOptions {
     public final TokenizerOptions options;
     public final TextFieldElements elements;
 
+    /**
+     * If true, term vectors are stored for the text field so that MoreLikeThis
+     * does not have to re-analyze the stored text of each query document.
+     */
+    public final boolean termVectors;
+
     /**
      * Used by provider only.
      */
-    private LuceneOptions(String name, Configurator configurator, String matchVersion, String luceneRoot, List<String> namespaces, TokenizerOptions options, TextFieldElements elements) {
+    private LuceneOptions(String name, Configurator configurator, String matchVersion, String luceneRoot, List<String> namespaces, TokenizerOptions options, TextFieldElements elements, boolean termVectors) {
         this.name = name;
         this.configurator = configurator;
         this.matchVersion = Version.parseLeniently(matchVersion);
@@ -51,6 +57,7 @@ public class LuceneOptions {
         }
         this.options = options;
         this.elements = elements;
+        this.termVectors = termVectors;
     }
 
     /**
@@ -91,7 +98,8 @@ public class LuceneOptions {
                 this.luceneRoot.equals(opts.luceneRoot) &&
                 CollectionUtils.isEqualCollection(this.namespaces, opts.namespaces) &&
                 this.options.equals(opts.options) &&
-                this.elements.equals(opts.elements));
+                this.elements.equals(opts.elements) &&
+                this.termVectors == opts.termVectors);
     }
 
     public static class Provider extends org.wikibrain.conf.Provider<LuceneOptions> {
@@ -127,7 +135,8 @@ public class LuceneOptions {
                     buildElements(
                             config.getInt("title"),
                             config.getBoolean("redirects"),
-                            config.getBoolean("plaintext"))
+                            config.getBoolean("plaintext")),
+                    config.hasPath("termVectors") && config.getBoolean("termVectors")
             );
         }
     }
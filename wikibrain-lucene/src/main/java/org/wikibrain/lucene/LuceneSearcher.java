@@ -1,11 +1,15 @@
 package org.wikibrain.lucene;
 
 import com.typesafe.config.Config;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -15,8 +19,10 @@ import org.wikibrain.core.lang.LanguageSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +46,12 @@ public class LuceneSearcher {
     private final Map<Language, WikiBrainAnalyzer> analyzers;
     private final LuceneOptions options;
 
+    /**
+     * Maps between lucene ids and local ids, built on demand by buildIdMaps().
+     */
+    private final Map<Language, int[]> localIdsByDocId = new ConcurrentHashMap<Language, int[]>();
+    private final Map<Language, TIntIntMap> docIdsByLocalId = new ConcurrentHashMap<Language, TIntIntMap>();
+
     private int hitCount = DEFAULT_HIT_COUNT;
 
     /**
@@ -171,6 +183,10 @@ public class LuceneSearcher {
      * @return
      */
     public int getLocalIdFromDocId(int docId, Language language) {
+        int localIds[] = getLocalIdsByDocId(language, false);
+        if (localIds != null && docId >= 0 && docId < localIds.length) {
+            return localIds[docId];
+        }
         try {
             if (docId != -1) {
                 Document document = searchers.get(language).doc(docId);
@@ -185,6 +201,10 @@ public class LuceneSearcher {
     }
 
     public int getDocIdFromLocalId(int localId, Language language) throws DaoException {
+        TIntIntMap docIds = getDocIdsByLocalId(language, false);
+        if (docIds != null) {
+            return docIds.containsKey(localId) ? docIds.get(localId) : -1;
+        }
         Query query = NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, localId, true, true);
         try {
             ScoreDoc[] hits = searchers.get(language).search(query, 1).scoreDocs;
@@ -198,6 +218,70 @@ public class LuceneSearcher {
         }
     }
 
+    /**
+     * Returns the local id of every lucene document in a language, indexed by lucene id.
+     * The array is built with one pass over the field cache the first time it is requested,
+     * after which getLocalIdFromDocId() and getDocIdFromLocalId() use it instead of loading
+     * documents or running queries.
+     */
+    public int[] getLocalIdsByDocId(Language language) {
+        return getLocalIdsByDocId(language, true);
+    }
+
+    /**
+     * Returns a map from local id to lucene id for a language.
+     * @see #getLocalIdsByDocId(org.wikibrain.core.lang.Language)
+     */
+    public TIntIntMap getDocIdsByLocalId(Language language) {
+        return getDocIdsByLocalId(language, true);
+    }
+
+    private int[] getLocalIdsByDocId(Language language, boolean build) {
+        if (build && !localIdsByDocId.containsKey(language)) {
+            buildIdMaps(language);
+        }
+        return localIdsByDocId.get(language);
+    }
+
+    private TIntIntMap getDocIdsByLocalId(Language language, boolean build) {
+        if (build && !docIdsByLocalId.containsKey(language)) {
+            buildIdMaps(language);
+        }
+        return docIdsByLocalId.get(language);
+    }
+
+    private synchronized void buildIdMaps(Language language) {
+        if (localIdsByDocId.containsKey(language)) {
+            return;
+        }
+        DirectoryReader reader = getReaderByLanguage(language);
+        LOG.info("building lucene id maps for " + reader.maxDoc() + " documents in " + language);
+        int localIds[] = new int[reader.maxDoc()];
+        Arrays.fill(localIds, -1);
+        TIntIntMap docIds = new TIntIntHashMap(reader.numDocs() * 4 / 3 + 1, 0.75f, -1, -1);
+        try {
+            for (AtomicReaderContext context : reader.leaves()) {
+                Bits liveDocs = context.reader().getLiveDocs();
+                Bits hasValue = FieldCache.DEFAULT.getDocsWithField(context.reader(), LuceneOptions.LOCAL_ID_FIELD_NAME);
+                FieldCache.Ints values = FieldCache.DEFAULT.getInts(
+                        context.reader(), LuceneOptions.LOCAL_ID_FIELD_NAME,
+                        FieldCache.NUMERIC_UTILS_INT_PARSER, false);
+                for (int i = 0; i < context.reader().maxDoc(); i++) {
+                    if ((liveDocs == null || liveDocs.get(i)) && hasValue.get(i)) {
+                        int docId = context.docBase + i;
+                        localIds[docId] = values.get(i);
+                        docIds.put(localIds[docId], docId);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // the doc id map goes first because buildIdMaps() checks for the local id map
+        docIdsByLocalId.put(language, docIds);
+        localIdsByDocId.put(language, localIds);
+    }
+
     public DirectoryReader getReaderByLanguage(Language language) {
         if (!readers.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
         return readers.get(language);
@@ -2,6 +2,7 @@ package org.wikibrain.lucene;
 
 import gnu.trove.iterator.TIntIterator;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.TextField;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
@@ -18,6 +19,15 @@ import org.wikibrain.core.model.RawPage;
  */
 public class TextFieldBuilder {
 
+    /**
+     * A stored, tokenized field type that also stores term vectors.
+     */
+    private static final FieldType TYPE_STORED_WITH_VECTORS = new FieldType(TextField.TYPE_STORED);
+    static {
+        TYPE_STORED_WITH_VECTORS.setStoreTermVectors(true);
+        TYPE_STORED_WITH_VECTORS.freeze();
+    }
+
     private final LocalPageDao localPageDao;
     private final RawPageDao rawPageDao;
     private final RedirectDao redirectDao;
@@ -63,7 +73,32 @@ public class TextFieldBuilder {
                 elements);
     }
 
+    /**
+     * Builds a lucene text field for page based on the specified text field elements,
+     * optionally storing term vectors for the field.
+     *
+     * @param page
+     * @param elements
+     * @param termVectors
+     * @return
+     * @throws DaoException
+     */
+    public Field buildTextField(RawPage page, TextFieldElements elements, boolean termVectors) throws DaoException {
+        if (!termVectors) {
+            return buildTextField(page, elements);
+        }
+        String text = buildText(
+                localPageDao.getById(page.getLanguage(), page.getLocalId()),
+                page,
+                elements);
+        return new Field(elements.getTextFieldName(), text, TYPE_STORED_WITH_VECTORS);
+    }
+
     private TextField buildTextField(LocalPage localPage, RawPage rawPage, TextFieldElements elements) throws DaoException {
+        return new TextField(elements.getTextFieldName(), buildText(localPage, rawPage, elements), Field.Store.YES);
+    }
+
+    private String buildText(LocalPage localPage, RawPage rawPage, TextFieldElements elements) throws DaoException {
         StringBuilder sb = new StringBuilder();
         String title = rawPage.getTitle().getCanonicalTitle();
         for (int i=0; i<elements.usesTitle(); i++) {
@@ -84,7 +119,7 @@ public class TextFieldBuilder {
             String plainText = rawPage.getPlainText();
             sb.append(plainText);
         }
-        return new TextField(elements.getTextFieldName(), sb.toString().trim(), Field.Store.YES);
+        return sb.toString().trim();
     }
 
 }
@@ -2,13 +2,13 @@ package org.wikibrain.lucene;
 
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.util.Bits;
-import org.apache.lucene.util.DocIdBitSet;
+import org.apache.lucene.util.FixedBitSet;
 
 import java.io.IOException;
 import java.util.*;
@@ -17,13 +17,14 @@ import java.util.logging.Logger;
 
 /**
  * A lucene filter that only includes a specific set of Wikipedia ids.
- * The constructor is EXPENSIVE, so they should be reused.
+ * The allowed documents of each segment are computed once from the field cache
+ * and reused by later queries, so filters should be reused.
  * TODO: Perform a search when there are relatively few wpIds.
  */
 public class WpIdFilter extends Filter {
     private static final Logger LOG = Logger.getLogger(WpIdFilter.class.getName());
     private int[] wpIds;
-    private Map<AtomicReader, int[]> allowedLuceneIds = new HashMap<AtomicReader, int[]>();
+    private Map<AtomicReader, FixedBitSet> allowedLuceneIds = new HashMap<AtomicReader, FixedBitSet>();
 
     public WpIdFilter(int wpIds[]) throws IOException {
         this.wpIds = wpIds;
@@ -31,40 +32,39 @@ public class WpIdFilter extends Filter {
 
     @Override
     public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-        BitSet bits = new BitSet();
-        int i = 0;
-        for (int id : getAllowedLuceneIds(context)) {
-            if (acceptDocs == null || acceptDocs.get(id)) {
+        FixedBitSet allowed = getAllowedLuceneIds(context);
+        // deleted documents are already excluded from the cached set
+        if (acceptDocs == null || acceptDocs == context.reader().getLiveDocs()) {
+            return allowed;
+        }
+        FixedBitSet bits = new FixedBitSet(allowed.length());
+        for (int id = allowed.nextSetBit(0); id >= 0; id = (id + 1 < allowed.length()) ? allowed.nextSetBit(id + 1) : -1) {
+            if (acceptDocs.get(id)) {
                 bits.set(id);
-                i++;
             }
         }
-        int n = 0;
-        for (int id = 0; id < bits.length(); id++) {
-            if (bits.get(id)) n++;
-        }
-//        LOG.info("bit size=" + bits.size() + " set=" + n + " compared to " + luceneIds.length);
-        return new DocIdBitSet(bits);
+        return bits;
     }
 
-    private synchronized int[] getAllowedLuceneIds(AtomicReaderContext context) throws IOException {
+    private synchronized FixedBitSet getAllowedLuceneIds(AtomicReaderContext context) throws IOException {
         AtomicReader reader = context.reader();
         if (allowedLuceneIds.containsKey(reader)) {
             return allowedLuceneIds.get(reader);
         }
         LOG.fine("building WpId filter for " + wpIds.length + " ids with hash " + Arrays.hashCode(wpIds));
         TIntSet wpIdSet = new TIntHashSet(wpIds);
-        TIntSet luceneIdSet = new TIntHashSet();
-        Set<String> fields = new HashSet<String>(Arrays.asList(LuceneOptions.LOCAL_ID_FIELD_NAME));
-        for (int i = 0; i < reader.numDocs(); i++) {
-            Document d = reader.document(i, fields);
-            int wpId = Integer.valueOf(d.get(LuceneOptions.LOCAL_ID_FIELD_NAME));
-            if (wpIdSet.contains(wpId)) {
-                luceneIdSet.add(i);
+        Bits liveDocs = reader.getLiveDocs();
+        Bits hasValue = FieldCache.DEFAULT.getDocsWithField(reader, LuceneOptions.LOCAL_ID_FIELD_NAME);
+        FieldCache.Ints values = FieldCache.DEFAULT.getInts(
+                reader, LuceneOptions.LOCAL_ID_FIELD_NAME,
+                FieldCache.NUMERIC_UTILS_INT_PARSER, false);
+        FixedBitSet luceneIds = new FixedBitSet(reader.maxDoc());
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if ((liveDocs == null || liveDocs.get(i)) && hasValue.get(i) && wpIdSet.contains(values.get(i))) {
+                luceneIds.set(i);
             }
         }
-        int luceneIds[] = luceneIdSet.toArray();
-        LOG.fine("WpId filter matched " + luceneIds.length + " ids.");
+        LOG.fine("WpId filter matched " + luceneIds.cardinality() + " ids.");
         allowedLuceneIds.put(reader, luceneIds);
         return luceneIds;
     }
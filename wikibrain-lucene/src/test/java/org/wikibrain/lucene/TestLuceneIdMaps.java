@@ -0,0 +1,127 @@
+package org.wikibrain.lucene;
+
+import gnu.trove.map.TIntIntMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the field cache based id lookups in LuceneSearcher and WpIdFilter
+ * against a small index with two segments, a deleted document, and a
+ * document without a local id.
+ */
+public class TestLuceneIdMaps {
+    private static final Language LANG = Language.SIMPLE;
+
+    private File root;
+    private LuceneSearcher searcher;
+
+    @Before
+    public void createIndex() throws IOException {
+        root = WpIOUtils.createTempDirectory("luceneIdMaps");
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer());
+        iwc.setMergePolicy(NoMergePolicy.COMPOUND_FILES);
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(root, LANG.getLangCode())), iwc);
+        for (int id = 10; id < 15; id++) {
+            writer.addDocument(makeDocument(id));
+        }
+        writer.commit();
+        Document noId = new Document();
+        noId.add(new StringField("title", "no id", Field.Store.YES));
+        writer.addDocument(noId);
+        for (int id = 15; id < 20; id++) {
+            writer.addDocument(makeDocument(id));
+        }
+        writer.deleteDocuments(NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, 13, 13, true, true));
+        writer.close();
+        searcher = new LuceneSearcher(new LanguageSet(LANG), root);
+    }
+
+    @After
+    public void deleteIndex() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Test
+    public void testIdMaps() throws IOException, DaoException {
+        DirectoryReader reader = searcher.getReaderByLanguage(LANG);
+        assertTrue(reader.leaves().size() > 1);
+
+        int localIds[] = searcher.getLocalIdsByDocId(LANG);
+        TIntIntMap docIds = searcher.getDocIdsByLocalId(LANG);
+        assertEquals(reader.maxDoc(), localIds.length);
+        assertEquals(9, docIds.size());
+
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int docId = 0; docId < reader.maxDoc(); docId++) {
+            if (liveDocs != null && !liveDocs.get(docId)) {
+                assertEquals(-1, localIds[docId]);
+                continue;
+            }
+            IndexableField field = reader.document(docId).getField(LuceneOptions.LOCAL_ID_FIELD_NAME);
+            if (field == null) {
+                assertEquals(-1, localIds[docId]);
+            } else {
+                int localId = field.numericValue().intValue();
+                assertEquals(localId, localIds[docId]);
+                assertEquals(docId, searcher.getDocIdFromLocalId(localId, LANG));
+                assertEquals(localId, searcher.getLocalIdFromDocId(docId, LANG));
+            }
+        }
+        assertEquals(-1, searcher.getDocIdFromLocalId(13, LANG));
+        assertEquals(-1, searcher.getDocIdFromLocalId(99, LANG));
+    }
+
+    @Test
+    public void testWpIdFilter() throws IOException {
+        WpIdFilter filter = new WpIdFilter(new int[] {11, 13, 16, 99});
+        IndexSearcher indexSearcher = searcher.getSearcherByLanguage(LANG);
+
+        // the second search reuses the cached bit sets
+        for (int i = 0; i < 2; i++) {
+            TopDocs top = indexSearcher.search(new MatchAllDocsQuery(), filter, 100);
+            Set<Integer> found = new HashSet<Integer>();
+            for (ScoreDoc sd : top.scoreDocs) {
+                found.add(searcher.getLocalIdFromDocId(sd.doc, LANG));
+            }
+            assertEquals(2, found.size());
+            assertTrue(found.contains(11));
+            assertTrue(found.contains(16));
+        }
+
+        // accept docs other than the live docs are applied to the cached set
+        for (AtomicReaderContext context : searcher.getReaderByLanguage(LANG).leaves()) {
+            DocIdSet none = filter.getDocIdSet(context, new Bits.MatchNoBits(context.reader().maxDoc()));
+            assertEquals(DocIdSetIterator.NO_MORE_DOCS, none.iterator().nextDoc());
+        }
+    }
+
+    private static Document makeDocument(int localId) {
+        Document document = new Document();
+        document.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, Field.Store.YES));
+        document.add(new StringField("title", "page " + localId, Field.Store.YES));
+        return document;
+    }
+}
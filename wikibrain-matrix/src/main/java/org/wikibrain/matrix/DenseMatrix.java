@@ -1,6 +1,5 @@
 package org.wikibrain.matrix;
 
-import gnu.trove.map.hash.TIntLongHashMap;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
@@ -24,8 +23,8 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
 
     public static final int FILE_HEADER = 0xabccba;
 
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
     private int rowIds[];
+    private long rowOffsets[];
     private int colIds[];
     private FileChannel channel;
     private File path;
@@ -46,7 +45,7 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
         readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowOffsets);
+        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets);
     }
 
     private void readHeaders() throws IOException {
@@ -67,10 +66,11 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         // read row ids and offsets
         info("reading offsets for " + numRows + " rows");
         rowIds = new int[numRows];
+        rowOffsets = new long[numRows];
         for (int i = 0; i < numRows; i++) {
             int rowIndex = buffer.getInt(pos);
             long rowOffset = buffer.getLong(pos + 4);
-            rowOffsets.put(rowIndex, rowOffset);
+            rowOffsets[i] = rowOffset;
 //            debug("adding row index " + rowIndex + " at offset " + rowOffset);
             rowIds[i] = rowIndex;
             pos += 12;
@@ -117,6 +117,13 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         return vconf;
     }
 
+    /**
+     * @return The warmer that pages this matrix into memory in the background.
+     */
+    public MatrixWarmer getWarmer() {
+        return rowBuffers.getWarmer();
+    }
+
     public void dump() throws IOException {
         for (int id : rowIds) {
             System.out.print("" + id + ": ");
@@ -0,0 +1,213 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.map.TIntObjectMap;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A memory mapped store of fixed length float vectors (e.g. word2vec embeddings) keyed by id.
+ *
+ * Unlike DenseMatrix, values are stored as full precision floats and the vectors are laid
+ * out contiguously, so a vector is a run of floats that can be read without any per-entry
+ * lookups. The file contains a header, the number of vectors, the number of dimensions,
+ * the ids in ascending order, and finally the vectors in the same order.
+ */
+public class DenseVectorStore implements Closeable {
+    public static final Logger LOG = Logger.getLogger(DenseVectorStore.class.getName());
+
+    public static final int FILE_HEADER = 0xabcdd0;
+
+    /**
+     * Maximum number of floats in a single mapped chunk (1GB).
+     */
+    private static final int MAX_CHUNK_FLOATS = 1 << 28;
+
+    private final File path;
+    private final FileChannel channel;
+    private final int numVectors;
+    private final int dimensions;
+    private final int vectorsPerChunk;
+
+    private final long fileLength;
+    private final long lastModified;
+
+    private IntBuffer ids;
+    private FloatBuffer chunks[];
+
+    public DenseVectorStore(File path) throws IOException {
+        this.path = path;
+        if (!path.isFile()) {
+            throw new IOException("File does not exist: " + path);
+        }
+        this.channel = (new FileInputStream(path)).getChannel();
+        this.fileLength = channel.size();
+        this.lastModified = path.lastModified();
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 12);
+        if (header.getInt(0) != FILE_HEADER) {
+            throw new IOException("invalid file header: " + header.getInt(0));
+        }
+        this.numVectors = header.getInt(4);
+        this.dimensions = header.getInt(8);
+        this.vectorsPerChunk = Math.max(1, MAX_CHUNK_FLOATS / Math.max(1, dimensions));
+
+        long pos = 12;
+        ids = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * numVectors).asIntBuffer();
+        pos += 4L * numVectors;
+        chunks = new FloatBuffer[(numVectors + vectorsPerChunk - 1) / vectorsPerChunk];
+        for (int i = 0; i < chunks.length; i++) {
+            int n = Math.min(vectorsPerChunk, numVectors - i * vectorsPerChunk);
+            long size = 4L * n * dimensions;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, size).asFloatBuffer();
+            pos += size;
+        }
+        info("opened " + numVectors + " vectors with " + dimensions + " dimensions");
+    }
+
+    /**
+     * @return The number of vectors in the store.
+     */
+    public int size() {
+        return numVectors;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return The length of the store's file when it was opened.
+     */
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * @return The modification time of the store's file when it was opened.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    /**
+     * @return The id of the vector at a particular index.
+     */
+    public int getId(int index) {
+        return ids.get(index);
+    }
+
+    /**
+     * Returns the index of the vector with a particular id, or a negative number if it does not exist.
+     */
+    public int indexOf(int id) {
+        int lo = 0;
+        int hi = numVectors - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midId = ids.get(mid);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * Returns a copy of the vector with a particular id, or null if it does not exist.
+     */
+    public float[] getVector(int id) {
+        int i = indexOf(id);
+        if (i < 0) {
+            return null;
+        }
+        float vector[] = new float[dimensions];
+        copyVector(i, vector);
+        return vector;
+    }
+
+    /**
+     * Copies the vector at a particular index into dest, which must have length getDimensions().
+     */
+    public void copyVector(int index, float dest[]) {
+        FloatBuffer chunk = chunks[index / vectorsPerChunk];
+        int start = (index % vectorsPerChunk) * dimensions;
+        for (int d = 0; d < dimensions; d++) {
+            dest[d] = chunk.get(start + d);
+        }
+    }
+
+    /**
+     * Returns the dot product of the vector at a particular index with a query vector.
+     */
+    public double dot(int index, float query[]) {
+        FloatBuffer chunk = chunks[index / vectorsPerChunk];
+        return VectorMath.dot(chunk, (index % vectorsPerChunk) * dimensions, query, dimensions);
+    }
+
+    @Override
+    public void close() throws IOException {
+        ids = null;
+        chunks = null;
+        channel.close();
+    }
+
+    /**
+     * Writes a store containing the specified vectors.
+     * @param path Output path.
+     * @param dimensions Length of every vector.
+     * @param vectors Vectors keyed by id.
+     * @throws IOException
+     */
+    public static void write(File path, int dimensions, TIntObjectMap<float[]> vectors) throws IOException {
+        int ids[] = vectors.keys();
+        Arrays.sort(ids);
+        FileChannel out = new FileOutputStream(path).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            buffer.putInt(FILE_HEADER);
+            buffer.putInt(ids.length);
+            buffer.putInt(dimensions);
+            for (int id : ids) {
+                if (buffer.remaining() < 4) {
+                    SparseMatrixWriter.writeFully(out, buffer);
+                }
+                buffer.putInt(id);
+            }
+            for (int id : ids) {
+                float vector[] = vectors.get(id);
+                if (vector.length != dimensions) {
+                    throw new IllegalArgumentException("vector " + id + " has length " + vector.length + ", expected " + dimensions);
+                }
+                for (float x : vector) {
+                    if (buffer.remaining() < 4) {
+                        SparseMatrixWriter.writeFully(out, buffer);
+                    }
+                    buffer.putFloat(x);
+                }
+            }
+            SparseMatrixWriter.writeFully(out, buffer);
+        } finally {
+            out.close();
+        }
+        LOG.info("wrote " + ids.length + " vectors (" + FileUtils.sizeOf(path) + " bytes) to " + path);
+    }
+
+    private void info(String message) {
+        LOG.log(Level.INFO, "dense vector store " + path + ": " + message);
+    }
+}
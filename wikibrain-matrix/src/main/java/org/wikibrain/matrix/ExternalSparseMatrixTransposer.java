@@ -0,0 +1,301 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TShortArrayList;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Transposes a sparse matrix using an external sort.
+ *
+ * Unlike SparseMatrixTransposer, which re-reads the source matrix once per batch of
+ * columns, this transposer reads the source matrix exactly once. Worker threads each
+ * scan a contiguous shard of rows, buffer (column, row, value) cells in primitive arrays,
+ * and spill them to sorted run files whenever their share of the memory budget fills.
+ * The runs are then k-way merged into a SparseMatrixWriter, producing one transposed
+ * row per column, in column id order.
+ */
+public class ExternalSparseMatrixTransposer {
+    final static Logger LOG = Logger.getLogger(ExternalSparseMatrixTransposer.class.getName());
+
+    /**
+     * Bytes used by a buffered cell: a packed (column, row) key and a packed value.
+     */
+    private static final int BYTES_PER_CELL = 8 + 2;
+
+    /**
+     * Size of the read buffer for each run during the merge.
+     */
+    private static final int MERGE_BUFFER_SIZE = 64 * 1024;
+
+    private final SparseMatrix matrix;
+    private final File path;
+    private final int bufferMb;
+    private final int numThreads;
+    private File tmpDir;
+
+    public ExternalSparseMatrixTransposer(SparseMatrix m, File f) throws IOException {
+        this(m, f, SparseMatrixTransposer.defaultBufferSizeInMbs(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param m The matrix to transpose.
+     * @param f The output path for the transposed matrix.
+     * @param bufferMb Memory budget, in MBs, shared by all worker threads.
+     * @param numThreads Number of threads that scan the source matrix.
+     */
+    public ExternalSparseMatrixTransposer(SparseMatrix m, File f, int bufferMb, int numThreads) throws IOException {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+        }
+        this.matrix = m;
+        this.path = f;
+        this.bufferMb = Math.max(1, bufferMb);
+        this.numThreads = numThreads;
+    }
+
+    public void transpose() throws IOException {
+        tmpDir = File.createTempFile("transpose", null);
+        FileUtils.forceDelete(tmpDir);
+        FileUtils.forceMkdir(tmpDir);
+        try {
+            List<File> runs = writeRuns();
+            mergeRuns(runs);
+        } finally {
+            FileUtils.deleteQuietly(tmpDir);
+        }
+    }
+
+    /**
+     * Scans the source matrix in parallel shards, spilling sorted runs.
+     * @return The run files.
+     */
+    private List<File> writeRuns() throws IOException {
+        final int rowIds[] = matrix.getRowIds();
+        final int shardSize = (rowIds.length + numThreads - 1) / numThreads;
+        final int cellsPerThread = (int) Math.min(
+                Integer.MAX_VALUE - 8,
+                Math.max(1024L, bufferMb * 1024L * 1024L / numThreads / BYTES_PER_CELL));
+        LOG.info("transposing " + rowIds.length + " rows with " + numThreads +
+                " threads buffering " + cellsPerThread + " cells each");
+
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        List<Future<List<File>>> futures = new ArrayList<Future<List<File>>>();
+        try {
+            for (int t = 0; t < numThreads; t++) {
+                final int begin = Math.min(rowIds.length, t * shardSize);
+                final int end = Math.min(rowIds.length, begin + shardSize);
+                futures.add(exec.submit(new Callable<List<File>>() {
+                    @Override
+                    public List<File> call() throws Exception {
+                        return scanShard(rowIds, begin, end, cellsPerThread);
+                    }
+                }));
+            }
+            List<File> runs = new ArrayList<File>();
+            for (Future<List<File>> f : futures) {
+                runs.addAll(f.get());
+            }
+            LOG.info("wrote " + runs.size() + " sorted runs");
+            return runs;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    private List<File> scanShard(int rowIds[], int begin, int end, int capacity) throws IOException {
+        List<File> runs = new ArrayList<File>();
+        long keys[] = new long[Math.min(capacity, 1024 * 1024)];
+        short vals[] = new short[keys.length];
+        int n = 0;
+        SparseMatrixCursor row = matrix.openCursor();
+        for (int i = begin; i < end; i++) {
+            if (!row.seek(rowIds[i])) {
+                continue;
+            }
+            long rowId = row.getRowIndex() & 0xFFFFFFFFL;
+            for (int j = 0; j < row.getNumCols(); j++) {
+                if (n == keys.length) {
+                    if (n >= capacity) {
+                        runs.add(spill(keys, vals, n));
+                        n = 0;
+                    } else {
+                        int newSize = (int) Math.min(capacity, 2L * keys.length);
+                        keys = Arrays.copyOf(keys, newSize);
+                        vals = Arrays.copyOf(vals, newSize);
+                    }
+                }
+                keys[n] = ((long) row.getColIndex(j) << 32) | rowId;
+                vals[n] = row.getPackedColValue(j);
+                n++;
+            }
+        }
+        if (n > 0) {
+            runs.add(spill(keys, vals, n));
+        }
+        return runs;
+    }
+
+    private File spill(long keys[], short vals[], int n) throws IOException {
+        sort(keys, vals, 0, n - 1);
+        File run = File.createTempFile("run", null, tmpDir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), MERGE_BUFFER_SIZE));
+        try {
+            for (int i = 0; i < n; i++) {
+                out.writeLong(keys[i]);
+                out.writeShort(vals[i]);
+            }
+        } finally {
+            out.close();
+        }
+        return run;
+    }
+
+    private void mergeRuns(List<File> runs) throws IOException {
+        SparseMatrixWriter writer = new SparseMatrixWriter(path, matrix.getValueConf(), matrix.getFormat());
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader r1, RunReader r2) {
+                return (r1.key < r2.key) ? -1 : ((r1.key == r2.key) ? 0 : 1);
+            }
+        });
+        List<RunReader> readers = new ArrayList<RunReader>();
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+
+            TIntArrayList ids = new TIntArrayList();
+            TShortArrayList vals = new TShortArrayList();
+            int currentCol = 0;
+            int numRows = 0;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                int col = (int) (reader.key >>> 32);
+                if (!ids.isEmpty() && col != currentCol) {
+                    writer.writeRow(new SparseMatrixRow(matrix.getValueConf(), currentCol, ids.toArray(), vals.toArray()));
+                    numRows++;
+                    ids.resetQuick();
+                    vals.resetQuick();
+                }
+                currentCol = col;
+                ids.add((int) reader.key);
+                vals.add(reader.val);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+            if (!ids.isEmpty()) {
+                writer.writeRow(new SparseMatrixRow(matrix.getValueConf(), currentCol, ids.toArray(), vals.toArray()));
+                numRows++;
+            }
+            LOG.info("merged " + runs.size() + " runs into " + numRows + " transposed rows");
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Sequentially reads the cells in a single sorted run.
+     */
+    private static class RunReader {
+        private final DataInputStream in;
+        private long key;
+        private short val;
+
+        RunReader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), MERGE_BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            val = in.readShort();
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Sorts the keys (and their parallel values) in the inclusive range [lo, hi].
+     */
+    private static void sort(long keys[], short vals[], int lo, int hi) {
+        while (hi - lo > 16) {
+            long pivot = median(keys[lo], keys[lo + (hi - lo) / 2], keys[hi]);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    swap(keys, vals, i++, j--);
+                }
+            }
+            // recurse into the smaller half to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(keys, vals, lo, j);
+                lo = i;
+            } else {
+                sort(keys, vals, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+                swap(keys, vals, j, j - 1);
+            }
+        }
+    }
+
+    private static long median(long a, long b, long c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static void swap(long keys[], short vals[], int i, int j) {
+        long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+        short v = vals[i]; vals[i] = vals[j]; vals[j] = v;
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("usage: java " + ExternalSparseMatrixTransposer.class.getName() +
+                    " input_path output_path {buffer_in_MBs} {num_threads}");
+            System.exit(1);
+        }
+        int bufferMbs = (args.length >= 3) ? Integer.valueOf(args[2]) : SparseMatrixTransposer.defaultBufferSizeInMbs();
+        int numThreads = (args.length >= 4) ? Integer.valueOf(args[3]) : Runtime.getRuntime().availableProcessors();
+        SparseMatrix matrix = new SparseMatrix(new File(args[0]));
+        new ExternalSparseMatrixTransposer(matrix, new File(args[1]), bufferMbs, numThreads).transpose();
+    }
+}
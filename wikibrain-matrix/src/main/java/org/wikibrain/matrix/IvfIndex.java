@@ -0,0 +1,369 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.TIntSet;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * An inverted file (IVF) index for approximate cosine nearest neighbour search over a DenseVectorStore.
+ *
+ * The vectors are clustered with spherical k-means. A query is compared with every centroid,
+ * and only the vectors in the numProbes closest clusters are scored exactly. Probing more
+ * clusters increases recall at the cost of latency; probing all clusters is an exact search.
+ *
+ * The index only stores cluster assignments and centroids. Vectors are read from the store.
+ * The index file records the length and modification time of the store's file, and an
+ * index is only read back for the store it was built from (see isCurrent()).
+ */
+public class IvfIndex {
+    public static final Logger LOG = Logger.getLogger(IvfIndex.class.getName());
+
+    public static final int FILE_HEADER = 0xabcdd2;
+
+    /**
+     * Number of vectors sampled per cluster to train the centroids.
+     */
+    private static final int SAMPLES_PER_LIST = 256;
+
+    private final DenseVectorStore store;
+    private final int numLists;
+    private final int dimensions;
+
+    /**
+     * Unit length centroids, numLists * dimensions.
+     */
+    private final float centroids[];
+
+    /**
+     * Members of list i are store indexes members[listStarts[i]] ... members[listStarts[i+1] - 1].
+     */
+    private final int listStarts[];
+    private final int members[];
+
+    /**
+     * Inverse of the norm of each vector in the store (0 for zero vectors).
+     */
+    private final float inverseNorms[];
+
+    private IvfIndex(DenseVectorStore store, float centroids[], int listStarts[], int members[], float inverseNorms[]) {
+        this.store = store;
+        this.dimensions = store.getDimensions();
+        this.numLists = listStarts.length - 1;
+        this.centroids = centroids;
+        this.listStarts = listStarts;
+        this.members = members;
+        this.inverseNorms = inverseNorms;
+    }
+
+    /**
+     * Clusters the vectors in a store and builds an index over them.
+     * @param store
+     * @param numLists Number of clusters. A common choice is about 4 * sqrt(store.size()).
+     * @param iterations Number of k-means iterations.
+     * @param numThreads
+     * @return
+     */
+    public static IvfIndex build(final DenseVectorStore store, int numLists, int iterations, int numThreads) throws InterruptedException {
+        final int n = store.size();
+        final int dims = store.getDimensions();
+        numLists = Math.max(1, Math.min(numLists, n));
+        LOG.info("building ivf index with " + numLists + " lists over " + n + " vectors");
+
+        final float inverseNorms[] = new float[n];
+        float vector[] = new float[dims];
+        for (int i = 0; i < n; i++) {
+            store.copyVector(i, vector);
+            double norm = Math.sqrt(VectorMath.dot(vector, 0, vector, 0, dims));
+            inverseNorms[i] = (norm == 0.0) ? 0.0f : (float) (1.0 / norm);
+        }
+
+        // train centroids on a random sample of the vectors
+        Random random = new Random(n);
+        int sample[] = samplePermutation(n, Math.min(n, numLists * SAMPLES_PER_LIST), random);
+        float centroids[] = new float[numLists * dims];
+        for (int c = 0; c < numLists; c++) {
+            setCentroid(store, inverseNorms, sample[c], centroids, c);
+        }
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            int assignments[] = new int[sample.length];
+            for (int iter = 0; iter < iterations; iter++) {
+                assign(exec, numThreads, store, inverseNorms, centroids, numLists, sample, assignments);
+                int moved = updateCentroids(store, inverseNorms, centroids, numLists, sample, assignments, random);
+                LOG.info("ivf k-means iteration " + iter + ": reseeded " + moved + " empty lists");
+            }
+
+            // assign every vector to its closest centroid
+            int all[] = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            int listIds[] = new int[n];
+            assign(exec, numThreads, store, inverseNorms, centroids, numLists, all, listIds);
+
+            int listStarts[] = new int[numLists + 1];
+            for (int list : listIds) {
+                listStarts[list + 1]++;
+            }
+            for (int c = 0; c < numLists; c++) {
+                listStarts[c + 1] += listStarts[c];
+            }
+            int next[] = Arrays.copyOf(listStarts, numLists);
+            int members[] = new int[n];
+            for (int i = 0; i < n; i++) {
+                members[next[listIds[i]]++] = i;
+            }
+            return new IvfIndex(store, centroids, listStarts, members, inverseNorms);
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    /**
+     * Returns up to k vectors with the highest cosine similarity to the query.
+     * @param query
+     * @param k
+     * @param numProbes Number of clusters searched.
+     * @param validIds If not null, only vectors with these ids are returned.
+     * @return The ids of the vectors and their scores, sorted by descending score.
+     */
+    public ScoreHeap search(float query[], int k, int numProbes, TIntSet validIds) {
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("expected query of length " + dimensions + ", found " + query.length);
+        }
+        ScoreHeap result = new ScoreHeap(k);
+        double queryNorm = Math.sqrt(VectorMath.dot(query, 0, query, 0, dimensions));
+        if (queryNorm == 0.0 || k <= 0) {
+            return result;
+        }
+
+        // choose the closest lists
+        numProbes = Math.min(numProbes, numLists);
+        ScoreHeap probes = new ScoreHeap(numProbes);
+        for (int c = 0; c < numLists; c++) {
+            probes.offer(c, VectorMath.dot(centroids, c * dimensions, query, 0, dimensions));
+        }
+
+        for (int p = 0; p < probes.size(); p++) {
+            int list = probes.getKey(p);
+            for (int j = listStarts[list]; j < listStarts[list + 1]; j++) {
+                int i = members[j];
+                int id = store.getId(i);
+                if (validIds != null && !validIds.contains(id)) {
+                    continue;
+                }
+                result.offer(id, store.dot(i, query) * inverseNorms[i] / queryNorm);
+            }
+        }
+        result.sortDescending();
+        return result;
+    }
+
+    public int getNumLists() {
+        return numLists;
+    }
+
+    public DenseVectorStore getStore() {
+        return store;
+    }
+
+    public void write(File path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeLong(store.getFileLength());
+            out.writeLong(store.getLastModified());
+            out.writeInt(numLists);
+            out.writeInt(dimensions);
+            out.writeInt(members.length);
+            for (float x : centroids) {
+                out.writeFloat(x);
+            }
+            for (int x : listStarts) {
+                out.writeInt(x);
+            }
+            for (int x : members) {
+                out.writeInt(x);
+            }
+            for (float x : inverseNorms) {
+                out.writeFloat(x);
+            }
+        } finally {
+            out.close();
+        }
+        LOG.info("wrote ivf index with " + numLists + " lists to " + path);
+    }
+
+    /**
+     * Returns true if the file contains an index that was built from the vectors in the store.
+     * An index is stale if it was written in an older format or if the store's file has
+     * been rewritten since, even if the new vectors have the same shape.
+     */
+    public static boolean isCurrent(DenseVectorStore store, File path) throws IOException {
+        if (!path.isFile()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            return readHeader(store, in);
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean readHeader(DenseVectorStore store, DataInputStream in) throws IOException {
+        return in.readInt() == FILE_HEADER
+            && in.readLong() == store.getFileLength()
+            && in.readLong() == store.getLastModified();
+    }
+
+    /**
+     * Reads an index written by write() for the same store.
+     * @throws IOException If the index was not built from the store (see isCurrent()).
+     */
+    public static IvfIndex read(DenseVectorStore store, File path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (!readHeader(store, in)) {
+                throw new IOException("ivf index " + path + " was not built from vector store " + store.getPath());
+            }
+            int numLists = in.readInt();
+            int dimensions = in.readInt();
+            int numVectors = in.readInt();
+            if (dimensions != store.getDimensions() || numVectors != store.size()) {
+                throw new IOException("ivf index " + path + " does not match vector store " + store.getPath());
+            }
+            float centroids[] = new float[numLists * dimensions];
+            for (int i = 0; i < centroids.length; i++) {
+                centroids[i] = in.readFloat();
+            }
+            int listStarts[] = new int[numLists + 1];
+            for (int i = 0; i < listStarts.length; i++) {
+                listStarts[i] = in.readInt();
+            }
+            int members[] = new int[numVectors];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = in.readInt();
+            }
+            float inverseNorms[] = new float[numVectors];
+            for (int i = 0; i < inverseNorms.length; i++) {
+                inverseNorms[i] = in.readFloat();
+            }
+            return new IvfIndex(store, centroids, listStarts, members, inverseNorms);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Assigns each of the specified vectors to the index of its closest centroid.
+     */
+    private static void assign(ExecutorService exec, int numThreads, final DenseVectorStore store, final float inverseNorms[],
+                               final float centroids[], final int numLists, final int indexes[], final int assignments[])
+            throws InterruptedException {
+        final int dims = store.getDimensions();
+        int batchSize = Math.max(1, indexes.length / (Math.max(1, numThreads) * 4) + 1);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int b = 0; b < indexes.length; b += batchSize) {
+            final int from = b;
+            final int to = Math.min(indexes.length, b + batchSize);
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    float vector[] = new float[dims];
+                    for (int i = from; i < to; i++) {
+                        store.copyVector(indexes[i], vector);
+                        int best = 0;
+                        double bestScore = Double.NEGATIVE_INFINITY;
+                        for (int c = 0; c < numLists; c++) {
+                            double score = VectorMath.dot(centroids, c * dims, vector, 0, dims);
+                            if (score > bestScore) {
+                                best = c;
+                                bestScore = score;
+                            }
+                        }
+                        assignments[i] = best;
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<Object> f : exec.invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("ivf assignment failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Sets each centroid to the normalized mean of its unit length members.
+     * Empty clusters are reseeded with a random vector.
+     * @return The number of reseeded clusters.
+     */
+    private static int updateCentroids(DenseVectorStore store, float inverseNorms[], float centroids[], int numLists,
+                                       int indexes[], int assignments[], Random random) {
+        int dims = store.getDimensions();
+        double sums[] = new double[numLists * dims];
+        int counts[] = new int[numLists];
+        float vector[] = new float[dims];
+        for (int i = 0; i < indexes.length; i++) {
+            int c = assignments[i];
+            store.copyVector(indexes[i], vector);
+            float scale = inverseNorms[indexes[i]];
+            for (int d = 0; d < dims; d++) {
+                sums[c * dims + d] += vector[d] * scale;
+            }
+            counts[c]++;
+        }
+        int reseeded = 0;
+        for (int c = 0; c < numLists; c++) {
+            if (counts[c] == 0) {
+                setCentroid(store, inverseNorms, indexes[random.nextInt(indexes.length)], centroids, c);
+                reseeded++;
+                continue;
+            }
+            double norm = 0.0;
+            for (int d = 0; d < dims; d++) {
+                norm += sums[c * dims + d] * sums[c * dims + d];
+            }
+            norm = Math.sqrt(norm);
+            for (int d = 0; d < dims; d++) {
+                centroids[c * dims + d] = (norm == 0.0) ? 0.0f : (float) (sums[c * dims + d] / norm);
+            }
+        }
+        return reseeded;
+    }
+
+    private static void setCentroid(DenseVectorStore store, float inverseNorms[], int index, float centroids[], int c) {
+        int dims = store.getDimensions();
+        float vector[] = new float[dims];
+        store.copyVector(index, vector);
+        for (int d = 0; d < dims; d++) {
+            centroids[c * dims + d] = vector[d] * inverseNorms[index];
+        }
+    }
+
+    private static int[] samplePermutation(int n, int size, Random random) {
+        int perm[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            perm[i] = i;
+        }
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(n - i);
+            int tmp = perm[i];
+            perm[i] = perm[j];
+            perm[j] = tmp;
+        }
+        return Arrays.copyOf(perm, size);
+    }
+}
@@ -21,6 +21,8 @@ public interface Matrix<T extends MatrixRow> extends Iterable<T>, Closeable {
 
     /**
      * Gets all row ids.
+     * Implementations return them in file order unless their file format stores
+     * the rows sorted (see SparseMatrix.getRowIds()).
      * @return
      */
     int[] getRowIds();
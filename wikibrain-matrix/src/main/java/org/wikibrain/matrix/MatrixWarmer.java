@@ -0,0 +1,319 @@
+package org.wikibrain.matrix;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pages a memory mapped matrix into the OS page cache ahead of use.
+ *
+ * Memory mapped pages fault in lazily, so the first requests against a freshly opened
+ * matrix can be very slow. The warmer touches pages in parallel on background daemon
+ * threads, either for the whole matrix or for a chosen set of rows (e.g. ids taken from
+ * an access log, or the longest rows, which are the most expensive to fault in).
+ *
+ * The policy applied to every newly opened matrix is set with configure(); by default
+ * matrices are not warmed.
+ */
+public class MatrixWarmer {
+    private static final Logger LOG = Logger.getLogger(MatrixWarmer.class.getName());
+
+    /**
+     * How a matrix is paged in when it is opened.
+     */
+    public static enum LoadPolicy {
+        LAZY,           // pages fault in on first access
+        LOAD,           // call MappedByteBuffer.load() on every page
+        TOUCH,          // touch every page in parallel
+        LONGEST_ROWS    // touch the longest rows in parallel
+    }
+
+    private static final int OS_PAGE_SIZE = 4096;
+    private static final long CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private static volatile LoadPolicy defaultPolicy = LoadPolicy.LAZY;
+    private static volatile int defaultNumRows = 100000;
+    private static volatile int numThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Threads that touch pages, shared by all warmers and created on first use.
+     */
+    private static ThreadPoolExecutor workers;
+
+    /**
+     * Threads that plan each warmup and wait for its tasks, so the opening thread never does.
+     * Planners block on the workers, so they must not run on the worker pool itself.
+     */
+    private static final ExecutorService COORDINATORS = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("matrix-warmer-coordinator"));
+
+    /**
+     * Prevents the JIT from eliminating the reads that touch pages.
+     */
+    private static volatile long sink;
+
+    private final MemoryMappedMatrix matrix;
+    private final AtomicLong bytesWarmed = new AtomicLong();
+
+    MatrixWarmer(MemoryMappedMatrix matrix) {
+        this.matrix = matrix;
+    }
+
+    /**
+     * Sets the policy applied to matrices opened after this call.
+     * @param policy
+     * @param numRows Number of rows warmed by the LONGEST_ROWS policy.
+     * @param threads Number of background threads shared by all warmers.
+     */
+    public static synchronized void configure(LoadPolicy policy, int numRows, int threads) {
+        defaultPolicy = policy;
+        defaultNumRows = numRows;
+        numThreads = Math.max(1, threads);
+        if (workers != null) {
+            if (numThreads > workers.getMaximumPoolSize()) {
+                workers.setMaximumPoolSize(numThreads);
+                workers.setCorePoolSize(numThreads);
+            } else {
+                workers.setCorePoolSize(numThreads);
+                workers.setMaximumPoolSize(numThreads);
+            }
+        }
+    }
+
+    public static LoadPolicy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+    /**
+     * Applies the configured default policy in the background.
+     * Nothing proportional to the size of the matrix is done on the calling thread.
+     */
+    void applyDefaultPolicy() {
+        switch (defaultPolicy) {
+            case LAZY: break;
+            case LOAD: loadAll(); break;
+            case TOUCH: warmAll(); break;
+            case LONGEST_ROWS: warmLongestRows(defaultNumRows); break;
+            default: throw new IllegalStateException("" + defaultPolicy);
+        }
+    }
+
+    /**
+     * Calls MappedByteBuffer.load() on every page of the matrix in parallel.
+     * @return A future whose result is the number of bytes loaded.
+     */
+    public Future<Long> loadAll() {
+        return run("load", new Callable<List<Callable<Long>>>() {
+            @Override
+            public List<Callable<Long>> call() {
+                List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+                for (final MemoryMappedMatrix.MappedBufferWrapper page : matrix.buffers) {
+                    tasks.add(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            page.getBuffer().load();
+                            return page.end - page.start;
+                        }
+                    });
+                }
+                return tasks;
+            }
+        });
+    }
+
+    /**
+     * Touches every page of the matrix in parallel.
+     * @return A future whose result is the number of bytes touched.
+     */
+    public Future<Long> warmAll() {
+        return run("touch all pages", new Callable<List<Callable<Long>>>() {
+            @Override
+            public List<Callable<Long>> call() {
+                List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+                for (final MemoryMappedMatrix.MappedBufferWrapper page : matrix.buffers) {
+                    for (long start = 0; start < page.end - page.start; start += CHUNK_SIZE) {
+                        final int from = (int) start;
+                        final int to = (int) Math.min(page.end - page.start, start + CHUNK_SIZE);
+                        tasks.add(new Callable<Long>() {
+                            @Override
+                            public Long call() throws Exception {
+                                return touch(page.getBuffer(), from, to);
+                            }
+                        });
+                    }
+                }
+                return tasks;
+            }
+        });
+    }
+
+    /**
+     * Touches the pages backing the specified rows in parallel.
+     * Rows that do not exist are ignored.
+     * @param rowIds For example, the most frequently requested rows from an access log.
+     * @return A future whose result is the number of bytes touched.
+     */
+    public Future<Long> warmRows(final int rowIds[]) {
+        return run("touch rows", new Callable<List<Callable<Long>>>() {
+            @Override
+            public List<Callable<Long>> call() {
+                int positions[] = new int[rowIds.length];
+                int n = 0;
+                for (int id : rowIds) {
+                    int i = matrix.findRow(id);
+                    if (i >= 0) {
+                        positions[n++] = i;
+                    }
+                }
+                return touchPositions(Arrays.copyOf(positions, n));
+            }
+        });
+    }
+
+    /**
+     * Touches the pages backing the n rows that occupy the most bytes.
+     * The rows are chosen in the background, since that requires sizing every row.
+     * @return A future whose result is the number of bytes touched.
+     */
+    public Future<Long> warmLongestRows(final int n) {
+        return run("touch longest rows", new Callable<List<Callable<Long>>>() {
+            @Override
+            public List<Callable<Long>> call() {
+                long sizes[] = matrix.getRowSizes();
+                long keys[] = new long[sizes.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    keys[i] = (Math.min(sizes[i], Integer.MAX_VALUE) << 32) | i;
+                }
+                Arrays.sort(keys);
+                int positions[] = new int[Math.min(n, keys.length)];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = (int) (keys[keys.length - 1 - i] & 0xFFFFFFFFL);
+                }
+                return touchPositions(positions);
+            }
+        });
+    }
+
+    /**
+     * Splits the rows at the specified positions into batches of touch tasks.
+     */
+    private List<Callable<Long>> touchPositions(final int positions[]) {
+        final long sizes[] = matrix.getRowSizes();
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        int batchSize = Math.max(1, positions.length / (numThreads * 4) + 1);
+        for (int b = 0; b < positions.length; b += batchSize) {
+            final int from = b;
+            final int to = Math.min(positions.length, b + batchSize);
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long bytes = 0;
+                    for (int i = from; i < to; i++) {
+                        int start = matrix.getOffsetInPage(positions[i]);
+                        bytes += touch(matrix.getPage(positions[i]), start, (int) (start + sizes[positions[i]]));
+                    }
+                    return bytes;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    private long touch(ByteBuffer buffer, int from, int to) {
+        long sum = 0;
+        for (int p = from; p < to; p += OS_PAGE_SIZE) {
+            sum += buffer.get(p);
+        }
+        if (to > from) {
+            sum += buffer.get(to - 1);
+        }
+        sink += sum;
+        bytesWarmed.addAndGet(to - from);
+        return to - from;
+    }
+
+    /**
+     * Plans and runs a warmup in the background. The planner runs on a coordinator thread,
+     * and the tasks it returns run on the shared pool of worker threads.
+     */
+    private Future<Long> run(final String name, final Callable<List<Callable<Long>>> planner) {
+        final long startMillis = System.currentTimeMillis();
+        return COORDINATORS.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long bytes = 0;
+                try {
+                    List<Future<Long>> parts = new ArrayList<Future<Long>>();
+                    for (Callable<Long> task : planner.call()) {
+                        parts.add(getWorkers().submit(task));
+                    }
+                    for (Future<Long> f : parts) {
+                        bytes += f.get();
+                    }
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "warming " + matrix.getPath() + " failed", e);
+                    throw e;
+                }
+                LOG.info(String.format("%s for matrix %s: %.1fMB in %d ms, resident fraction is now %.3f",
+                        name, matrix.getPath(), bytes / (1024.0 * 1024.0),
+                        System.currentTimeMillis() - startMillis, getResidentFraction()));
+                return bytes;
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("matrix-warmer"));
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Estimates the fraction of the matrix that is resident in physical memory, using
+     * MappedByteBuffer.isLoaded() for each mapped page. Pages that have not been mapped
+     * yet count as non-resident.
+     */
+    public double getResidentFraction() {
+        long total = 0;
+        long resident = 0;
+        for (MemoryMappedMatrix.MappedBufferWrapper page : matrix.buffers) {
+            total += page.end - page.start;
+            MappedByteBuffer buffer = page.buffer;
+            if (buffer != null && buffer.isLoaded()) {
+                resident += page.end - page.start;
+            }
+        }
+        return (total == 0) ? 1.0 : 1.0 * resident / total;
+    }
+
+    /**
+     * @return The total number of bytes touched by this warmer.
+     */
+    public long getBytesWarmed() {
+        return bytesWarmed.get();
+    }
+}
@@ -1,21 +1,16 @@
 package org.wikibrain.matrix;
 
-import gnu.trove.map.hash.TIntLongHashMap;
-import org.apache.commons.collections.map.LinkedMap;
-import org.apache.commons.lang3.ArrayUtils;
+import gnu.trove.list.array.TLongArrayList;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.security.AccessController;
-import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -24,22 +19,133 @@ import java.util.logging.Logger;
 /**
  * A wrapper around a file channel that contains a matrix in row major order.
  * Returns rows at a particular offset in the form of ByteBuffers backed by a memory mapped file.
+ *
+ * Row lookups binary search a sorted block of row ids. A parallel block holds the
+ * offset of each row, and the page containing an offset is found by binary searching
+ * the (few) page start offsets, so finding a row never scans the pages or allocates.
+ *
+ * The sorted blocks may be heap arrays built from an unsorted header, or views of the
+ * memory mapped file header itself, in which case opening a matrix reads no per-row data.
  */
 public class MemoryMappedMatrix {
     public static final Logger LOG = Logger.getLogger(MemoryMappedMatrix.class.getName());
 
     public static final int PAGE_SIZE = 1024 * 1024 * 1024;     // 1GB
 
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
+    /**
+     * Row ids sorted in ascending order.
+     */
+    private IntBuffer sortedRowIds;
+
+    /**
+     * Offset of the row in sortedRowIds at the same index.
+     */
+    private LongBuffer sortedOffsets;
+
+    /**
+     * Offset of the first byte of each page, in ascending order.
+     */
+    private long pageStarts[];
+
+    private int numRows;
+
+    /**
+     * Row ids as an array: in file order when the matrix was built from an unsorted
+     * index, otherwise materialized in ascending order on demand.
+     */
+    private int rowIdArray[];
+
+    /**
+     * Number of bytes occupied by each row in sortedRowIds, computed on demand.
+     */
+    private long sortedSizes[];
+
     private FileChannel channel;
     protected List<MappedBufferWrapper> buffers = new ArrayList<MappedBufferWrapper>();
     private File path;
+    private final MatrixWarmer warmer;
+
+    /**
+     * @param path Path to the matrix file.
+     * @param channel Channel for the matrix file.
+     * @param rowIds Ids of the rows in the matrix, in any order.
+     * @param rowOffsets Offsets of each row; rowOffsets[i] is the offset of rowIds[i].
+     * @throws IOException
+     */
+    public MemoryMappedMatrix(File path, FileChannel channel, int rowIds[], long rowOffsets[]) throws IOException {
+        if (rowIds.length != rowOffsets.length) {
+            throw new IllegalArgumentException("row ids and row offsets have different lengths");
+        }
+        this.path = path;
+        this.channel = channel;
+        this.numRows = rowIds.length;
+        indexRows(rowIds, rowOffsets);
+        long offsets[] = new long[numRows];
+        sortedOffsets.duplicate().get(offsets);
+        Arrays.sort(offsets);
+        createPages(getPageStarts(offsets));
+        warmer = new MatrixWarmer(this);
+        warmer.applyDefaultPolicy();
+    }
 
-    public MemoryMappedMatrix(File path, FileChannel channel,TIntLongHashMap rowOffsets) throws IOException {
+    /**
+     * Creates a matrix whose row index is already sorted, typically views of the
+     * memory mapped file header. Nothing proportional to the number of rows is read.
+     *
+     * @param path Path to the matrix file.
+     * @param channel Channel for the matrix file.
+     * @param sortedRowIds Row ids in ascending order.
+     * @param sortedOffsets Offsets of each row; the ith offset belongs to the ith row id.
+     * @param pageStarts Offsets at which pages begin, as computed by getPageStarts().
+     * @throws IOException
+     */
+    public MemoryMappedMatrix(File path, FileChannel channel, IntBuffer sortedRowIds, LongBuffer sortedOffsets, long pageStarts[]) throws IOException {
+        if (sortedRowIds.remaining() != sortedOffsets.remaining()) {
+            throw new IllegalArgumentException("row ids and row offsets have different lengths");
+        }
         this.path = path;
         this.channel = channel;
-        this.rowOffsets = rowOffsets;
-        pageInRows();
+        this.numRows = sortedRowIds.remaining();
+        this.sortedRowIds = sortedRowIds.slice();
+        this.sortedOffsets = sortedOffsets.slice();
+        createPages(pageStarts);
+        warmer = new MatrixWarmer(this);
+        warmer.applyDefaultPolicy();
+    }
+
+    /**
+     * @return The warmer used to page this matrix into memory ahead of use.
+     */
+    public MatrixWarmer getWarmer() {
+        return warmer;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * @return The id of the row at the specified position in the sorted row index.
+     */
+    public int getRowId(int rowPosition) {
+        return sortedRowIds.get(rowPosition);
+    }
+
+    /**
+     * @return All row ids, in the order passed to the constructor for unsorted indexes and
+     *         in ascending order for sorted ones. The array is shared and must not be modified.
+     */
+    public synchronized int[] getRowIds() {
+        if (rowIdArray == null) {
+            int ids[] = new int[numRows];
+            sortedRowIds.duplicate().get(ids);
+            rowIdArray = ids;
+        }
+        return rowIdArray;
     }
 
     public void close() throws IOException {
@@ -50,28 +156,66 @@ public class MemoryMappedMatrix {
         channel.close();
     }
 
-    private void pageInRows() throws IOException {
-        int rowIds[] = getRowIdsInOrder();
-        if (rowIds.length == 0) {
-            return;
+    /**
+     * Returns the offsets at which pages should begin.
+     * Pages must align with row boundaries and be no larger than PAGE_SIZE.
+     *
+     * @param offsets Offsets of all rows, in ascending order.
+     */
+    public static long[] getPageStarts(long offsets[]) {
+        if (offsets.length == 0) {
+            return new long[0];
         }
-
-        // tricky: pages must align with row boundaries
-        long startPos = rowOffsets.get(rowIds[0]);
+        TLongArrayList starts = new TLongArrayList();
+        long startPos = offsets[0];
         long lastPos = startPos;
-
-        for (int i = 1; i < rowIds.length; i++) {
-            long pos = rowOffsets.get(rowIds[i]);
+        starts.add(startPos);
+        for (int i = 1; i < offsets.length; i++) {
+            long pos = offsets[i];
             if (pos - startPos > PAGE_SIZE) {
                 assert(lastPos != startPos);
-                addBuffer(startPos, lastPos);
                 startPos = lastPos;
+                starts.add(startPos);
             }
             lastPos = pos;
         }
-        addBuffer(startPos, channel.size());
+        return starts.toArray();
+    }
+
+    /**
+     * Creates the pages that back the matrix. The last page extends to the end of the file.
+     */
+    private void createPages(long starts[]) throws IOException {
+        this.pageStarts = starts;
+        for (int i = 0; i < starts.length; i++) {
+            long end = (i + 1 < starts.length) ? starts[i + 1] : channel.size();
+            addBuffer(starts[i], end);
+        }
     }
 
+    /**
+     * Builds the sorted row id and offset blocks from unsorted arrays.
+     */
+    private void indexRows(int rowIds[], long rowOffsets[]) {
+        // pack the row id (high bits) and position in the input arrays (low bits) so a
+        // primitive sort orders rows by id.
+        long keys[] = new long[rowIds.length];
+        for (int i = 0; i < rowIds.length; i++) {
+            keys[i] = ((long) rowIds[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int ids[] = new int[rowIds.length];
+        long offsets[] = new long[rowIds.length];
+        for (int i = 0; i < keys.length; i++) {
+            int j = (int) (keys[i] & 0xFFFFFFFFL);
+            ids[i] = rowIds[j];
+            offsets[i] = rowOffsets[j];
+        }
+        rowIdArray = rowIds;
+        sortedRowIds = IntBuffer.wrap(ids);
+        sortedOffsets = LongBuffer.wrap(offsets);
+    }
 
     private void addBuffer(long startPos, long endPos) throws IOException {
         long length = endPos - startPos;
@@ -80,24 +224,92 @@ public class MemoryMappedMatrix {
     }
 
     public ByteBuffer getRow(int rowId) throws IOException {
-        if (!rowOffsets.containsKey(rowId)) {
+        int i = findRow(rowId);
+        if (i < 0) {
             return null;
         }
-        long targetOffset = rowOffsets.get(rowId);
-        MappedBufferWrapper row = null;
-        // TODO: binary search
-        for (int i = 0; i < buffers.size(); i++) {
-            MappedBufferWrapper wrapper = buffers.get(i);
-            if (wrapper.start <= targetOffset && targetOffset < wrapper.end) {
-                row = wrapper;
-            }
-        }
-        if (row == null) {
+        long targetOffset = sortedOffsets.get(i);
+        MappedBufferWrapper row = buffers.get(findPage(targetOffset));
+        if (targetOffset < row.start || targetOffset >= row.end) {
             throw new IllegalArgumentException("did not find row " + rowId + " with offset " + targetOffset);
         }
         return row.get(targetOffset);
     }
 
+    /**
+     * Returns the index of the page containing an offset.
+     */
+    private int findPage(long offset) {
+        if (pageStarts.length == 1) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(pageStarts, offset);
+        return (i >= 0) ? i : Math.max(0, -i - 2);
+    }
+
+    /**
+     * Returns the position of a row in the sorted row index, or a negative number
+     * if the row does not exist. The position can be passed to getPage() and
+     * getOffsetInPage() to read the row without allocating a slice.
+     */
+    int findRow(int rowId) {
+        int lo = 0;
+        int hi = numRows - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midId = sortedRowIds.get(mid);
+            if (midId < rowId) {
+                lo = mid + 1;
+            } else if (midId > rowId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * Returns the page buffer containing the row at the specified position in the sorted row index.
+     * Callers must only use absolute gets on the returned buffer because it is shared.
+     */
+    ByteBuffer getPage(int rowPosition) throws IOException {
+        return buffers.get(findPage(sortedOffsets.get(rowPosition))).getBuffer();
+    }
+
+    /**
+     * Returns the offset of the row at the specified position in the sorted row index
+     * relative to the start of its page.
+     */
+    int getOffsetInPage(int rowPosition) {
+        long offset = sortedOffsets.get(rowPosition);
+        return (int) (offset - pageStarts[findPage(offset)]);
+    }
+
+    /**
+     * Returns the number of bytes occupied by each row, indexed by position in the
+     * sorted row index. A row extends to the start of the next row or the end of its page.
+     */
+    synchronized long[] getRowSizes() {
+        if (sortedSizes != null) {
+            return sortedSizes;
+        }
+        long offsets[] = new long[numRows];
+        sortedOffsets.duplicate().get(offsets);
+        long ordered[] = getOffsetsInOrder(offsets);
+        long sizes[] = new long[numRows];
+        for (int j = 0; j < numRows; j++) {
+            long end = buffers.get(findPage(offsets[j])).end;
+            int k = (ordered == offsets) ? j : Arrays.binarySearch(ordered, offsets[j]);
+            if (k + 1 < ordered.length) {
+                end = Math.min(end, ordered[k + 1]);
+            }
+            sizes[j] = end - offsets[j];
+        }
+        sortedSizes = sizes;
+        return sizes;
+    }
+
     static class MappedBufferWrapper {
         FileChannel channel;
         MappedByteBuffer buffer;
@@ -110,26 +322,35 @@ public class MemoryMappedMatrix {
             this.end = end;
         }
         public synchronized ByteBuffer get(long position) throws IOException {
+            getBuffer();
+            buffer.position((int) (position - start));
+            return buffer.slice();
+        }
+        public synchronized MappedByteBuffer getBuffer() throws IOException {
             if (buffer == null) {
                 buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
             }
-            buffer.position((int) (position - start));
-            return buffer.slice();
+            return buffer;
         }
         public synchronized void close() {
             buffer = null;
         }
     }
 
-    private int[] getRowIdsInOrder() {
-        Integer rowIds[] = ArrayUtils.toObject(rowOffsets.keys());
-        Arrays.sort(rowIds, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer r1, Integer r2) {
-                return new Long(rowOffsets.get(r1)).compareTo(rowOffsets.get(r2));
+    /**
+     * Returns the row offsets in ascending order.
+     * Matrix writers append rows in header order, so the offsets are usually already
+     * sorted, in which case the argument itself is returned.
+     */
+    private static long[] getOffsetsInOrder(long rowOffsets[]) {
+        for (int i = 1; i < rowOffsets.length; i++) {
+            if (rowOffsets[i - 1] > rowOffsets[i]) {
+                long sorted[] = Arrays.copyOf(rowOffsets, rowOffsets.length);
+                Arrays.sort(sorted);
+                return sorted;
             }
-        });
-        return ArrayUtils.toPrimitive(rowIds);
+        }
+        return rowOffsets;
     }
 
     private void info(String message) {
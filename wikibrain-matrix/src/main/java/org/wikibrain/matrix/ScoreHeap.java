@@ -0,0 +1,99 @@
+package org.wikibrain.matrix;
+
+/**
+ * A bounded list of the highest scoring int keys, kept as a primitive min-heap on score
+ * so the lowest retained score can be evicted in O(log k).
+ *
+ * Until sortDescending() is called, the entries are in heap order.
+ * Instances are not thread safe, but may be reused after clear().
+ */
+public class ScoreHeap {
+    private final int keys[];
+    private final double scores[];
+    private int size = 0;
+
+    public ScoreHeap(int capacity) {
+        keys = new int[Math.max(0, capacity)];
+        scores = new double[Math.max(0, capacity)];
+    }
+
+    /**
+     * Adds a key if the heap is not full or its score beats the lowest retained score.
+     * @return true if the key was added.
+     */
+    public boolean offer(int key, double score) {
+        if (size < keys.length) {
+            keys[size] = key;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        } else if (size > 0 && score > scores[0]) {
+            keys[0] = key;
+            scores[0] = score;
+            siftDown(0, size);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sorts the entries by descending score. The heap must be cleared before it is reused.
+     */
+    public void sortDescending() {
+        for (int n = size - 1; n > 0; n--) {
+            swap(0, n);
+            siftDown(0, n);
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    public int getKey(int i) {
+        return keys[i];
+    }
+
+    public double getScore(int i) {
+        return scores[i];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (scores[parent] <= scores[i]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < n && scores[left] < scores[smallest]) smallest = left;
+            if (right < n && scores[right] < scores[smallest]) smallest = right;
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+        double s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+    }
+}
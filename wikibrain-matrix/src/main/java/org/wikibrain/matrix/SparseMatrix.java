@@ -1,12 +1,13 @@
 package org.wikibrain.matrix;
 
-import gnu.trove.map.hash.TIntLongHashMap;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Iterator;
@@ -26,14 +27,32 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
 
     public static final int FILE_HEADER = 0xabcdef;
 
+    /**
+     * Header for matrices whose rows use a non-default SparseMatrixFormat.
+     * The header is followed by the format flags.
+     */
+    public static final int FILE_HEADER_V2 = 0xabcdf0;
+
+    /**
+     * Header for matrices whose row index is stored sorted, so it can be searched in
+     * place from the memory mapped file. The layout is the header, format flags, min value,
+     * max value, number of rows, number of pages, the page start offsets (longs), the
+     * sorted row ids (ints), and finally the row offsets (longs) in the same order.
+     */
+    public static final int FILE_HEADER_V3 = 0xabcdf1;
+
+    /**
+     * Size of the fixed portion of a V3 header (before the page starts).
+     */
+    static final int FILE_HEADER_V3_SIZE = 24;
+
     MemoryMappedMatrix rowBuffers;
 
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
-    private int rowIds[];
     private FileChannel channel;
     private File path;
 
     private ValueConf vconf;
+    private SparseMatrixFormat format;
 
 
 
@@ -44,35 +63,72 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         }
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
-        readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowOffsets);
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), FILE_HEADER_V3_SIZE));
+        if (header.getInt(0) == FILE_HEADER_V3) {
+            mapSortedHeader(header);
+        } else {
+            readHeaders();
+        }
     }
 
+    /**
+     * Opens a matrix with a V3 header. The sorted row ids and offsets are used directly
+     * from the memory mapped file, so no per-row work is done here.
+     */
+    private void mapSortedHeader(ByteBuffer header) throws IOException {
+        this.format = SparseMatrixFormat.fromFlags(header.getInt(4));
+        this.vconf = new ValueConf(header.getFloat(8), header.getFloat(12));
+        int numRows = header.getInt(16);
+        int numPages = header.getInt(20);
+
+        long pos = FILE_HEADER_V3_SIZE;
+        long pageStarts[] = new long[numPages];
+        channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L * numPages).asLongBuffer().get(pageStarts);
+        pos += 8L * numPages;
+        IntBuffer ids = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * numRows).asIntBuffer();
+        pos += 4L * numRows;
+        LongBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L * numRows).asLongBuffer();
+        debug("mapped sorted index of " + numRows + " rows in " + numPages + " pages");
+        rowBuffers = new MemoryMappedMatrix(path, channel, ids, offsets, pageStarts);
+    }
+
+    /**
+     * Reads the unsorted header of a V1 or V2 matrix onto the heap.
+     */
     private void readHeaders() throws IOException {
         long size = Math.min(channel.size(), DEFAULT_HEADER_SIZE);
         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
-        if (buffer.getInt(0) != FILE_HEADER) {
+        int pos;
+        if (buffer.getInt(0) == FILE_HEADER) {
+            this.format = SparseMatrixFormat.DEFAULT;
+            pos = 4;
+        } else if (buffer.getInt(0) == FILE_HEADER_V2) {
+            this.format = SparseMatrixFormat.fromFlags(buffer.getInt(4));
+            pos = 8;
+        } else {
             throw new IOException("invalid file header: " + buffer.getInt(0));
         }
-        this.vconf = new ValueConf(buffer.getFloat(4), buffer.getFloat(8));
-        int numRows = buffer.getInt(12);
-        int headerSize = 16 + 12*numRows;
+        this.vconf = new ValueConf(buffer.getFloat(pos), buffer.getFloat(pos + 4));
+        int numRows = buffer.getInt(pos + 8);
+        int fileHeaderSize = format.isDefault() ? 16 : 20;
+        int headerSize = fileHeaderSize + 12*numRows;
         if (headerSize > DEFAULT_HEADER_SIZE) {
             info("maxPageSize not large enough for entire header. Resizing to " + headerSize);
             buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerSize);
         }
         debug("reading offsets for " + numRows + " rows");
-        rowIds = new int[numRows];
-        rowOffsets.ensureCapacity(numRows);
+        int rowIds[] = new int[numRows];
+        long rowOffsets[] = new long[numRows];
         for (int i = 0; i < numRows; i++) {
-            int pos = 16 + 12 * i;
-            int rowIndex = buffer.getInt(pos);
-            long rowOffset = buffer.getLong(pos + 4);
-            rowOffsets.put(rowIndex, rowOffset);
+            int rowPos = fileHeaderSize + 12 * i;
+            int rowIndex = buffer.getInt(rowPos);
+            long rowOffset = buffer.getLong(rowPos + 4);
+            rowOffsets[i] = rowOffset;
 //            debug("adding row index " + rowIndex + " at offset " + rowOffset);
             rowIds[i] = rowIndex;
         }
         debug("read " + numRows + " offsets");
+        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets);
     }
 
 
@@ -86,22 +142,48 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         }
     }
 
+    /**
+     * Opens a cursor that can be repeatedly pointed at rows in this matrix without
+     * allocating. Cursors are not thread safe; each thread should open its own.
+     * @return A new cursor that is not positioned at any row.
+     */
+    public SparseMatrixCursor openCursor() {
+        return new SparseMatrixCursor(this);
+    }
+
+    /**
+     * Returns the row ids in the order in which they appear in the file for matrices with
+     * an unsorted (V1 or V2) header, and in ascending order for matrices with a sorted (V3)
+     * header. Iteration over the matrix follows the same order.
+     * For matrices with a sorted header the array is built on the first call.
+     */
     @Override
     public int[] getRowIds() {
-        return rowIds;
+        return rowBuffers.getRowIds();
     }
 
     @Override
     public int getNumRows() {
-        return rowIds.length;
+        return rowBuffers.getNumRows();
     }
 
     public ValueConf getValueConf() {
         return vconf;
     }
 
+    /**
+     * @return The warmer that pages this matrix into memory in the background.
+     */
+    public MatrixWarmer getWarmer() {
+        return rowBuffers.getWarmer();
+    }
+
+    public SparseMatrixFormat getFormat() {
+        return format;
+    }
+
     public void dump() throws IOException {
-        for (int id : rowIds) {
+        for (int id : getRowIds()) {
             System.out.print("" + id + ": ");
             MatrixRow row = getRow(id);
             for (int i = 0; i < row.getNumCols(); i++) {
@@ -122,12 +204,12 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         private int i = 0;
         @Override
         public boolean hasNext() {
-            return i < rowIds.length;
+            return i < rowBuffers.getNumRows();
         }
         @Override
         public SparseMatrixRow next() {
             try {
-                return (SparseMatrixRow)getRow(rowIds[i++]);
+                return getRow(getRowIds()[i++]);
             } catch (IOException e) {
                 LOG.log(Level.SEVERE, "getRow failed", e);
                 return null;
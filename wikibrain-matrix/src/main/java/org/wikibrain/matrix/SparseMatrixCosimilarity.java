@@ -0,0 +1,280 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Computes the top-k cosine similarities between the rows of a sparse feature matrix
+ * (i.e. the top entries of each row of A * A^T, normalized by row lengths) and writes
+ * them directly to a SparseMatrixWriter.
+ *
+ * Worker threads claim blocks of query rows. For each query row, the engine walks the
+ * row's features, reads the matching posting lists from the memory mapped transpose
+ * with a cursor, and accumulates dot products into a dense per-thread scratch array
+ * indexed by the dense position of each candidate row. Nothing is allocated per
+ * posting, and each candidate set is reduced to its top-k with a ScoreHeap.
+ */
+public class SparseMatrixCosimilarity {
+    private static final Logger LOG = Logger.getLogger(SparseMatrixCosimilarity.class.getName());
+
+    /**
+     * Largest id for which a direct id to dense index table is used
+     * (unless the ids are dense relative to the number of rows).
+     */
+    private static final int MAX_DIRECT_TABLE_SIZE = 16 * 1024 * 1024;
+
+    private final SparseMatrix features;
+    private final SparseMatrix transpose;
+
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int blockSize = 1000;
+
+    // dense index of the feature matrix rows
+    private int denseIds[];
+    private int directTable[];
+    private TIntIntHashMap indexMap;
+    private float norms[];
+
+    /**
+     * @param features The feature matrix. Rows are items, columns are features.
+     * @param transpose The transpose of the feature matrix.
+     */
+    public SparseMatrixCosimilarity(SparseMatrix features, SparseMatrix transpose) {
+        this.features = features;
+        this.transpose = transpose;
+    }
+
+    public SparseMatrixCosimilarity setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+        }
+        this.numThreads = numThreads;
+        return this;
+    }
+
+    public SparseMatrixCosimilarity setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * Writes the top-k most similar rows for each requested row.
+     *
+     * @param writer Destination for the results. Each output row is sorted by descending score.
+     *               The writer is not finished.
+     * @param rowIds Ids of the rows whose neighbors should be computed. If null, all feature rows.
+     * @param colIds Ids of the rows that may appear as neighbors. If null, all feature rows.
+     * @param maxResults Maximum number of neighbors per row.
+     * @return The number of cells written.
+     * @throws IOException
+     */
+    public long write(final SparseMatrixWriter writer, int rowIds[], int colIds[], final int maxResults) throws IOException {
+        buildIndex();
+        final int queries[] = (rowIds == null) ? features.getRowIds() : rowIds;
+        final boolean valid[] = (colIds == null) ? null : buildMask(colIds);
+        final int numBlocks = (queries.length + blockSize - 1) / blockSize;
+        final AtomicInteger nextBlock = new AtomicInteger();
+        final AtomicLong numCells = new AtomicLong();
+
+        LOG.info("computing top " + maxResults + " neighbors for " + queries.length +
+                " rows in " + numBlocks + " blocks using " + numThreads + " threads");
+        runInParallel(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Worker worker = new Worker(maxResults, valid);
+                while (true) {
+                    int block = nextBlock.getAndIncrement();
+                    if (block >= numBlocks) {
+                        return null;
+                    }
+                    int end = Math.min(queries.length, (block + 1) * blockSize);
+                    for (int i = block * blockSize; i < end; i++) {
+                        numCells.addAndGet(worker.writeNeighbors(writer, queries[i]));
+                    }
+                    if (block % 100 == 0) {
+                        LOG.info("finished block " + block + " of " + numBlocks);
+                    }
+                }
+            }
+        });
+        LOG.info("wrote " + numCells.get() + " cosimilarity cells");
+        return numCells.get();
+    }
+
+    /**
+     * Builds the dense index of feature rows and computes the length of each row.
+     */
+    private synchronized void buildIndex() throws IOException {
+        if (norms != null) {
+            return;
+        }
+        denseIds = Arrays.copyOf(features.getRowIds(), features.getNumRows());
+        Arrays.sort(denseIds);
+        int maxId = denseIds.length == 0 ? 0 : denseIds[denseIds.length - 1];
+        int minId = denseIds.length == 0 ? 0 : denseIds[0];
+        if (minId >= 0 && (maxId < MAX_DIRECT_TABLE_SIZE || maxId / 16 < denseIds.length)) {
+            directTable = new int[maxId + 1];
+            Arrays.fill(directTable, -1);
+            for (int i = 0; i < denseIds.length; i++) {
+                directTable[denseIds[i]] = i;
+            }
+        } else {
+            indexMap = new TIntIntHashMap(denseIds.length * 2, 0.5f, Integer.MIN_VALUE, -1);
+            for (int i = 0; i < denseIds.length; i++) {
+                indexMap.put(denseIds[i], i);
+            }
+        }
+
+        final float lengths[] = new float[denseIds.length];
+        final AtomicInteger next = new AtomicInteger();
+        runInParallel(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                SparseMatrixCursor row = features.openCursor();
+                for (int i = next.getAndIncrement(); i < denseIds.length; i = next.getAndIncrement()) {
+                    row.seek(denseIds[i]);
+                    double sum = 0.0;
+                    for (int j = 0; j < row.getNumCols(); j++) {
+                        float v = row.getColValue(j);
+                        sum += v * v;
+                    }
+                    lengths[i] = (float) Math.sqrt(sum);
+                }
+                return null;
+            }
+        });
+        norms = lengths;
+    }
+
+    private int denseIndex(int id) {
+        if (directTable != null) {
+            return (id >= 0 && id < directTable.length) ? directTable[id] : -1;
+        } else {
+            return indexMap.get(id);
+        }
+    }
+
+    private boolean[] buildMask(int colIds[]) {
+        boolean mask[] = new boolean[denseIds.length];
+        for (int id : colIds) {
+            int i = denseIndex(id);
+            if (i >= 0) {
+                mask[i] = true;
+            }
+        }
+        return mask;
+    }
+
+    private void runInParallel(Callable<Void> task) throws IOException {
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < numThreads; i++) {
+                futures.add(exec.submit(task));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Per-thread scratch space.
+     */
+    private class Worker {
+        final boolean valid[];
+        final SparseMatrixCursor query = features.openCursor();
+        final SparseMatrixCursor posting = transpose.openCursor();
+
+        // dense accumulators; stamps identify the entries touched by the current query
+        final float dots[] = new float[denseIds.length];
+        final int stamps[] = new int[denseIds.length];
+        int touched[] = new int[1024];
+        int stamp = 0;
+
+        // the best results for the current query
+        final ScoreHeap top;
+
+        Worker(int maxResults, boolean valid[]) {
+            this.valid = valid;
+            this.top = new ScoreHeap(maxResults);
+        }
+
+        int writeNeighbors(SparseMatrixWriter writer, int rowId) throws IOException {
+            int qi = denseIndex(rowId);
+            if (qi < 0 || !query.seek(rowId) || norms[qi] == 0.0f) {
+                return 0;
+            }
+            if (++stamp == 0) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+
+            // accumulate dot products
+            int numTouched = 0;
+            for (int i = 0; i < query.getNumCols(); i++) {
+                if (!posting.seek(query.getColIndex(i))) {
+                    continue;
+                }
+                float w = query.getColValue(i);
+                for (int j = 0; j < posting.getNumCols(); j++) {
+                    int k = denseIndex(posting.getColIndex(j));
+                    if (k < 0 || (valid != null && !valid[k])) {
+                        continue;
+                    }
+                    if (stamps[k] != stamp) {
+                        stamps[k] = stamp;
+                        dots[k] = 0.0f;
+                        if (numTouched == touched.length) {
+                            touched = Arrays.copyOf(touched, touched.length * 2);
+                        }
+                        touched[numTouched++] = k;
+                    }
+                    dots[k] += w * posting.getColValue(j);
+                }
+            }
+
+            // select the top k
+            top.clear();
+            float qNorm = norms[qi];
+            for (int t = 0; t < numTouched; t++) {
+                int k = touched[t];
+                if (norms[k] != 0.0f) {
+                    top.offer(k, dots[k] / (qNorm * norms[k]));
+                }
+            }
+            if (top.size() == 0) {
+                return 0;
+            }
+            top.sortDescending();
+            int ids[] = new int[top.size()];
+            float scores[] = new float[top.size()];
+            for (int i = 0; i < top.size(); i++) {
+                ids[i] = denseIds[top.getKey(i)];
+                scores[i] = (float) top.getScore(i);
+            }
+            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), rowId, ids, scores));
+            return ids.length;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.wikibrain.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable view of a single row in a sparse matrix.
+ *
+ * Unlike SparseMatrix.getRow(), seeking the cursor to a new row does not allocate
+ * a row object or any view buffers; the cursor reads directly from the memory mapped
+ * page that contains the row. This makes it suitable for hot loops that visit many rows.
+ *
+ * Rows stored with delta varint column ids are decoded into a scratch array that is
+ * reused across seeks.
+ *
+ * A cursor is thread-confined: it must not be shared across threads.
+ * The cursor is only valid while its matrix is open.
+ */
+public final class SparseMatrixCursor extends BaseMatrixRow implements MatrixRow {
+    private final MemoryMappedMatrix rowBuffers;
+    private final ValueConf vconf;
+
+    private ByteBuffer page;
+    private int rowStart;
+    private int idStart;
+    private int valStart;
+    private int rowId;
+    private int numCols;
+    private SparseMatrixFormat format;
+    private int decodedIds[] = new int[0];
+
+    SparseMatrixCursor(SparseMatrix matrix) {
+        this.rowBuffers = matrix.rowBuffers;
+        this.vconf = matrix.getValueConf();
+        clear();
+    }
+
+    /**
+     * Points the cursor at a particular row.
+     * @param rowId
+     * @return True if the row exists. If false, the cursor is empty (zero columns).
+     * @throws IOException
+     */
+    public boolean seek(int rowId) throws IOException {
+        int i = rowBuffers.findRow(rowId);
+        if (i < 0) {
+            clear();
+            return false;
+        }
+        page = rowBuffers.getPage(i);
+        rowStart = rowBuffers.getOffsetInPage(i);
+        format = SparseMatrixFormat.fromRowHeader(page.getInt(rowStart));
+        if (format == null) {
+            throw new IllegalArgumentException("Invalid header for row " + rowId);
+        }
+        this.rowId = page.getInt(rowStart + 4);
+        numCols = page.getInt(rowStart + 8);
+        if (format.isDefault()) {
+            idStart = rowStart + 12;
+            valStart = idStart + 4 * numCols;
+        } else {
+            valStart = rowStart + SparseMatrixFormat.valueStart();
+            idStart = rowStart + format.idStart(numCols);
+            if (format.hasDeltaIds()) {
+                if (decodedIds.length < numCols) {
+                    decodedIds = new int[Math.max(numCols, decodedIds.length * 2)];
+                }
+                SparseMatrixFormat.decodeDeltaIds(page, idStart, numCols, decodedIds);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the cursor currently points at a row.
+     */
+    public boolean isPositioned() {
+        return page != null;
+    }
+
+    private void clear() {
+        page = null;
+        format = SparseMatrixFormat.DEFAULT;
+        rowId = -1;
+        numCols = 0;
+    }
+
+    @Override
+    public final int getColIndex(int i) {
+        if (format.hasDeltaIds()) {
+            return decodedIds[i];
+        }
+        return page.getInt(idStart + 4 * i);
+    }
+
+    @Override
+    public final float getColValue(int i) {
+        return vconf.unpack(getPackedColValue(i));
+    }
+
+    public final short getPackedColValue(int i) {
+        if (format.getValueBits() == 8) {
+            return SparseMatrixFormat.byteToPacked(page.get(valStart + i));
+        }
+        return page.getShort(valStart + 2 * i);
+    }
+
+    @Override
+    public final int getRowIndex() {
+        return rowId;
+    }
+
+    @Override
+    public final int getNumCols() {
+        return numCols;
+    }
+
+    public ValueConf getValueConf() {
+        return vconf;
+    }
+}
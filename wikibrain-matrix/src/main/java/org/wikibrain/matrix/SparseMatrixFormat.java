@@ -0,0 +1,261 @@
+package org.wikibrain.matrix;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describes how the rows of a sparse matrix are encoded on disk.
+ *
+ * The default format stores each column id as a 4-byte int and each value as a 2-byte
+ * short packed by ValueConf. Compact formats can instead store column ids as
+ * zig-zag varint deltas from the previous id in the row, and/or values as a single byte
+ * holding the top 8 bits of the packed short.
+ *
+ * Every row begins with a row header word that identifies its encoding, so rows are
+ * self-describing and SparseMatrixRow can read any of them. Compact rows are laid out as:
+ * - row header (int),
+ * - row id (int),
+ * - number of columns (int),
+ * - values (1 or 2 bytes each, padded to a multiple of 4 bytes),
+ * - column ids (4-byte ints or varint deltas).
+ */
+public final class SparseMatrixFormat {
+    /**
+     * Row header for default rows; ids followed by 16 bit values.
+     */
+    public static final int DEFAULT_ROW_HEADER = 0xfefefefe;
+
+    /**
+     * Base of the row headers of compact rows. The low bits hold the encoding flags.
+     */
+    public static final int COMPACT_ROW_HEADER = 0xfefefe00;
+
+    private static final int FLAG_DELTA_IDS = 1;
+    private static final int FLAG_BYTE_VALUES = 2;
+
+    /**
+     * 4-byte column ids, 16 bit values. Compatible with all prior matrix files.
+     */
+    public static final SparseMatrixFormat DEFAULT = new SparseMatrixFormat(false, 16);
+
+    /**
+     * Delta varint column ids, 16 bit values.
+     */
+    public static final SparseMatrixFormat DELTA_IDS = new SparseMatrixFormat(true, 16);
+
+    /**
+     * Delta varint column ids, 8 bit values. Roughly halves the size of most matrices.
+     */
+    public static final SparseMatrixFormat COMPACT = new SparseMatrixFormat(true, 8);
+
+    private final boolean deltaIds;
+    private final int valueBits;
+
+    public SparseMatrixFormat(boolean deltaIds, int valueBits) {
+        if (valueBits != 8 && valueBits != 16) {
+            throw new IllegalArgumentException("value bits must be 8 or 16: " + valueBits);
+        }
+        this.deltaIds = deltaIds;
+        this.valueBits = valueBits;
+    }
+
+    public boolean hasDeltaIds() {
+        return deltaIds;
+    }
+
+    public int getValueBits() {
+        return valueBits;
+    }
+
+    public int getValueBytes() {
+        return valueBits / 8;
+    }
+
+    public boolean isDefault() {
+        return !deltaIds && valueBits == 16;
+    }
+
+    /**
+     * @return The flags stored in matrix and row headers.
+     */
+    public int getFlags() {
+        return (deltaIds ? FLAG_DELTA_IDS : 0) | (valueBits == 8 ? FLAG_BYTE_VALUES : 0);
+    }
+
+    public int getRowHeader() {
+        return isDefault() ? DEFAULT_ROW_HEADER : (COMPACT_ROW_HEADER | getFlags());
+    }
+
+    public static SparseMatrixFormat fromFlags(int flags) {
+        if ((flags & ~(FLAG_DELTA_IDS | FLAG_BYTE_VALUES)) != 0) {
+            throw new IllegalArgumentException("unknown format flags: " + flags);
+        }
+        return new SparseMatrixFormat(
+                (flags & FLAG_DELTA_IDS) != 0,
+                (flags & FLAG_BYTE_VALUES) != 0 ? 8 : 16);
+    }
+
+    /**
+     * Returns the format of a row with the specified row header, or null if it is not a valid header.
+     */
+    public static SparseMatrixFormat fromRowHeader(int header) {
+        if (header == DEFAULT_ROW_HEADER) {
+            return DEFAULT;
+        } else if ((header & 0xffffff00) == COMPACT_ROW_HEADER && (header & 0xff) != 0) {
+            return fromFlags(header & 0xff);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the offset of the value block relative to the start of a compact row.
+     */
+    static int valueStart() {
+        return 12;
+    }
+
+    /**
+     * Returns the offset of the id block relative to the start of a compact row.
+     */
+    int idStart(int numCols) {
+        int valueBlock = numCols * getValueBytes();
+        return 12 + ((valueBlock + 3) & ~3);
+    }
+
+    /**
+     * Returns an upper bound on the encoded size of a row in this format.
+     */
+    int maxRowSize(int numCols) {
+        if (isDefault()) {
+            return 12 + numCols * 6;
+        }
+        return idStart(numCols) + numCols * (deltaIds ? 5 : 4);
+    }
+
+    /**
+     * Converts a packed 16 bit value to its 8 bit representation.
+     */
+    static byte packedToByte(short packed) {
+        return (byte) (packed >> 8);
+    }
+
+    /**
+     * Converts an 8 bit value to the packed 16 bit value at the center of its range.
+     */
+    static short byteToPacked(byte b) {
+        return (short) ((b << 8) | 0x80);
+    }
+
+    /**
+     * Encodes a row in this format at the buffer's current position.
+     * @return The number of bytes written.
+     */
+    int encode(ByteBuffer dest, int rowId, MatrixRow row) {
+        int numCols = row.getNumCols();
+        int start = dest.position();
+        dest.putInt(getRowHeader());
+        dest.putInt(rowId);
+        dest.putInt(numCols);
+        if (isDefault()) {
+            for (int i = 0; i < numCols; i++) {
+                dest.putInt(row.getColIndex(i));
+            }
+            for (int i = 0; i < numCols; i++) {
+                dest.putShort(getPackedValue(row, i));
+            }
+            return dest.position() - start;
+        }
+        for (int i = 0; i < numCols; i++) {
+            short packed = getPackedValue(row, i);
+            if (valueBits == 8) {
+                dest.put(packedToByte(packed));
+            } else {
+                dest.putShort(packed);
+            }
+        }
+        while (dest.position() - start < idStart(numCols)) {
+            dest.put((byte) 0);
+        }
+        int prev = 0;
+        for (int i = 0; i < numCols; i++) {
+            int id = row.getColIndex(i);
+            if (deltaIds) {
+                writeVarint(dest, zigZag(id - prev));
+                prev = id;
+            } else {
+                dest.putInt(id);
+            }
+        }
+        return dest.position() - start;
+    }
+
+    private static short getPackedValue(MatrixRow row, int i) {
+        if (row instanceof SparseMatrixRow) {
+            return ((SparseMatrixRow) row).getPackedColValue(i);
+        } else if (row instanceof SparseMatrixCursor) {
+            return ((SparseMatrixCursor) row).getPackedColValue(i);
+        } else {
+            throw new IllegalArgumentException("unsupported row type: " + row.getClass());
+        }
+    }
+
+    /**
+     * Decodes the delta varint ids of a compact row.
+     * @param src Buffer containing the row.
+     * @param pos Absolute position of the first id.
+     * @param numCols Number of ids to decode.
+     * @param dest Array that receives the ids. Must hold at least numCols entries.
+     * @return The absolute position just past the last id.
+     */
+    static int decodeDeltaIds(ByteBuffer src, int pos, int numCols, int dest[]) {
+        int prev = 0;
+        for (int i = 0; i < numCols; i++) {
+            int v = 0;
+            int shift = 0;
+            while (true) {
+                byte b = src.get(pos++);
+                v |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+                shift += 7;
+            }
+            prev += (v >>> 1) ^ -(v & 1);
+            dest[i] = prev;
+        }
+        return pos;
+    }
+
+    private static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static void writeVarint(ByteBuffer dest, int v) {
+        while ((v & ~0x7f) != 0) {
+            dest.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        dest.put((byte) v);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SparseMatrixFormat that = (SparseMatrixFormat) o;
+        return deltaIds == that.deltaIds && valueBits == that.valueBits;
+    }
+
+    @Override
+    public int hashCode() {
+        return getFlags();
+    }
+
+    @Override
+    public String toString() {
+        return "SparseMatrixFormat{" +
+                "deltaIds=" + deltaIds +
+                ", valueBits=" + valueBits +
+                '}';
+    }
+}
@@ -4,8 +4,6 @@ import gnu.trove.map.TIntFloatMap;
 import org.apache.commons.lang3.ArrayUtils;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 
@@ -14,6 +12,9 @@ import java.util.logging.Logger;
  * - a row id (int),
  * - a set of n columns, each with an id (int) and value (float packed into two bytes)
  *
+ * Rows wrapped from a compact matrix file may instead use one of the encodings
+ * described in SparseMatrixFormat.
+ *
  * The row can either be created from the component data, or from a byte buffer.
  * This means that the object can wrap data from an mmap'd file in the correct format.
  */
@@ -25,7 +26,7 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public static final Float SCORE_RANGE = (MAX_SCORE - MIN_SCORE);
     public static final int PACKED_RANGE = (Short.MAX_VALUE - Short.MIN_VALUE);
 
-    public static final int HEADER = 0xfefefefe;
+    public static final int HEADER = SparseMatrixFormat.DEFAULT_ROW_HEADER;
 
     /**
      * The main "source" buffer.
@@ -33,19 +34,23 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     private ByteBuffer buffer;
 
     /**
-     * A view buffer that points to the header.
+     * The encoding of the row in the buffer.
      */
-    private IntBuffer headerBuffer;
+    private SparseMatrixFormat format;
 
     /**
-     * A view buffer that points to the ids.
+     * Absolute positions of the ids and values in the buffer.
      */
-    private IntBuffer idBuffer;
+    private int idStart;
+    private int valStart;
+    private int numCols;
+    private int sizeInBytes;
 
     /**
-     * A view buffer that points to the values.
+     * Decoded column ids, for formats whose ids cannot be randomly accessed.
      */
-    private ShortBuffer valBuffer;
+    private int decodedIds[];
+
     private ValueConf vconf;
 
     public SparseMatrixRow(ValueConf vconf, int rowIndex, TIntFloatMap row) {
@@ -83,22 +88,36 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
                 4 * colVals.length +    // col indexes
                 2 * colVals.length      // col values
         );
-        createViewBuffers(colVals.length);
-
-        headerBuffer.put(0, HEADER);
-        headerBuffer.put(1, rowIndex);
-        headerBuffer.put(2, colVals.length);
-        idBuffer.put(colIds, 0, colIds.length);
-        valBuffer.put(colVals, 0, colVals.length);
+        buffer.putInt(HEADER);
+        buffer.putInt(rowIndex);
+        buffer.putInt(colVals.length);
+        for (int id : colIds) {
+            buffer.putInt(id);
+        }
+        for (short val : colVals) {
+            buffer.putShort(val);
+        }
+        buffer.rewind();
+        format = SparseMatrixFormat.DEFAULT;
+        locateColumns(colVals.length);
     }
 
-    private void createViewBuffers(int numColumns) {
-        buffer.position(0);
-        headerBuffer = buffer.asIntBuffer();
-        buffer.position(3 * 4);
-        idBuffer = buffer.asIntBuffer();
-        buffer.position(3 * 4 + numColumns * 4);
-        valBuffer = buffer.asShortBuffer();
+    private void locateColumns(int numColumns) {
+        numCols = numColumns;
+        if (format.isDefault()) {
+            idStart = 3 * 4;
+            valStart = 3 * 4 + numColumns * 4;
+            sizeInBytes = valStart + numColumns * 2;
+        } else {
+            valStart = SparseMatrixFormat.valueStart();
+            idStart = format.idStart(numColumns);
+            if (format.hasDeltaIds()) {
+                decodedIds = new int[numColumns];
+                sizeInBytes = SparseMatrixFormat.decodeDeltaIds(buffer, idStart, numColumns, decodedIds);
+            } else {
+                sizeInBytes = idStart + numColumns * 4;
+            }
+        }
     }
 
     /**
@@ -108,34 +127,56 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public SparseMatrixRow(ValueConf vconf, ByteBuffer buffer) {
         this.vconf = vconf;
         this.buffer = buffer;
-        if (this.buffer.getInt(0) != HEADER) {
+        this.format = SparseMatrixFormat.fromRowHeader(buffer.getInt(0));
+        if (format == null) {
             throw new IllegalArgumentException("Invalid header in byte buffer");
         }
-        createViewBuffers(buffer.getInt(8));
+        locateColumns(buffer.getInt(8));
     }
 
     @Override
     public final int getColIndex(int i) {
-        return idBuffer.get(i);
+        if (decodedIds != null) {
+            return decodedIds[i];
+        }
+        return buffer.getInt(idStart + 4 * i);
     }
 
     @Override
     public final float getColValue(int i) {
-        return vconf.unpack(valBuffer.get(i));
+        return vconf.unpack(getPackedColValue(i));
     }
 
     public final short getPackedColValue(int i) {
-        return valBuffer.get(i);
+        if (format.getValueBits() == 8) {
+            return SparseMatrixFormat.byteToPacked(buffer.get(valStart + i));
+        }
+        return buffer.getShort(valStart + 2 * i);
     }
 
     @Override
     public final int getRowIndex() {
-        return headerBuffer.get(1);
+        return buffer.getInt(4);
     }
 
     @Override
     public final int getNumCols() {
-        return headerBuffer.get(2);
+        return numCols;
+    }
+
+    /**
+     * @return The encoding of the row in its buffer.
+     */
+    public SparseMatrixFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return The number of bytes occupied by the row at the start of its buffer.
+     * For rows wrapped from a memory mapped file the buffer may extend past the row.
+     */
+    public int getSizeInBytes() {
+        return sizeInBytes;
     }
 
     public ByteBuffer getBuffer() {
@@ -30,7 +30,7 @@ public class SparseMatrixTransposer {
 
     public SparseMatrixTransposer(SparseMatrix m, File f, int bufferMb) throws IOException {
         this.matrix = m;
-        this.writer = new SparseMatrixWriter(f, m.getValueConf());
+        this.writer = new SparseMatrixWriter(f, m.getValueConf(), m.getFormat());
         this.bufferMb = bufferMb;
         this.numColsTransposed = 0;
     }
@@ -142,7 +142,7 @@ public class SparseMatrixTransposer {
      * Otherwise return (heapsize/5), but truncated to the range [350MB, 5000MB].
      * @return The default heapsize, in MBs.
      */
-    private static int defaultBufferSizeInMbs() {
+    public static int defaultBufferSizeInMbs() {
         int totalMem = (int) (Runtime.getRuntime().maxMemory() / (1024*1024));
         if (totalMem < 1000) {
             return totalMem / 3;
@@ -1,94 +1,313 @@
 package org.wikibrain.matrix;
 
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.list.array.TLongArrayList;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Writes a sparse matrix to a file.
+ *
+ * The writer is safe to use from many threads at once without locking. Each thread
+ * appends its rows to its own segment (a temporary file written through a direct buffer).
+ * When the writer is finished, the header is written to the output file and the segments
+ * are concatenated after it with FileChannel.transferTo.
+ *
+ * By default the header is the unsorted row index (FILE_HEADER for the default format,
+ * FILE_HEADER_V2 otherwise), which every reader understands. Pass sortedHeader = true to
+ * store the row index sorted by id (see SparseMatrix.FILE_HEADER_V3) so readers can binary
+ * search it directly from the memory mapped file. Readers that predate the V3 header
+ * cannot open these files.
+ */
 public class SparseMatrixWriter {
 
     public static final byte ROW_PADDING = Byte.MIN_VALUE;
 
+    /**
+     * Size of the direct buffer each segment uses to batch writes.
+     */
+    public static final int SEGMENT_BUFFER_SIZE = 1024 * 1024;
+
     private static final Logger LOG = Logger.getLogger(SparseMatrixWriter.class.getName());
 
     private File path;
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
-    private TIntArrayList rowIndexes = new TIntArrayList();
-    private File bodyPath;
-    private BufferedOutputStream body;
-    private long bodyOffset = 0;
     private ValueConf vconf;
+    private SparseMatrixFormat format;
+    private boolean sortedHeader;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final ThreadLocal<Segment> localSegment = new ThreadLocal<Segment>();
 
     public SparseMatrixWriter(File path, ValueConf conf) throws IOException {
-        this.path = path;
-        this.vconf = conf;
-        info("writing matrix to " + path);
+        this(path, conf, SparseMatrixFormat.DEFAULT);
+    }
 
-        // write tmp matrix file
-        this.bodyPath = File.createTempFile("matrix", null);
-        this.bodyPath.deleteOnExit();
-        this.body = new BufferedOutputStream(new FileOutputStream(bodyPath));
+    /**
+     * @param path Output path for the matrix.
+     * @param conf Value configuration for the rows.
+     * @param format Encoding for the rows. Rows in other encodings are re-encoded as they are written.
+     * @throws IOException
+     */
+    public SparseMatrixWriter(File path, ValueConf conf, SparseMatrixFormat format) throws IOException {
+        this(path, conf, format, false);
+    }
 
-        info("writing body to tmp file at " + bodyPath);
+    /**
+     * @param path Output path for the matrix.
+     * @param conf Value configuration for the rows.
+     * @param format Encoding for the rows. Rows in other encodings are re-encoded as they are written.
+     * @param sortedHeader If true, write a sorted V3 header, which older readers cannot open.
+     *                     Otherwise write the unsorted V1 (or V2, for non-default formats) header.
+     * @throws IOException
+     */
+    public SparseMatrixWriter(File path, ValueConf conf, SparseMatrixFormat format, boolean sortedHeader) throws IOException {
+        this.path = path;
+        this.vconf = conf;
+        this.format = format;
+        this.sortedHeader = sortedHeader;
+        info("writing matrix to " + path + " with " + format);
     }
 
-    public synchronized void writeRow(SparseMatrixRow row) throws IOException {
+    public void writeRow(SparseMatrixRow row) throws IOException {
         if (!row.getValueConf().almostEquals(vconf)) {
             throw new IllegalArgumentException("Value conf for row does not match the writer's value conf");
         }
-        row.getBuffer().rewind();
-        byte[] bytes = new byte[row.getBuffer().remaining()];
-        row.getBuffer().get(bytes, 0, bytes.length);
-
-        rowOffsets.put(row.getRowIndex(), bodyOffset);
-        rowIndexes.add(row.getRowIndex());
-
-        body.write(bytes);
-        bodyOffset += bytes.length;
+        getSegment().write(row);
+    }
 
-        // pad rows to 8 byte offsets to speed things up.
-        while (bodyOffset % 8 != 0) {
-            bodyOffset++;
-            body.write(ROW_PADDING);
+    private Segment getSegment() throws IOException {
+        Segment segment = localSegment.get();
+        if (segment == null) {
+            segment = new Segment(format);
+            synchronized (segments) {
+                segments.add(segment);
+            }
+            localSegment.set(segment);
+            info("writing segment for thread " + Thread.currentThread().getName() + " to tmp file at " + segment.file);
         }
+        return segment;
     }
 
     public void finish() throws IOException {
-        body.close();
-        info("wrote " + bodyOffset + " bytes in body of matrix");
+        int numRows = 0;
+        long bodySize = 0;
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                segment.flush();
+                numRows += segment.rowIds.size();
+                bodySize += segment.size;
+            }
+        }
+        info("wrote " + bodySize + " bytes in body of matrix in " + segments.size() + " segments");
 
         // write offset file
         info("generating header");
-        int sizeHeader = 16 + rowOffsets.size() * 12;
-        body = new BufferedOutputStream(new FileOutputStream(path));
-        body.write(intToBytes(SparseMatrix.FILE_HEADER));
-        body.write(floatToBytes(vconf.minScore));
-        body.write(floatToBytes(vconf.maxScore));
-        body.write(intToBytes(rowOffsets.size()));
-        for (int i = 0; i < rowIndexes.size(); i++) {
-            int rowIndex = rowIndexes.get(i);
-            long rowOffset = rowOffsets.get(rowIndex);
-            body.write(intToBytes(rowIndex));
-            body.write(longToBytes(rowOffset + sizeHeader));
-        }
-
-        InputStream r = new FileInputStream(bodyPath);
-
-        // append other file
-        IOUtils.copyLarge(r, body);
-        r.close();
-        body.flush();
-        body.close();
+        int rowIds[] = new int[numRows];
+        long rowOffsets[] = new long[numRows];
+        int n = 0;
+        long segmentOffset = 0;
+        for (Segment segment : segments) {
+            for (int i = 0; i < segment.rowIds.size(); i++) {
+                rowIds[n] = segment.rowIds.get(i);
+                rowOffsets[n] = segment.rowOffsets.get(i) + segmentOffset;
+                n++;
+            }
+            segmentOffset += segment.size;
+        }
+
+        FileChannel out = new FileOutputStream(path).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocateDirect(SEGMENT_BUFFER_SIZE);
+            if (sortedHeader) {
+                writeSortedHeader(header, out, rowIds, rowOffsets);
+            } else {
+                writeUnsortedHeader(header, out, rowIds, rowOffsets);
+            }
+            writeFully(out, header);
+
+            // append the segments
+            for (Segment segment : segments) {
+                segment.transferTo(out);
+            }
+        } finally {
+            out.close();
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+        }
 
         info("wrote " + FileUtils.sizeOf(path) + " bytes to " + path);
     }
 
+    /**
+     * Writes a V3 header with the row index sorted by id.
+     */
+    private void writeSortedHeader(ByteBuffer header, FileChannel out, int rowIds[], long rowOffsets[]) throws IOException {
+        int numRows = rowIds.length;
+
+        // pages align with row boundaries, so they don't depend on the size of the header
+        long pageStarts[] = MemoryMappedMatrix.getPageStarts(rowOffsets);
+        long sizeHeader = SparseMatrix.FILE_HEADER_V3_SIZE + 8L * pageStarts.length + 12L * numRows;
+
+        // sort the row index by id so readers can search it in place
+        long keys[] = new long[numRows];
+        for (int i = 0; i < numRows; i++) {
+            keys[i] = ((long) rowIds[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        header.putInt(SparseMatrix.FILE_HEADER_V3);
+        header.putInt(format.getFlags());
+        header.putFloat(vconf.minScore);
+        header.putFloat(vconf.maxScore);
+        header.putInt(numRows);
+        header.putInt(pageStarts.length);
+        for (long start : pageStarts) {
+            if (header.remaining() < 8) {
+                writeFully(out, header);
+            }
+            header.putLong(start + sizeHeader);
+        }
+        for (long key : keys) {
+            if (header.remaining() < 4) {
+                writeFully(out, header);
+            }
+            header.putInt((int) (key >> 32));
+        }
+        for (long key : keys) {
+            if (header.remaining() < 8) {
+                writeFully(out, header);
+            }
+            header.putLong(rowOffsets[(int) (key & 0xFFFFFFFFL)] + sizeHeader);
+        }
+    }
+
+    /**
+     * Writes a V1 (default format) or V2 header with the row index in file order.
+     */
+    private void writeUnsortedHeader(ByteBuffer header, FileChannel out, int rowIds[], long rowOffsets[]) throws IOException {
+        int numRows = rowIds.length;
+        long sizeHeader = (format.isDefault() ? 16 : 20) + 12L * numRows;
+        if (format.isDefault()) {
+            header.putInt(SparseMatrix.FILE_HEADER);
+        } else {
+            header.putInt(SparseMatrix.FILE_HEADER_V2);
+            header.putInt(format.getFlags());
+        }
+        header.putFloat(vconf.minScore);
+        header.putFloat(vconf.maxScore);
+        header.putInt(numRows);
+        for (int i = 0; i < numRows; i++) {
+            if (header.remaining() < 12) {
+                writeFully(out, header);
+            }
+            header.putInt(rowIds[i]);
+            header.putLong(rowOffsets[i] + sizeHeader);
+        }
+    }
+
+    /**
+     * Writes the contents of a buffer that is being filled to a channel, then clears it.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * The rows written by a single thread.
+     */
+    private static class Segment {
+        SparseMatrixFormat format;
+        ByteBuffer scratch = ByteBuffer.allocate(0);
+        File file;
+        FileChannel channel;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SEGMENT_BUFFER_SIZE);
+        TIntArrayList rowIds = new TIntArrayList();
+        TLongArrayList rowOffsets = new TLongArrayList();
+        long size = 0;
+
+        Segment(SparseMatrixFormat format) throws IOException {
+            this.format = format;
+            file = File.createTempFile("matrix", null);
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        void write(SparseMatrixRow row) throws IOException {
+            ByteBuffer src = encode(row);
+            int length = src.remaining();
+            int padding = (int) ((8 - (size + length) % 8) % 8);     // pad rows to 8 byte offsets to speed things up.
+
+            rowIds.add(row.getRowIndex());
+            rowOffsets.add(size);
+
+            if (buffer.remaining() < length + padding) {
+                writeFully(channel, buffer);
+            }
+            if (buffer.remaining() < length + padding) {
+                // larger than the buffer, so write it directly
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            } else {
+                buffer.put(src);
+            }
+            for (int i = 0; i < padding; i++) {
+                buffer.put(ROW_PADDING);
+            }
+            size += length + padding;
+        }
+
+        /**
+         * Returns a buffer containing the row in this segment's format.
+         */
+        private ByteBuffer encode(SparseMatrixRow row) {
+            if (row.getFormat().equals(format)) {
+                ByteBuffer src = row.getBuffer().duplicate();
+                src.rewind();
+                src.limit(row.getSizeInBytes());
+                return src;
+            }
+            int maxSize = format.maxRowSize(row.getNumCols());
+            if (scratch.capacity() < maxSize) {
+                scratch = ByteBuffer.allocate(Math.max(maxSize, scratch.capacity() * 2));
+            }
+            scratch.clear();
+            format.encode(scratch, row.getRowIndex(), row);
+            scratch.flip();
+            return scratch;
+        }
+
+        void flush() throws IOException {
+            writeFully(channel, buffer);
+        }
+
+        void transferTo(FileChannel out) throws IOException {
+            long pos = 0;
+            while (pos < size) {
+                pos += channel.transferTo(pos, size - pos, out);
+            }
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
     private void info(String message) {
         LOG.log(Level.INFO, "sparse matrix writer " + path + ": " + message);
     }
@@ -108,14 +327,7 @@ public class SparseMatrixWriter {
         return vconf;
     }
 
-    private static byte[] intToBytes(int i) {
-        return ByteBuffer.allocate(4).putInt(i).array();
-    }
-
-    private static byte[] longToBytes(long i) {
-        return ByteBuffer.allocate(8).putLong(i).array();
-    }
-    private static byte[] floatToBytes(float f) {
-        return ByteBuffer.allocate(4).putFloat(f).array();
+    public SparseMatrixFormat getFormat() {
+        return format;
     }
 }
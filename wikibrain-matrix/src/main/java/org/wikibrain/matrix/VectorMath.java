@@ -0,0 +1,49 @@
+package org.wikibrain.matrix;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Dot products over dense float vectors.
+ *
+ * The loops are unrolled with independent accumulators so the JIT can keep several
+ * multiply-adds in flight (and vectorize them when it is able to).
+ */
+public class VectorMath {
+
+    /**
+     * Returns the dot product of v1[offset1 ... offset1 + length) and v2[offset2 ... offset2 + length).
+     */
+    public static double dot(float v1[], int offset1, float v2[], int offset2, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int d = 0;
+        for (; d + 3 < length; d += 4) {
+            s0 += v1[offset1 + d] * v2[offset2 + d];
+            s1 += v1[offset1 + d + 1] * v2[offset2 + d + 1];
+            s2 += v1[offset1 + d + 2] * v2[offset2 + d + 2];
+            s3 += v1[offset1 + d + 3] * v2[offset2 + d + 3];
+        }
+        for (; d < length; d++) {
+            s0 += v1[offset1 + d] * v2[offset2 + d];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Returns the dot product of v1[offset1 ... offset1 + length), read with absolute gets,
+     * and v2[0 ... length).
+     */
+    public static double dot(FloatBuffer v1, int offset1, float v2[], int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int d = 0;
+        for (; d + 3 < length; d += 4) {
+            s0 += v1.get(offset1 + d) * v2[d];
+            s1 += v1.get(offset1 + d + 1) * v2[d + 1];
+            s2 += v1.get(offset1 + d + 2) * v2[d + 2];
+            s3 += v1.get(offset1 + d + 3) * v2[d + 3];
+        }
+        for (; d < length; d++) {
+            s0 += v1.get(offset1 + d) * v2[d];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
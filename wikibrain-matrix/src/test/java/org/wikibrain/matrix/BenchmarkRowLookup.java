@@ -0,0 +1,123 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.map.hash.TIntLongHashMap;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the cost of locating a row in a memory mapped matrix using the sorted row id
+ * and page index arrays against the previous approach (a hash map of row offsets followed
+ * by a linear scan over every page).
+ *
+ * The benchmark simulates a matrix split into many 1GB pages so the linear scan pays the
+ * same cost it would on a large feature or transpose matrix.
+ *
+ * usage: java org.wikibrain.matrix.BenchmarkRowLookup {num_rows} {num_pages} {num_lookups}
+ */
+public class BenchmarkRowLookup {
+    public static void main(String args[]) throws IOException {
+        int numRows = args.length > 0 ? Integer.valueOf(args[0]) : 1000000;
+        int numPages = args.length > 1 ? Integer.valueOf(args[1]) : 40;
+        int numLookups = args.length > 2 ? Integer.valueOf(args[2]) : 10000000;
+
+        Random random = new Random();
+        int rowIds[] = TestUtils.pickIds(numRows, numRows * 3);
+        long rowOffsets[] = new long[numRows];
+        long pageSize = MemoryMappedMatrix.PAGE_SIZE;
+        long rowSize = pageSize * numPages / numRows;
+        for (int i = 0; i < numRows; i++) {
+            rowOffsets[i] = rowSize * i;
+        }
+        int queries[] = new int[numLookups];
+        for (int i = 0; i < numLookups; i++) {
+            queries[i] = rowIds[random.nextInt(numRows)];
+        }
+
+        LegacyLookup legacy = new LegacyLookup(rowIds, rowOffsets, numPages, pageSize);
+        IndexedLookup indexed = new IndexedLookup(rowIds, rowOffsets, numPages, pageSize);
+
+        // warm up both implementations before timing them
+        for (int round = 0; round < 3; round++) {
+            long checksum1 = 0, checksum2 = 0;
+            long t1 = System.nanoTime();
+            for (int id : queries) {
+                checksum1 += legacy.findPage(id);
+            }
+            long t2 = System.nanoTime();
+            for (int id : queries) {
+                checksum2 += indexed.findPage(id);
+            }
+            long t3 = System.nanoTime();
+            if (checksum1 != checksum2) {
+                throw new IllegalStateException("lookups disagree: " + checksum1 + " vs " + checksum2);
+            }
+            System.err.println("round " + round + ":"
+                    + " hash map + page scan " + 1.0 * (t2 - t1) / numLookups + " ns per lookup,"
+                    + " binary search + page index " + 1.0 * (t3 - t2) / numLookups + " ns per lookup");
+        }
+    }
+
+    /**
+     * Mirrors the original MemoryMappedMatrix lookup.
+     */
+    static class LegacyLookup {
+        TIntLongHashMap offsets = new TIntLongHashMap();
+        long starts[];
+        long ends[];
+
+        LegacyLookup(int rowIds[], long rowOffsets[], int numPages, long pageSize) {
+            for (int i = 0; i < rowIds.length; i++) {
+                offsets.put(rowIds[i], rowOffsets[i]);
+            }
+            starts = new long[numPages];
+            ends = new long[numPages];
+            for (int i = 0; i < numPages; i++) {
+                starts[i] = i * pageSize;
+                ends[i] = (i + 1) * pageSize;
+            }
+        }
+
+        int findPage(int rowId) {
+            if (!offsets.containsKey(rowId)) {
+                return -1;
+            }
+            long offset = offsets.get(rowId);
+            int page = -1;
+            for (int i = 0; i < starts.length; i++) {
+                if (starts[i] <= offset && offset < ends[i]) {
+                    page = i;
+                }
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Mirrors the sorted row id / page index lookup in MemoryMappedMatrix.
+     */
+    static class IndexedLookup {
+        int sortedRowIds[];
+        int sortedPages[];
+
+        IndexedLookup(int rowIds[], long rowOffsets[], int numPages, long pageSize) {
+            long keys[] = new long[rowIds.length];
+            for (int i = 0; i < rowIds.length; i++) {
+                keys[i] = ((long) rowIds[i] << 32) | i;
+            }
+            java.util.Arrays.sort(keys);
+            sortedRowIds = new int[rowIds.length];
+            sortedPages = new int[rowIds.length];
+            for (int i = 0; i < keys.length; i++) {
+                int j = (int) (keys[i] & 0xFFFFFFFFL);
+                sortedRowIds[i] = rowIds[j];
+                sortedPages[i] = (int) (rowOffsets[j] / pageSize);
+            }
+        }
+
+        int findPage(int rowId) {
+            int i = java.util.Arrays.binarySearch(sortedRowIds, rowId);
+            return (i < 0) ? -1 : sortedPages[i];
+        }
+    }
+}
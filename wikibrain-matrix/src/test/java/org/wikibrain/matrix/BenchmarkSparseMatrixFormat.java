@@ -0,0 +1,99 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the file size and read speed of each SparseMatrixFormat on a synthetic
+ * matrix whose column ids follow a Zipfian distribution (as link and feature matrices do).
+ * Column ids within a row are sorted, as they are in transpose and link matrices.
+ *
+ * usage: java org.wikibrain.matrix.BenchmarkSparseMatrixFormat {num_rows} {num_cols} {max_row_length}
+ */
+public class BenchmarkSparseMatrixFormat {
+    public static void main(String args[]) throws IOException {
+        int numRows = args.length > 0 ? Integer.valueOf(args[0]) : 200000;
+        int numCols = args.length > 1 ? Integer.valueOf(args[1]) : 1000000;
+        int maxRowLength = args.length > 2 ? Integer.valueOf(args[2]) : 500;
+
+        File src = File.createTempFile("matrix", null);
+        src.deleteOnExit();
+        writeZipfianMatrix(src, numRows, numCols, maxRowLength);
+
+        SparseMatrix srcMatrix = new SparseMatrix(src);
+        SparseMatrixFormat formats[] = {
+                SparseMatrixFormat.DEFAULT,
+                SparseMatrixFormat.DELTA_IDS,
+                new SparseMatrixFormat(false, 8),
+                SparseMatrixFormat.COMPACT,
+        };
+        for (SparseMatrixFormat format : formats) {
+            File dest = File.createTempFile("matrix", null);
+            dest.deleteOnExit();
+            long t1 = System.currentTimeMillis();
+            SparseMatrixWriter writer = new SparseMatrixWriter(dest, srcMatrix.getValueConf(), format);
+            for (SparseMatrixRow row : srcMatrix) {
+                writer.writeRow(row);
+            }
+            writer.finish();
+            long t2 = System.currentTimeMillis();
+
+            SparseMatrix m = new SparseMatrix(dest);
+            SparseMatrixCursor cursor = m.openCursor();
+            int rowIds[] = m.getRowIds();
+            double sum = 0;
+            long t3 = System.currentTimeMillis();
+            for (int round = 0; round < 3; round++) {
+                for (int id : rowIds) {
+                    cursor.seek(id);
+                    for (int i = 0; i < cursor.getNumCols(); i++) {
+                        sum += cursor.getColIndex(i) * cursor.getColValue(i);
+                    }
+                }
+            }
+            long t4 = System.currentTimeMillis();
+            m.close();
+
+            System.err.println(format
+                    + ": size=" + FileUtils.sizeOf(dest) / (1024 * 1024) + "MB"
+                    + " write=" + (t2 - t1) + "ms"
+                    + " scan=" + (t4 - t3) / 3 + "ms"
+                    + " (checksum " + sum + ")");
+        }
+    }
+
+    private static void writeZipfianMatrix(File file, int numRows, int numCols, int maxRowLength) throws IOException {
+        Random random = new Random(0);
+
+        // cumulative zipfian distribution over column ids (exponent 1.0)
+        double cdf[] = new double[numCols];
+        double total = 0.0;
+        for (int i = 0; i < numCols; i++) {
+            total += 1.0 / (i + 1);
+            cdf[i] = total;
+        }
+
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, new ValueConf());
+        for (int rowId = 1; rowId <= numRows; rowId++) {
+            int length = 1 + random.nextInt(maxRowLength);
+            TIntHashSet ids = new TIntHashSet();
+            while (ids.size() < length) {
+                int i = Arrays.binarySearch(cdf, random.nextDouble() * total);
+                ids.add((i < 0) ? -i - 1 : i);
+            }
+            int colIds[] = ids.toArray();
+            Arrays.sort(colIds);
+            float colVals[] = new float[colIds.length];
+            for (int i = 0; i < colVals.length; i++) {
+                colVals[i] = random.nextFloat();
+            }
+            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), rowId, colIds, colVals));
+        }
+        writer.finish();
+    }
+}
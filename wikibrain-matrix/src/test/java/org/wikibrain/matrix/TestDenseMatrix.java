@@ -65,6 +65,17 @@ public class TestDenseMatrix {
     }
 
 
+    @Test
+    public void testWarmup() throws Exception {
+        File tmp = File.createTempFile("matrix", null);
+        DenseMatrixWriter.write(tmp, srcRows.iterator());
+        DenseMatrix m = new DenseMatrix(tmp);
+        MatrixWarmer warmer = m.getWarmer();
+        assertTrue(warmer.warmRows(new int[] { -1, srcRows.get(0).getRowIndex() }).get() > 0);
+        assertTrue(warmer.warmLongestRows(10).get() > 0);
+        verifyIsSourceMatrix(m);
+    }
+
     private void verifyIsSourceMatrix(Matrix m) throws IOException {
         int j = 0;
         for (DenseMatrixRow srcRow : srcRows) {
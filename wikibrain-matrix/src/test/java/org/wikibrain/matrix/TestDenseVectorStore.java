@@ -0,0 +1,56 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDenseVectorStore {
+    private static final int NUM_VECTORS = 500;
+    private static final int DIMENSIONS = 37;   // not a multiple of the unrolling
+
+    @Test
+    public void testReadWrite() throws IOException {
+        Random random = new Random(1);
+        TIntObjectMap<float[]> vectors = new TIntObjectHashMap<float[]>();
+        while (vectors.size() < NUM_VECTORS) {
+            float vector[] = new float[DIMENSIONS];
+            for (int i = 0; i < DIMENSIONS; i++) {
+                vector[i] = random.nextFloat() - 0.5f;
+            }
+            vectors.put(random.nextInt(NUM_VECTORS * 10), vector);
+        }
+        File tmp = File.createTempFile("matrix", null);
+        DenseVectorStore.write(tmp, DIMENSIONS, vectors);
+
+        DenseVectorStore store = new DenseVectorStore(tmp);
+        assertEquals(NUM_VECTORS, store.size());
+        assertEquals(DIMENSIONS, store.getDimensions());
+        float query[] = vectors.get(vectors.keys()[0]);
+        for (int id : vectors.keys()) {
+            float expected[] = vectors.get(id);
+            float actual[] = store.getVector(id);
+            double dot = 0.0;
+            for (int i = 0; i < DIMENSIONS; i++) {
+                assertEquals(expected[i], actual[i], 0.0);
+                dot += expected[i] * query[i];
+            }
+            int index = store.indexOf(id);
+            assertEquals(id, store.getId(index));
+            assertEquals(dot, store.dot(index, query), 0.0001);
+        }
+        for (int i = 1; i < store.size(); i++) {
+            assertTrue(store.getId(i - 1) < store.getId(i));
+        }
+        assertNull(store.getVector(-1));
+        store.close();
+        tmp.delete();
+    }
+}
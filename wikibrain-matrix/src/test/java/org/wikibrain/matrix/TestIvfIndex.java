@@ -0,0 +1,127 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestIvfIndex {
+    private static final int NUM_VECTORS = 2000;
+    private static final int DIMENSIONS = 16;
+    private static final int NUM_CLUSTERS = 20;
+
+    @Test
+    public void testSearch() throws Exception {
+        Random random = new Random(42);
+        float centers[][] = new float[NUM_CLUSTERS][DIMENSIONS];
+        for (float center[] : centers) {
+            for (int d = 0; d < DIMENSIONS; d++) {
+                center[d] = random.nextFloat() * 2 - 1;
+            }
+        }
+        TIntObjectMap<float[]> vectors = new TIntObjectHashMap<float[]>();
+        for (int id = 0; id < NUM_VECTORS; id++) {
+            float center[] = centers[random.nextInt(NUM_CLUSTERS)];
+            float vector[] = new float[DIMENSIONS];
+            for (int d = 0; d < DIMENSIONS; d++) {
+                vector[d] = center[d] + 0.2f * (float) random.nextGaussian();
+            }
+            vectors.put(id * 2 + 1, vector);
+        }
+        File tmp = File.createTempFile("matrix", null);
+        DenseVectorStore.write(tmp, DIMENSIONS, vectors);
+        DenseVectorStore store = new DenseVectorStore(tmp);
+        IvfIndex index = IvfIndex.build(store, NUM_CLUSTERS, 5, 2);
+
+        int k = 10;
+        int hits = 0;
+        for (int q = 0; q < 50; q++) {
+            float query[] = vectors.get(q * 2 + 1);
+            ScoreHeap exact = bruteForce(store, query, k);
+
+            // probing every list is an exact search
+            ScoreHeap all = index.search(query, k, index.getNumLists(), null);
+            assertEquals(k, all.size());
+            for (int i = 0; i < k; i++) {
+                assertEquals(exact.getScore(i), all.getScore(i), 0.0001);
+                if (i > 0) {
+                    assertTrue(all.getScore(i - 1) >= all.getScore(i));
+                }
+            }
+
+            ScoreHeap approx = index.search(query, k, 3, null);
+            TIntHashSet exactIds = new TIntHashSet();
+            for (int i = 0; i < exact.size(); i++) {
+                exactIds.add(exact.getKey(i));
+            }
+            for (int i = 0; i < approx.size(); i++) {
+                if (exactIds.contains(approx.getKey(i))) hits++;
+            }
+        }
+        assertTrue(hits >= 0.8 * 500);
+
+        // valid ids restrict the results
+        ScoreHeap restricted = index.search(vectors.get(1), k, index.getNumLists(), new TIntHashSet(new int[] { 1, 3, 4 }));
+        assertEquals(2, restricted.size());
+
+        // round trip
+        File indexFile = File.createTempFile("matrix", null);
+        index.write(indexFile);
+        IvfIndex index2 = IvfIndex.read(store, indexFile);
+        ScoreHeap r1 = index.search(vectors.get(7), k, 4, null);
+        ScoreHeap r2 = index2.search(vectors.get(7), k, 4, null);
+        assertEquals(r1.size(), r2.size());
+        for (int i = 0; i < r1.size(); i++) {
+            assertEquals(r1.getKey(i), r2.getKey(i));
+        }
+        assertTrue(IvfIndex.isCurrent(store, indexFile));
+        store.close();
+
+        // retrained vectors with the same shape make the index stale
+        long modified = tmp.lastModified();
+        vectors.put(1, vectors.get(3));
+        DenseVectorStore.write(tmp, DIMENSIONS, vectors);
+        tmp.setLastModified(modified + 2000);
+        DenseVectorStore retrained = new DenseVectorStore(tmp);
+        assertEquals(store.size(), retrained.size());
+        assertFalse(IvfIndex.isCurrent(retrained, indexFile));
+        try {
+            IvfIndex.read(retrained, indexFile);
+            fail("read a stale index");
+        } catch (IOException e) {
+            // expected
+        }
+        retrained.close();
+        tmp.delete();
+        indexFile.delete();
+    }
+
+    private ScoreHeap bruteForce(DenseVectorStore store, float query[], int k) {
+        ScoreHeap result = new ScoreHeap(k);
+        float vector[] = new float[DIMENSIONS];
+        double qn = Math.sqrt(dot(query, query));
+        for (int i = 0; i < store.size(); i++) {
+            store.copyVector(i, vector);
+            result.offer(store.getId(i), dot(vector, query) / Math.sqrt(dot(vector, vector)) / qn);
+        }
+        result.sortDescending();
+        return result;
+    }
+
+    private double dot(float v1[], float v2[]) {
+        double sum = 0.0;
+        for (int i = 0; i < v1.length; i++) {
+            sum += v1[i] * v2[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,42 @@
+package org.wikibrain.matrix;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestScoreHeap {
+
+    @Test
+    public void testTopScores() {
+        Random random = new Random(0);
+        ScoreHeap heap = new ScoreHeap(10);
+        for (int trial = 0; trial < 20; trial++) {
+            heap.clear();
+            int n = random.nextInt(30);
+            double scores[] = new double[n];
+            for (int i = 0; i < n; i++) {
+                scores[i] = random.nextGaussian();
+                heap.offer(i, scores[i]);
+            }
+            heap.sortDescending();
+            double sorted[] = Arrays.copyOf(scores, n);
+            Arrays.sort(sorted);
+            assertEquals(Math.min(10, n), heap.size());
+            for (int i = 0; i < heap.size(); i++) {
+                assertEquals(sorted[n - 1 - i], heap.getScore(i), 0.0);
+                assertEquals(scores[heap.getKey(i)], heap.getScore(i), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        ScoreHeap heap = new ScoreHeap(0);
+        heap.offer(1, 1.0);
+        heap.sortDescending();
+        assertEquals(0, heap.size());
+    }
+}
@@ -3,12 +3,22 @@ package org.wikibrain.matrix;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class TestSparseMatrix {
@@ -28,6 +38,35 @@ public class TestSparseMatrix {
         File tmp = File.createTempFile("matrix", null);
         SparseMatrixWriter.write(tmp, srcRows.iterator());
     }
+    @Test
+    public void testParallelWrite() throws Exception {
+        File tmp = File.createTempFile("matrix", null);
+        final SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf());
+        Thread threads[] = new Thread[4];
+        final AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = next.getAndIncrement(); j < srcRows.size(); j = next.getAndIncrement()) {
+                            writer.writeRow(srcRows.get(j));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        writer.finish();
+        Matrix m = new SparseMatrix(tmp);
+        assertEquals(NUM_ROWS, m.getNumRows());
+        verifyIsSourceMatrix(m);
+    }
+
     @Test
     public void testReadWrite() throws IOException {
         File tmp = File.createTempFile("matrix", null);
@@ -45,6 +84,256 @@ public class TestSparseMatrix {
         assertEquals(1000, m1.getNumRows());
     }
 
+    @Test
+    public void testFormats() throws IOException {
+        SparseMatrixFormat formats[] = {
+                SparseMatrixFormat.DEFAULT,
+                SparseMatrixFormat.DELTA_IDS,
+                SparseMatrixFormat.COMPACT,
+                new SparseMatrixFormat(false, 8),
+        };
+        for (SparseMatrixFormat format : formats) {
+            File tmp = File.createTempFile("matrix", null);
+            SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), format);
+            for (SparseMatrixRow row : srcRows) {
+                writer.writeRow(row);
+            }
+            writer.finish();
+            SparseMatrix m = new SparseMatrix(tmp);
+            assertEquals(format, m.getFormat());
+            verifyIsSourceMatrix(m);
+
+            SparseMatrixCursor cursor = m.openCursor();
+            for (SparseMatrixRow srcRow : srcRows) {
+                assertTrue(cursor.seek(srcRow.getRowIndex()));
+                assertEquals(srcRow.getNumCols(), cursor.getNumCols());
+                for (int i = 0; i < cursor.getNumCols(); i++) {
+                    assertEquals(srcRow.getColIndex(i), cursor.getColIndex(i));
+                    assertEquals(srcRow.getColValue(i), cursor.getColValue(i), 0.01);
+                }
+            }
+
+            // Rewrite in the default format and transpose twice
+            File tmp2 = File.createTempFile("matrix", null);
+            File tmp3 = File.createTempFile("matrix", null);
+            SparseMatrixWriter.write(tmp2, m.iterator());
+            if (format.isDefault()) {
+                assertEquals(tmp.length(), tmp2.length());
+            }
+            new SparseMatrixTransposer(m, tmp3, 1).transpose();
+            SparseMatrix m3 = new SparseMatrix(tmp3);
+            assertEquals(format, m3.getFormat());
+            File tmp4 = File.createTempFile("matrix", null);
+            new ExternalSparseMatrixTransposer(m3, tmp4, 1, 2).transpose();
+            verifyIsSourceMatrixUnordered(new SparseMatrix(tmp4), .01);
+            verifyIsSourceMatrix(new SparseMatrix(tmp2));
+        }
+    }
+
+    @Test
+    public void testLegacyHeader() throws IOException {
+        // write the rows in reverse order behind an unsorted V1 header
+        int headerSize = 16 + 12 * srcRows.size();
+        int bodySize = 0;
+        for (SparseMatrixRow row : srcRows) {
+            bodySize += row.getSizeInBytes();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + bodySize);
+        buffer.putInt(SparseMatrix.FILE_HEADER);
+        buffer.putFloat(srcRows.get(0).getValueConf().minScore);
+        buffer.putFloat(srcRows.get(0).getValueConf().maxScore);
+        buffer.putInt(srcRows.size());
+        long offset = headerSize;
+        for (int i = srcRows.size() - 1; i >= 0; i--) {
+            buffer.putInt(srcRows.get(i).getRowIndex());
+            buffer.putLong(offset);
+            offset += srcRows.get(i).getSizeInBytes();
+        }
+        for (int i = srcRows.size() - 1; i >= 0; i--) {
+            ByteBuffer row = srcRows.get(i).getBuffer().duplicate();
+            row.clear().limit(srcRows.get(i).getSizeInBytes());
+            buffer.put(row);
+        }
+        File tmp = File.createTempFile("matrix", null);
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(buffer.array());
+        out.close();
+
+        SparseMatrix m = new SparseMatrix(tmp);
+        assertEquals(srcRows.size(), m.getNumRows());
+        for (SparseMatrixRow srcRow : srcRows) {
+            SparseMatrixRow row = m.getRow(srcRow.getRowIndex());
+            assertEquals(srcRow.getNumCols(), row.getNumCols());
+            for (int i = 0; i < row.getNumCols(); i++) {
+                assertEquals(srcRow.getColIndex(i), row.getColIndex(i));
+                assertEquals(srcRow.getPackedColValue(i), row.getPackedColValue(i));
+            }
+        }
+        m.close();
+    }
+
+    @Test
+    public void testUnsortedHeaderWriter() throws IOException {
+        for (SparseMatrixFormat format : new SparseMatrixFormat[] { SparseMatrixFormat.DEFAULT, SparseMatrixFormat.COMPACT }) {
+            File tmp = File.createTempFile("matrix", null);
+            SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), format, false);
+            for (SparseMatrixRow row : srcRows) {
+                writer.writeRow(row);
+            }
+            writer.finish();
+            DataInputStream in = new DataInputStream(new FileInputStream(tmp));
+            int magic = in.readInt();
+            in.close();
+            assertEquals(format.isDefault() ? SparseMatrix.FILE_HEADER : SparseMatrix.FILE_HEADER_V2, magic);
+            SparseMatrix m = new SparseMatrix(tmp);
+            assertEquals(format, m.getFormat());
+            assertEquals(srcRows.size(), m.getNumRows());
+            verifyIsSourceMatrix(m);
+            m.close();
+        }
+    }
+
+    @Test
+    public void testDefaultHeaderKeepsFileOrder() throws IOException {
+        List<SparseMatrixRow> shuffled = new ArrayList<SparseMatrixRow>(srcRows);
+        Collections.shuffle(shuffled, new Random(0));
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf());
+        for (SparseMatrixRow row : shuffled) {
+            writer.writeRow(row);
+        }
+        writer.finish();
+        DataInputStream in = new DataInputStream(new FileInputStream(tmp));
+        assertEquals(SparseMatrix.FILE_HEADER, in.readInt());
+        in.close();
+
+        SparseMatrix m = new SparseMatrix(tmp);
+        int ids[] = m.getRowIds();
+        assertEquals(shuffled.size(), ids.length);
+        int n = 0;
+        for (SparseMatrixRow row : m) {
+            assertEquals(shuffled.get(n).getRowIndex(), ids[n]);
+            assertEquals(ids[n], row.getRowIndex());
+            n++;
+        }
+        verifyIsSourceMatrix(m);
+        m.close();
+    }
+
+    @Test
+    public void testSortedHeader() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), SparseMatrixFormat.DEFAULT, true);
+        for (SparseMatrixRow row : srcRows) {
+            writer.writeRow(row);
+        }
+        writer.finish();
+        SparseMatrix m = new SparseMatrix(tmp);
+        int ids[] = m.getRowIds();
+        assertEquals(srcRows.size(), ids.length);
+        for (int i = 1; i < ids.length; i++) {
+            assertTrue(ids[i - 1] < ids[i]);
+        }
+        int n = 0;
+        for (SparseMatrixRow row : m) {
+            assertEquals(ids[n++], row.getRowIndex());
+        }
+        assertEquals(ids.length, n);
+        m.close();
+    }
+
+    @Test
+    public void testMissingRow() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        Matrix m = new SparseMatrix(tmp);
+        assertNull(m.getRow(-1));
+        assertNull(m.getRow(NUM_ROWS * 2 + 1));
+    }
+
+    @Test
+    public void testWarmup() throws Exception {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), SparseMatrixFormat.DEFAULT, true);
+        for (SparseMatrixRow row : srcRows) {
+            writer.writeRow(row);
+        }
+        writer.finish();
+        SparseMatrix m = new SparseMatrix(tmp);
+        MatrixWarmer warmer = m.getWarmer();
+        long loaded = warmer.loadAll().get();
+        assertTrue(loaded > 0 && loaded <= tmp.length());
+        assertEquals(loaded, (long) warmer.warmAll().get());
+        assertTrue(warmer.warmLongestRows(10).get() > 0);
+        assertTrue(warmer.warmRows(new int[] { -1, srcRows.get(0).getRowIndex() }).get() > 0);
+        double resident = warmer.getResidentFraction();
+        assertTrue(resident >= 0.0 && resident <= 1.0);
+        for (SparseMatrixRow srcRow : srcRows) {
+            assertEquals(srcRow.getNumCols(), m.getRow(srcRow.getRowIndex()).getNumCols());
+        }
+        m.close();
+    }
+
+    @Test
+    public void testWarmupLegacyHeader() throws Exception {
+        // V1 headers are sorted onto the heap, which must leave the index readable by the warmer
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf(), SparseMatrixFormat.DEFAULT, false);
+        for (SparseMatrixRow row : srcRows) {
+            writer.writeRow(row);
+        }
+        writer.finish();
+        SparseMatrix m = new SparseMatrix(tmp);
+        MatrixWarmer warmer = m.getWarmer();
+        assertTrue(warmer.warmRows(new int[] { srcRows.get(0).getRowIndex(), srcRows.get(1).getRowIndex() }).get() > 0);
+        assertTrue(warmer.warmLongestRows(10).get() > 0);
+        verifyIsSourceMatrix(m);
+        m.close();
+    }
+
+    @Test
+    public void testWarmupShuffledRows() throws Exception {
+        // rows whose offsets are not in id order must still be sized correctly
+        List<SparseMatrixRow> shuffled = new ArrayList<SparseMatrixRow>(srcRows);
+        Collections.shuffle(shuffled, new Random(1));
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf());
+        for (SparseMatrixRow row : shuffled) {
+            writer.writeRow(row);
+        }
+        writer.finish();
+        MatrixWarmer.configure(MatrixWarmer.LoadPolicy.LONGEST_ROWS, NUM_ROWS, 2);
+        try {
+            SparseMatrix m = new SparseMatrix(tmp);
+            long bodySize = tmp.length() - (16 + 12 * NUM_ROWS);
+            assertEquals(bodySize, (long) m.getWarmer().warmLongestRows(NUM_ROWS).get());
+            verifyIsSourceMatrix(m);
+            m.close();
+        } finally {
+            MatrixWarmer.configure(MatrixWarmer.LoadPolicy.LAZY, 100000, Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    @Test
+    public void testCursor() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        SparseMatrix m = new SparseMatrix(tmp);
+        SparseMatrixCursor cursor = m.openCursor();
+        for (SparseMatrixRow srcRow : srcRows) {
+            assertTrue(cursor.seek(srcRow.getRowIndex()));
+            assertEquals(srcRow.getRowIndex(), cursor.getRowIndex());
+            assertEquals(srcRow.getNumCols(), cursor.getNumCols());
+            for (int i = 0; i < cursor.getNumCols(); i++) {
+                assertEquals(srcRow.getColIndex(i), cursor.getColIndex(i));
+                assertEquals(srcRow.getPackedColValue(i), cursor.getPackedColValue(i));
+                assertEquals(srcRow.getColValue(i), cursor.getColValue(i), 0.01);
+            }
+        }
+        assertFalse(cursor.seek(-1));
+        assertEquals(0, cursor.getNumCols());
+    }
+
     @Test
     public void testTranspose() throws IOException {
         for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
@@ -63,6 +352,23 @@ public class TestSparseMatrix {
     }
 
 
+    @Test
+    public void testExternalTranspose() throws IOException {
+        for (int numThreads : new int[] { 1, 3 }) {
+            File tmp1 = File.createTempFile("matrix", null);
+            File tmp2 = File.createTempFile("matrix", null);
+            File tmp3 = File.createTempFile("matrix", null);
+            SparseMatrixWriter.write(tmp1, srcRows.iterator());
+            SparseMatrix m = new SparseMatrix(tmp1);
+            new ExternalSparseMatrixTransposer(m, tmp2, 1, numThreads).transpose();
+            SparseMatrix m2 = new SparseMatrix(tmp2);
+            new ExternalSparseMatrixTransposer(m2, tmp3, 1, numThreads).transpose();
+            Matrix m3 = new SparseMatrix(tmp3);
+            assertEquals(NUM_ROWS, m3.getNumRows());
+            verifyIsSourceMatrixUnordered(m3, .001);
+        }
+    }
+
     @Test
     public void testRows() throws IOException {
         for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
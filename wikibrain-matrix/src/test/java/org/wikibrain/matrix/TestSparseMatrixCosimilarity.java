@@ -0,0 +1,67 @@
+package org.wikibrain.matrix;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSparseMatrixCosimilarity {
+
+    @Test
+    public void testTopK() throws IOException {
+        SparseMatrix features = TestUtils.createSparseTestMatrix(300, 40, false);
+        File transposePath = File.createTempFile("matrix", null);
+        transposePath.deleteOnExit();
+        new SparseMatrixTransposer(features, transposePath, 1).transpose();
+        SparseMatrix transpose = new SparseMatrix(transposePath);
+
+        int rowIds[] = features.getRowIds();
+        int colIds[] = Arrays.copyOf(rowIds, rowIds.length / 2);
+        Set<Integer> validCols = new HashSet<Integer>();
+        for (int id : colIds) validCols.add(id);
+
+        File out = File.createTempFile("matrix", null);
+        out.deleteOnExit();
+        SparseMatrixWriter writer = new SparseMatrixWriter(out, new ValueConf(-1.0f, 1.0f));
+        new SparseMatrixCosimilarity(features, transpose)
+                .setNumThreads(3)
+                .setBlockSize(7)
+                .write(writer, rowIds, colIds, 10);
+        writer.finish();
+        SparseMatrix cosim = new SparseMatrix(out);
+
+        for (int id1 : rowIds) {
+            // brute force cosine similarities against the valid columns
+            Map<Integer, Float> v1 = features.getRow(id1).asMap();
+            List<Double> expected = new ArrayList<Double>();
+            for (int id2 : colIds) {
+                Map<Integer, Float> v2 = features.getRow(id2).asMap();
+                double dot = 0.0;
+                for (int k : v1.keySet()) {
+                    if (v2.containsKey(k)) dot += v1.get(k) * v2.get(k);
+                }
+                if (dot > 0) {
+                    expected.add(dot / (features.getRow(id1).getNorm() * features.getRow(id2).getNorm()));
+                }
+            }
+            Collections.sort(expected, Collections.reverseOrder());
+            MatrixRow row = cosim.getRow(id1);
+            if (expected.isEmpty()) {
+                assertTrue(row == null);
+                continue;
+            }
+            assertEquals(Math.min(10, expected.size()), row.getNumCols());
+            for (int i = 0; i < row.getNumCols(); i++) {
+                assertTrue(validCols.contains(row.getColIndex(i)));
+                assertEquals(expected.get(i), row.getColValue(i), 0.01);
+                if (i > 0) {
+                    assertTrue(row.getColValue(i - 1) >= row.getColValue(i));
+                }
+            }
+        }
+    }
+}
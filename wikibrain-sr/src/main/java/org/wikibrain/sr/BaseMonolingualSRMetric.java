@@ -26,6 +26,7 @@ import org.wikibrain.sr.disambig.Disambiguator;
 import org.wikibrain.sr.disambig.SimilarityDisambiguator;
 import org.wikibrain.sr.normalize.IdentityNormalizer;
 import org.wikibrain.sr.normalize.Normalizer;
+import org.wikibrain.sr.utils.BatchSimilarity;
 import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SrNormalizers;
 import org.wikibrain.utils.ParallelForEach;
@@ -289,6 +290,20 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
         return mostSimilar(similar.getId(), maxResults,validIds);
     }
 
+    /**
+     * Scores the pairs in parallel by calling similarity(int, int, boolean).
+     * Subclasses that can share work between pairs with a common page should override it.
+     */
+    @Override
+    public SRResult[] similarity(int[] pageIds1, int[] pageIds2) throws DaoException {
+        return BatchSimilarity.score(pageIds1, pageIds2, new BatchSimilarity.Scorer() {
+            @Override
+            public SRResult score(int pageId1, int pageId2) throws Exception {
+                return similarity(pageId1, pageId2, false);
+            }
+        });
+    }
+
     @Override
     public double[][] cosimilarity(int[] wpRowIds, int[] wpColIds) throws DaoException {
         double[][] cos = new double[wpRowIds.length][wpColIds.length];
@@ -426,13 +441,33 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
 
 
         SRConfig config = getConfig();
-        final AtomicInteger idCounter = new AtomicInteger();
-        final AtomicLong cellCounter = new AtomicLong();
         ValueConf vconf = new ValueConf(config.minScore, config.maxScore);
 
         final SparseMatrixWriter writer = new SparseMatrixWriter(getMostSimilarMatrixPath(), vconf);
-        final TIntSet colIdSet = colIds == null ? null : new TIntHashSet(colIds);
+        long numCells = writeMostSimilarRows(writer, maxHits, rowIds, colIds);
 
+        LOG.info("wrote " + numCells + " non-zero similarity cells");
+        writer.finish();
+        mostSimilarCache = new SparseMatrix(getMostSimilarMatrixPath());
+    }
+
+    /**
+     * Writes the top-k results for each row id to the most similar cache writer.
+     * The default implementation calls mostSimilar() for each row id in parallel.
+     * Subclasses that can compute the results more efficiently in bulk should override it.
+     *
+     * @param writer
+     * @param maxHits
+     * @param rowIds
+     * @param colIds
+     * @return The number of cells written.
+     * @throws IOException
+     * @throws DaoException
+     */
+    protected long writeMostSimilarRows(final SparseMatrixWriter writer, final int maxHits, TIntSet rowIds, TIntSet colIds) throws IOException, DaoException {
+        final AtomicInteger idCounter = new AtomicInteger();
+        final AtomicLong cellCounter = new AtomicLong();
+        final TIntSet colIdSet = colIds == null ? null : new TIntHashSet(colIds);
 
         Normalizer simNormalizer = getSimilarityNormalizer();
         Normalizer mostSimNormalizer = getMostSimilarNormalizer();
@@ -451,10 +486,7 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
             setSimilarityNormalizer(simNormalizer);
             setMostSimilarNormalizer(mostSimNormalizer);
         }
-
-        LOG.info("wrote " + cellCounter.get() + " non-zero similarity cells");
-        writer.finish();
-        mostSimilarCache = new SparseMatrix(getMostSimilarMatrixPath());
+        return cellCounter.get();
     }
 
     protected File getMostSimilarMatrixPath() {
@@ -469,7 +501,7 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
         SRResultList scores = mostSimilar(wpId, maxSimsPerDoc, colIds);
         if (scores != null) {
             int ids[] = scores.getIds();
-            cellCounter.getAndIncrement();
+            cellCounter.addAndGet(ids.length);
             writer.writeRow(new SparseMatrixRow(writer.getValueConf(), wpId, ids, scores.getScoresAsFloat()));
         }
     }
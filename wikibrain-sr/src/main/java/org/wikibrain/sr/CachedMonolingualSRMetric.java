@@ -0,0 +1,549 @@
+package org.wikibrain.sr;
+
+import com.typesafe.config.Config;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.dataset.Dataset;
+import org.wikibrain.sr.normalize.Normalizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A decorator that keeps a bounded, in-memory cache of the results of another metric.
+ *
+ * similarity() and mostSimilar() results are cached for both page ids and phrases,
+ * including null results. Each decorator wraps a single metric in a single language,
+ * so keys consist of the arguments, maxResults, and the sorted contents of the validIds
+ * set. The sorted ids of the most recently used validIds sets are remembered by identity,
+ * so repeating a query with the same set instance does not copy or sort it again. Such
+ * sets must not be modified between calls, although changes in size are detected.
+ * Requests for explanations and cosimilarity matrices are passed straight through to
+ * the wrapped metric.
+ *
+ * The cache is split into segments that are each a synchronized LRU map, so concurrent
+ * callers only contend when their keys land in the same segment. Results are copied
+ * on the way in and out, so callers may modify them freely. Training, reading, or
+ * changing normalizers clears the cache.
+ */
+public class CachedMonolingualSRMetric implements MonolingualSRMetric {
+    private static final Logger LOG = Logger.getLogger(CachedMonolingualSRMetric.class.getName());
+
+    /**
+     * Number of validIds sets remembered by identity.
+     */
+    private static final int NUM_RECENT_VALID_IDS = 8;
+
+    /**
+     * Cached value standing in for a null result.
+     */
+    private static final Object NULL_RESULT = new Object();
+
+    private final MonolingualSRMetric delegate;
+    private final Segment segments[];
+
+    /**
+     * The most recently used validIds sets, most recent first. Guarded by itself.
+     */
+    private final ValidIds recentValidIds[] = new ValidIds[NUM_RECENT_VALID_IDS];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param delegate The metric whose results are cached.
+     * @param maxEntries The maximum number of results held across all segments.
+     * @param numSegments The number of independently locked segments.
+     */
+    public CachedMonolingualSRMetric(MonolingualSRMetric delegate, int maxEntries, int numSegments) {
+        if (maxEntries < 1 || numSegments < 1) {
+            throw new IllegalArgumentException("maxEntries and numSegments must be positive");
+        }
+        this.delegate = delegate;
+        numSegments = Math.min(numSegments, maxEntries);
+        this.segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            // spread any remainder over the first segments
+            int capacity = maxEntries / numSegments + (i < maxEntries % numSegments ? 1 : 0);
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    public MonolingualSRMetric getDelegate() {
+        return delegate;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The number of results currently cached.
+     */
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                n += s.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Removes all cached results. The counters are not reset.
+     */
+    public void clear() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+    }
+
+    /**
+     * @return A one line summary of the cache counters, suitable for logging.
+     */
+    public String getStats() {
+        long h = hits.get();
+        long m = misses.get();
+        return String.format("result cache for %s: %d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                delegate.getName(), size(), h, m, (h + m == 0) ? 0.0 : 100.0 * h / (h + m), evictions.get());
+    }
+
+    @Override
+    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+        if (explanations) {
+            return delegate.similarity(pageId1, pageId2, true);
+        }
+        Key key = new Key(Key.SIMILARITY_IDS, pageId1, pageId2, null, null, 0, null);
+        Object cached = get(key);
+        if (cached != null) {
+            return copy(unwrap(cached, SRResult.class));
+        }
+        SRResult result = delegate.similarity(pageId1, pageId2, false);
+        put(key, copy(result));
+        return result;
+    }
+
+    @Override
+    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+        if (explanations) {
+            return delegate.similarity(phrase1, phrase2, true);
+        }
+        Key key = new Key(Key.SIMILARITY_PHRASES, 0, 0, phrase1, phrase2, 0, null);
+        Object cached = get(key);
+        if (cached != null) {
+            return copy(unwrap(cached, SRResult.class));
+        }
+        SRResult result = delegate.similarity(phrase1, phrase2, false);
+        put(key, copy(result));
+        return result;
+    }
+
+    /**
+     * Looks up each pair in the cache and passes only the misses to the wrapped metric as one batch.
+     */
+    @Override
+    public SRResult[] similarity(int pageIds1[], int pageIds2[]) throws DaoException {
+        if (pageIds1.length != pageIds2.length) {
+            throw new IllegalArgumentException("pair arrays have different lengths: "
+                    + pageIds1.length + " and " + pageIds2.length);
+        }
+        SRResult results[] = new SRResult[pageIds1.length];
+        Key keys[] = new Key[pageIds1.length];
+        TIntArrayList missing = new TIntArrayList();
+        for (int i = 0; i < results.length; i++) {
+            keys[i] = new Key(Key.SIMILARITY_IDS, pageIds1[i], pageIds2[i], null, null, 0, null);
+            Object cached = get(keys[i]);
+            if (cached == null) {
+                missing.add(i);
+            } else {
+                results[i] = unwrap(cached, SRResult.class);
+            }
+        }
+        if (!missing.isEmpty()) {
+            int missing1[] = new int[missing.size()];
+            int missing2[] = new int[missing.size()];
+            for (int j = 0; j < missing.size(); j++) {
+                missing1[j] = pageIds1[missing.get(j)];
+                missing2[j] = pageIds2[missing.get(j)];
+            }
+            SRResult computed[] = delegate.similarity(missing1, missing2);
+            for (int j = 0; j < missing.size(); j++) {
+                int i = missing.get(j);
+                put(keys[i], copy(computed[j]));
+                results[i] = computed[j];
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            results[i] = copy(results[i]);
+        }
+        return results;
+    }
+
+    @Override
+    public SRResultList mostSimilar(int pageId, int maxResults) throws DaoException {
+        return mostSimilar(pageId, maxResults, null);
+    }
+
+    @Override
+    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+        Key key = new Key(Key.MOST_SIMILAR_ID, pageId, 0, null, null, maxResults, canonicalize(validIds));
+        Object cached = get(key);
+        if (cached != null) {
+            return copy(unwrap(cached, SRResultList.class));
+        }
+        SRResultList result = delegate.mostSimilar(pageId, maxResults, validIds);
+        put(key, copy(result));
+        return result;
+    }
+
+    @Override
+    public SRResultList mostSimilar(String phrase, int maxResults) throws DaoException {
+        return mostSimilar(phrase, maxResults, null);
+    }
+
+    @Override
+    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+        Key key = new Key(Key.MOST_SIMILAR_PHRASE, 0, 0, phrase, null, maxResults, canonicalize(validIds));
+        Object cached = get(key);
+        if (cached != null) {
+            return copy(unwrap(cached, SRResultList.class));
+        }
+        SRResultList result = delegate.mostSimilar(phrase, maxResults, validIds);
+        put(key, copy(result));
+        return result;
+    }
+
+    @Override
+    public double[][] cosimilarity(int[] wpRowIds, int[] wpColIds) throws DaoException {
+        return delegate.cosimilarity(wpRowIds, wpColIds);
+    }
+
+    @Override
+    public double[][] cosimilarity(String[] rowPhrases, String[] colPhrases) throws DaoException {
+        return delegate.cosimilarity(rowPhrases, colPhrases);
+    }
+
+    @Override
+    public double[][] cosimilarity(int[] ids) throws DaoException {
+        return delegate.cosimilarity(ids);
+    }
+
+    @Override
+    public double[][] cosimilarity(String[] phrases) throws DaoException {
+        return delegate.cosimilarity(phrases);
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public Language getLanguage() {
+        return delegate.getLanguage();
+    }
+
+    @Override
+    public File getDataDir() {
+        return delegate.getDataDir();
+    }
+
+    @Override
+    public void setDataDir(File dir) {
+        delegate.setDataDir(dir);
+    }
+
+    @Override
+    public void write() throws IOException {
+        delegate.write();
+    }
+
+    @Override
+    public void read() throws IOException {
+        clear();
+        delegate.read();
+    }
+
+    @Override
+    public void trainSimilarity(Dataset dataset) throws DaoException {
+        clear();
+        delegate.trainSimilarity(dataset);
+    }
+
+    @Override
+    public void trainMostSimilar(Dataset dataset, int numResults, TIntSet validIds) {
+        clear();
+        delegate.trainMostSimilar(dataset, numResults, validIds);
+    }
+
+    @Override
+    public boolean similarityIsTrained() {
+        return delegate.similarityIsTrained();
+    }
+
+    @Override
+    public boolean mostSimilarIsTrained() {
+        return delegate.mostSimilarIsTrained();
+    }
+
+    @Override
+    public Normalizer getMostSimilarNormalizer() {
+        return delegate.getMostSimilarNormalizer();
+    }
+
+    @Override
+    public void setMostSimilarNormalizer(Normalizer n) {
+        clear();
+        delegate.setMostSimilarNormalizer(n);
+    }
+
+    @Override
+    public Normalizer getSimilarityNormalizer() {
+        return delegate.getSimilarityNormalizer();
+    }
+
+    @Override
+    public void setSimilarityNormalizer(Normalizer n) {
+        clear();
+        delegate.setSimilarityNormalizer(n);
+    }
+
+    /**
+     * @return The cached value (NULL_RESULT for a cached null), or null if the key is not cached.
+     */
+    private Object get(Key key) {
+        Segment segment = segmentFor(key);
+        Object value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    private void put(Key key, Object value) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, (value == null) ? NULL_RESULT : value);
+        }
+    }
+
+    private static <T> T unwrap(Object cached, Class<T> klass) {
+        return (cached == NULL_RESULT) ? null : klass.cast(cached);
+    }
+
+    /**
+     * Returns the sorted ids of a validIds set, reusing the result for recently seen instances.
+     */
+    private ValidIds canonicalize(TIntSet validIds) {
+        if (validIds == null) {
+            return null;
+        }
+        synchronized (recentValidIds) {
+            for (int i = 0; i < recentValidIds.length; i++) {
+                ValidIds recent = recentValidIds[i];
+                if (recent != null && recent.set.get() == validIds && recent.ids.length == validIds.size()) {
+                    System.arraycopy(recentValidIds, 0, recentValidIds, 1, i);
+                    recentValidIds[0] = recent;
+                    return recent;
+                }
+            }
+        }
+        ValidIds canonical = new ValidIds(validIds);
+        synchronized (recentValidIds) {
+            System.arraycopy(recentValidIds, 0, recentValidIds, 1, recentValidIds.length - 1);
+            recentValidIds[0] = canonical;
+        }
+        return canonical;
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private static SRResult copy(SRResult r) {
+        return (r == null) ? null : new SRResult(r.getId(), r.getScore(), r.getExplanations());
+    }
+
+    private static SRResultList copy(SRResultList r) {
+        return (r == null) ? null : r.copy();
+    }
+
+    /**
+     * An access ordered map that evicts its least recently used entry when it is full.
+     * Callers must synchronize on the segment.
+     */
+    private class Segment extends LinkedHashMap<Key, Object> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(Math.min(capacity, 1024) * 4 / 3 + 1, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The ids of a validIds set in ascending order, with a hash of their contents.
+     */
+    private static final class ValidIds {
+        final WeakReference<TIntSet> set;
+        final int ids[];
+        final int hash;
+
+        ValidIds(TIntSet set) {
+            this.set = new WeakReference<TIntSet>(set);
+            this.ids = set.toArray();
+            Arrays.sort(ids);
+            long h = ids.length;
+            for (int id : ids) {
+                h = mix(h * 31 + id);
+            }
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+
+        boolean sameIds(ValidIds that) {
+            return this == that || (hash == that.hash && Arrays.equals(ids, that.ids));
+        }
+
+        /**
+         * The murmur3 64 bit finalizer.
+         */
+        private static long mix(long x) {
+            x ^= (x >>> 33);
+            x *= 0xff51afd7ed558ccdL;
+            x ^= (x >>> 33);
+            x *= 0xc4ceb9fe1a85ec53L;
+            x ^= (x >>> 33);
+            return x;
+        }
+    }
+
+    /**
+     * Identifies a single call to the wrapped metric.
+     */
+    private static final class Key {
+        static final int SIMILARITY_IDS = 0;
+        static final int SIMILARITY_PHRASES = 1;
+        static final int MOST_SIMILAR_ID = 2;
+        static final int MOST_SIMILAR_PHRASE = 3;
+
+        private final int type;
+        private final int id1;
+        private final int id2;
+        private final String phrase1;
+        private final String phrase2;
+        private final int maxResults;
+        private final ValidIds validIds;
+        private final int hash;
+
+        Key(int type, int id1, int id2, String phrase1, String phrase2, int maxResults, ValidIds validIds) {
+            this.type = type;
+            this.id1 = id1;
+            this.id2 = id2;
+            this.phrase1 = phrase1;
+            this.phrase2 = phrase2;
+            this.maxResults = maxResults;
+            this.validIds = validIds;
+
+            int h = type;
+            h = 31 * h + id1;
+            h = 31 * h + id2;
+            h = 31 * h + (phrase1 == null ? 0 : phrase1.hashCode());
+            h = 31 * h + (phrase2 == null ? 0 : phrase2.hashCode());
+            h = 31 * h + maxResults;
+            h = 31 * h + (validIds == null ? -1 : validIds.hash);
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return hash == that.hash
+                    && type == that.type
+                    && id1 == that.id1
+                    && id2 == that.id2
+                    && maxResults == that.maxResults
+                    && (phrase1 == null ? that.phrase1 == null : phrase1.equals(that.phrase1))
+                    && (phrase2 == null ? that.phrase2 == null : phrase2.equals(that.phrase2))
+                    && (validIds == null ? that.validIds == null : that.validIds != null && validIds.sameIds(that.validIds));
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<MonolingualSRMetric> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return MonolingualSRMetric.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "sr.metric.local";
+        }
+
+        @Override
+        public MonolingualSRMetric get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("cached")) {
+                return null;
+            }
+            if (runtimeParams == null || !runtimeParams.containsKey("language")) {
+                throw new IllegalArgumentException("Monolingual SR Metric requires 'language' runtime parameter");
+            }
+            Language language = Language.getByLangCode(runtimeParams.get("language"));
+            MonolingualSRMetric metric = getConfigurator().get(
+                    MonolingualSRMetric.class, config.getString("metric"), "language", language.getLangCode());
+            int maxEntries = config.getInt("maxEntries");
+            int segments = config.getInt("segments");
+            LOG.info("caching up to " + maxEntries + " results for metric " + metric.getName());
+            return new CachedMonolingualSRMetric(metric, maxEntries, segments);
+        }
+    }
+}
@@ -63,6 +63,18 @@ public interface MonolingualSRMetric {
      */
     public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException;
 
+    /**
+     * Determine the similarity between many pairs of local pages, without explanations.
+     * Implementations fetch the data for each distinct page once and may score pairs in
+     * parallel, so this is much faster than calling similarity() in a loop when ids repeat.
+     *
+     * @param pageIds1 Ids of the first page in each pair.
+     * @param pageIds2 Ids of the second page in each pair. Must be the same length as pageIds1.
+     * @return An array whose i-th entry is the similarity of pageIds1[i] and pageIds2[i].
+     *         Entries may be null, exactly as similarity(int, int, boolean) may return null.
+     */
+    public SRResult[] similarity(int pageIds1[], int pageIds2[]) throws DaoException;
+
     /**
      * Find the most similar local pages to a local page within the same language.
      *
@@ -241,6 +241,15 @@ public class SRBuilder {
             Word2VecTrainer trainer = new Word2VecTrainer(
                     env.getConfigurator().get(LocalPageDao.class),
                     language);
+            if (config.hasPath("negative")) {
+                trainer.setNegative(config.getInt("negative"));
+            }
+            if (config.hasPath("sample")) {
+                trainer.setSample(config.getDouble("sample"));
+            }
+            if (config.hasPath("iterations")) {
+                trainer.setIterations(config.getInt("iterations"));
+            }
             trainer.train(corpus.getDirectory());
             trainer.save(model);
         }
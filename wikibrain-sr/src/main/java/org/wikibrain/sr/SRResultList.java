@@ -244,6 +244,22 @@ public class SRResultList implements  Iterable<SRResult>{
         this.missingRank = missingRank;
     }
 
+    /**
+     * Returns a copy of this list whose results can be modified independently.
+     * Explanation lists are shared with the original results.
+     * @return
+     */
+    public SRResultList copy() {
+        SRResultList copy = new SRResultList(numDocs);
+        for (int i = 0; i < numDocs; i++) {
+            SRResult r = results[i];
+            copy.results[i] = new SRResult(r.id, r.score, r.explanations);
+        }
+        copy.missingScore = missingScore;
+        copy.missingRank = missingRank;
+        return copy;
+    }
+
     @Override
     public Iterator<SRResult> iterator() {
         return new ArrayIterator(results, 0, numDocs);
@@ -46,6 +46,13 @@ public class SimilarityDisambiguator extends Disambiguator {
         this.metrics = metrics;
     }
 
+    /**
+     * @return The metric used to compare candidates in a language, or null.
+     */
+    public MonolingualSRMetric getMetric(Language language) {
+        return metrics.get(language);
+    }
+
     @Override
     public List<LinkedHashMap<LocalId, Float>> disambiguate(List<LocalString> phrases, Set<LocalString> context) throws DaoException {
         List<LinkedHashMap<LocalId, Float>> results = new ArrayList<LinkedHashMap<LocalId, Float>>();
@@ -19,10 +19,22 @@ import org.wikibrain.utils.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Combines the scores of several base metrics.
+ *
+ * The base metrics are queried concurrently on a bounded pool of daemon threads, so the
+ * latency of a query is that of the slowest base metric rather than their sum. If a timeout
+ * is set, each base metric gets the full timeout from the moment its task starts running
+ * (or from submission, if it is still queued), so a slow metric does not use up the budget
+ * of the others. A base metric that hasn't answered in time is treated as having no result
+ * (which the ensemble already handles) and the query returns a degraded answer from the
+ * others. The latency of each base metric is tracked in a histogram.
+ *
  * @author Matt Lesicko
  * @author Shilad Sen
  */
@@ -35,11 +47,100 @@ public class EnsembleMetric extends BaseMonolingualSRMetric {
     private boolean resolvePhrases = true;
     private boolean trainSubmetrics = true;
 
+    /**
+     * Maximum time to wait for the base metrics in a single query. 0 means wait forever.
+     */
+    private long timeoutMillis = 0;
+    private volatile ThreadPoolExecutor executor;
+    private final LatencyHistogram latencies[];
+    private final AtomicLongArray timeouts;
 
     public EnsembleMetric(String name, Language language, List<MonolingualSRMetric> metrics, Ensemble ensemble, Disambiguator disambiguator, LocalPageDao pageHelper){
         super(name, language, pageHelper, disambiguator);
         this.metrics=metrics;
         this.ensemble=ensemble;
+        this.latencies = new LatencyHistogram[metrics.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        this.timeouts = new AtomicLongArray(metrics.size());
+        setNumThreads(WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * Sets the number of threads used to query base metrics. Each query submits one task per
+     * base metric to a single shared pool. The queue is unbounded so that every task runs on
+     * a pool thread and is subject to the timeout; tasks still queued when their query times
+     * out are cancelled before they start.
+     */
+    public synchronized void setNumThreads(int numThreads) {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        numThreads = Math.max(1, numThreads);
+        executor = new ThreadPoolExecutor(
+                numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ensemble-" + getName());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Sets the maximum time a query waits for each base metric, measured from when the
+     * metric's task starts running. A task still queued after the timeout is cancelled, so
+     * a query waits at most twice the timeout. Base metrics that have not answered in time
+     * contribute no score. A value of 0 or less disables the timeout.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return The latency histogram of each base metric, keyed by metric name.
+     */
+    public Map<String, LatencyHistogram> getLatencyHistograms() {
+        Map<String, LatencyHistogram> result = new LinkedHashMap<String, LatencyHistogram>();
+        for (int i = 0; i < metrics.size(); i++) {
+            result.put(metrics.get(i).getName(), latencies[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of queries each base metric failed to answer in time, keyed by metric name.
+     */
+    public Map<String, Long> getTimeouts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < metrics.size(); i++) {
+            result.put(metrics.get(i).getName(), timeouts.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return A human readable summary of the latency and timeouts of each base metric.
+     */
+    public String getLatencySummary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < metrics.size(); i++) {
+            sb.append(metrics.get(i).getName())
+                    .append(": ")
+                    .append(latencies[i])
+                    .append(" timeouts=")
+                    .append(timeouts.get(i))
+                    .append('\n');
+        }
+        return sb.toString();
     }
 
     public List<MonolingualSRMetric> getMetrics() {
@@ -56,51 +157,206 @@ public class EnsembleMetric extends BaseMonolingualSRMetric {
     }
 
     @Override
-    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (MonolingualSRMetric metric : metrics){
-            scores.add(metric.similarity(pageId1,pageId2,explanations));
-        }
+    public SRResult similarity(final int pageId1, final int pageId2, final boolean explanations) throws DaoException {
+        List<SRResult> scores = fanOut(new MetricCall<SRResult>() {
+            @Override
+            public SRResult call(MonolingualSRMetric metric) throws DaoException {
+                return metric.similarity(pageId1, pageId2, explanations);
+            }
+        });
         return ensemble.predictSimilarity(scores);
     }
 
+    /**
+     * Asks each base metric for the whole batch, so each can share work between pairs,
+     * then combines the scores of each pair. A metric that misses the timeout contributes
+     * null scores for every pair.
+     */
     @Override
-    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+    public SRResult[] similarity(final int pageIds1[], final int pageIds2[]) throws DaoException {
+        List<SRResult[]> metricScores = fanOut(new MetricCall<SRResult[]>() {
+            @Override
+            public SRResult[] call(MonolingualSRMetric metric) throws DaoException {
+                return metric.similarity(pageIds1, pageIds2);
+            }
+        });
+        SRResult results[] = new SRResult[pageIds1.length];
+        for (int i = 0; i < results.length; i++) {
+            List<SRResult> scores = new ArrayList<SRResult>();
+            for (SRResult[] s : metricScores) {
+                scores.add(s == null ? null : s[i]);
+            }
+            results[i] = ensemble.predictSimilarity(scores);
+        }
+        return results;
+    }
+
+    @Override
+    public SRResult similarity(final String phrase1, final String phrase2, final boolean explanations) throws DaoException {
         if (resolvePhrases) {
             return super.similarity(phrase1, phrase2, explanations);
         }
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (MonolingualSRMetric metric : metrics){
-            scores.add(metric.similarity(phrase1,phrase2,explanations));
-        }
+        List<SRResult> scores = fanOut(new MetricCall<SRResult>() {
+            @Override
+            public SRResult call(MonolingualSRMetric metric) throws DaoException {
+                return metric.similarity(phrase1, phrase2, explanations);
+            }
+        });
         return ensemble.predictSimilarity(scores);
     }
 
     @Override
-    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+    public SRResultList mostSimilar(final int pageId, final int maxResults, final TIntSet validIds) throws DaoException {
         SRResultList mostSimilar= getCachedMostSimilar(pageId, maxResults, validIds);
         if (mostSimilar != null) {
             return mostSimilar;
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (MonolingualSRMetric metric : metrics){
-            scores.add(metric.mostSimilar(pageId,maxResults*EXTRA_SEARCH_DEPTH,validIds));
-        }
+        List<SRResultList> scores = fanOut(new MetricCall<SRResultList>() {
+            @Override
+            public SRResultList call(MonolingualSRMetric metric) throws DaoException {
+                return metric.mostSimilar(pageId, maxResults * EXTRA_SEARCH_DEPTH, validIds);
+            }
+        });
         return ensemble.predictMostSimilar(scores, maxResults);
     }
 
     @Override
-    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+    public SRResultList mostSimilar(final String phrase, final int maxResults, final TIntSet validIds) throws DaoException {
         if (resolvePhrases) {
             return super.mostSimilar(phrase, maxResults, validIds);
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (MonolingualSRMetric metric : metrics){
-            scores.add(metric.mostSimilar(phrase,maxResults*EXTRA_SEARCH_DEPTH,validIds));
-        }
+        List<SRResultList> scores = fanOut(new MetricCall<SRResultList>() {
+            @Override
+            public SRResultList call(MonolingualSRMetric metric) throws DaoException {
+                return metric.mostSimilar(phrase, maxResults * EXTRA_SEARCH_DEPTH, validIds);
+            }
+        });
         return ensemble.predictMostSimilar(scores,maxResults);
     }
 
+    /**
+     * A query against a single base metric.
+     */
+    private static interface MetricCall<T> {
+        T call(MonolingualSRMetric metric) throws DaoException;
+    }
+
+    /**
+     * Runs a query against every base metric concurrently and collects the results in
+     * metric order. Results of metrics that miss their timeout are null. If a base metric
+     * throws an exception, it is rethrown.
+     */
+    private <T> List<T> fanOut(final MetricCall<T> call) throws DaoException {
+        List<T> results = new ArrayList<T>(metrics.size());
+        if (metrics.size() == 1 && timeoutMillis <= 0) {
+            results.add(timedCall(0, call));
+            return results;
+        }
+        List<MetricTask<T>> tasks = new ArrayList<MetricTask<T>>(metrics.size());
+        List<Future<T>> futures = new ArrayList<Future<T>>(metrics.size());
+        for (int i = 0; i < metrics.size(); i++) {
+            MetricTask<T> task = new MetricTask<T>(i, call);
+            tasks.add(task);
+            futures.add(executor.submit(task));
+        }
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<T> f = futures.get(i);
+                if (timeoutMillis <= 0) {
+                    results.add(f.get());
+                    continue;
+                }
+                try {
+                    results.add(await(f, tasks.get(i), timeoutNanos));
+                } catch (TimeoutException e) {
+                    // Don't interrupt: base metrics may be blocked in JDBC or in reads of
+                    // memory mapped files, and interrupting those closes the underlying
+                    // channels. The task finishes on its own and its result is dropped.
+                    f.cancel(false);
+                    timeouts.incrementAndGet(i);
+                    LOG.log(Level.FINE, "Local sr metric " + metrics.get(i).getName() + " timed out after " + timeoutMillis + "ms");
+                    results.add(null);
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<T> f : futures) {
+                f.cancel(false);
+            }
+            Thread.currentThread().interrupt();
+            throw new DaoException(e);
+        } catch (ExecutionException e) {
+            for (Future<T> f : futures) {
+                f.cancel(false);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof DaoException) {
+                throw (DaoException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new DaoException((Exception) cause);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Waits for a task until its own deadline. The deadline moves from submission plus the
+     * timeout to start plus the timeout if the task starts running while we wait.
+     */
+    private static <T> T await(Future<T> f, MetricTask<T> task, long timeoutNanos)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        while (true) {
+            long deadline = task.getDeadline(timeoutNanos);
+            try {
+                return f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (task.getDeadline(timeoutNanos) - System.nanoTime() <= 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * A query against one base metric that records when it was submitted and started.
+     */
+    private class MetricTask<T> implements Callable<T> {
+        private final int index;
+        private final MetricCall<T> call;
+        private final long submitted = System.nanoTime();
+        private volatile boolean started = false;
+        private volatile long startTime;
+
+        MetricTask(int index, MetricCall<T> call) {
+            this.index = index;
+            this.call = call;
+        }
+
+        @Override
+        public T call() throws Exception {
+            startTime = System.nanoTime();
+            started = true;
+            return timedCall(index, call);
+        }
+
+        long getDeadline(long timeoutNanos) {
+            return (started ? startTime : submitted) + timeoutNanos;
+        }
+    }
+
+    private <T> T timedCall(int index, MetricCall<T> call) throws DaoException {
+        long start = System.nanoTime();
+        try {
+            return call.call(metrics.get(index));
+        } finally {
+            latencies[index].record(System.nanoTime() - start);
+        }
+    }
+
     /**
      * Training cascades to base metrics.
      * @param dataset
@@ -252,6 +508,12 @@ public class EnsembleMetric extends BaseMonolingualSRMetric {
             if (config.hasPath("resolvephrases")) {
                 sr.setResolvePhrases(config.getBoolean("resolvephrases"));
             }
+            if (config.hasPath("threads")) {
+                sr.setNumThreads(config.getInt("threads"));
+            }
+            if (config.hasPath("timeout")) {
+                sr.setTimeoutMillis(config.getLong("timeout"));
+            }
 
             BaseMonolingualSRMetric.configureBase(getConfigurator(), sr, config);
             return sr;
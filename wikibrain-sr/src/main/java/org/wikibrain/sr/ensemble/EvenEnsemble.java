@@ -30,22 +30,38 @@ public class EvenEnsemble implements Ensemble{
     @Override
     public SRResult predictSimilarity(List<SRResult> scores) {
         double result=0.0;
+        int numScores=0;
         List<Explanation> explanationList = new ArrayList<Explanation>();
         for (SRResult score : scores){
+            if (score==null){
+                continue;   // metric timed out or had no answer
+            }
             result+=score.getScore();
+            numScores++;
             if (score.getExplanations()!=null&&!score.getExplanations().isEmpty()){
                 explanationList.addAll(score.getExplanations());
             }
         }
-        result/=scores.size();
+        if (numScores==0){
+            return null;
+        }
+        result/=numScores;
         return new SRResult(-2,result,explanationList);
     }
 
     @Override
     public SRResultList predictMostSimilar(List<SRResultList> scores, int maxResults) {
-        int numMetrics = scores.size();
+        int numMetrics = 0;
+        for (SRResultList resultList : scores){
+            if (resultList != null){
+                numMetrics++;
+            }
+        }
         TIntDoubleHashMap scoreMap = new TIntDoubleHashMap();
         for (SRResultList resultList : scores){
+            if (resultList == null){
+                continue;
+            }
             for (SRResult result : resultList){
                 double value = result.getScore()/numMetrics;
                 scoreMap.adjustOrPutValue(result.getId(),value,value);
@@ -1,5 +1,7 @@
 package org.wikibrain.sr.esa;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
@@ -13,20 +15,37 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.DaoFilter;
 import org.wikibrain.core.dao.LocalLinkDao;
 import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.matrix.MatrixLocalLinkDao;
+import org.wikibrain.core.dao.sql.LocalLinkSqlDao;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixCursor;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.List;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 /**
+ * Selects the concepts for an ESA concept space: the most linked-to articles, after
+ * skipping a few of the very most linked-to "stop" articles.
+ *
+ * The in-degrees of all articles are computed in bulk. They come from the transpose of
+ * the adjacency matrix if the link dao is a MatrixLocalLinkDao, or from grouped queries
+ * over ranges of page ids if it is a LocalLinkSqlDao. Other daos are asked for one page
+ * at a time. In all cases the work is split into ranges of page ids that run in parallel.
+ *
  * @author Shilad Sen
  */
 public class SRConceptSpaceGenerator {
@@ -57,6 +76,7 @@ public class SRConceptSpaceGenerator {
         int numStopArticles =getNumStopConcepts();
         Leaderboard mostLinked = new Leaderboard(getMaxConcepts() + numStopArticles);
 
+        TIntArrayList candidates = new TIntArrayList();
         for (LocalPage lp : (Iterable<LocalPage>)pageDao.get(getFilter())) {
             if (lp == null) {
                 continue;
@@ -71,9 +91,14 @@ public class SRConceptSpaceGenerator {
                 continue;
             }
 
-            DaoFilter query = new DaoFilter().setLanguages(lang).setDestIds(lp.getLocalId());
-            int n = linkDao.getCount(query);
-            mostLinked.tallyScore(lp.getLocalId(), n);
+            candidates.add(lp.getLocalId());
+        }
+
+        candidates.sort();
+        int pageIds[] = candidates.toArray();
+        int inDegrees[] = getInDegrees(pageIds);
+        for (int i = 0; i < pageIds.length; i++) {
+            mostLinked.tallyScore(pageIds[i], inDegrees[i]);
         }
 
         SRResultList sorted = mostLinked.getTop();
@@ -93,6 +118,67 @@ public class SRConceptSpaceGenerator {
         return result;
     }
 
+    /**
+     * Computes the number of distinct pages linking to each page in bulk.
+     *
+     * @param pageIds Page ids in ascending order.
+     * @return The in-degree of each page, in the same order.
+     */
+    public int[] getInDegrees(final int pageIds[]) throws DaoException {
+        final int numChunks = Math.min(pageIds.length, WpThreadUtils.getMaxThreads() * 4);
+        List<int[]> chunks = ParallelForEach.range(0, numChunks, new Function<Integer, int[]>() {
+            @Override
+            public int[] call(Integer chunk) throws Exception {
+                int from = (int) ((long) pageIds.length * chunk / numChunks);
+                int to = (int) ((long) pageIds.length * (chunk + 1) / numChunks);
+                return getInDegrees(pageIds, from, to);
+            }
+        });
+        int inDegrees[] = new int[pageIds.length];
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            if (chunks.get(chunk) == null) {
+                throw new DaoException("counting inlinks for chunk " + chunk + " of " + numChunks + " failed");
+            }
+            int from = (int) ((long) pageIds.length * chunk / numChunks);
+            System.arraycopy(chunks.get(chunk), 0, inDegrees, from, chunks.get(chunk).length);
+        }
+        return inDegrees;
+    }
+
+    /**
+     * Computes the in-degrees of pageIds[from] through pageIds[to - 1].
+     */
+    private int[] getInDegrees(int pageIds[], int from, int to) throws DaoException, IOException {
+        int inDegrees[] = new int[to - from];
+        SparseMatrix transpose = (linkDao instanceof MatrixLocalLinkDao)
+                ? ((MatrixLocalLinkDao) linkDao).getTranspose() : null;
+        if (transpose != null) {
+            SparseMatrixCursor row = transpose.openCursor();
+            for (int i = from; i < to; i++) {
+                LocalId id = new LocalId(lang, pageIds[i]);
+                if (!id.canPackInInt()) {
+                    inDegrees[i - from] = getInDegree(pageIds[i]);
+                } else if (row.seek(id.toInt())) {
+                    inDegrees[i - from] = row.getNumCols();
+                }
+            }
+        } else if (linkDao instanceof LocalLinkSqlDao) {
+            TIntIntMap counts = ((LocalLinkSqlDao) linkDao).getInDegrees(lang, pageIds[from], pageIds[to - 1]);
+            for (int i = from; i < to; i++) {
+                inDegrees[i - from] = counts.get(pageIds[i]);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                inDegrees[i - from] = getInDegree(pageIds[i]);
+            }
+        }
+        return inDegrees;
+    }
+
+    private int getInDegree(int pageId) throws DaoException {
+        return linkDao.getCount(new DaoFilter().setLanguages(lang).setDestIds(pageId));
+    }
+
     public void writeConcepts(File path) throws DaoException, IOException {
         BufferedWriter writer = new BufferedWriter(new FileWriter(path));
         for (int wpId : getConcepts().toArray()) {
@@ -0,0 +1,249 @@
+package org.wikibrain.sr.evaluation;
+
+import org.apache.commons.cli.*;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.DefaultOptionBuilder;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.matrix.DenseVectorStore;
+import org.wikibrain.sr.MonolingualSRMetric;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.dataset.Dataset;
+import org.wikibrain.sr.utils.KnownSim;
+import org.wikibrain.sr.vector.ApproximateCosineSimilarity;
+import org.wikibrain.sr.vector.DenseVectorGenerator;
+import org.wikibrain.sr.vector.DenseVectorSimilarity;
+import org.wikibrain.sr.vector.VectorBasedMonoSRMetric;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Measures how well an approximate mostSimilar() agrees with an exact search.
+ *
+ * For a random sample of pages, the exact top-k list computed by a DenseVectorSimilarity
+ * is used as the gold standard in place of human judgements. The metric's mostSimilar()
+ * results are then evaluated by the usual MostSimilarEvaluator machinery, so "recall-k"
+ * in the summary is the recall at k of the approximate search relative to the exact one.
+ * The mean latency of both searches is recorded in the summary as well.
+ */
+public class AnnRecallEvaluator extends MostSimilarEvaluator {
+    private static final Logger LOG = Logger.getLogger(AnnRecallEvaluator.class.getName());
+
+    private final DenseVectorSimilarity exact;
+    private final int queryIds[];
+    private final int numResults;
+    private final Language language;
+    private final int ranks[];
+
+    /**
+     * @param outputDir Directory for the evaluation logs.
+     * @param exact Exact similarity over the same vectors as the metric being evaluated.
+     * @param queryIds Pages whose most similar lists are compared.
+     * @param numResults Length of the most similar lists (k).
+     * @param language
+     */
+    public AnnRecallEvaluator(File outputDir, DenseVectorSimilarity exact, int queryIds[], int numResults, Language language) {
+        super(outputDir);
+        this.exact = exact;
+        this.queryIds = queryIds;
+        this.numResults = numResults;
+        this.language = language;
+        this.ranks = new int[] { numResults };
+        setResolvePhrases(true);
+        setNumMostSimilarResults(numResults);
+        setPrecisionRecallRanks(ranks);
+        Dataset queries = new Dataset("ann-recall", language);
+        addSplit(new Split("ann-recall", "ann-recall", queries, queries));
+    }
+
+    @Override
+    public List<String> getSummaryFields() {
+        List<String> fields = new ArrayList<String>(super.getSummaryFields());
+        fields.add(fields.size() - 2, "exactMillis");
+        fields.add(fields.size() - 2, "approxMillis");
+        return fields;
+    }
+
+    @Override
+    protected MostSimilarEvaluationLog evaluateSplit(MonolingualSRFactory factory, Split split, File log, File err, Map<String, String> config) throws IOException, DaoException, WikiBrainException {
+        MonolingualSRMetric metric = factory.create();
+        DenseVectorStore store = exact.getStore();
+        float vector[] = new float[store.getDimensions()];
+
+        // Queries run sequentially so the latencies are comparable.
+        SRResultList exactResults[] = new SRResultList[queryIds.length];
+        long start = System.nanoTime();
+        for (int i = 0; i < queryIds.length; i++) {
+            int index = store.indexOf(queryIds[i]);
+            if (index >= 0) {
+                store.copyVector(index, vector);
+                exactResults[i] = exact.mostSimilar(vector, numResults, null);
+            }
+        }
+        double exactMillis = (System.nanoTime() - start) / 1000000.0 / queryIds.length;
+
+        SRResultList approxResults[] = new SRResultList[queryIds.length];
+        start = System.nanoTime();
+        for (int i = 0; i < queryIds.length; i++) {
+            approxResults[i] = metric.mostSimilar(queryIds[i], numResults, null);
+        }
+        double approxMillis = (System.nanoTime() - start) / 1000000.0 / queryIds.length;
+
+        MostSimilarEvaluationLog splitEval = new MostSimilarEvaluationLog(config, log);
+        splitEval.setPrecisionRecallRanks(ranks);
+        splitEval.setConfig("exactMillis", String.format("%.3f", exactMillis));
+        splitEval.setConfig("approxMillis", String.format("%.3f", approxMillis));
+        for (int i = 0; i < queryIds.length; i++) {
+            if (exactResults[i] == null || exactResults[i].numDocs() == 0) {
+                continue;
+            }
+            String phrase = "page:" + queryIds[i];
+            List<KnownSim> sims = new ArrayList<KnownSim>();
+            for (int j = 0; j < exactResults[i].numDocs(); j++) {
+                int id = exactResults[i].getId(j);
+                sims.add(new KnownSim(phrase, "page:" + id, queryIds[i], id, 1.0, language));
+            }
+            KnownMostSim kms = new KnownMostSim(sims);
+            if (approxResults[i] == null) {
+                splitEval.recordFailed(kms);
+            } else {
+                splitEval.record(kms, approxResults[i]);
+            }
+        }
+        LOG.info(String.format("mean latency for %d queries: exact %.3f ms, approximate %.3f ms",
+                queryIds.length, exactMillis, approxMillis));
+        return splitEval;
+    }
+
+    /**
+     * Selects a random sample of the ids in a store.
+     */
+    public static int[] sampleIds(DenseVectorStore store, int n, Random random) {
+        n = Math.min(n, store.size());
+        TreeSet<Integer> indexes = new TreeSet<Integer>();
+        while (indexes.size() < n) {
+            indexes.add(random.nextInt(store.size()));
+        }
+        int ids[] = new int[n];
+        int i = 0;
+        for (int index : indexes) {
+            ids[i++] = store.getId(index);
+        }
+        return ids;
+    }
+
+    public static void main(String args[]) throws ConfigurationException, DaoException, IOException, WikiBrainException {
+        Options options = new Options();
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .isRequired()
+                        .withLongOpt("metric")
+                        .withDescription("approximate metric to evaluate (e.g. word2vecApprox)")
+                        .create("m"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("queries")
+                        .withDescription("number of sampled query pages (default 1000)")
+                        .create("n"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("results")
+                        .withDescription("length of most similar lists (default 100)")
+                        .create("k"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArgs()
+                        .withValueSeparator(',')
+                        .withLongOpt("probes")
+                        .withDescription("comma separated numbers of clusters to probe (default: the configured value)")
+                        .create("p"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("outputDir")
+                        .withDescription("Specify the output directory")
+                        .create("o"));
+        EnvBuilder.addStandardOptions(options);
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("Invalid option usage: " + e.getMessage());
+            new HelpFormatter().printHelp("AnnRecallEvaluator", options);
+            System.exit(1);
+            return; // to appease the compiler
+        }
+
+        Env env = new EnvBuilder(cmd)
+                .setProperty("sr.metric.training", false)
+                .build();
+        Language lang = env.getLanguages().getDefaultLanguage();
+        MonolingualSRMetric metric = env.getConfigurator().get(
+                MonolingualSRMetric.class, cmd.getOptionValue("m"), "language", lang.getLangCode());
+        if (!(metric instanceof VectorBasedMonoSRMetric)
+        ||  !(((VectorBasedMonoSRMetric) metric).getGenerator() instanceof DenseVectorGenerator)
+        ||  !(((VectorBasedMonoSRMetric) metric).getSimilarity() instanceof ApproximateCosineSimilarity)) {
+            System.err.println("Metric " + cmd.getOptionValue("m") + " must be a dense vector metric with an approximate similarity");
+            System.exit(1);
+            return;
+        }
+        VectorBasedMonoSRMetric vectorMetric = (VectorBasedMonoSRMetric) metric;
+        ApproximateCosineSimilarity approx = (ApproximateCosineSimilarity) vectorMetric.getSimilarity();
+        if (!approx.hasIndex()) {
+            vectorMetric.buildFeatureAndTransposeMatrices(null);
+        }
+
+        DenseVectorStore store = ((DenseVectorGenerator) vectorMetric.getGenerator()).getPageVectors();
+        int numQueries = cmd.hasOption("n") ? Integer.valueOf(cmd.getOptionValue("n")) : 1000;
+        int numResults = cmd.hasOption("k") ? Integer.valueOf(cmd.getOptionValue("k")) : 100;
+        String outputDir = cmd.hasOption("o") ? cmd.getOptionValue("o") : env.getConfiguration().get().getString("sr.dataset.records");
+        int queryIds[] = sampleIds(store, numQueries, new Random(0));
+        DenseVectorSimilarity exact = new DenseVectorSimilarity(store);
+
+        List<Integer> probes = new ArrayList<Integer>();
+        if (cmd.hasOption("p")) {
+            for (String p : cmd.getOptionValues("p")) {
+                probes.add(Integer.valueOf(p));
+            }
+        } else {
+            probes.add(approx.getNumProbes());
+        }
+        for (int p : probes) {
+            approx.setNumProbes(p);
+            AnnRecallEvaluator evaluator = new AnnRecallEvaluator(new File(outputDir), exact, queryIds, numResults, lang);
+            evaluator.setWriteToStdout(true);
+            LOG.info("evaluating " + metric.getName() + " with " + p + " probes");
+            MostSimilarEvaluationLog log = evaluator.evaluate(new ProbesSRFactory(metric, p));
+            IOUtils.closeQuietly(log);
+        }
+    }
+
+    /**
+     * A pretrained factory that records the number of probes in the metric description.
+     */
+    private static class ProbesSRFactory extends PretrainedSRFactory {
+        private final int numProbes;
+
+        ProbesSRFactory(MonolingualSRMetric metric, int numProbes) {
+            super(metric);
+            this.numProbes = numProbes;
+        }
+
+        @Override
+        public String describeMetric() {
+            return super.describeMetric() + "-probes=" + numProbes;
+        }
+    }
+}
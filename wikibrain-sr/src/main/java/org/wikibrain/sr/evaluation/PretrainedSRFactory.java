@@ -83,6 +83,11 @@ public class PretrainedSRFactory implements MonolingualSRFactory {
             return delegate.similarity(phrase1, phrase2, explanations);
         }
 
+        @Override
+        public SRResult[] similarity(int[] pageIds1, int[] pageIds2) throws DaoException {
+            return delegate.similarity(pageIds1, pageIds2);
+        }
+
         @Override
         public SRResultList mostSimilar(int pageId, int maxResults) throws DaoException {
             return delegate.mostSimilar(pageId, maxResults);
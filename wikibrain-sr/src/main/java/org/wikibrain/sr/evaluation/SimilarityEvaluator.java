@@ -77,10 +77,30 @@ public class SimilarityEvaluator extends Evaluator<SimilarityEvaluationLog> {
         metric.trainSimilarity(split.getTrain());
         SimilarityEvaluationLog splitEval = new SimilarityEvaluationLog(config, log);
         BufferedWriter errFile = new BufferedWriter(new FileWriter(err));
-        for (KnownSim ks : split.getTest().getData()) {
+        List<KnownSim> test = split.getTest().getData();
+
+        // Resolved pairs are scored as one batch; if the batch fails they are retried one at a time.
+        SRResult batch[] = null;
+        if (shouldResolvePhrases()) {
+            int pageIds1[] = new int[test.size()];
+            int pageIds2[] = new int[test.size()];
+            for (int i = 0; i < test.size(); i++) {
+                pageIds1[i] = test.get(i).wpId1;
+                pageIds2[i] = test.get(i).wpId2;
+            }
+            try {
+                batch = metric.similarity(pageIds1, pageIds2);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Batch similarity failed; scoring pairs one at a time", e);
+            }
+        }
+        for (int i = 0; i < test.size(); i++) {
+            KnownSim ks = test.get(i);
             try {
                 SRResult result;
-                if (shouldResolvePhrases()) {
+                if (batch != null) {
+                    result = batch[i];
+                } else if (shouldResolvePhrases()) {
                     result = metric.similarity(ks.wpId1, ks.wpId2, false);
                 } else {
                     result = metric.similarity(ks.phrase1, ks.phrase2, false);
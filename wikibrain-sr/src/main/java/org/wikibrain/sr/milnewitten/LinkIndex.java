@@ -0,0 +1,270 @@
+package org.wikibrain.sr.milnewitten;
+
+import gnu.trove.list.array.TIntArrayList;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalLinkDao;
+import org.wikibrain.core.dao.matrix.MatrixLocalLinkDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory adjacency index of the links between the pages of one language.
+ *
+ * Pages are numbered densely in order of their page id. The outlinks and inlinks of
+ * each page are stored in compressed sparse row form: one array holding every page's
+ * sorted, distinct neighbors back to back, and one array of offsets into it. Neighbors
+ * are stored as dense indexes, so per-page data such as link weights can be kept in
+ * plain arrays indexed the same way.
+ *
+ * Intersections of neighbor lists are computed without allocation. When one list is
+ * much shorter than the other, its elements are located in the longer list by galloping
+ * (exponential then binary search) instead of a linear merge.
+ */
+public class LinkIndex {
+    private static final Logger LOG = Logger.getLogger(LinkIndex.class.getName());
+
+    /**
+     * Lists that differ in length by more than this factor are intersected by galloping.
+     */
+    private static final int GALLOP_RATIO = 8;
+
+    private final int pageIds[];
+    private final int outOffsets[];
+    private final int outLinks[];
+    private final int inOffsets[];
+    private final int inLinks[];
+
+    /**
+     * Builds an index from parallel arrays of link sources and destinations.
+     * Duplicate links are ignored.
+     */
+    public LinkIndex(int srcIds[], int destIds[]) {
+        if (srcIds.length != destIds.length) {
+            throw new IllegalArgumentException();
+        }
+        int all[] = new int[srcIds.length * 2];
+        System.arraycopy(srcIds, 0, all, 0, srcIds.length);
+        System.arraycopy(destIds, 0, all, srcIds.length, destIds.length);
+        Arrays.sort(all);
+        int n = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i] != all[i - 1]) {
+                all[n++] = all[i];
+            }
+        }
+        this.pageIds = Arrays.copyOf(all, n);
+
+        // Bucket the links by source, then sort and dedupe each bucket.
+        int rawOffsets[] = new int[n + 1];
+        int srcs[] = new int[srcIds.length];
+        int dests[] = new int[destIds.length];
+        for (int i = 0; i < srcIds.length; i++) {
+            srcs[i] = Arrays.binarySearch(pageIds, srcIds[i]);
+            dests[i] = Arrays.binarySearch(pageIds, destIds[i]);
+            rawOffsets[srcs[i] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            rawOffsets[i + 1] += rawOffsets[i];
+        }
+        int raw[] = new int[srcs.length];
+        int fill[] = Arrays.copyOf(rawOffsets, n);
+        for (int i = 0; i < srcs.length; i++) {
+            raw[fill[srcs[i]]++] = dests[i];
+        }
+        this.outOffsets = new int[n + 1];
+        int numLinks = 0;
+        for (int i = 0; i < n; i++) {
+            Arrays.sort(raw, rawOffsets[i], rawOffsets[i + 1]);
+            outOffsets[i] = numLinks;
+            for (int j = rawOffsets[i]; j < rawOffsets[i + 1]; j++) {
+                if (j == rawOffsets[i] || raw[j] != raw[j - 1]) {
+                    raw[numLinks++] = raw[j];
+                }
+            }
+        }
+        outOffsets[n] = numLinks;
+        this.outLinks = Arrays.copyOf(raw, numLinks);
+
+        // Transpose. Visiting sources in order leaves each inlink list sorted.
+        this.inOffsets = new int[n + 1];
+        for (int i = 0; i < numLinks; i++) {
+            inOffsets[outLinks[i] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            inOffsets[i + 1] += inOffsets[i];
+        }
+        this.inLinks = new int[numLinks];
+        fill = Arrays.copyOf(inOffsets, n);
+        for (int src = 0; src < n; src++) {
+            for (int j = outOffsets[src]; j < outOffsets[src + 1]; j++) {
+                inLinks[fill[outLinks[j]]++] = src;
+            }
+        }
+    }
+
+    /**
+     * Builds the index for a language. If the dao is a MatrixLocalLinkDao with a loaded
+     * adjacency matrix, links are read from the matrix; otherwise they are scanned from the dao.
+     * Red links are skipped.
+     */
+    public static LinkIndex build(LocalLinkDao dao, Language language) throws DaoException {
+        TIntArrayList srcs = new TIntArrayList();
+        TIntArrayList dests = new TIntArrayList();
+        if (dao instanceof MatrixLocalLinkDao && ((MatrixLocalLinkDao) dao).getMatrix() != null) {
+            LOG.info("building link index for " + language + " from adjacency matrix");
+            SparseMatrix matrix = ((MatrixLocalLinkDao) dao).getMatrix();
+            for (SparseMatrixRow row : matrix) {
+                LocalId src = LocalId.fromInt(row.getRowIndex());
+                if (!src.getLanguage().equals(language)) {
+                    continue;
+                }
+                for (int i = 0; i < row.getNumCols(); i++) {
+                    LocalId dest = LocalId.fromInt(row.getColIndex(i));
+                    if (dest.getLanguage().equals(language)) {
+                        srcs.add(src.getId());
+                        dests.add(dest.getId());
+                    }
+                }
+            }
+        } else {
+            LOG.info("building link index for " + language + " from link dao");
+            for (LocalLink ll : dao.get(new DaoFilter().setLanguages(language))) {
+                if (ll.getSourceId() >= 0 && ll.getDestId() >= 0) {
+                    srcs.add(ll.getSourceId());
+                    dests.add(ll.getDestId());
+                }
+            }
+        }
+        LinkIndex index = new LinkIndex(srcs.toArray(), dests.toArray());
+        LOG.info("built link index for " + language + " with " + index.getNumPages()
+                + " pages and " + index.getNumLinks() + " links");
+        return index;
+    }
+
+    public int getNumPages() {
+        return pageIds.length;
+    }
+
+    public int getNumLinks() {
+        return outLinks.length;
+    }
+
+    /**
+     * @return The dense index of a page, or -1 if the page has no links in or out.
+     */
+    public int indexOf(int pageId) {
+        int i = Arrays.binarySearch(pageIds, pageId);
+        return (i < 0) ? -1 : i;
+    }
+
+    public int getPageId(int index) {
+        return pageIds[index];
+    }
+
+    public int getOutDegree(int index) {
+        return outOffsets[index + 1] - outOffsets[index];
+    }
+
+    public int getInDegree(int index) {
+        return inOffsets[index + 1] - inOffsets[index];
+    }
+
+    /**
+     * The outlinks of page i are getOutlink(k) for k in [getOutStart(i), getOutStart(i + 1)).
+     */
+    public int getOutStart(int index) {
+        return outOffsets[index];
+    }
+
+    public int getOutlink(int k) {
+        return outLinks[k];
+    }
+
+    /**
+     * The inlinks of page i are getInlink(k) for k in [getInStart(i), getInStart(i + 1)).
+     */
+    public int getInStart(int index) {
+        return inOffsets[index];
+    }
+
+    public int getInlink(int k) {
+        return inLinks[k];
+    }
+
+    /**
+     * @return The number of pages that link to both pages.
+     */
+    public int countCommonInlinks(int index1, int index2) {
+        return (int) intersect(inLinks, inOffsets[index1], inOffsets[index1 + 1],
+                               inLinks, inOffsets[index2], inOffsets[index2 + 1], null);
+    }
+
+    /**
+     * @return The number of pages that both pages link to.
+     */
+    public int countCommonOutlinks(int index1, int index2) {
+        return (int) intersect(outLinks, outOffsets[index1], outOffsets[index1 + 1],
+                               outLinks, outOffsets[index2], outOffsets[index2 + 1], null);
+    }
+
+    /**
+     * @param weights The weight of each page, by dense index.
+     * @return The dot product of the two pages' outlink vectors, where each outlink has its page's weight.
+     */
+    public double outlinkDot(int index1, int index2, float weights[]) {
+        return intersect(outLinks, outOffsets[index1], outOffsets[index1 + 1],
+                         outLinks, outOffsets[index2], outOffsets[index2 + 1], weights);
+    }
+
+    /**
+     * Intersects two sorted ranges. Returns the size of the intersection if weights is null,
+     * and otherwise the sum of the squared weights of the common elements.
+     */
+    static double intersect(int a[], int aFrom, int aTo, int b[], int bFrom, int bTo, float weights[]) {
+        if (aTo - aFrom > bTo - bFrom) {
+            return intersect(b, bFrom, bTo, a, aFrom, aTo, weights);
+        }
+        double sum = 0.0;
+        int i = aFrom, j = bFrom;
+        if ((long) (aTo - aFrom) * GALLOP_RATIO < bTo - bFrom) {
+            for (; i < aTo && j < bTo; i++) {
+                int x = a[i];
+                int step = 1;
+                int lo = j;
+                while (j + step < bTo && b[j + step] < x) {
+                    lo = j + step;
+                    step <<= 1;
+                }
+                int k = Arrays.binarySearch(b, lo, Math.min(j + step + 1, bTo), x);
+                if (k >= 0) {
+                    sum += (weights == null) ? 1.0 : (double) weights[x] * weights[x];
+                    j = k + 1;
+                } else {
+                    j = -k - 1;
+                }
+            }
+        } else {
+            while (i < aTo && j < bTo) {
+                int x = a[i];
+                int y = b[j];
+                if (x < y) {
+                    i++;
+                } else if (x > y) {
+                    j++;
+                } else {
+                    sum += (weights == null) ? 1.0 : (double) weights[x] * weights[x];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return sum;
+    }
+}
@@ -1,7 +1,7 @@
 package org.wikibrain.sr.milnewitten;
 
+import gnu.trove.iterator.TIntIterator;
 import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
 
@@ -30,25 +30,35 @@ public class MilneWittenCore {
      * @return
      */
     public SRResult similarity(TIntSet links1, TIntSet links2, int numPages, boolean explanations){
-        TIntSet i = new TIntHashSet(links1);
-        i.retainAll(links2);
-        if (i.isEmpty()){
+        // Probe the larger set with the smaller one rather than copying either.
+        TIntSet smaller = (links1.size() <= links2.size()) ? links1 : links2;
+        TIntSet larger = (smaller == links1) ? links2 : links1;
+        int intersection = 0;
+        for (TIntIterator iter = smaller.iterator(); iter.hasNext();) {
+            if (larger.contains(iter.next())) {
+                intersection++;
+            }
+        }
+        if (intersection == 0){
             return new SRResult(0.0);
         }
 
         double a = Math.log(links1.size()) ;
         double b = Math.log(links2.size()) ;
-        double ab = Math.log(i.size()) ;
+        double ab = Math.log(intersection) ;
         double m = Math.log(numPages);
 
         SRResult result = new SRResult(
                 1.0 - (Math.max(a, b) -ab) / (m - Math.min(a, b)));
 
         if (explanations) {
-            for (int id: i.toArray()) {
-                List<Integer> formatPages = new ArrayList<Integer>();
-                formatPages.add(id);
-                result.addExplanation(new Explanation("?",formatPages));
+            for (TIntIterator iter = smaller.iterator(); iter.hasNext();) {
+                int id = iter.next();
+                if (larger.contains(id)) {
+                    List<Integer> formatPages = new ArrayList<Integer>();
+                    formatPages.add(id);
+                    result.addExplanation(new Explanation("?",formatPages));
+                }
             }
         }
         return result;
@@ -1,8 +1,14 @@
 package org.wikibrain.sr.milnewitten;
 
 import com.typesafe.config.Config;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.conf.Configuration;
@@ -24,14 +30,28 @@ import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.normalize.Normalizer;
+import org.wikibrain.sr.utils.BatchSimilarity;
 import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.Scoreboard;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Milne and Witten's link-based relatedness: the average of the Google distance between
+ * the pages' inlinks and the cosine similarity of their idf-weighted outlinks.
+ *
+ * By default the links of every page are loaded into a LinkIndex when the metric is
+ * configured (see buildLinkIndex()), after which similarity and mostSimilar make no dao
+ * calls. The index is never built on the request path; until it is built, or if it is
+ * disabled, links are fetched from the LocalLinkDao for each request.
+ *
+ * Pages with no inlinks in common get an inlink score of 0 rather than the Google
+ * distance's limit of negative infinity, so they are still ranked by their outlinks.
+ *
  * @author Shilad Sen
  */
 public class SimpleMilneWitten implements MonolingualSRMetric {
@@ -42,18 +62,26 @@ public class SimpleMilneWitten implements MonolingualSRMetric {
     private final AnchorTextPhraseAnalyzer phraseAnalyzer;
     private final int numArticles;
 
+    private boolean useLinkIndex = true;
+    private volatile IndexedLinks indexedLinks = null;
+
     public SimpleMilneWitten(String name, Language language, LocalPageDao pageDao, LocalLinkDao linkDao, AnchorTextPhraseAnalyzer phraseAnalyzer) throws DaoException {
+        this(name, language, pageDao, linkDao, phraseAnalyzer,
+                pageDao.getCount(
+                        new DaoFilter()
+                                .setLanguages(language)
+                                .setDisambig(false)
+                                .setRedirect(false)
+                                .setNameSpaces(NameSpace.ARTICLE)));
+    }
+
+    SimpleMilneWitten(String name, Language language, LocalPageDao pageDao, LocalLinkDao linkDao, AnchorTextPhraseAnalyzer phraseAnalyzer, int numArticles) {
         this.name = name;
         this.language = language;
         this.pageDao = pageDao;
         this.linkDao = linkDao;
         this.phraseAnalyzer = phraseAnalyzer;
-        this.numArticles = pageDao.getCount(
-                new DaoFilter()
-                        .setLanguages(language)
-                        .setDisambig(false)
-                        .setRedirect(false)
-                        .setNameSpaces(NameSpace.ARTICLE));
+        this.numArticles = numArticles;
     }
 
     @Override
@@ -76,14 +104,156 @@ public class SimpleMilneWitten implements MonolingualSRMetric {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Sets whether links are loaded into a LinkIndex (the default) or fetched from the dao per request.
+     * Disabling the index discards one that has already been built.
+     */
+    public synchronized void setUseLinkIndex(boolean useLinkIndex) {
+        this.useLinkIndex = useLinkIndex;
+        if (!useLinkIndex) {
+            indexedLinks = null;
+        }
+    }
+
+    /**
+     * Loads the links of every page into a LinkIndex, replacing any existing index.
+     * This scans all the links in the language, so it should be called when the metric
+     * is set up (the provider and the train methods do so) and again whenever the links
+     * change. Does nothing if the index is disabled.
+     */
+    public synchronized void buildLinkIndex() throws DaoException {
+        if (useLinkIndex) {
+            setLinkIndex(LinkIndex.build(linkDao, language));
+        }
+    }
+
+    /**
+     * Replaces the link index and the outlink weights derived from it.
+     */
+    synchronized void setLinkIndex(LinkIndex index) {
+        float weights[] = new float[index.getNumPages()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (float) Math.log(1.0 * numArticles / Math.max(1, index.getOutDegree(i)));
+        }
+        float norms[] = new float[index.getNumPages()];
+        for (int i = 0; i < norms.length; i++) {
+            norms[i] = (float) Math.sqrt(index.outlinkDot(i, i, weights));
+        }
+        indexedLinks = new IndexedLinks(index, weights, norms);
+    }
+
+    /**
+     * @return The link index, or null if it is disabled or has not been built.
+     */
+    public LinkIndex getLinkIndex() {
+        IndexedLinks links = indexedLinks;
+        return (links == null) ? null : links.index;
+    }
+
+    /**
+     * A link index and the outlink weights computed from it, swapped as a unit when the index is rebuilt.
+     */
+    private static class IndexedLinks {
+        final LinkIndex index;
+        final float outlinkWeights[];     // idf weight of each page as an outlink, by index
+        final float outlinkNorms[];       // length of each page's weighted outlink vector, by index
+
+        IndexedLinks(LinkIndex index, float outlinkWeights[], float outlinkNorms[]) {
+            this.index = index;
+            this.outlinkWeights = outlinkWeights;
+            this.outlinkNorms = outlinkNorms;
+        }
+    }
+
+    /**
+     * The Google similarity of two pages' inlinks. Pages with no inlinks in common score 0.
+     */
+    private double inlinkSimilarity(int a, int b, int ab) {
+        return (ab == 0) ? 0.0 : SimUtils.googleSimilarity(a, b, ab, numArticles);
+    }
+
     @Override
     public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        double s1 = googleInlink(pageId1, pageId2);
-        double s2 = cosineOutlink(pageId1, pageId2);
+        IndexedLinks links = indexedLinks;
+        if (links != null) {
+            return similarity(links, links.index.indexOf(pageId1), links.index.indexOf(pageId2));
+        }
+        return similarity(getLinks(pageId1, null), getLinks(pageId2, null));
+    }
+
+    /**
+     * Scores two pages by their dense indexes in the link index. An index of -1 means the page has no links.
+     */
+    private SRResult similarity(IndexedLinks links, int i1, int i2) {
+        LinkIndex index = links.index;
+        int a = (i1 < 0) ? 0 : index.getInDegree(i1);
+        int b = (i2 < 0) ? 0 : index.getInDegree(i2);
+        int ab = (a > 0 && b > 0) ? index.countCommonInlinks(i1, i2) : 0;
+        double s1 = inlinkSimilarity(a, b, ab);
+        double s2 = 0.0;
+        if (i1 >= 0 && i2 >= 0 && links.outlinkNorms[i1] > 0 && links.outlinkNorms[i2] > 0) {
+            s2 = index.outlinkDot(i1, i2, links.outlinkWeights) / (links.outlinkNorms[i1] * links.outlinkNorms[i2]);
+        }
+        return new SRResult(0.5 * s1 + 0.5 * s2);
+    }
+
+    /**
+     * Fetches the links of each distinct page once, sharing link counts between pages,
+     * and then scores the pairs in parallel.
+     */
+    @Override
+    public SRResult[] similarity(int pageIds1[], int pageIds2[]) throws DaoException {
+        final IndexedLinks indexed = indexedLinks;
+        if (indexed != null) {
+            return BatchSimilarity.score(pageIds1, pageIds2, new BatchSimilarity.Scorer() {
+                @Override
+                public SRResult score(int pageId1, int pageId2) {
+                    return similarity(indexed, indexed.index.indexOf(pageId1), indexed.index.indexOf(pageId2));
+                }
+            });
+        }
+        final ConcurrentHashMap<Integer, Integer> linkCounts = new ConcurrentHashMap<Integer, Integer>();
+        final TIntObjectMap<PageLinks> links = BatchSimilarity.fetch(
+                BatchSimilarity.uniqueIds(pageIds1, pageIds2),
+                new BatchSimilarity.Fetcher<PageLinks>() {
+                    @Override
+                    public PageLinks fetch(int pageId) throws DaoException {
+                        return getLinks(pageId, linkCounts);
+                    }
+                });
+        return BatchSimilarity.score(pageIds1, pageIds2, new BatchSimilarity.Scorer() {
+            @Override
+            public SRResult score(int pageId1, int pageId2) {
+                return similarity(links.get(pageId1), links.get(pageId2));
+            }
+        });
+    }
+
+    private SRResult similarity(PageLinks links1, PageLinks links2) {
+        double s1 = googleInlink(links1.inlinks, links2.inlinks);
+        double s2 = cosineOutlink(links1.outlinkVector, links2.outlinkVector);
 
         return new SRResult(0.5 * s1 + 0.5 * s2);
     }
 
+    /**
+     * The inlinks and weighted outlink vector of a single page.
+     */
+    private static class PageLinks {
+        TIntSet inlinks;
+        TIntFloatMap outlinkVector;
+    }
+
+    /**
+     * @param linkCounts If not null, a cache of the number of links from each page.
+     */
+    private PageLinks getLinks(int pageId, Map<Integer, Integer> linkCounts) throws DaoException {
+        PageLinks links = new PageLinks();
+        links.inlinks = getInlinks(pageId);
+        links.outlinkVector = makeOutlinkVector(getOutlinks(pageId), linkCounts);
+        return links;
+    }
+
     private TIntSet getInlinks(int pageId1) throws DaoException {
         TIntSet inlinks = new TIntHashSet();
         for (LocalLink ll : linkDao.getLinks(language, pageId1, false)) {
@@ -99,45 +269,40 @@ public class SimpleMilneWitten implements MonolingualSRMetric {
         return outlinks;
     }
 
-    private double googleInlink(int pageId1, int pageId2) throws DaoException {
-        TIntSet inlinks1 = getInlinks(pageId1);
-        TIntSet inlinks2 = getInlinks(pageId2);
-
-        if (inlinks1.isEmpty() && inlinks2.isEmpty()) {
-            return 0.0;
+    private double googleInlink(TIntSet inlinks1, TIntSet inlinks2) {
+        TIntSet smaller = (inlinks1.size() <= inlinks2.size()) ? inlinks1 : inlinks2;
+        TIntSet larger = (smaller == inlinks1) ? inlinks2 : inlinks1;
+        int ab = 0;
+        for (TIntIterator iter = smaller.iterator(); iter.hasNext();) {
+            if (larger.contains(iter.next())) {
+                ab++;
+            }
         }
-        int a = inlinks1.size();
-        int b = inlinks2.size();
-        TIntSet intersection = new TIntHashSet(inlinks1.toArray());
-        intersection.retainAll(inlinks2);
-        int ab = intersection.size();
-
-        return 1.0 - (
-                (Math.log(Math.max(a, b)) - Math.log(ab))
-                / (Math.log(numArticles) - Math.log(Math.min(a, b)))
-        );
+        return inlinkSimilarity(inlinks1.size(), inlinks2.size(), ab);
     }
 
-    private double cosineOutlink(int pageId1, int pageId2) throws DaoException {
-        TIntSet outlinks1 = getOutlinks(pageId1);
-        TIntSet outlinks2 = getOutlinks(pageId2);
-
-        TIntFloatMap v1 = makeOutlinkVector(outlinks1);
-        TIntFloatMap v2 = makeOutlinkVector(outlinks2);
+    private double cosineOutlink(TIntFloatMap v1, TIntFloatMap v2) {
         if (v1.isEmpty() || v2.isEmpty()) {
             return 0.0;
         }
         return SimUtils.cosineSimilarity(v1, v2);
     }
 
-    private int getNumLinks(int wpId) throws DaoException {
-        return linkDao.getCount(new DaoFilter().setLanguages(language).setSourceIds(wpId));
+    private int getNumLinks(int wpId, Map<Integer, Integer> linkCounts) throws DaoException {
+        Integer n = (linkCounts == null) ? null : linkCounts.get(wpId);
+        if (n == null) {
+            n = linkDao.getCount(new DaoFilter().setLanguages(language).setSourceIds(wpId));
+            if (linkCounts != null) {
+                linkCounts.put(wpId, n);
+            }
+        }
+        return n;
     }
 
-    private TIntFloatMap makeOutlinkVector(TIntSet links) throws DaoException {
+    private TIntFloatMap makeOutlinkVector(TIntSet links, Map<Integer, Integer> linkCounts) throws DaoException {
         TIntFloatMap vector = new TIntFloatHashMap();
         for (int wpId : links.toArray()) {
-            vector.put(wpId, (float) Math.log(1.0 * numArticles / getNumLinks(wpId)));
+            vector.put(wpId, (float) Math.log(1.0 * numArticles / getNumLinks(wpId, linkCounts)));
         }
         return vector;
     }
@@ -193,12 +358,72 @@ public class SimpleMilneWitten implements MonolingualSRMetric {
 
     @Override
     public SRResultList mostSimilar(int pageId, int maxResults) throws DaoException {
-        throw new UnsupportedOperationException();
+        return mostSimilar(pageId, maxResults, null);
     }
 
+    /**
+     * Scores every page that shares an inlink or an outlink with the page, using the link index.
+     * Co-citation counts and outlink dot products are accumulated by walking the page's
+     * neighbors' neighbors, so no pairwise intersections are needed.
+     * @throws UnsupportedOperationException if the link index is disabled or has not been built.
+     */
     @Override
     public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
-        throw new UnsupportedOperationException();
+        IndexedLinks links = indexedLinks;
+        if (links == null) {
+            throw new UnsupportedOperationException("mostSimilar requires a link index; call buildLinkIndex() first");
+        }
+        LinkIndex index = links.index;
+        float outlinkWeights[] = links.outlinkWeights;
+        float outlinkNorms[] = links.outlinkNorms;
+        int i = index.indexOf(pageId);
+        if (i < 0) {
+            return new SRResultList(0);
+        }
+
+        // number of inlinks shared with each candidate
+        TIntIntMap commonInlinks = new TIntIntHashMap();
+        for (int k = index.getInStart(i); k < index.getInStart(i + 1); k++) {
+            int src = index.getInlink(k);
+            for (int l = index.getOutStart(src); l < index.getOutStart(src + 1); l++) {
+                commonInlinks.adjustOrPutValue(index.getOutlink(l), 1, 1);
+            }
+        }
+
+        // dot product of weighted outlinks with each candidate
+        TIntDoubleMap outlinkDots = new TIntDoubleHashMap();
+        for (int k = index.getOutStart(i); k < index.getOutStart(i + 1); k++) {
+            int dest = index.getOutlink(k);
+            double w2 = (double) outlinkWeights[dest] * outlinkWeights[dest];
+            for (int l = index.getInStart(dest); l < index.getInStart(dest + 1); l++) {
+                outlinkDots.adjustOrPutValue(index.getInlink(l), w2, w2);
+            }
+        }
+
+        TIntSet candidates = new TIntHashSet(commonInlinks.keySet());
+        candidates.addAll(outlinkDots.keySet());
+        Scoreboard<Integer> scoreboard = new Scoreboard<Integer>(maxResults);
+        int a = index.getInDegree(i);
+        for (TIntIterator iter = candidates.iterator(); iter.hasNext();) {
+            int c = iter.next();
+            if (validIds != null && !validIds.contains(index.getPageId(c))) {
+                continue;
+            }
+            double s1 = inlinkSimilarity(a, index.getInDegree(c), commonInlinks.get(c));
+            double s2 = 0.0;
+            if (outlinkDots.containsKey(c) && outlinkNorms[i] > 0 && outlinkNorms[c] > 0) {
+                s2 = outlinkDots.get(c) / (outlinkNorms[i] * outlinkNorms[c]);
+            }
+            double score = 0.5 * s1 + 0.5 * s2;
+            if (!Double.isNaN(score) && !Double.isInfinite(score)) {
+                scoreboard.add(index.getPageId(c), score);
+            }
+        }
+        SRResultList results = new SRResultList(scoreboard.size());
+        for (int k = 0; k < scoreboard.size(); k++) {
+            results.set(k, scoreboard.getElement(k), scoreboard.getScore(k));
+        }
+        return results;
     }
 
     @Override
@@ -223,10 +448,16 @@ public class SimpleMilneWitten implements MonolingualSRMetric {
 
     @Override
     public void trainSimilarity(Dataset dataset) throws DaoException {
+        buildLinkIndex();
     }
 
     @Override
     public void trainMostSimilar(Dataset dataset, int numResults, TIntSet validIds) {
+        try {
+            buildLinkIndex();
+        } catch (DaoException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -236,7 +467,7 @@ public class SimpleMilneWitten implements MonolingualSRMetric {
 
     @Override
     public boolean mostSimilarIsTrained() {
-        return false;
+        return indexedLinks != null;
     }
 
     @Override
@@ -306,13 +537,18 @@ public class SimpleMilneWitten implements MonolingualSRMetric {
             Language language = Language.getByLangCode(runtimeParams.get("language"));
 
             try {
-                return new SimpleMilneWitten(
+                SimpleMilneWitten sr = new SimpleMilneWitten(
                         name,
                         language,
                         getConfigurator().get(LocalPageDao.class),
                         getConfigurator().get(LocalLinkDao.class),
                         (AnchorTextPhraseAnalyzer) getConfigurator().get(PhraseAnalyzer.class, "anchortext")
                 );
+                if (config.hasPath("linkIndex")) {
+                    sr.setUseLinkIndex(config.getBoolean("linkIndex"));
+                }
+                sr.buildLinkIndex();
+                return sr;
             } catch (DaoException e) {
                 throw new ConfigurationException(e);
             }
@@ -193,8 +193,8 @@ public class MostSimilarCache implements Closeable {
         try {
             // First see if we have the results directly cached
             if (cosimilarityMatrix != null) {
-                MatrixRow row = cosimilarityMatrix.getRow(wpId);
-                if (row != null && row.getNumCols() >= numResults ) {
+                SparseMatrixCursor row = cosimilarityMatrix.openCursor();
+                if (row.seek(wpId) && row.getNumCols() >= numResults ) {
                     SRResultList results = rowToResultList(row, numResults, validIds);
                     if (results != null && results.numDocs() >= numResults) {
                         return normalize(results, numResults);
@@ -269,9 +269,11 @@ public class MostSimilarCache implements Closeable {
         featureMatrix = readMatrix(FEATURE_MATRIX);
 
         // Write the transpose
-        SparseMatrixTransposer transposer = new SparseMatrixTransposer(
+        ExternalSparseMatrixTransposer transposer = new ExternalSparseMatrixTransposer(
                 featureMatrix,
-                getFeatureTransposeMatrixPath());
+                getFeatureTransposeMatrixPath(),
+                SparseMatrixTransposer.defaultBufferSizeInMbs(),
+                maxThreads);
         transposer.transpose();
 
         // Reload the transpose
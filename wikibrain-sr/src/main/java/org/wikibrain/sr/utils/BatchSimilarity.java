@@ -0,0 +1,189 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Building blocks for metrics that compute the similarity of many pairs of pages at once.
+ *
+ * A batch is processed in two phases: the data for each distinct page (e.g. its vector)
+ * is fetched once, and then the pairs are scored. Both phases are split into blocks that
+ * run on a shared pool of daemon threads. Small batches, and batches started from within
+ * the pool itself, run on the calling thread so nested batches can't deadlock.
+ *
+ * If any fetch or score fails, the first exception is rethrown from the batch call.
+ */
+public class BatchSimilarity {
+
+    /**
+     * Number of pages or pairs processed by each parallel task.
+     */
+    public static final int BLOCK_SIZE = 256;
+
+    /**
+     * Fetches the data associated with a single page.
+     */
+    public static interface Fetcher<V> {
+        /**
+         * @return The data for the page, or null if it is unavailable.
+         */
+        V fetch(int pageId) throws Exception;
+    }
+
+    /**
+     * Scores a single pair of pages.
+     */
+    public static interface Scorer {
+        SRResult score(int pageId1, int pageId2) throws Exception;
+    }
+
+    private static ExecutorService executor = null;
+
+    /**
+     * Returns the distinct ids in two arrays of paired ids, in ascending order.
+     * @throws IllegalArgumentException if the arrays have different lengths.
+     */
+    public static int[] uniqueIds(int pageIds1[], int pageIds2[]) {
+        if (pageIds1.length != pageIds2.length) {
+            throw new IllegalArgumentException("pair arrays have different lengths: "
+                    + pageIds1.length + " and " + pageIds2.length);
+        }
+        TIntSet unique = new TIntHashSet(pageIds1);
+        unique.addAll(pageIds2);
+        int ids[] = unique.toArray();
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Fetches the data for each page in parallel.
+     * @return A map from page id to data. Pages whose data is null are absent.
+     */
+    public static <V> TIntObjectMap<V> fetch(final int pageIds[], final Fetcher<V> fetcher) throws DaoException {
+        final Object values[] = new Object[pageIds.length];
+        parallel(pageIds.length, BLOCK_SIZE, new Block() {
+            @Override
+            public void run(int i) throws Exception {
+                values[i] = fetcher.fetch(pageIds[i]);
+            }
+        });
+        TIntObjectMap<V> result = new TIntObjectHashMap<V>(pageIds.length * 2);
+        for (int i = 0; i < pageIds.length; i++) {
+            if (values[i] != null) {
+                result.put(pageIds[i], (V) values[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Scores each pair in parallel.
+     * @return An array whose i-th entry is the score of pageIds1[i] and pageIds2[i].
+     */
+    public static SRResult[] score(final int pageIds1[], final int pageIds2[], final Scorer scorer) throws DaoException {
+        if (pageIds1.length != pageIds2.length) {
+            throw new IllegalArgumentException("pair arrays have different lengths: "
+                    + pageIds1.length + " and " + pageIds2.length);
+        }
+        final SRResult results[] = new SRResult[pageIds1.length];
+        parallel(pageIds1.length, BLOCK_SIZE, new Block() {
+            @Override
+            public void run(int i) throws Exception {
+                results[i] = scorer.score(pageIds1[i], pageIds2[i]);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * A task that is run once for each index in a range.
+     */
+    public static interface Block {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * Runs a block for each index in [0, n) on the shared pool, in parallel tasks that
+     * each cover blockSize consecutive indexes, and waits for them to finish.
+     * The first exception thrown by the block is rethrown.
+     */
+    public static void parallel(int n, int blockSize, final Block block) throws DaoException {
+        if (n <= blockSize || Thread.currentThread() instanceof BatchThread) {
+            try {
+                for (int i = 0; i < n; i++) {
+                    block.run(i);
+                }
+            } catch (DaoException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new DaoException(e);
+            }
+            return;
+        }
+        ExecutorService exec = getExecutor();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int start = 0; start < n; start += blockSize) {
+            final int from = start;
+            final int to = Math.min(n, start + blockSize);
+            futures.add(exec.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for (int i = from; i < to; i++) {
+                        block.run(i);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new DaoException(e);
+        } catch (ExecutionException e) {
+            for (Future<Object> f : futures) {
+                f.cancel(false);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof DaoException) {
+                throw (DaoException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new DaoException((Exception) cause);
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(WpThreadUtils.getMaxThreads(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new BatchThread(r);
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static class BatchThread extends Thread {
+        BatchThread(Runnable r) {
+            super(r, "batch-similarity");
+            setDaemon(true);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.map.TIntFloatMap;
+
+import java.util.Arrays;
+
+/**
+ * A read-only sparse vector stored as parallel arrays of ids in ascending order and values.
+ *
+ * Dot products between two vectors are computed by merging the id arrays, which touches
+ * each entry once and avoids the hashing and boxing of TIntFloatMap lookups. Converting a
+ * map costs a sort, so this pays off when a vector takes part in many dot products.
+ */
+public class SortedSparseVector {
+    private final int ids[];
+    private final float values[];
+    private final double norm;
+
+    public SortedSparseVector(int ids[], float values[]) {
+        if (ids.length != values.length) {
+            throw new IllegalArgumentException();
+        }
+        this.ids = ids;
+        this.values = values;
+        double sumSquares = 0.0;
+        for (float v : values) {
+            sumSquares += (double) v * v;
+        }
+        this.norm = Math.sqrt(sumSquares);
+    }
+
+    /**
+     * Creates a sorted copy of a map. A null map creates an empty vector.
+     */
+    public static SortedSparseVector fromMap(TIntFloatMap map) {
+        if (map == null) {
+            return new SortedSparseVector(new int[0], new float[0]);
+        }
+        int ids[] = map.keys();
+        Arrays.sort(ids);
+        float values[] = new float[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            values[i] = map.get(ids[i]);
+        }
+        return new SortedSparseVector(ids, values);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public float getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return The euclidean length of the vector.
+     */
+    public double getNorm() {
+        return norm;
+    }
+
+    /**
+     * Returns the dot product of two vectors by merging their sorted ids.
+     */
+    public static double dot(SortedSparseVector x, SortedSparseVector y) {
+        int ids1[] = x.ids;
+        int ids2[] = y.ids;
+        int n1 = ids1.length;
+        int n2 = ids2.length;
+        int i = 0, j = 0;
+        double dot = 0.0;
+        while (i < n1 && j < n2) {
+            int id1 = ids1[i];
+            int id2 = ids2[j];
+            if (id1 < id2) {
+                i++;
+            } else if (id1 > id2) {
+                j++;
+            } else {
+                dot += (double) x.values[i++] * y.values[j++];
+            }
+        }
+        return dot;
+    }
+
+    /**
+     * Returns the cosine similarity of two vectors, or 0 if either is empty.
+     * This matches SimUtils.cosineSimilarity for maps.
+     */
+    public static double cosine(SortedSparseVector x, SortedSparseVector y) {
+        if (x.norm == 0.0 || y.norm == 0.0) {
+            return 0.0;
+        }
+        return dot(x, y) / (x.norm * y.norm);
+    }
+}
@@ -0,0 +1,178 @@
+package org.wikibrain.sr.vector;
+
+import com.typesafe.config.Config;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.matrix.DenseVectorStore;
+import org.wikibrain.matrix.IvfIndex;
+import org.wikibrain.matrix.ScoreHeap;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Cosine similarity whose mostSimilar() queries use an approximate nearest neighbour
+ * (IVF) index over dense vectors instead of scanning every candidate.
+ *
+ * The index is built over the page vectors of a DenseVectorGenerator by
+ * VectorBasedMonoSRMetric and stored in the metric's data directory. Recall and
+ * latency are traded off with numProbes: the number of clusters searched per query.
+ */
+public class ApproximateCosineSimilarity implements VectorSimilarity {
+    private static final Logger LOG = Logger.getLogger(ApproximateCosineSimilarity.class.getName());
+
+    private int numLists = -1;
+    private int numProbes = 16;
+    private int iterations = 10;
+
+    private IvfIndex index;
+
+    /**
+     * Builds the index over the vectors in a store and writes it to a file.
+     */
+    public synchronized void buildIndex(DenseVectorStore store, File path) throws IOException {
+        int lists = numLists > 0 ? numLists : (int) Math.max(1, 4 * Math.sqrt(store.size()));
+        try {
+            index = IvfIndex.build(store, lists, iterations, WpThreadUtils.getMaxThreads());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        index.write(path);
+    }
+
+    /**
+     * Reads an index previously written by buildIndex.
+     */
+    public synchronized void readIndex(DenseVectorStore store, File path) throws IOException {
+        index = IvfIndex.read(store, path);
+        LOG.info("read ivf index with " + index.getNumLists() + " lists from " + path);
+    }
+
+    public synchronized boolean hasIndex() {
+        return index != null;
+    }
+
+    /**
+     * Does nothing: this similarity only uses dense vectors.
+     */
+    @Override
+    public void setMatrices(SparseMatrix features, SparseMatrix transpose) {
+    }
+
+    @Override
+    public double similarity(TIntFloatMap vector1, TIntFloatMap vector2) {
+        return SimUtils.cosineSimilarity(vector1, vector2);
+    }
+
+    /**
+     * Treats the keys of the query as dimensions of a dense vector.
+     */
+    @Override
+    public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+        IvfIndex index = getIndex();
+        float dense[] = new float[index.getStore().getDimensions()];
+        for (int d : query.keys()) {
+            if (d < 0 || d >= dense.length) {
+                throw new IllegalArgumentException("query is not a dense vector of length " + dense.length);
+            }
+            dense[d] = query.get(d);
+        }
+        return mostSimilar(dense, maxResults, validIds);
+    }
+
+    public SRResultList mostSimilar(float query[], int maxResults, TIntSet validIds) {
+        ScoreHeap top = getIndex().search(query, maxResults, numProbes, validIds);
+        SRResultList result = new SRResultList(top.size());
+        for (int i = 0; i < top.size(); i++) {
+            result.set(i, top.getKey(i), top.getScore(i));
+        }
+        return result;
+    }
+
+    private synchronized IvfIndex getIndex() {
+        if (index == null) {
+            throw new IllegalStateException("approximate nearest neighbour index has not been built or read");
+        }
+        return index;
+    }
+
+    @Override
+    public double getMinValue() {
+        return -1.0;
+    }
+
+    @Override
+    public double getMaxValue() {
+        return 1.0;
+    }
+
+    @Override
+    public boolean isSymmetric() {
+        return true;
+    }
+
+    /**
+     * @param numLists Number of clusters in the index, or -1 for 4 * sqrt(number of vectors).
+     */
+    public void setNumLists(int numLists) {
+        this.numLists = numLists;
+    }
+
+    /**
+     * @param numProbes Number of clusters searched for each query. Higher is slower and more accurate.
+     */
+    public void setNumProbes(int numProbes) {
+        this.numProbes = numProbes;
+    }
+
+    public int getNumProbes() {
+        return numProbes;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<VectorSimilarity> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return VectorSimilarity.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "sr.metric.similarity";
+        }
+
+        @Override
+        public VectorSimilarity get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("ann")) {
+                return null;
+            }
+            ApproximateCosineSimilarity similarity = new ApproximateCosineSimilarity();
+            if (config.hasPath("numLists")) {
+                similarity.setNumLists(config.getInt("numLists"));
+            }
+            if (config.hasPath("numProbes")) {
+                similarity.setNumProbes(config.getInt("numProbes"));
+            }
+            if (config.hasPath("iterations")) {
+                similarity.setIterations(config.getInt("iterations"));
+            }
+            return similarity;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.wikibrain.sr.vector;
+
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.matrix.SparseMatrixWriter;
+
+import java.io.IOException;
+
+/**
+ * A vector generator that can produce the vectors for many pages more efficiently
+ * than one getVector() call per page (e.g. by resolving ids in bulk and sharing
+ * per-thread state). VectorBasedMonoSRMetric uses it to build feature matrices.
+ */
+public interface BatchVectorGenerator extends VectorGenerator {
+
+    /**
+     * Writes the vector of each page to the writer as a matrix row.
+     * Pages without a vector or with an empty vector are skipped.
+     *
+     * @param pageIds
+     * @param writer
+     * @param numThreads
+     * @throws DaoException
+     * @throws IOException
+     */
+    public void writeVectors(int pageIds[], SparseMatrixWriter writer, int numThreads) throws DaoException, IOException;
+}
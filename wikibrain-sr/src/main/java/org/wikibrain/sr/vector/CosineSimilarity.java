@@ -1,6 +1,7 @@
 package org.wikibrain.sr.vector;
 
 import com.typesafe.config.Config;
+import gnu.trove.iterator.TIntDoubleIterator;
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
@@ -9,8 +10,8 @@ import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
-import org.wikibrain.matrix.MatrixRow;
 import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixCursor;
 import org.wikibrain.matrix.SparseMatrixRow;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
@@ -18,18 +19,42 @@ import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SimUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
 /**
+ * Cosine similarity between sparse feature vectors.
+ *
+ * mostSimilar() over large candidate sets uses max-score pruning when all feature values
+ * are non-negative. Each feature has an upper bound on its contribution to any cosine
+ * (its largest value in a length-normalized row). Query features are visited in decreasing
+ * order of bound. Once the k-th best partial score is at least the most the unvisited
+ * features could add (the smaller of the sum of their bounds and a Cauchy-Schwarz bound),
+ * no unseen row can reach the top k. From then on only rows already
+ * seen are scored: their remaining postings are scanned or their rows are read directly,
+ * whichever touches fewer entries. The results match the exhaustive inverted index scan.
+ *
  * @author Shilad Sen
  */
 public class CosineSimilarity implements VectorSimilarity {
     private static final Logger LOG = Logger.getLogger(CosineSimilarity.class.getName());
 
+    /**
+     * Relative amount added to feature bounds to absorb rounding error.
+     */
+    private static final double BOUND_SLACK = 1e-4;
+
     private final TIntFloatHashMap lengths = new TIntFloatHashMap();   // lengths of each row
+    private final TIntFloatHashMap featureBounds = new TIntFloatHashMap();  // max of value / row length for each feature
     private final TIntSet idsInResults = new TIntHashSet();
     private int maxResults = -1;
+    private boolean nonNegative = true;     // true if no feature value is negative
+    private double meanRowSize = 0.0;
+    private boolean useMaxScore = true;
 
     private SparseMatrix features;
     private SparseMatrix transpose;
@@ -41,15 +66,41 @@ public class CosineSimilarity implements VectorSimilarity {
 
         LOG.info("building cached matrix information");
         lengths.clear();
+        featureBounds.clear();
         idsInResults.clear();
         maxResults = 0;
+        nonNegative = true;
+        long numCells = 0;
         for (SparseMatrixRow row : features) {
-            lengths.put(row.getRowIndex(), (float) row.getNorm());
+            double norm = row.getNorm();
+            lengths.put(row.getRowIndex(), (float) norm);
             maxResults = Math.max(maxResults, row.getNumCols());
+            numCells += row.getNumCols();
+            for (int i = 0; i < row.getNumCols(); i++) {
+                float value = row.getColValue(i);
+                if (value < 0) {
+                    nonNegative = false;
+                }
+                if (norm > 0) {
+                    float bound = (float) (Math.abs(value) / norm);
+                    if (bound > featureBounds.get(row.getColIndex(i))) {
+                        featureBounds.put(row.getColIndex(i), bound);
+                    }
+                }
+            }
         }
+        meanRowSize = (features.getNumRows() == 0) ? 0.0 : 1.0 * numCells / features.getNumRows();
         idsInResults.addAll(transpose.getRowIds());
     }
 
+    /**
+     * Sets whether mostSimilar() may use max-score pruning (the default).
+     * If false, large candidate sets are always scored by a full inverted index scan.
+     */
+    public void setUseMaxScore(boolean useMaxScore) {
+        this.useMaxScore = useMaxScore;
+    }
+
     @Override
     public double similarity(TIntFloatMap vector1, TIntFloatMap vector2) {
         return SimUtils.cosineSimilarity(vector1, vector2);
@@ -59,6 +110,8 @@ public class CosineSimilarity implements VectorSimilarity {
     public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         if (validIds != null && validIds.size() < 10000) {
             return mostSimilarWithRegularIndex(query, maxResults, validIds);
+        } else if (useMaxScore && nonNegative && isNonNegative(query)) {
+            return mostSimilarWithMaxScore(query, maxResults, validIds);
         } else {
             return mostSimilarWithInvertedIndex(query, maxResults, validIds);
         }
@@ -68,9 +121,9 @@ public class CosineSimilarity implements VectorSimilarity {
         final Leaderboard leaderboard = new Leaderboard(maxResults);
         double rowNorm = norm(query);
 
+        SparseMatrixCursor row2 = features.openCursor();
         for (int id : validIds.toArray()) {
-            MatrixRow row2 = features.getRow(id);
-            if (row2 != null) {
+            if (row2.seek(id)) {
                 double dot = 0.0;
                 for (int i = 0; i < row2.getNumCols(); i++) {
                     int id2 = row2.getColIndex(i);
@@ -93,10 +146,10 @@ public class CosineSimilarity implements VectorSimilarity {
 
     private SRResultList mostSimilarWithInvertedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         TIntDoubleHashMap dots = new TIntDoubleHashMap(maxResults * 5);
+        SparseMatrixCursor row2 = transpose.openCursor();
         for (int id : query.keys()) {
             float val1 = query.get(id);
-            MatrixRow row2 = transpose.getRow(id);
-            if (row2 != null) {
+            if (row2.seek(id)) {
                 for (int j = 0; j < row2.getNumCols(); j++) {
                     int id2 = row2.getColIndex(j);
                     if (validIds == null || validIds.contains(id2)) {
@@ -122,6 +175,168 @@ public class CosineSimilarity implements VectorSimilarity {
         return result;
     }
 
+    private SRResultList mostSimilarWithMaxScore(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+        double rowNorm = norm(query);
+        if (rowNorm == 0 || maxResults <= 0) {
+            return new SRResultList(0);
+        }
+
+        // order query features by the most they can add to any (unnormalized) score
+        final int queryIds[] = query.keys();
+        final double bounds[] = new double[queryIds.length];
+        List<Integer> sorted = new ArrayList<Integer>();
+        for (int i = 0; i < queryIds.length; i++) {
+            // pad the bound a little so float rounding can't make it too small
+            bounds[i] = query.get(queryIds[i]) * featureBounds.get(queryIds[i]) * (1.0 + BOUND_SLACK);
+            if (bounds[i] > 0) {
+                sorted.add(i);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(bounds[i2], bounds[i1]);
+            }
+        });
+        // remaining[i] bounds what features i and later can add to any row's score. It is the
+        // smaller of the sum of their bounds and, by Cauchy-Schwarz, the length of the query
+        // restricted to them times the length of their bounds (at most 1 for a normalized row).
+        // postingsLeft[i] counts the postings of features i and later, the work a cutoff there saves.
+        SparseMatrixCursor postings = transpose.openCursor();
+        int n = sorted.size();
+        int order[] = new int[n];
+        double remaining[] = new double[n + 1];
+        long postingsLeft[] = new long[n + 1];
+        double sumBounds = 0.0, sumSquares = 0.0, sumSquaredBounds = 0.0;
+        for (int i = n - 1; i >= 0; i--) {
+            order[i] = sorted.get(i);
+            int id = queryIds[order[i]];
+            double q = query.get(id);
+            double b = featureBounds.get(id);
+            sumBounds += bounds[order[i]];
+            sumSquares += q * q;
+            sumSquaredBounds += b * b;
+            double norms = Math.sqrt(sumSquares) * Math.min(1.0, Math.sqrt(sumSquaredBounds)) * (1.0 + BOUND_SLACK);
+            remaining[i] = Math.min(sumBounds, norms);
+            postingsLeft[i] = postingsLeft[i + 1] + (postings.seek(id) ? postings.getNumCols() : 0);
+        }
+
+        // Accumulate dot products until rows that have not been seen can't make the top k.
+        TIntDoubleHashMap dots = new TIntDoubleHashMap(maxResults * 5);
+        double threshold = Double.NEGATIVE_INFINITY;
+        double gap = Double.POSITIVE_INFINITY;      // remaining bound minus threshold at the last full check
+        int topIds[] = null;
+        int i = 0;
+        for (; i < n; i++) {
+            if (topIds != null) {
+                // The current scores of the last top k rows are a cheap lower bound on the threshold.
+                threshold = Math.max(threshold, minScore(dots, topIds));
+                if (threshold >= remaining[i]) {
+                    break;
+                }
+            }
+            // Finding the true top k is linear in the number of rows seen, so only do it when
+            // that is less than the postings left, and each time the gap between the remaining
+            // bound and the threshold halves.
+            if (dots.size() >= maxResults && dots.size() < postingsLeft[i] && remaining[i] - threshold <= gap / 2) {
+                SRResultList top = topScores(dots, maxResults);
+                topIds = top.getIds();
+                threshold = top.getScore(0);
+                if (threshold >= remaining[i]) {
+                    break;
+                }
+                gap = remaining[i] - threshold;
+            }
+            int id = queryIds[order[i]];
+            float val1 = query.get(id);
+            if (postings.seek(id)) {
+                for (int j = 0; j < postings.getNumCols(); j++) {
+                    int id2 = postings.getColIndex(j);
+                    if (validIds == null || validIds.contains(id2)) {
+                        float val2 = postings.getColValue(j);
+                        dots.adjustOrPutValue(id2, val1 * val2, val1 * val2);
+                    }
+                }
+            }
+        }
+
+        if (i < n) {
+            // drop rows that can't reach the threshold even with every remaining feature
+            for (TIntDoubleIterator iter = dots.iterator(); iter.hasNext();) {
+                iter.advance();
+                if (iter.value() / lengths.get(iter.key()) + remaining[i] < threshold) {
+                    iter.remove();
+                }
+            }
+            if (dots.size() * meanRowSize < postingsLeft[i]) {
+                // score the surviving rows directly from their feature vectors
+                SparseMatrixCursor row = features.openCursor();
+                for (TIntDoubleIterator iter = dots.iterator(); iter.hasNext();) {
+                    iter.advance();
+                    double dot = 0.0;
+                    if (row.seek(iter.key())) {
+                        for (int j = 0; j < row.getNumCols(); j++) {
+                            dot += query.get(row.getColIndex(j)) * row.getColValue(j);
+                        }
+                    }
+                    iter.setValue(dot);
+                }
+            } else {
+                // finish the remaining postings, but only for the surviving rows
+                for (; i < n; i++) {
+                    int id = queryIds[order[i]];
+                    float val1 = query.get(id);
+                    if (postings.seek(id)) {
+                        for (int j = 0; j < postings.getNumCols(); j++) {
+                            dots.adjustValue(postings.getColIndex(j), val1 * postings.getColValue(j));
+                        }
+                    }
+                }
+            }
+        }
+
+        final Leaderboard leaderboard = new Leaderboard(maxResults);
+        for (TIntDoubleIterator iter = dots.iterator(); iter.hasNext();) {
+            iter.advance();
+            leaderboard.tallyScore(iter.key(), iter.value() / (lengths.get(iter.key()) * rowNorm));
+        }
+        SRResultList result = leaderboard.getTop();
+        result.sortDescending();
+        return result;
+    }
+
+    /**
+     * @return The k rows with the largest length-normalized dot products, in ascending order of score.
+     */
+    private SRResultList topScores(TIntDoubleHashMap dots, int k) {
+        Leaderboard leaderboard = new Leaderboard(k);
+        for (TIntDoubleIterator iter = dots.iterator(); iter.hasNext();) {
+            iter.advance();
+            leaderboard.tallyScore(iter.key(), iter.value() / lengths.get(iter.key()));
+        }
+        return leaderboard.getTop();
+    }
+
+    /**
+     * @return The smallest length-normalized dot product of the rows.
+     */
+    private double minScore(TIntDoubleHashMap dots, int ids[]) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int id : ids) {
+            min = Math.min(min, dots.get(id) / lengths.get(id));
+        }
+        return min;
+    }
+
+    private static boolean isNonNegative(TIntFloatMap vector) {
+        for (float x : vector.values()) {
+            if (x < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public double getMinValue() {
         return -1.0;
@@ -132,6 +347,11 @@ public class CosineSimilarity implements VectorSimilarity {
         return 1.0;
     }
 
+    @Override
+    public boolean isSymmetric() {
+        return true;
+    }
+
     private double norm(TIntFloatMap vector) {
         double length = 0;
         for (float x : vector.values()) {
@@ -0,0 +1,33 @@
+package org.wikibrain.sr.vector;
+
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.matrix.DenseVectorStore;
+
+/**
+ * A vector generator whose vectors are dense and have a fixed number of dimensions
+ * (e.g. word2vec embeddings). VectorBasedMonoSRMetric uses the dense vectors directly
+ * instead of converting them to sparse maps.
+ */
+public interface DenseVectorGenerator extends VectorGenerator {
+
+    /**
+     * Returns the dense vector associated with a Wikipedia id, or null.
+     * @param pageId
+     * @return
+     * @throws DaoException
+     */
+    public float[] getDenseVector(int pageId) throws DaoException;
+
+    /**
+     * Returns the dense vector associated with a phrase, or null.
+     * @param phrase
+     * @return
+     * @throws UnsupportedOperationException if it cannot generate a feature vector for a phrase.
+     */
+    public float[] getDenseVector(String phrase);
+
+    /**
+     * @return The store containing the vectors for all pages.
+     */
+    public DenseVectorStore getPageVectors();
+}
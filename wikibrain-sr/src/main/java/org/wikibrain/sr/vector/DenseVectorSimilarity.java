@@ -0,0 +1,118 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.set.TIntSet;
+import org.wikibrain.matrix.DenseVectorStore;
+import org.wikibrain.matrix.VectorMath;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+
+/**
+ * Computes cosine similarities between dense vectors held in primitive arrays.
+ * Dot products are computed with VectorMath.
+ */
+public class DenseVectorSimilarity {
+    private final DenseVectorStore store;
+
+    /**
+     * Norms of each vector in the store, indexed by position in the store.
+     */
+    private float norms[];
+
+    public DenseVectorSimilarity(DenseVectorStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Returns the cosine similarity between two vectors, or 0 if either is empty.
+     */
+    public static double cosine(float v1[], float v2[]) {
+        double norms = norm(v1) * norm(v2);
+        return (norms == 0.0) ? 0.0 : dot(v1, v2) / norms;
+    }
+
+    public static double dot(float v1[], float v2[]) {
+        if (v1.length != v2.length) {
+            throw new IllegalArgumentException("vectors have different lengths: " + v1.length + " and " + v2.length);
+        }
+        return VectorMath.dot(v1, 0, v2, 0, v1.length);
+    }
+
+    public static double norm(float v[]) {
+        return Math.sqrt(dot(v, v));
+    }
+
+    /**
+     * Computes the cosine similarity matrix between two sets of vectors.
+     * Null vectors have a similarity of 0 with everything.
+     */
+    public static double[][] cosimilarity(float rows[][], float cols[][]) {
+        double rowNorms[] = new double[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            rowNorms[i] = (rows[i] == null) ? 0.0 : norm(rows[i]);
+        }
+        double colNorms[] = new double[cols.length];
+        for (int j = 0; j < cols.length; j++) {
+            colNorms[j] = (cols[j] == null) ? 0.0 : norm(cols[j]);
+        }
+        double results[][] = new double[rows.length][cols.length];
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < cols.length; j++) {
+                double norms = rowNorms[i] * colNorms[j];
+                if (norms > 0) {
+                    results[i][j] = dot(rows[i], cols[j]) / norms;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the vectors in the store most similar to the query.
+     * @param query
+     * @param maxResults
+     * @param validIds If not null, only these ids are considered.
+     * @return
+     */
+    public SRResultList mostSimilar(float query[], int maxResults, TIntSet validIds) {
+        float norms[] = getNorms();
+        double queryNorm = norm(query);
+        Leaderboard leaderboard = new Leaderboard(maxResults);
+        if (queryNorm > 0) {
+            if (validIds != null && validIds.size() < store.size()) {
+                for (int id : validIds.toArray()) {
+                    int i = store.indexOf(id);
+                    if (i >= 0 && norms[i] > 0) {
+                        leaderboard.tallyScore(id, store.dot(i, query) / (norms[i] * queryNorm));
+                    }
+                }
+            } else {
+                for (int i = 0; i < store.size(); i++) {
+                    int id = store.getId(i);
+                    if (norms[i] > 0 && (validIds == null || validIds.contains(id))) {
+                        leaderboard.tallyScore(id, store.dot(i, query) / (norms[i] * queryNorm));
+                    }
+                }
+            }
+        }
+        SRResultList result = leaderboard.getTop();
+        result.sortDescending();
+        return result;
+    }
+
+    private synchronized float[] getNorms() {
+        if (norms == null) {
+            float vector[] = new float[store.getDimensions()];
+            float tmp[] = new float[store.size()];
+            for (int i = 0; i < store.size(); i++) {
+                store.copyVector(i, vector);
+                tmp[i] = (float) norm(vector);
+            }
+            norms = tmp;
+        }
+        return norms;
+    }
+
+    public DenseVectorStore getStore() {
+        return store;
+    }
+}
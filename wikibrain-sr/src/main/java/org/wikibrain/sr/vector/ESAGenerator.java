@@ -2,6 +2,7 @@ package org.wikibrain.sr.vector;
 
 import com.typesafe.config.Config;
 import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -19,26 +20,42 @@ import org.wikibrain.lucene.LuceneSearcher;
 import org.wikibrain.lucene.QueryBuilder;
 import org.wikibrain.lucene.WikiBrainScoreDoc;
 import org.wikibrain.lucene.WpIdFilter;
-import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.ParallelForEach;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Generates ESA vectors: the vector of a page is the lucene scores of the pages
+ * whose text is most like it, and the vector of a phrase is the scores of the
+ * pages matching a phrase query.
+ *
+ * Feature matrices are built with writeVectors(), which resolves lucene ids in
+ * bulk and runs the MoreLikeThis queries for chunks of pages in parallel.
+ *
  * @author Shilad Sen
  */
-public class ESAGenerator implements VectorGenerator {
+public class ESAGenerator implements BatchVectorGenerator {
 
     private static final Logger LOG = Logger.getLogger(ESAGenerator.class.getName());
 
+    /**
+     * writeVectors() logs its progress after this many pages.
+     */
+    private static final int LOG_INTERVAL = 10000;
+
     private final LuceneSearcher searcher;
     private final Language language;
     private final LocalPageDao pageDao;
@@ -59,12 +76,67 @@ public class ESAGenerator implements VectorGenerator {
             LOG.warning("Unindexed document " + pageId + " in " + language.getEnLangName());
             return new TIntFloatHashMap();
         }
+        return getVectorForDoc(luceneId);
+    }
+
+    @Override
+    public void writeVectors(final int pageIds[], final SparseMatrixWriter writer, int numThreads) throws DaoException, IOException {
+        final TIntIntMap luceneIds = searcher.getDocIdsByLocalId(language);
+        final int numChunks = Math.min(pageIds.length, numThreads * 16);
+        if (numChunks == 0) {
+            return;
+        }
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        List<Integer> results = ParallelForEach.range(0, numChunks, numThreads, new Function<Integer, Integer>() {
+            public Integer call(Integer chunk) throws Exception {
+                int unindexed = 0;
+                for (int i = chunk; i < pageIds.length; i += numChunks) {
+                    int n = processed.incrementAndGet();
+                    if (n % LOG_INTERVAL == 0) {
+                        LOG.info("generating ESA vector for page " + n + " of " + pageIds.length);
+                    }
+                    int luceneId = luceneIds.containsKey(pageIds[i]) ? luceneIds.get(pageIds[i]) : -1;
+                    if (luceneId < 0) {
+                        unindexed++;
+                        continue;
+                    }
+                    TIntFloatMap vector;
+                    try {
+                        vector = getVectorForDoc(luceneId);
+                    } catch (Exception e) {
+                        LOG.log(Level.SEVERE, "generating ESA vector for page " + pageIds[i] + " failed", e);
+                        failed.incrementAndGet();
+                        continue;
+                    }
+                    if (!vector.isEmpty()) {
+                        writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageIds[i], vector));
+                    }
+                }
+                return unindexed;
+            }
+        });
+        int unindexed = 0;
+        for (Integer n : results) {
+            if (n == null) {
+                throw new DaoException("writing ESA vectors failed for some pages in " + language);
+            }
+            unindexed += n;
+        }
+        if (unindexed > 0) {
+            LOG.warning(unindexed + " of " + pageIds.length + " pages are not indexed in " + language.getEnLangName());
+        }
+        if (failed.get() > 0) {
+            LOG.warning("generating ESA vectors failed for " + failed.get() + " of " + pageIds.length + " pages in " + language.getEnLangName());
+        }
+    }
+
+    private TIntFloatMap getVectorForDoc(int luceneId) throws DaoException {
         WikiBrainScoreDoc[] wikibrainScoreDocs =  getQueryBuilder()
                 .setMoreLikeThisQuery(luceneId)
                 .search();
         wikibrainScoreDocs = pruneSimilar(wikibrainScoreDocs);
         return SimUtils.normalizeVector(expandScores(wikibrainScoreDocs));
-
     }
 
     @Override
@@ -122,6 +122,11 @@ public class GoogleSimilarity implements VectorSimilarity {
         return 1.0;
     }
 
+    @Override
+    public boolean isSymmetric() {
+        return true;
+    }
+
     public static class Provider extends org.wikibrain.conf.Provider<VectorSimilarity> {
         public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
             super(configurator, config);
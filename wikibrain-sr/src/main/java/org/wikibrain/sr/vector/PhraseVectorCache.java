@@ -0,0 +1,298 @@
+package org.wikibrain.sr.vector;
+
+import com.sleepycat.je.DatabaseException;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.ObjectDb;
+import org.wikibrain.utils.WpStringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * A two tier cache of the sparse vectors PhraseVectorCreator builds for phrases.
+ *
+ * Vectors are kept in a bounded in-memory LRU map backed by an on-disk object database,
+ * so they survive restarts. Keys consist of the language, a hash of the metric's
+ * configuration, and the phrase with its whitespace normalized. Case is preserved
+ * because disambiguators may treat "US" and "us" differently. Phrases without a vector
+ * are cached as empty vectors, since they are as expensive to resolve as those with one.
+ *
+ * The database records a fingerprint of the inputs the vectors were built from, such as
+ * the feature matrix and the Lucene index. If an input changes, for example because the
+ * feature matrices were rebuilt, the database is cleared when it is next opened. Vectors
+ * are copied on the way out, so callers may modify them freely.
+ */
+public class PhraseVectorCache {
+    private static final Logger LOG = Logger.getLogger(PhraseVectorCache.class.getName());
+
+    /**
+     * The key of the input fingerprint. Vector keys always contain a colon.
+     */
+    private static final String FINGERPRINT_KEY = "fingerprint";
+
+    /**
+     * The disk log is flushed after this many writes.
+     */
+    private static final int FLUSH_INTERVAL = 1000;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final File path;
+    private final List<File> inputs;
+    private final String keyPrefix;
+    private final LinkedHashMap<String, byte[]> hot;
+
+    /**
+     * Guards the database: gets and puts share it, clear() replaces it.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private ObjectDb<byte[]> db;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Opens or creates the cache.
+     *
+     * @param path The directory of the on-disk database.
+     * @param language The language of the phrases.
+     * @param configHash A hash of the configuration of the metric and phrase vector creator.
+     * @param inputs The files and directories the vectors are built from.
+     *               They must not contain path.
+     * @param hotSize The maximum number of vectors held in memory.
+     */
+    public PhraseVectorCache(File path, Language language, long configHash, List<File> inputs, final int hotSize) throws IOException {
+        this.path = path;
+        this.inputs = new ArrayList<File>(inputs);
+        this.keyPrefix = language.getLangCode() + ":" + Long.toHexString(configHash) + ":";
+        this.hot = new LinkedHashMap<String, byte[]>(Math.min(hotSize, 1024) * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > hotSize;
+            }
+        };
+        path.mkdirs();
+        try {
+            db = new ObjectDb<byte[]>(path);
+            byte[] fingerprint = getFingerprint();
+            byte[] stored = db.get(FINGERPRINT_KEY);
+            if (stored == null || !Arrays.equals(stored, fingerprint)) {
+                if (stored != null) {
+                    LOG.info("inputs " + inputs + " have changed; clearing phrase vector cache " + path);
+                }
+                db.close();
+                db = new ObjectDb<byte[]>(path, true);
+                db.put(FINGERPRINT_KEY, fingerprint);
+            }
+        } catch (DatabaseException e) {
+            throw new IOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return The cached vector for the phrase, an empty vector if the phrase is cached
+     * as having none, or null if the phrase is not cached.
+     */
+    public TIntFloatMap get(String phrase) {
+        String key = makeKey(phrase);
+        byte encoded[];
+        synchronized (hot) {
+            encoded = hot.get(key);
+        }
+        if (encoded != null) {
+            hits.incrementAndGet();
+            return decode(encoded);
+        }
+        lock.readLock().lock();
+        try {
+            encoded = db.get(key);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "reading phrase vector for '" + phrase + "' failed", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (encoded == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        synchronized (hot) {
+            hot.put(key, encoded);
+        }
+        hits.incrementAndGet();
+        diskHits.incrementAndGet();
+        return decode(encoded);
+    }
+
+    /**
+     * Caches the vector for a phrase. The vector may be null or empty if the phrase has none.
+     */
+    public void put(String phrase, TIntFloatMap vector) {
+        String key = makeKey(phrase);
+        byte encoded[] = encode(vector);
+        synchronized (hot) {
+            hot.put(key, encoded);
+        }
+        lock.readLock().lock();
+        try {
+            db.put(key, encoded);
+            if (writes.incrementAndGet() % FLUSH_INTERVAL == 0) {
+                db.flush();
+            }
+        } catch (DatabaseException e) {
+            LOG.log(Level.WARNING, "writing phrase vector for '" + phrase + "' failed", e);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "writing phrase vector for '" + phrase + "' failed", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every cached vector and records the current state of the inputs.
+     * Call this after rebuilding the metric's data.
+     */
+    public void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            synchronized (hot) {
+                hot.clear();
+            }
+            db.close();
+            db = new ObjectDb<byte[]>(path, true);
+            db.put(FINGERPRINT_KEY, getFingerprint());
+        } catch (DatabaseException e) {
+            throw new IOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes and closes the on-disk database.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            db.flush();
+            db.close();
+        } catch (DatabaseException e) {
+            LOG.log(Level.WARNING, "closing phrase vector cache " + path + " failed", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of hits that were served from disk rather than memory.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return A one line summary of the cache counters, suitable for logging.
+     */
+    public String getStats() {
+        long h = hits.get();
+        long m = misses.get();
+        return String.format("phrase vector cache %s: %d hits (%d from disk), %d misses (%.1f%% hit rate)",
+                path, h, diskHits.get(), m, (h + m == 0) ? 0.0 : 100.0 * h / (h + m));
+    }
+
+    private String makeKey(String phrase) {
+        return keyPrefix + normalize(phrase);
+    }
+
+    /**
+     * Trims the phrase and collapses runs of whitespace to a single space.
+     */
+    static String normalize(String phrase) {
+        return WHITESPACE.matcher(phrase.trim()).replaceAll(" ");
+    }
+
+    /**
+     * Describes the path, length, and modification time of every input. The length of a
+     * directory is the total length of its files and its modification time is that of its
+     * newest file.
+     */
+    private byte[] getFingerprint() throws IOException {
+        StringBuilder description = new StringBuilder();
+        for (File f : inputs) {
+            description.append(f.getAbsolutePath()).append('\t');
+            if (!f.exists()) {
+                description.append("missing");
+            } else if (f.isDirectory()) {
+                description.append(FileUtils.sizeOfDirectory(f)).append('\t').append(newestModification(f));
+            } else {
+                description.append(f.length()).append('\t').append(f.lastModified());
+            }
+            description.append('\n');
+        }
+        return ByteBuffer.allocate(8).putLong(WpStringUtils.longHashCode(description.toString())).array();
+    }
+
+    private static long newestModification(File dir) {
+        long newest = dir.lastModified();
+        File files[] = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                newest = Math.max(newest, f.isDirectory() ? newestModification(f) : f.lastModified());
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Encodes a vector as its size followed by (id, value) pairs. A null vector is encoded as an empty one.
+     */
+    static byte[] encode(TIntFloatMap vector) {
+        if (vector == null) {
+            return ByteBuffer.allocate(4).putInt(0).array();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * vector.size());
+        buffer.putInt(vector.size());
+        for (int id : vector.keys()) {
+            buffer.putInt(id);
+            buffer.putFloat(vector.get(id));
+        }
+        return buffer.array();
+    }
+
+    static TIntFloatMap decode(byte encoded[]) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        int n = buffer.getInt();
+        TIntFloatMap vector = new TIntFloatHashMap(n * 2);
+        for (int i = 0; i < n; i++) {
+            int id = buffer.getInt();
+            vector.put(id, buffer.getFloat());
+        }
+        return vector;
+    }
+}
@@ -15,11 +15,18 @@ import org.wikibrain.core.lang.LocalString;
 import org.wikibrain.lucene.LuceneSearcher;
 import org.wikibrain.lucene.TextFieldElements;
 import org.wikibrain.lucene.WikiBrainScoreDoc;
+import org.wikibrain.sr.MonolingualSRMetric;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.disambig.Disambiguator;
+import org.wikibrain.sr.disambig.SimilarityDisambiguator;
 import org.wikibrain.utils.WpCollectionUtils;
+import org.wikibrain.utils.WpStringUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Config looks like:
@@ -37,13 +44,25 @@ import java.util.*;
  *           text : 50
  *           used : 20
  *     }
+ *
+ *     cache : {
+ *           enabled : true
+ *           hotSize : 10000
+ *     }
  * }
  *
  * A detailed description appears in the reference.conf
  *
+ * If caching is enabled, phrase vectors are kept in a PhraseVectorCache in the
+ * metric's data directory, so repeated phrases are only resolved once. The cache is
+ * invalidated when the metric's features, the Lucene index, or the disambiguator's
+ * metric change, and is keyed by the weights and candidate counts above.
+ *
  * @author Shilad Sen
  */
 public class PhraseVectorCreator {
+    private static final Logger LOG = Logger.getLogger(PhraseVectorCreator.class.getName());
+
     private final LuceneSearcher searcher;
     private Language language;
     private VectorBasedMonoSRMetric metric;
@@ -62,6 +81,12 @@ public class PhraseVectorCreator {
 
     private int numUsedCands = 20;
 
+    private boolean useCache = false;
+    private int cacheHotSize = 10000;
+    private Long configHash = null;
+    private volatile PhraseVectorCache cache = null;
+    private Thread cacheCloser = null;
+
     public PhraseVectorCreator(LuceneSearcher searcher) {
         this.searcher = searcher;
     }
@@ -98,6 +123,130 @@ public class PhraseVectorCreator {
         this.numDabCands = numDabCands;
     }
 
+    /**
+     * Enables or disables the persistent phrase vector cache.
+     * The cache is opened in the metric's data directory the first time it is needed.
+     */
+    public void setUseCache(boolean useCache) {
+        this.useCache = useCache;
+    }
+
+    /**
+     * @param cacheHotSize The maximum number of phrase vectors the cache holds in memory.
+     */
+    public void setCacheHotSize(int cacheHotSize) {
+        this.cacheHotSize = cacheHotSize;
+    }
+
+    /**
+     * Sets the hash of the metric's configuration that cached vectors are keyed by.
+     * This creator's own settings are always part of the key.
+     * If it is not set, the metric's name is used.
+     */
+    public void setConfigHash(long configHash) {
+        this.configHash = configHash;
+    }
+
+    /**
+     * @return The phrase vector cache, or null if caching is disabled or the cache can't be opened.
+     */
+    public PhraseVectorCache getCache() {
+        if (!useCache || metric == null || metric.getDataDir() == null) {
+            return null;
+        }
+        if (cache == null) {
+            synchronized (this) {
+                if (cache == null && useCache) {
+                    File dir = metric.getDataDir();
+                    try {
+                        cache = new PhraseVectorCache(new File(dir, "phraseVectors"),
+                                language, getConfigHash(), getCacheInputs(), cacheHotSize);
+                        // flush the cache even if the metric is never closed
+                        cacheCloser = new Thread() {
+                            @Override
+                            public void run() {
+                                closeCache();
+                            }
+                        };
+                        Runtime.getRuntime().addShutdownHook(cacheCloser);
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "couldn't open phrase vector cache in " + dir + "; disabling it", e);
+                        useCache = false;
+                    }
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Removes all cached phrase vectors. Call this after the metric's data has been rebuilt.
+     */
+    public void clearCache() throws IOException {
+        PhraseVectorCache c = getCache();
+        if (c != null) {
+            c.clear();
+        }
+    }
+
+    /**
+     * Flushes and closes the phrase vector cache, if it is open.
+     * It is reopened if phrase vectors are requested again.
+     */
+    public void close() {
+        Thread closer;
+        synchronized (this) {
+            closer = cacheCloser;
+            cacheCloser = null;
+        }
+        if (closer != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(closer);
+            } catch (IllegalStateException e) {
+                // the JVM is already shutting down and the hook will close the cache
+            }
+        }
+        closeCache();
+    }
+
+    private synchronized void closeCache() {
+        if (cache != null) {
+            LOG.info(cache.getStats());
+            cache.close();
+            cache = null;
+        }
+    }
+
+    private long getConfigHash() {
+        String prefix = (configHash != null) ? Long.toHexString(configHash) : metric.getName();
+        return WpStringUtils.longHashCode(prefix + " " + dabWeight + " " + numDabCands
+                + " " + srWeight + " " + numSrCands + " " + numPerSrCand
+                + " " + textWeight + " " + numTextCands + " " + numUsedCands);
+    }
+
+    /**
+     * The files phrase vectors are built from: the metric's features, the Lucene index
+     * used for textual candidates, and the data of the metric the disambiguator uses.
+     */
+    private List<File> getCacheInputs() {
+        List<File> inputs = new ArrayList<File>();
+        inputs.addAll(metric.getFeatureFiles());
+        if (searcher.getRoot() != null) {
+            inputs.add(new File(searcher.getRoot(), language.getLangCode()));
+        }
+        if (disambig instanceof SimilarityDisambiguator) {
+            MonolingualSRMetric dabMetric = ((SimilarityDisambiguator) disambig).getMetric(language);
+            if (dabMetric instanceof VectorBasedMonoSRMetric) {
+                if (dabMetric != metric) {
+                    inputs.addAll(((VectorBasedMonoSRMetric) dabMetric).getFeatureFiles());
+                }
+            } else if (dabMetric != null && dabMetric.getDataDir() != null) {
+                inputs.add(dabMetric.getDataDir());
+            }
+        }
+        return inputs;
+    }
+
     /**
      * Set metric must be called before this component can be used.
      * @param metric
@@ -110,25 +259,53 @@ public class PhraseVectorCreator {
     }
 
     public TIntFloatMap[] getPhraseVectors(String ... phrases) throws DaoException {
+        PhraseVectorCache cache = getCache();
+        TIntFloatMap results[] = new TIntFloatMap[phrases.length];
+
+        // only disambiguate the phrases that aren't cached
+        List<Integer> missing = new ArrayList<Integer>();
         List<LocalString> local = new ArrayList<LocalString>();
-        for (String p : phrases) {
-            local.add(new LocalString(language, p));
+        for (int i = 0; i < phrases.length; i++) {
+            TIntFloatMap cached = (cache == null) ? null : cache.get(phrases[i]);
+            if (cached == null) {
+                missing.add(i);
+                local.add(new LocalString(language, phrases[i]));
+            } else if (!cached.isEmpty()) {
+                results[i] = cached;
+            }
+        }
+        if (missing.isEmpty()) {
+            return results;
         }
 
         List<LinkedHashMap<LocalId, Float>> candidates = disambig.disambiguate(local, null);
-        if (candidates.size() != phrases.length) throw new IllegalStateException();
+        if (candidates.size() != missing.size()) throw new IllegalStateException();
 
-        TIntFloatMap results[] = new TIntFloatMap[phrases.length];
-        for (int i = 0; i < phrases.length; i++) {
-            results[i] = getPhraseVector(phrases[i], candidates.get(i));
+        for (int j = 0; j < missing.size(); j++) {
+            int i = missing.get(j);
+            results[i] = getPhraseVector(phrases[i], candidates.get(j));
+            if (cache != null) {
+                cache.put(phrases[i], results[i]);
+            }
         }
         return results;
     }
 
     public TIntFloatMap getPhraseVector(String phrase) throws DaoException {
+        PhraseVectorCache cache = getCache();
+        if (cache != null) {
+            TIntFloatMap cached = cache.get(phrase);
+            if (cached != null) {
+                return cached.isEmpty() ? null : cached;
+            }
+        }
         LocalString ls = new LocalString(language, phrase);
         LinkedHashMap<LocalId, Float> candidates = disambig.disambiguate(ls, null);
-        return getPhraseVector(phrase, candidates);
+        TIntFloatMap vector = getPhraseVector(phrase, candidates);
+        if (cache != null) {
+            cache.put(phrase, vector);
+        }
+        return vector;
     }
 
     private TIntFloatMap getPhraseVector(String phrase, LinkedHashMap<LocalId, Float> dabCandidates) throws DaoException {
@@ -281,6 +458,12 @@ public class PhraseVectorCreator {
             if (config.hasPath("numCandidates.perSr")) {
                 creator.setNumPerSrCand(config.getInt("numCandidates.perSr"));
             }
+            if (config.hasPath("cache.enabled")) {
+                creator.setUseCache(config.getBoolean("cache.enabled"));
+            }
+            if (config.hasPath("cache.hotSize")) {
+                creator.setCacheHotSize(config.getInt("cache.hotSize"));
+            }
             return creator;
         }
     }
@@ -1,10 +1,12 @@
 package org.wikibrain.sr.vector;
 
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigRenderOptions;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -28,8 +30,11 @@ import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.disambig.Disambiguator;
+import org.wikibrain.sr.utils.BatchSimilarity;
+import org.wikibrain.sr.utils.SortedSparseVector;
 import org.wikibrain.utils.*;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
@@ -56,11 +61,23 @@ import java.util.logging.Logger;
  * is called, but can also be explicitly built by calling
  * buildFeatureAndTransposeMatrices().
  *
+ * <p>
+ *
+ * If the generator is a BatchVectorGenerator, the feature matrix is written by the
+ * generator in a single call rather than with one getVector() call per page.
+ *
+ * <p>
+ *
+ * If the generator is a DenseVectorGenerator and the similarity is cosine, dense vectors
+ * are compared directly with a DenseVectorSimilarity and no sparse vectors or feature
+ * matrices are created. With an ApproximateCosineSimilarity, mostSimilar() queries use
+ * an approximate nearest neighbour index that is built in place of the feature matrices.
+ *
  * @author Shilad Sen
  * @see org.wikibrain.sr.vector.VectorGenerator
  * @see org.wikibrain.sr.vector.VectorSimilarity
  */
-public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
+public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric implements Closeable {
     private static enum PhraseMode {
         GENERATOR,  // try to get phrase vectors from the generator directly
         CREATOR,    // try to get phrase vectors form the phrase vector creator
@@ -74,6 +91,11 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
     private final SRConfig config;
     private final PhraseVectorCreator phraseVectorCreator;
 
+    /**
+     * Non-null if the generator produces dense vectors compared with cosine similarity.
+     */
+    private final DenseVectorSimilarity denseSimilarity;
+
     private SparseMatrix featureMatrix;
     private SparseMatrix transposeMatrix;
 
@@ -92,6 +114,45 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         if (creator != null) {
             creator.setMetric(this);
         }
+
+        if (generator instanceof DenseVectorGenerator
+        &&  (similarity instanceof CosineSimilarity || similarity instanceof ApproximateCosineSimilarity)) {
+            this.denseSimilarity = new DenseVectorSimilarity(((DenseVectorGenerator) generator).getPageVectors());
+        } else {
+            this.denseSimilarity = null;
+        }
+    }
+
+    private DenseVectorGenerator getDenseGenerator() {
+        return (DenseVectorGenerator) generator;
+    }
+
+    /**
+     * Returns the most similar pages to a dense vector, using the approximate
+     * index if one is available.
+     */
+    private SRResultList denseMostSimilar(float vector[], int maxResults, TIntSet validIds) {
+        if (similarity instanceof ApproximateCosineSimilarity
+        &&  ((ApproximateCosineSimilarity) similarity).hasIndex()) {
+            return ((ApproximateCosineSimilarity) similarity).mostSimilar(vector, maxResults, validIds);
+        } else {
+            return denseSimilarity.mostSimilar(vector, maxResults, validIds);
+        }
+    }
+
+    /**
+     * Returns the dense vector for a phrase from the generator, or null if it
+     * is unavailable or the phrase mode does not allow asking the generator.
+     */
+    private float[] getDensePhraseVector(String phrase) {
+        if (phraseMode != PhraseMode.BOTH && phraseMode != PhraseMode.GENERATOR) {
+            return null;
+        }
+        try {
+            return getDenseGenerator().getDenseVector(phrase);
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
     }
 
     @Override
@@ -99,6 +160,13 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         if (phraseMode == PhraseMode.NONE) {
             return super.similarity(phrase1, phrase2, explanations);
         }
+        if (denseSimilarity != null) {
+            float dense1[] = getDensePhraseVector(phrase1);
+            float dense2[] = getDensePhraseVector(phrase2);
+            if (dense1 != null && dense2 != null) {
+                return normalize(new SRResult(DenseVectorSimilarity.cosine(dense1, dense2)));
+            }
+        }
         TIntFloatMap vector1 = null;
         TIntFloatMap vector2 = null;
         // try using phrases directly
@@ -132,6 +200,14 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
 
     @Override
     public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+        if (denseSimilarity != null) {
+            float dense1[] = getDenseGenerator().getDenseVector(pageId1);
+            float dense2[] = getDenseGenerator().getDenseVector(pageId2);
+            if (dense1 == null || dense2 == null) {
+                return null;
+            }
+            return normalize(new SRResult(DenseVectorSimilarity.cosine(dense1, dense2)));
+        }
         TIntFloatMap vector1 = null;
         TIntFloatMap vector2 = null;
         try {
@@ -146,11 +222,63 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         return normalize(new SRResult(similarity.similarity(vector1, vector2)));
     }
 
+    /**
+     * Fetches the vector for each distinct page once, then scores the pairs in parallel.
+     */
+    @Override
+    public SRResult[] similarity(int pageIds1[], int pageIds2[]) throws DaoException {
+        int uniqueIds[] = BatchSimilarity.uniqueIds(pageIds1, pageIds2);
+        if (denseSimilarity != null) {
+            final TIntObjectMap<float[]> vectors = BatchSimilarity.fetch(uniqueIds,
+                    new BatchSimilarity.Fetcher<float[]>() {
+                        @Override
+                        public float[] fetch(int pageId) throws DaoException {
+                            return getDenseGenerator().getDenseVector(pageId);
+                        }
+                    });
+            return BatchSimilarity.score(pageIds1, pageIds2, new BatchSimilarity.Scorer() {
+                @Override
+                public SRResult score(int pageId1, int pageId2) {
+                    float dense1[] = vectors.get(pageId1);
+                    float dense2[] = vectors.get(pageId2);
+                    if (dense1 == null || dense2 == null) {
+                        return null;
+                    }
+                    return normalize(new SRResult(DenseVectorSimilarity.cosine(dense1, dense2)));
+                }
+            });
+        }
+        final TIntObjectMap<TIntFloatMap> vectors = BatchSimilarity.fetch(uniqueIds,
+                new BatchSimilarity.Fetcher<TIntFloatMap>() {
+                    @Override
+                    public TIntFloatMap fetch(int pageId) throws IOException {
+                        return getPageVector(pageId);
+                    }
+                });
+        return BatchSimilarity.score(pageIds1, pageIds2, new BatchSimilarity.Scorer() {
+            @Override
+            public SRResult score(int pageId1, int pageId2) {
+                TIntFloatMap vector1 = vectors.get(pageId1);
+                TIntFloatMap vector2 = vectors.get(pageId2);
+                if (vector1 == null || vector2 == null) {
+                    return null;
+                }
+                return normalize(new SRResult(similarity.similarity(vector1, vector2)));
+            }
+        });
+    }
+
     @Override
     public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
         if (phraseMode == PhraseMode.NONE) {
             return super.mostSimilar(phrase, maxResults, validIds);
         }
+        if (denseSimilarity != null) {
+            float dense[] = getDensePhraseVector(phrase);
+            if (dense != null) {
+                return denseMostSimilar(dense, maxResults, validIds);
+            }
+        }
         TIntFloatMap vector = null;
         // try using phrases directly
         if (phraseMode == PhraseMode.BOTH || phraseMode == PhraseMode.GENERATOR) {
@@ -180,6 +308,11 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
 
     @Override
     public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+        if (denseSimilarity != null) {
+            float dense[] = getDenseGenerator().getDenseVector(pageId);
+            if (dense == null) return null;
+            return denseMostSimilar(dense, maxResults, validIds);
+        }
         try {
             TIntFloatMap vector = getPageVector(pageId);
             if (vector == null) return null;
@@ -213,6 +346,24 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         }
     }
 
+    /**
+     * If the similarity is cosine and the feature matrices are available, computes the
+     * most similar cache in bulk with a sparse A * A^T top-k engine instead of calling
+     * mostSimilar() once per page.
+     */
+    @Override
+    protected long writeMostSimilarRows(SparseMatrixWriter writer, int maxHits, TIntSet rowIds, TIntSet colIds) throws IOException, DaoException {
+        if (!(similarity instanceof CosineSimilarity) || featureMatrix == null || transposeMatrix == null) {
+            return super.writeMostSimilarRows(writer, maxHits, rowIds, colIds);
+        }
+        return new SparseMatrixCosimilarity(featureMatrix, transposeMatrix)
+                .setNumThreads(WpThreadUtils.getMaxThreads())
+                .write(writer,
+                        rowIds == null ? null : rowIds.toArray(),
+                        colIds == null ? null : colIds.toArray(),
+                        maxHits);
+    }
+
     @Override
     public double[][] cosimilarity(int pageIds[]) throws DaoException {
         return cosimilarity(pageIds, pageIds);
@@ -238,6 +389,12 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         if (rowPhrases.length == 0 || colPhrases.length == 0) {
             return new double[rowPhrases.length][colPhrases.length];
         }
+        if (denseSimilarity != null) {
+            double[][] results = denseCosimilarity(rowPhrases, colPhrases);
+            if (results != null) {
+                return results;
+            }
+        }
         List<TIntFloatMap> rowVectors = new ArrayList<TIntFloatMap>();
         List<TIntFloatMap> colVectors = new ArrayList<TIntFloatMap>();
         try {
@@ -289,17 +446,18 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
      */
     @Override
     public double[][] cosimilarity(int rowIds[], int colIds[]) throws DaoException {
-        // Build up vectors for unique pages
-        Map<Integer, TIntFloatMap> vectors = new HashMap<Integer, TIntFloatMap>();
-        for (int pageId : ArrayUtils.addAll(colIds, rowIds)) {
-            if (!vectors.containsKey(pageId)) {
-                try {
-                    vectors.put(pageId, getPageVector(pageId));
-                } catch (IOException e) {
-                    throw new DaoException(e);
-                }
-            }
+        if (denseSimilarity != null) {
+            return denseCosimilarity(rowIds, colIds);
         }
+        // Build up vectors for unique pages
+        int uniqueIds[] = new TIntHashSet(ArrayUtils.addAll(colIds, rowIds)).toArray();
+        TIntObjectMap<TIntFloatMap> vectors = BatchSimilarity.fetch(uniqueIds,
+                new BatchSimilarity.Fetcher<TIntFloatMap>() {
+                    @Override
+                    public TIntFloatMap fetch(int pageId) throws IOException {
+                        return getPageVector(pageId);
+                    }
+                });
         List<TIntFloatMap> rowVectors = new ArrayList<TIntFloatMap>();
         for (int rowId : rowIds) {
             rowVectors.add(vectors.get(rowId));
@@ -311,24 +469,138 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         return cosimilarity(rowVectors, colVectors);
     }
 
+    private double[][] denseCosimilarity(int rowIds[], int colIds[]) throws DaoException {
+        Map<Integer, float[]> vectors = new HashMap<Integer, float[]>();
+        for (int pageId : ArrayUtils.addAll(colIds, rowIds)) {
+            if (!vectors.containsKey(pageId)) {
+                vectors.put(pageId, getDenseGenerator().getDenseVector(pageId));
+            }
+        }
+        float rows[][] = new float[rowIds.length][];
+        for (int i = 0; i < rowIds.length; i++) {
+            rows[i] = vectors.get(rowIds[i]);
+        }
+        float cols[][] = new float[colIds.length][];
+        for (int i = 0; i < colIds.length; i++) {
+            cols[i] = vectors.get(colIds[i]);
+        }
+        return DenseVectorSimilarity.cosimilarity(rows, cols);
+    }
+
+    /**
+     * Returns null if the generator cannot create a dense vector for some phrase.
+     */
+    private double[][] denseCosimilarity(String rowPhrases[], String colPhrases[]) {
+        Map<String, float[]> vectors = new HashMap<String, float[]>();
+        for (String s : ArrayUtils.addAll(rowPhrases, colPhrases)) {
+            if (!vectors.containsKey(s)) {
+                float vector[] = getDensePhraseVector(s);
+                if (vector == null) {
+                    return null;
+                }
+                vectors.put(s, vector);
+            }
+        }
+        float rows[][] = new float[rowPhrases.length][];
+        for (int i = 0; i < rowPhrases.length; i++) {
+            rows[i] = vectors.get(rowPhrases[i]);
+        }
+        float cols[][] = new float[colPhrases.length][];
+        for (int i = 0; i < colPhrases.length; i++) {
+            cols[i] = vectors.get(colPhrases[i]);
+        }
+        return DenseVectorSimilarity.cosimilarity(rows, cols);
+    }
+
+    /**
+     * Number of vector pairs compared by each parallel task in cosimilarity().
+     */
+    private static final int COSIMILARITY_BLOCK_PAIRS = 4096;
+
     /**
      * Computes the cosimilarity between a set of vectors.
+     *
+     * Rows are computed in parallel blocks. If the similarity is cosine, each distinct vector
+     * is first converted to a SortedSparseVector and pairs are compared with merge-based dot
+     * products. If the row and column vectors are the same, as in cosimilarity(int[]), and
+     * the similarity reports that it is symmetric, only the upper triangle is computed.
+     * Otherwise every pair is computed.
+     * Missing (null) vectors have a similarity of 0.
+     *
      * @param rowVectors
      * @param colVectors
      * @return
      */
-    protected double[][] cosimilarity(List<TIntFloatMap> rowVectors, List<TIntFloatMap> colVectors) {
-        double results[][] = new double[rowVectors.size()][colVectors.size()];
-        for (int i = 0; i < rowVectors.size(); i++) {
-            for (int j = 0; j < colVectors.size(); j++) {
-                TIntFloatMap vi = rowVectors.get(i);
-                TIntFloatMap vj = colVectors.get(j);
-                results[i][j] = similarity.similarity(vi, vj);
+    protected double[][] cosimilarity(List<TIntFloatMap> rowVectors, List<TIntFloatMap> colVectors) throws DaoException {
+        final int numRows = rowVectors.size();
+        final int numCols = colVectors.size();
+        final double results[][] = new double[numRows][numCols];
+        if (numRows == 0 || numCols == 0) {
+            return results;
+        }
+        boolean symmetric = similarity.isSymmetric() && (numRows == numCols);
+        for (int i = 0; symmetric && i < numRows; i++) {
+            symmetric = (rowVectors.get(i) == colVectors.get(i));
+        }
+        final boolean isSymmetric = symmetric;
+        int rowsPerBlock = Math.max(1, COSIMILARITY_BLOCK_PAIRS / numCols);
+
+        BatchSimilarity.Block block;
+        if (similarity instanceof CosineSimilarity) {
+            // Convert each distinct vector once; the lists usually share map instances.
+            Map<TIntFloatMap, SortedSparseVector> sorted = new IdentityHashMap<TIntFloatMap, SortedSparseVector>();
+            final SortedSparseVector rows[] = toSorted(rowVectors, sorted);
+            final SortedSparseVector cols[] = toSorted(colVectors, sorted);
+            block = new BatchSimilarity.Block() {
+                @Override
+                public void run(int i) {
+                    for (int j = isSymmetric ? i : 0; j < numCols; j++) {
+                        results[i][j] = SortedSparseVector.cosine(rows[i], cols[j]);
+                    }
+                }
+            };
+        } else {
+            final List<TIntFloatMap> rows = rowVectors;
+            final List<TIntFloatMap> cols = colVectors;
+            block = new BatchSimilarity.Block() {
+                @Override
+                public void run(int i) {
+                    TIntFloatMap vi = rows.get(i);
+                    for (int j = isSymmetric ? i : 0; j < numCols; j++) {
+                        TIntFloatMap vj = cols.get(j);
+                        results[i][j] = (vi == null || vj == null) ? 0.0 : similarity.similarity(vi, vj);
+                    }
+                }
+            };
+        }
+        BatchSimilarity.parallel(numRows, rowsPerBlock, block);
+
+        if (isSymmetric) {
+            for (int i = 0; i < numRows; i++) {
+                for (int j = 0; j < i; j++) {
+                    results[i][j] = results[j][i];
+                }
             }
         }
         return results;
     }
 
+    private static SortedSparseVector[] toSorted(List<TIntFloatMap> vectors, Map<TIntFloatMap, SortedSparseVector> cache) {
+        SortedSparseVector sorted[] = new SortedSparseVector[vectors.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            TIntFloatMap v = vectors.get(i);
+            if (v == null) {
+                sorted[i] = SortedSparseVector.fromMap(null);
+            } else {
+                if (!cache.containsKey(v)) {
+                    cache.put(v, SortedSparseVector.fromMap(v));
+                }
+                sorted[i] = cache.get(v);
+            }
+        }
+        return sorted;
+    }
+
     /**
      * Rebuild the feature and transpose matrices.
      * If the matrices are available from the feature generator, they will be used.
@@ -337,6 +609,14 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
      * @throws IOException
      */
     public synchronized void buildFeatureAndTransposeMatrices(TIntSet validIds) throws IOException {
+        if (denseSimilarity != null) {
+            LOG.info("dense vectors are compared directly; not building feature matrices for " + getName());
+            if (similarity instanceof ApproximateCosineSimilarity) {
+                getDataDir().mkdirs();
+                ((ApproximateCosineSimilarity) similarity).buildIndex(denseSimilarity.getStore(), getAnnIndexPath());
+            }
+            return;
+        }
         if (validIds == null) {
             validIds = getAllPageIds();
         }
@@ -351,28 +631,43 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         ValueConf vconf = new ValueConf((float)similarity.getMinValue(),
                                         (float)similarity.getMaxValue());
         final SparseMatrixWriter writer = new SparseMatrixWriter(getFeatureMatrixPath(), vconf);
-        ParallelForEach.loop(
-                WpArrayUtils.toList(validIds.toArray()),
-                WpThreadUtils.getMaxThreads(),
-                new Procedure<Integer>() {
-                    public void call(Integer pageId) throws IOException {
-                        TIntFloatMap scores = getPageVector(pageId);
-                        if (scores != null && !scores.isEmpty()) {
-                            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+        if (generator instanceof BatchVectorGenerator) {
+            try {
+                ((BatchVectorGenerator) generator).writeVectors(
+                        validIds.toArray(), writer, WpThreadUtils.getMaxThreads());
+            } catch (DaoException e) {
+                throw new IOException(e);
+            }
+        } else {
+            ParallelForEach.loop(
+                    WpArrayUtils.toList(validIds.toArray()),
+                    WpThreadUtils.getMaxThreads(),
+                    new Procedure<Integer>() {
+                        public void call(Integer pageId) throws IOException {
+                            TIntFloatMap scores = getPageVector(pageId);
+                            if (scores != null && !scores.isEmpty()) {
+                                writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+                            }
                         }
-                    }
-                }, 10000);
+                    }, 10000);
+        }
         writer.finish();
 
         // Reload the feature matrix
         featureMatrix = new SparseMatrix(getFeatureMatrixPath());
 
         getDataDir().mkdirs();
-        new SparseMatrixTransposer(featureMatrix, getTransposeMatrixPath())
+        new ExternalSparseMatrixTransposer(featureMatrix, getTransposeMatrixPath(),
+                SparseMatrixTransposer.defaultBufferSizeInMbs(), WpThreadUtils.getMaxThreads())
                 .transpose();
         transposeMatrix = new SparseMatrix(getTransposeMatrixPath());
 
         similarity.setMatrices(featureMatrix, transposeMatrix);
+
+        // phrase vectors cached before the rebuild may be stale
+        if (phraseVectorCreator != null) {
+            phraseVectorCreator.clearCache();
+        }
     }
 
     private TIntSet getAllPageIds() throws IOException {
@@ -400,6 +695,38 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         return new File(getDataDir(), "featureTranspose.matrix");
     }
 
+    protected File getAnnIndexPath() {
+        return new File(getDataDir(), "ann.ivf");
+    }
+
+    /**
+     * @return The files page vectors are read from: the dense vectors if they are
+     * compared directly, otherwise the feature matrix.
+     */
+    List<File> getFeatureFiles() {
+        if (denseSimilarity != null) {
+            return Arrays.asList(denseSimilarity.getStore().getPath());
+        } else if (getDataDir() != null) {
+            return Arrays.asList(getFeatureMatrixPath());
+        } else {
+            return new ArrayList<File>();
+        }
+    }
+
+    /**
+     * Closes the feature matrices and flushes the phrase vector cache.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOUtils.closeQuietly(featureMatrix);
+        IOUtils.closeQuietly(transposeMatrix);
+        featureMatrix = null;
+        transposeMatrix = null;
+        if (phraseVectorCreator != null) {
+            phraseVectorCreator.close();
+        }
+    }
+
     @Override
     public void read() throws IOException {
         super.read();
@@ -410,6 +737,17 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
             transposeMatrix = new SparseMatrix(getTransposeMatrixPath());
             similarity.setMatrices(featureMatrix, transposeMatrix);
         }
+        if (denseSimilarity != null
+        &&  similarity instanceof ApproximateCosineSimilarity
+        &&  getAnnIndexPath().isFile()) {
+            ApproximateCosineSimilarity approx = (ApproximateCosineSimilarity) similarity;
+            if (IvfIndex.isCurrent(denseSimilarity.getStore(), getAnnIndexPath())) {
+                approx.readIndex(denseSimilarity.getStore(), getAnnIndexPath());
+            } else {
+                LOG.warning("rebuilding ann index " + getAnnIndexPath() + " because the dense vectors changed");
+                approx.buildIndex(denseSimilarity.getStore(), getAnnIndexPath());
+            }
+        }
     }
 
     /**
@@ -518,7 +856,11 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
                 sr.setPhraseMode(PhraseMode.valueOf(config.getString("phraseMode").toUpperCase()));
             }
             configureBase(getConfigurator(), sr, config);
-            if (phraseVectorCreator != null) phraseVectorCreator.setMetric(sr);
+            if (phraseVectorCreator != null) {
+                phraseVectorCreator.setMetric(sr);
+                phraseVectorCreator.setConfigHash(WpStringUtils.longHashCode(
+                        name + " " + config.root().render(ConfigRenderOptions.concise())));
+            }
             return sr;
         }
 
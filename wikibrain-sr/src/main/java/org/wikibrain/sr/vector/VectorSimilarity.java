@@ -50,4 +50,10 @@ public interface VectorSimilarity {
      * @return The maximum possible score for the metric.
      */
     public double getMaxValue();
+
+    /**
+     * @return True if similarity(v1, v2) always equals similarity(v2, v1).
+     * Batch computations only use this to skip half of a square cosimilarity matrix.
+     */
+    public boolean isSymmetric();
 }
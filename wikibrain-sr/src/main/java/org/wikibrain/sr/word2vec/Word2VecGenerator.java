@@ -16,8 +16,10 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.matrix.DenseVectorStore;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.vector.DenseVectorGenerator;
 import org.wikibrain.sr.vector.VectorGenerator;
 import org.wikibrain.utils.ObjectDb;
 import org.wikibrain.utils.WpIOUtils;
@@ -37,14 +39,14 @@ import java.util.logging.Logger;
  *
  * @author Shilad Sen
  */
-public class Word2VecGenerator implements VectorGenerator {
+public class Word2VecGenerator implements DenseVectorGenerator {
     private static final Logger LOG = Logger.getLogger(Word2VecGenerator.class.getName());
 
     private final Language language;
     private final LocalPageDao localPageDao;
 
     private ObjectDb<float[]> phraseDb;
-    private TIntObjectMap<float[]> articles;
+    private DenseVectorStore articles;
 
     public Word2VecGenerator(Language language, LocalPageDao localPageDao, File path) throws IOException {
         this.language = language;
@@ -54,17 +56,17 @@ public class Word2VecGenerator implements VectorGenerator {
 
     public void read(File path) throws IOException {
         File phraseFile = new File(path.getAbsolutePath() + ".phrases");
-        File articleFile = new File(path.getAbsolutePath() + ".articles");
+        File articleFile = new File(path.getAbsolutePath() + ".vectors");
         if (phraseFile.exists()
         &&  articleFile.exists()
         &&  phraseFile.lastModified() >= path.lastModified()
         &&  articleFile.lastModified() >= path.lastModified()) {
             LOG.info("phrase and article caches are up to date, loading them...");
             phraseDb = new ObjectDb<float[]>(phraseFile);
-            articles = (TIntObjectMap<float[]>) WpIOUtils.readObjectFromFile(articleFile);
         } else {
             createWikiBrainModel(path, phraseFile, articleFile);
         }
+        articles = new DenseVectorStore(articleFile);
     }
 
     private void createWikiBrainModel(File path, File phraseFile, File articleFile) throws IOException {
@@ -72,7 +74,8 @@ public class Word2VecGenerator implements VectorGenerator {
         FileUtils.deleteQuietly(articleFile);
 
         phraseDb = new ObjectDb<float[]>(phraseFile, true);
-        articles = new TIntObjectHashMap<float[]>();
+        TIntObjectMap<float[]> articleVectors = new TIntObjectHashMap<float[]>();
+        int vlength = 0;
 
         DataInputStream dis = null;
         InputStream bis = null;
@@ -90,7 +93,7 @@ public class Word2VecGenerator implements VectorGenerator {
             String tokens[] = header.split(" ");
 
             int numWords = Integer.parseInt(tokens[0]);
-            int vlength = Integer.parseInt(tokens[1]);
+            vlength = Integer.parseInt(tokens[1]);
             LOG.info("preparing to read " + numWords + " with length " + vlength + " vectors");
 
             for (int i = 0; i < numWords; i++) {
@@ -114,7 +117,7 @@ public class Word2VecGenerator implements VectorGenerator {
                 if (word.startsWith("/w/")) {
                     String[] pieces = word.split("/", 5);
                     int wpId = Integer.valueOf(pieces[3]);
-                    articles.put(wpId, vector);
+                    articleVectors.put(wpId, vector);
                 } else {
                     phraseDb.put(normalize(word), vector);
                 }
@@ -125,7 +128,7 @@ public class Word2VecGenerator implements VectorGenerator {
         }
 
         phraseDb.flush();
-        WpIOUtils.writeObjectToFile(articleFile, articles);
+        DenseVectorStore.write(articleFile, vlength, articleVectors);
     }
 
 
@@ -165,27 +168,36 @@ public class Word2VecGenerator implements VectorGenerator {
 
     @Override
     public TIntFloatMap getVector(int pageId) throws DaoException {
-        float[] vector = articles.get(pageId);
-        if (vector == null) {
-            return null;
-        }
-        TIntFloatMap result = new TIntFloatHashMap(vector.length);
-        for (int i = 0; i < vector.length; i++) {
-            result.put(i, vector[i]);
-        }
-        return result;
+        return toSparse(getDenseVector(pageId));
     }
 
     @Override
     public TIntFloatMap getVector(String phrase) {
-        float[] vector;
+        return toSparse(getDenseVector(phrase));
+    }
+
+    @Override
+    public float[] getDenseVector(int pageId) throws DaoException {
+        return articles.getVector(pageId);
+    }
+
+    @Override
+    public float[] getDenseVector(String phrase) {
         try {
-            vector = phraseDb.get(normalize(phrase));
+            return phraseDb.get(normalize(phrase));
         } catch (IOException e) {
             throw new RuntimeException(e);
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    @Override
+    public DenseVectorStore getPageVectors() {
+        return articles;
+    }
+
+    private static TIntFloatMap toSparse(float vector[]) {
         if (vector == null) {
             return null;
         }
@@ -31,14 +31,36 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 
 /**
+ * Trains skip-gram word2vec embeddings for words and article mentions.
+ *
+ * The corpus is first encoded as a binary file of word indexes (corpus.ids,
+ * next to corpus.txt), which is reused as long as the vocabulary and corpus
+ * are unchanged. Each thread then trains on its own contiguous shard of the
+ * encoded corpus, updating the shared weights without locks ("Hogwild").
+ *
+ * Training uses hierarchical softmax by default, or negative sampling if the
+ * number of negative samples is positive. Frequent words can be subsampled.
+ *
  * @author Shilad Sen
  *
  * Heavily adapted from https://github.com/piskvorky/gensim/blob/develop/gensim/models/word2vec.py
+ * and the original word2vec C implementation.
  */
 public class Word2VecTrainer {
     private static final Logger LOG = Logger.getLogger(Word2VecTrainer.class.getName());
     private static final int MAX_EXP = 6;
     private static final int EXP_TABLE_SIZE = 1000;
+    private static final int UNIGRAM_TABLE_SIZE = 10000000;
+
+    /**
+     * Marks the end of each sentence in the encoded corpus.
+     */
+    private static final int END_OF_SENTENCE = -1;
+
+    /**
+     * The encoded corpus begins with a hash of the vocabulary and the number of words.
+     */
+    private static final int ENCODED_HEADER_SIZE = 16;
 
     private final Language language;
     private final LocalPageDao pageDao;
@@ -70,12 +92,39 @@ public class Word2VecTrainer {
 
 
     private double startingAlpha = 0.025;
-    private double alpha = startingAlpha;
     private int window = 5;
 
+    /**
+     * Number of negative samples for each context word.
+     * If zero, hierarchical softmax is used instead.
+     */
+    private int negative = 0;
+
+    /**
+     * Words more frequent than this fraction of the corpus are randomly discarded
+     * (e.g. 1e-3 or 1e-5). Zero disables subsampling.
+     */
+    private double sample = 0.0;
+
+    /**
+     * Number of passes over the corpus.
+     */
+    private int iterations = 1;
+
     private int layer1Size = 200;
     private float syn0[][];
     private float syn1[][];
+    private float syn1neg[][];
+
+    /**
+     * Words sampled with probability proportional to count^0.75 for negative sampling.
+     */
+    private int unigramTable[];
+
+    /**
+     * Probability of keeping each word when subsampling, or null.
+     */
+    private float keepProbabilities[];
 
     /**
      * Fast sigmoid function table.
@@ -88,7 +137,8 @@ public class Word2VecTrainer {
         }
     }
 
-    private AtomicLong wordsTrainedSoFar = new AtomicLong();
+    private final AtomicLong wordsTrainedSoFar = new AtomicLong();
+    private final AtomicLong lastLogMillis = new AtomicLong();
     private Random random = new Random();
 
     private byte[][] wordCodes;
@@ -104,7 +154,8 @@ public class Word2VecTrainer {
     public void train(File directory) throws IOException, DaoException {
         LOG.info("counting word frequencies.");
         readWords(new File(directory, "dictionary.txt"));
-        buildTree();
+        File encoded = new File(directory, "corpus.ids");
+        long numWords = encodeCorpus(new File(directory, "corpus.txt"), encoded);
 
         syn0 = new float[wordIndexes.size()][layer1Size];
         for (float[] row :syn0) {
@@ -112,28 +163,109 @@ public class Word2VecTrainer {
                 row[i] = (random.nextFloat() - 0.5f) / layer1Size;
             }
         }
-        syn1 = new float[wordIndexes.size()][layer1Size];
-
-        LineIterator iterator = FileUtils.lineIterator(new File(directory, "corpus.txt"));
-        ParallelForEach.iterate(iterator,
-                WpThreadUtils.getMaxThreads(),
-                1000,
-                new Procedure<String>() {
-                    @Override
-                    public void call(String sentence) throws Exception {
-                        int n = trainSentence(sentence);
-                        wordsTrainedSoFar.addAndGet(n);
-
-                        // update the learning rate
-                        alpha = Math.max(
-                                startingAlpha * (1 - wordsTrainedSoFar.get() / (totalWords + 1.0)),
-                                startingAlpha * 0.0001);
-                    }
-                },
-                10000);
-        iterator.close();
+        int counts[] = getWordCounts();
+        if (negative > 0) {
+            syn1neg = new float[wordIndexes.size()][layer1Size];
+            buildUnigramTable(counts);
+        } else {
+            buildTree();
+            syn1 = new float[wordIndexes.size()][layer1Size];
+        }
+        buildKeepProbabilities(counts);
 
+        trainEncoded(encoded, numWords);
+    }
 
+    /**
+     * Trains on the encoded corpus, giving each thread a contiguous shard of it.
+     */
+    private void trainEncoded(final File encoded, long numWords) throws IOException {
+        final int numThreads = WpThreadUtils.getMaxThreads();
+        final long numInts = (encoded.length() - ENCODED_HEADER_SIZE) / 4;
+        final long totalWords = numWords * iterations;
+        final long startMillis = System.currentTimeMillis();
+        wordsTrainedSoFar.set(0);
+        lastLogMillis.set(startMillis);
+
+        LOG.info("training on " + numWords + " words for " + iterations + " iterations with " + numThreads + " threads, " +
+                (negative > 0 ? negative + " negative samples" : "hierarchical softmax") +
+                (sample > 0 ? ", and subsampling threshold " + sample : ""));
+        List<Long> trained = ParallelForEach.range(0, numThreads, numThreads, new Function<Integer, Long>() {
+            @Override
+            public Long call(Integer shard) throws IOException {
+                ShardTrainer trainer = new ShardTrainer(
+                        encoded,
+                        numInts * shard / numThreads,
+                        numInts * (shard + 1) / numThreads,
+                        totalWords, startMillis, numThreads, shard);
+                return trainer.train();
+            }
+        });
+        for (Long n : trained) {
+            if (n == null) {
+                throw new IOException("training failed for some shards of " + encoded);
+            }
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - startMillis);
+        LOG.info(String.format("trained %d words in %.1f seconds (%.0f words/sec/thread)",
+                wordsTrainedSoFar.get(), elapsed / 1000.0,
+                wordsTrainedSoFar.get() * 1000.0 / elapsed / numThreads));
+    }
+
+    /**
+     * Writes the corpus as a binary file of word indexes. Each sentence is followed by
+     * END_OF_SENTENCE, and out of vocabulary words are dropped. An existing file is
+     * reused if it was encoded from the current corpus with the same vocabulary.
+     *
+     * @return The number of words in the encoded corpus.
+     */
+    public long encodeCorpus(File corpus, File encoded) throws IOException {
+        long vocabularyHash = getVocabularyHash();
+        if (encoded.isFile() && encoded.lastModified() >= corpus.lastModified()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(encoded)));
+            try {
+                if (in.readLong() == vocabularyHash) {
+                    long numWords = in.readLong();
+                    LOG.info("reusing encoded corpus " + encoded + " with " + numWords + " words");
+                    return numWords;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        LOG.info("encoding corpus " + corpus + " as " + encoded);
+        long numWords = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(encoded), 1 << 20));
+        LineIterator iterator = FileUtils.lineIterator(corpus);
+        try {
+            // the header is filled in once the encoding is complete
+            out.writeLong(0);
+            out.writeLong(0);
+            while (iterator.hasNext()) {
+                int indexes[] = sentenceToIndexes(iterator.nextLine());
+                if (indexes.length == 0) {
+                    continue;
+                }
+                for (int index : indexes) {
+                    out.writeInt(index);
+                }
+                out.writeInt(END_OF_SENTENCE);
+                numWords += indexes.length;
+            }
+        } finally {
+            iterator.close();
+            out.close();
+        }
+        RandomAccessFile header = new RandomAccessFile(encoded, "rw");
+        try {
+            header.writeLong(vocabularyHash);
+            header.writeLong(numWords);
+        } finally {
+            header.close();
+        }
+        LOG.info("encoded " + numWords + " words");
+        return numWords;
     }
 
     public void readWords(File dictionary) throws IOException, DaoException {
@@ -160,7 +292,11 @@ public class Word2VecTrainer {
         LOG.info("retained " + dict.getNumUnigrams() + " words and " + (words.length - dict.getNumUnigrams()) + " articles");
     }
 
-    private int trainSentence(String sentence) {
+    /**
+     * Returns the indexes of the words and article mentions in a sentence.
+     * Out of vocabulary words are dropped.
+     */
+    private int[] sentenceToIndexes(String sentence) {
         String words[] = sentence.trim().split(" +");
         TIntList indexList = new TIntArrayList(words.length * 3 / 2);
         for (int i = 0; i < words.length; i++) {
@@ -183,7 +319,7 @@ public class Word2VecTrainer {
                     wordIndex = wordIndexes.get(h);
                 }
             }
-            if (mentionIndex >= 0) {
+            if (mentionIndex >= 0 && wordIndex >= 0) {
                 if (random.nextDouble() >= 0.5) {
                     indexList.add(wordIndex);
                     indexList.add(mentionIndex);
@@ -191,59 +327,261 @@ public class Word2VecTrainer {
                     indexList.add(mentionIndex);
                     indexList.add(wordIndex);
                 }
-            } else {
+            } else if (mentionIndex >= 0) {
+                indexList.add(mentionIndex);
+            } else if (wordIndex >= 0) {
                 indexList.add(wordIndex);
             }
         }
-        int indexes[] = indexList.toArray();
+        return indexList.toArray();
+    }
 
-        float[] neu1e = new float[layer1Size];
-        for (int i = 0; i < indexes.length; i++) {
-            if (indexes[i] < 0) {
-                continue; // skip out of vocabulary words
-            }
+    /**
+     * @return The corpus count of each word, by word index.
+     */
+    private int[] getWordCounts() {
+        int counts[] = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            counts[i] = wordCounts.get(hashWord(words[i]));
+        }
+        return counts;
+    }
 
-            byte [] code = wordCodes[indexes[i]];
-            int [] parents = wordParents[indexes[i]];
-            if (code.length != parents.length) {
-                throw new IllegalStateException();
+    private long getVocabularyHash() {
+        long h = words.length;
+        for (String w : words) {
+            h = h * 31 + hashWord(w);
+        }
+        return h;
+    }
+
+    /**
+     * Fills the unigram table so that each word appears in proportion to count^0.75.
+     */
+    private void buildUnigramTable(int counts[]) {
+        double total = 0.0;
+        for (int c : counts) {
+            total += Math.pow(c, 0.75);
+        }
+        unigramTable = new int[(int) Math.min(UNIGRAM_TABLE_SIZE, 1000L * counts.length)];
+        int w = 0;
+        double cumulative = Math.pow(counts[0], 0.75) / total;
+        for (int i = 0; i < unigramTable.length; i++) {
+            unigramTable[i] = w;
+            if (i / (double) unigramTable.length > cumulative && w < counts.length - 1) {
+                w++;
+                cumulative += Math.pow(counts[w], 0.75) / total;
             }
+        }
+    }
 
-            // now go over all words from the (reduced) window, predicting each one in turn
-            int reducedWindow = random.nextInt(window);
-            int start = Math.max(0, i - window + reducedWindow);
-            int end = Math.min(indexes.length, i + window + 1 - reducedWindow);
+    private void buildKeepProbabilities(int counts[]) {
+        if (sample <= 0) {
+            keepProbabilities = null;
+            return;
+        }
+        long total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        double threshold = sample * total;
+        keepProbabilities = new float[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            keepProbabilities[i] = (counts[i] == 0)
+                    ? 1.0f
+                    : (float) ((Math.sqrt(counts[i] / threshold) + 1) * threshold / counts[i]);
+        }
+    }
 
-            for (int j = start; j < end; j++) {
-                if (i == j || indexes[j] < 0) {
-                    continue; // skip the word itself and out of vocabulary words
-                }
-                Arrays.fill(neu1e, 0f);
-                float l1[] = syn0[indexes[j]];
+    /**
+     * Trains on one shard of the encoded corpus. Sentences that begin before the end of
+     * the shard belong to it, so a sentence straddling the start belongs to the previous shard.
+     */
+    private class ShardTrainer {
+        private final File encoded;
+        private final long start;
+        private final long end;
+        private final long totalWords;
+        private final long startMillis;
+        private final int numThreads;
+
+        private final float neu1e[] = new float[layer1Size];
+        private int sentence[] = new int[1000];
+        private long nextRandom;
+        private double alpha = startingAlpha;
+        private long unreported = 0;
+
+        private ShardTrainer(File encoded, long start, long end, long totalWords, long startMillis, int numThreads, int shard) {
+            this.encoded = encoded;
+            this.start = start;
+            this.end = end;
+            this.totalWords = totalWords;
+            this.startMillis = startMillis;
+            this.numThreads = numThreads;
+            this.nextRandom = shard;
+        }
 
-                for (int k = 0; k < parents.length; k++) {
-                    float l2[] = syn1[parents[k]];
-                    double f = MathUtils.dot(l1, l2);
-                    if (f <= -MAX_EXP || f >= MAX_EXP) {
-                        continue;
+        /**
+         * @return The number of words read from the shard, before subsampling.
+         */
+        public long train() throws IOException {
+            long numRead = 0;
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                DataInputStream in = open(Math.max(0, start - 1));
+                try {
+                    long pos = start;
+                    if (start > 0) {
+                        // skip to the first sentence that begins in the shard
+                        pos = start - 1;
+                        while (pos < end && in.readInt() != END_OF_SENTENCE) {
+                            pos++;
+                        }
+                        pos++;
                     }
-                    double s = EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
-                    double g = (1 - code[k] - s) * alpha;
+                    while (pos < end) {
+                        int length = 0;
+                        for (int index = in.readInt(); index != END_OF_SENTENCE; index = in.readInt()) {
+                            pos++;
+                            numRead++;
+                            unreported++;
+                            if (keepProbabilities != null && keepProbabilities[index] < nextFloat()) {
+                                continue;
+                            }
+                            if (length == sentence.length) {
+                                sentence = Arrays.copyOf(sentence, length * 2);
+                            }
+                            sentence[length++] = index;
+                        }
+                        pos++;
+                        trainSentence(sentence, length);
+                        if (unreported >= 10000) {
+                            reportProgress();
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            reportProgress();
+            return numRead;
+        }
+
+        private DataInputStream open(long offset) throws IOException {
+            FileInputStream stream = new FileInputStream(encoded);
+            stream.getChannel().position(ENCODED_HEADER_SIZE + 4 * offset);
+            return new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        }
 
+        /**
+         * Adds the words read since the last report to the global count, updates the
+         * learning rate, and periodically logs the training speed.
+         */
+        private void reportProgress() {
+            long trained = wordsTrainedSoFar.addAndGet(unreported);
+            unreported = 0;
+            alpha = Math.max(
+                    startingAlpha * (1 - trained / (totalWords + 1.0)),
+                    startingAlpha * 0.0001);
+
+            long now = System.currentTimeMillis();
+            long last = lastLogMillis.get();
+            if (now - last >= 10000 && lastLogMillis.compareAndSet(last, now)) {
+                LOG.info(String.format("trained %d of %d words (%.1f%%), alpha %.5f, %.0f words/sec/thread",
+                        trained, totalWords, 100.0 * trained / totalWords, alpha,
+                        trained * 1000.0 / (now - startMillis) / numThreads));
+            }
+        }
+
+        private void trainSentence(int indexes[], int length) {
+            for (int i = 0; i < length; i++) {
+                // now go over all words from the (reduced) window, predicting each one in turn
+                int reducedWindow = (int) ((nextRandom() >>> 16) % window);
+                int start = Math.max(0, i - window + reducedWindow);
+                int end = Math.min(length, i + window + 1 - reducedWindow);
+
+                for (int j = start; j < end; j++) {
+                    if (i == j) {
+                        continue; // skip the word itself
+                    }
+                    Arrays.fill(neu1e, 0f);
+                    float l1[] = syn0[indexes[j]];
+                    if (negative > 0) {
+                        trainNegativeSampling(indexes[i], l1);
+                    } else {
+                        trainHierarchicalSoftmax(indexes[i], l1);
+                    }
                     for (int c = 0; c < layer1Size; c++) {
-                        neu1e[c] += g * l2[c];
-                        l2[c] += g * l1[c];
+                        l1[c] += neu1e[c];
                     }
                 }
-                for (int c = 0; c < layer1Size; c++) {
-                    l1[c] += neu1e[c];
+            }
+        }
+
+        private void trainHierarchicalSoftmax(int word, float l1[]) {
+            byte [] code = wordCodes[word];
+            int [] parents = wordParents[word];
+            for (int k = 0; k < parents.length; k++) {
+                float l2[] = syn1[parents[k]];
+                float f = dot(l1, l2);
+                if (f <= -MAX_EXP || f >= MAX_EXP) {
+                    continue;
                 }
+                double s = EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
+                update(l1, l2, (float) ((1 - code[k] - s) * alpha));
             }
+        }
 
+        private void trainNegativeSampling(int word, float l1[]) {
+            for (int d = 0; d <= negative; d++) {
+                int target;
+                int label;
+                if (d == 0) {
+                    target = word;
+                    label = 1;
+                } else {
+                    target = unigramTable[(int) ((nextRandom() >>> 16) % unigramTable.length)];
+                    if (target == word) {
+                        continue;
+                    }
+                    label = 0;
+                }
+                float l2[] = syn1neg[target];
+                float f = dot(l1, l2);
+                double g;
+                if (f >= MAX_EXP) {
+                    g = (label - 1) * alpha;
+                } else if (f <= -MAX_EXP) {
+                    g = label * alpha;
+                } else {
+                    g = (label - EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))]) * alpha;
+                }
+                update(l1, l2, (float) g);
+            }
+        }
+
+        /**
+         * Accumulates the error for the input vector and updates the output vector.
+         * The arithmetic stays in floats, which is several times faster than mixing in doubles.
+         */
+        private void update(float l1[], float l2[], float g) {
+            for (int c = 0; c < layer1Size; c++) {
+                neu1e[c] += g * l2[c];
+                l2[c] += g * l1[c];
+            }
+        }
+
+        /**
+         * The linear congruential generator used by the original word2vec; much cheaper than Random.
+         */
+        private long nextRandom() {
+            nextRandom = nextRandom * 25214903917L + 11;
+            return nextRandom;
         }
-        return indexes.length;
-    }
 
+        private float nextFloat() {
+            return (nextRandom() & 0xFFFF) / 65536.0f;
+        }
+    }
 
     private class Node implements Comparable<Node> {
         long hash;
@@ -317,6 +655,18 @@ public class Word2VecTrainer {
     }
 
 
+    public void setNegative(int negative) {
+        this.negative = negative;
+    }
+
+    public void setSample(double sample) {
+        this.sample = sample;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
     public void save(File path) throws IOException {
         FileUtils.deleteQuietly(path);
         path.getParentFile().mkdirs();
@@ -355,6 +705,18 @@ public class Word2VecTrainer {
         }
     }
 
+    /**
+     * A dot product that accumulates in a float. Unlike MathUtils.dot(),
+     * it avoids float to double conversions in the innermost training loop.
+     */
+    private static float dot(float v1[], float v2[]) {
+        float dot = 0.0f;
+        for (int i = 0; i < v1.length; i++) {
+            dot += v1[i] * v2[i];
+        }
+        return dot;
+    }
+
     private static byte[] floatToBytes(float value) {
         int bits = Float.floatToIntBits(value);
         byte[] bytes = new byte[4];
@@ -403,6 +765,24 @@ public class Word2VecTrainer {
                         .withLongOpt("minfreq")
                         .withDescription("minimum word frequency")
                         .create("f"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("negative")
+                        .withDescription("number of negative samples (0 uses hierarchical softmax)")
+                        .create("k"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("sample")
+                        .withDescription("threshold for subsampling frequent words (0 disables subsampling)")
+                        .create("s"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("iterations")
+                        .withDescription("number of passes over the corpus")
+                        .create("e"));
 
         EnvBuilder.addStandardOptions(options);
 
@@ -430,6 +810,15 @@ public class Word2VecTrainer {
         if (cmd.hasOption("z")) {
             trainer.layer1Size = Integer.valueOf(cmd.getOptionValue("z"));
         }
+        if (cmd.hasOption("k")) {
+            trainer.setNegative(Integer.valueOf(cmd.getOptionValue("k")));
+        }
+        if (cmd.hasOption("s")) {
+            trainer.setSample(Double.valueOf(cmd.getOptionValue("s")));
+        }
+        if (cmd.hasOption("e")) {
+            trainer.setIterations(Integer.valueOf(cmd.getOptionValue("e")));
+        }
 
         trainer.train(new File(cmd.getOptionValue("i")));
         trainer.save(new File(cmd.getOptionValue("o")));
@@ -0,0 +1,217 @@
+package org.wikibrain.sr;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.dataset.Dataset;
+import org.wikibrain.sr.normalize.Normalizer;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestCachedSRMetric {
+
+    @Test
+    public void testSimilarity() throws DaoException {
+        CountingMetric metric = new CountingMetric();
+        CachedMonolingualSRMetric cached = new CachedMonolingualSRMetric(metric, 100, 4);
+
+        assertEquals(3.0, cached.similarity(1, 2, false).getScore(), 0.0);
+        assertEquals(3.0, cached.similarity(1, 2, false).getScore(), 0.0);
+        assertEquals(1, metric.calls);
+        assertEquals(1, cached.getHits());
+        assertEquals(1, cached.getMisses());
+
+        // argument order matters, and explanations bypass the cache
+        assertEquals(3.0, cached.similarity(2, 1, false).getScore(), 0.0);
+        cached.similarity(1, 2, true);
+        assertEquals(3, metric.calls);
+
+        cached.similarity("foo", "bar", false);
+        cached.similarity("foo", "bar", false);
+        assertEquals(4, metric.calls);
+
+        // callers can't corrupt the cached value
+        cached.similarity(1, 2, false).setScore(100.0);
+        assertEquals(3.0, cached.similarity(1, 2, false).getScore(), 0.0);
+    }
+
+    @Test
+    public void testBatchSimilarity() throws DaoException {
+        CountingMetric metric = new CountingMetric();
+        CachedMonolingualSRMetric cached = new CachedMonolingualSRMetric(metric, 100, 4);
+        cached.similarity(1, 2, false);
+
+        SRResult results[] = cached.similarity(new int[] { 1, 3, 1 }, new int[] { 2, 4, 5 });
+        assertEquals(3, results.length);
+        assertEquals(3.0, results[0].getScore(), 0.0);
+        assertEquals(7.0, results[1].getScore(), 0.0);
+        assertEquals(6.0, results[2].getScore(), 0.0);
+        assertEquals(3, metric.calls);
+        assertEquals(1, metric.batches);
+
+        // everything is cached now, so the wrapped metric is not called again
+        results = cached.similarity(new int[] { 3, 1 }, new int[] { 4, 5 });
+        assertEquals(7.0, results[0].getScore(), 0.0);
+        assertEquals(6.0, results[1].getScore(), 0.0);
+        assertEquals(3, metric.calls);
+        assertEquals(1, metric.batches);
+    }
+
+    @Test
+    public void testMostSimilar() throws DaoException {
+        CountingMetric metric = new CountingMetric();
+        CachedMonolingualSRMetric cached = new CachedMonolingualSRMetric(metric, 100, 4);
+
+        SRResultList list = cached.mostSimilar(5, 3);
+        assertEquals(3, list.numDocs());
+        assertEquals(6, list.getId(0));
+        cached.mostSimilar(5, 3, null);
+        assertEquals(1, metric.calls);
+
+        cached.mostSimilar(5, 4);
+        assertEquals(2, metric.calls);
+
+        // equal valid id sets share an entry, different sets do not
+        cached.mostSimilar(5, 3, new TIntHashSet(new int[] { 1, 2, 3 }));
+        cached.mostSimilar(5, 3, new TIntHashSet(new int[] { 3, 2, 1 }));
+        assertEquals(3, metric.calls);
+        cached.mostSimilar(5, 3, new TIntHashSet(new int[] { 1, 2, 4 }));
+        assertEquals(4, metric.calls);
+
+        cached.mostSimilar("foo", 3);
+        cached.mostSimilar("foo", 3, null);
+        assertEquals(5, metric.calls);
+
+        cached.mostSimilar(5, 3).set(0, 99, 99.0);
+        assertEquals(6, cached.mostSimilar(5, 3).getId(0));
+    }
+
+    @Test
+    public void testValidIdsAndNullResults() throws DaoException {
+        CountingMetric metric = new CountingMetric();
+        CachedMonolingualSRMetric cached = new CachedMonolingualSRMetric(metric, 100, 4);
+
+        // sets with equal sums but different contents must not share an entry
+        cached.mostSimilar(5, 3, new TIntHashSet(new int[] { 1, 4 }));
+        cached.mostSimilar(5, 3, new TIntHashSet(new int[] { 2, 3 }));
+        assertEquals(2, metric.calls);
+
+        // the same instance is a hit, and a change in its size is noticed
+        TIntSet valid = new TIntHashSet(new int[] { 7, 8, 9 });
+        cached.mostSimilar(5, 3, valid);
+        cached.mostSimilar(5, 3, valid);
+        assertEquals(3, metric.calls);
+        valid.add(10);
+        cached.mostSimilar(5, 3, valid);
+        assertEquals(4, metric.calls);
+        cached.mostSimilar(5, 3, new TIntHashSet(new int[] { 10, 9, 8, 7 }));
+        assertEquals(4, metric.calls);
+
+        // null results are cached too
+        assertNull(cached.mostSimilar(-1, 3));
+        assertNull(cached.mostSimilar(-1, 3));
+        assertEquals(5, metric.calls);
+    }
+
+    @Test
+    public void testEviction() throws DaoException {
+        CountingMetric metric = new CountingMetric();
+        CachedMonolingualSRMetric cached = new CachedMonolingualSRMetric(metric, 10, 1);
+        for (int i = 0; i < 20; i++) {
+            cached.similarity(i, i, false);
+        }
+        assertEquals(10, cached.size());
+        assertEquals(10, cached.getEvictions());
+
+        // the most recently used entries survive
+        cached.similarity(19, 19, false);
+        assertEquals(20, metric.calls);
+        cached.similarity(0, 0, false);
+        assertEquals(21, metric.calls);
+
+        cached.clear();
+        assertEquals(0, cached.size());
+    }
+
+    /**
+     * A metric that counts the number of times it computes a result.
+     */
+    private static class CountingMetric implements MonolingualSRMetric {
+        int calls = 0;
+        int batches = 0;
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) {
+            calls++;
+            return new SRResult(pageId1 + pageId2);
+        }
+
+        @Override
+        public SRResult similarity(String phrase1, String phrase2, boolean explanations) {
+            calls++;
+            return new SRResult(phrase1.length() + phrase2.length());
+        }
+
+        @Override
+        public SRResult[] similarity(int[] pageIds1, int[] pageIds2) {
+            batches++;
+            SRResult results[] = new SRResult[pageIds1.length];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = similarity(pageIds1[i], pageIds2[i], false);
+            }
+            return results;
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults) {
+            return mostSimilar(pageId, maxResults, null);
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) {
+            calls++;
+            if (pageId < 0) {
+                return null;
+            }
+            SRResultList list = new SRResultList(maxResults);
+            for (int i = 0; i < maxResults; i++) {
+                list.set(i, pageId + i + 1, 1.0 / (i + 1));
+            }
+            return list;
+        }
+
+        @Override
+        public SRResultList mostSimilar(String phrase, int maxResults) {
+            return mostSimilar(phrase, maxResults, null);
+        }
+
+        @Override
+        public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) {
+            return mostSimilar(phrase.length(), maxResults, validIds);
+        }
+
+        @Override public String getName() { return "counting"; }
+        @Override public Language getLanguage() { return Language.SIMPLE; }
+        @Override public File getDataDir() { return null; }
+        @Override public void setDataDir(File dir) { }
+        @Override public void write() { }
+        @Override public void read() { }
+        @Override public void trainSimilarity(Dataset dataset) { }
+        @Override public void trainMostSimilar(Dataset dataset, int numResults, TIntSet validIds) { }
+        @Override public boolean similarityIsTrained() { return true; }
+        @Override public boolean mostSimilarIsTrained() { return true; }
+        @Override public double[][] cosimilarity(int[] wpRowIds, int[] wpColIds) { return null; }
+        @Override public double[][] cosimilarity(String[] rowPhrases, String[] colPhrases) { return null; }
+        @Override public double[][] cosimilarity(int[] ids) { return null; }
+        @Override public double[][] cosimilarity(String[] phrases) { return null; }
+        @Override public Normalizer getMostSimilarNormalizer() { return null; }
+        @Override public void setMostSimilarNormalizer(Normalizer n) { }
+        @Override public Normalizer getSimilarityNormalizer() { return null; }
+        @Override public void setSimilarityNormalizer(Normalizer n) { }
+    }
+}
@@ -0,0 +1,125 @@
+package org.wikibrain.sr.ensemble;
+
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.MonolingualSRMetric;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.dataset.Dataset;
+import org.wikibrain.sr.normalize.Normalizer;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestEnsembleMetric {
+
+    @Test
+    public void testEachMetricGetsItsOwnTimeout() throws DaoException {
+        // with one thread the second metric only starts once the first is done,
+        // but it still gets the full timeout from then on
+        EnsembleMetric ensemble = createEnsemble(new SlowMetric("a", 1.0, 250), new SlowMetric("b", 3.0, 250));
+        ensemble.setNumThreads(1);
+        ensemble.setTimeoutMillis(400);
+        assertEquals(2.0, ensemble.similarity(1, 2, false).getScore(), 0.0001);
+        assertEquals(0L, (long) ensemble.getTimeouts().get("b"));
+    }
+
+    @Test
+    public void testSlowMetricTimesOut() throws DaoException {
+        EnsembleMetric ensemble = createEnsemble(new SlowMetric("slow", 1.0, 2000), new SlowMetric("fast", 3.0, 0));
+        ensemble.setTimeoutMillis(200);
+        assertEquals(3.0, ensemble.similarity(1, 2, false).getScore(), 0.0001);
+        assertEquals(1L, (long) ensemble.getTimeouts().get("slow"));
+        assertEquals(0L, (long) ensemble.getTimeouts().get("fast"));
+    }
+
+    @Test
+    public void testBatchUsesTimeout() throws DaoException {
+        EnsembleMetric ensemble = createEnsemble(new SlowMetric("slow", 1.0, 2000), new SlowMetric("fast", 3.0, 0));
+        ensemble.setTimeoutMillis(200);
+        long start = System.currentTimeMillis();
+        SRResult results[] = ensemble.similarity(new int[] {1, 2, 3}, new int[] {4, 5, 6});
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(3, results.length);
+        for (SRResult r : results) {
+            assertEquals(3.0, r.getScore(), 0.0001);
+        }
+        assertEquals(1L, (long) ensemble.getTimeouts().get("slow"));
+    }
+
+    private static EnsembleMetric createEnsemble(MonolingualSRMetric ... metrics) {
+        return new EnsembleMetric("ensemble", Language.SIMPLE, Arrays.asList(metrics), new EvenEnsemble(), null, null);
+    }
+
+    /**
+     * A metric that always returns the same score after a delay.
+     */
+    private static class SlowMetric implements MonolingualSRMetric {
+        private final String name;
+        private final double score;
+        private final long delayMillis;
+
+        SlowMetric(String name, double score, long delayMillis) {
+            this.name = name;
+            this.score = score;
+            this.delayMillis = delayMillis;
+        }
+
+        private void pause() {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) {
+            pause();
+            return new SRResult(score);
+        }
+
+        @Override
+        public SRResult similarity(String phrase1, String phrase2, boolean explanations) {
+            return similarity(0, 0, explanations);
+        }
+
+        @Override
+        public SRResult[] similarity(int[] pageIds1, int[] pageIds2) {
+            pause();
+            SRResult results[] = new SRResult[pageIds1.length];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new SRResult(score);
+            }
+            return results;
+        }
+
+        @Override public SRResultList mostSimilar(int pageId, int maxResults) { return null; }
+        @Override public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) { return null; }
+        @Override public SRResultList mostSimilar(String phrase, int maxResults) { return null; }
+        @Override public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) { return null; }
+        @Override public String getName() { return name; }
+        @Override public Language getLanguage() { return Language.SIMPLE; }
+        @Override public File getDataDir() { return null; }
+        @Override public void setDataDir(File dir) { }
+        @Override public void write() { }
+        @Override public void read() { }
+        @Override public void trainSimilarity(Dataset dataset) { }
+        @Override public void trainMostSimilar(Dataset dataset, int numResults, TIntSet validIds) { }
+        @Override public boolean similarityIsTrained() { return true; }
+        @Override public boolean mostSimilarIsTrained() { return true; }
+        @Override public double[][] cosimilarity(int[] wpRowIds, int[] wpColIds) { return null; }
+        @Override public double[][] cosimilarity(String[] rowPhrases, String[] colPhrases) { return null; }
+        @Override public double[][] cosimilarity(int[] ids) { return null; }
+        @Override public double[][] cosimilarity(String[] phrases) { return null; }
+        @Override public Normalizer getMostSimilarNormalizer() { return null; }
+        @Override public void setMostSimilarNormalizer(Normalizer n) { }
+        @Override public Normalizer getSimilarityNormalizer() { return null; }
+        @Override public void setSimilarityNormalizer(Normalizer n) { }
+    }
+}
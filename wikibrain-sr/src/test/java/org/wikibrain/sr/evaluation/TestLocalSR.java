@@ -56,6 +56,15 @@ public class TestLocalSR implements MonolingualSRMetric {
         return null;  //To change body of implemented methods use File | Settings | File Templates.
     }
 
+    @Override
+    public SRResult[] similarity(int[] pageIds1, int[] pageIds2) throws DaoException {
+        SRResult results[] = new SRResult[pageIds1.length];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = similarity(pageIds1[i], pageIds2[i], false);
+        }
+        return results;
+    }
+
     @Override
     public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
         Double val;
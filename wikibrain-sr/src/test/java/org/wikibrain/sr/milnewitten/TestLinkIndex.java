@@ -0,0 +1,119 @@
+package org.wikibrain.sr.milnewitten;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLinkIndex {
+
+    @Test
+    public void testIndex() {
+        Random random = new Random(0);
+        int numLinks = 20000;
+        int srcs[] = new int[numLinks];
+        int dests[] = new int[numLinks];
+        TIntObjectMap<TIntSet> outlinks = new TIntObjectHashMap<TIntSet>();
+        TIntObjectMap<TIntSet> inlinks = new TIntObjectHashMap<TIntSet>();
+        for (int i = 0; i < numLinks; i++) {
+            // skewed destinations so some pages have many more inlinks than others
+            srcs[i] = 1000 + random.nextInt(500) * 3;
+            dests[i] = 1000 + (int) (Math.pow(random.nextDouble(), 3) * 2000);
+            getSet(outlinks, srcs[i]).add(dests[i]);
+            getSet(inlinks, dests[i]).add(srcs[i]);
+        }
+        LinkIndex index = new LinkIndex(srcs, dests);
+
+        TIntSet pages = new TIntHashSet(outlinks.keys());
+        pages.addAll(inlinks.keys());
+        assertEquals(pages.size(), index.getNumPages());
+        assertEquals(-1, index.indexOf(999));
+
+        int total = 0;
+        float weights[] = new float[index.getNumPages()];
+        for (int i = 0; i < index.getNumPages(); i++) {
+            int pageId = index.getPageId(i);
+            assertEquals(i, index.indexOf(pageId));
+            assertEquals(getSet(outlinks, pageId).size(), index.getOutDegree(i));
+            assertEquals(getSet(inlinks, pageId).size(), index.getInDegree(i));
+            for (int k = index.getOutStart(i); k < index.getOutStart(i + 1); k++) {
+                assertTrue(getSet(outlinks, pageId).contains(index.getPageId(index.getOutlink(k))));
+                if (k > index.getOutStart(i)) {
+                    assertTrue(index.getOutlink(k - 1) < index.getOutlink(k));
+                }
+            }
+            for (int k = index.getInStart(i); k < index.getInStart(i + 1); k++) {
+                assertTrue(getSet(inlinks, pageId).contains(index.getPageId(index.getInlink(k))));
+            }
+            total += index.getOutDegree(i);
+            weights[i] = random.nextFloat();
+        }
+        assertEquals(total, index.getNumLinks());
+
+        for (int trial = 0; trial < 2000; trial++) {
+            int i = random.nextInt(index.getNumPages());
+            int j = random.nextInt(index.getNumPages());
+            TIntSet in1 = getSet(inlinks, index.getPageId(i));
+            TIntSet in2 = getSet(inlinks, index.getPageId(j));
+            TIntSet out1 = getSet(outlinks, index.getPageId(i));
+            TIntSet out2 = getSet(outlinks, index.getPageId(j));
+
+            int commonIn = 0;
+            for (int id : in1.toArray()) {
+                if (in2.contains(id)) commonIn++;
+            }
+            int commonOut = 0;
+            double dot = 0.0;
+            for (int id : out1.toArray()) {
+                if (out2.contains(id)) {
+                    commonOut++;
+                    float w = weights[index.indexOf(id)];
+                    dot += w * w;
+                }
+            }
+            assertEquals(commonIn, index.countCommonInlinks(i, j));
+            assertEquals(commonOut, index.countCommonOutlinks(i, j));
+            assertEquals(dot, index.outlinkDot(i, j, weights), 0.0001);
+        }
+    }
+
+    @Test
+    public void testGallop() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 200; trial++) {
+            int small[] = sortedSample(random, 1 + random.nextInt(10), 10000);
+            int large[] = sortedSample(random, 100 + random.nextInt(2000), 10000);
+            TIntSet set = new TIntHashSet(large);
+            int expected = 0;
+            for (int x : small) {
+                if (set.contains(x)) expected++;
+            }
+            assertEquals(expected, (int) LinkIndex.intersect(small, 0, small.length, large, 0, large.length, null));
+            assertEquals(expected, (int) LinkIndex.intersect(large, 0, large.length, small, 0, small.length, null));
+        }
+    }
+
+    private static int[] sortedSample(Random random, int n, int max) {
+        TIntSet set = new TIntHashSet();
+        while (set.size() < n) {
+            set.add(random.nextInt(max));
+        }
+        int result[] = set.toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static TIntSet getSet(TIntObjectMap<TIntSet> map, int key) {
+        if (!map.containsKey(key)) {
+            map.put(key, new TIntHashSet());
+        }
+        return map.get(key);
+    }
+}
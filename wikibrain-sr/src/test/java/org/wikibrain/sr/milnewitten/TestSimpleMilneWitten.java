@@ -0,0 +1,47 @@
+package org.wikibrain.sr.milnewitten;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.SRResultList;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSimpleMilneWitten {
+
+    @Test
+    public void testMostSimilarMatchesSimilarity() throws DaoException {
+        Random random = new Random(0);
+        int numLinks = 5000;
+        int srcs[] = new int[numLinks];
+        int dests[] = new int[numLinks];
+        for (int i = 0; i < numLinks; i++) {
+            srcs[i] = random.nextInt(1000);
+            dests[i] = (int) (Math.pow(random.nextDouble(), 2) * 1000);
+        }
+        LinkIndex index = new LinkIndex(srcs, dests);
+        SimpleMilneWitten sr = new SimpleMilneWitten("milnewitten", Language.getByLangCode("simple"), null, null, null, 2000);
+        sr.setLinkIndex(index);
+
+        int zeroOverlap = 0;
+        for (int trial = 0; trial < 50; trial++) {
+            int pageId = index.getPageId(random.nextInt(index.getNumPages()));
+            SRResultList results = sr.mostSimilar(pageId, index.getNumPages());
+            for (int k = 0; k < results.numDocs(); k++) {
+                int otherId = results.getId(k);
+                double expected = sr.similarity(pageId, otherId, false).getScore();
+                assertFalse(Double.isInfinite(expected) || Double.isNaN(expected));
+                assertEquals(expected, results.getScore(k), 0.0001);
+                if (index.countCommonInlinks(index.indexOf(pageId), index.indexOf(otherId)) == 0) {
+                    zeroOverlap++;
+                }
+            }
+        }
+        // pairs that share outlinks but no inlinks are scored the same way by both paths
+        assertTrue(zeroOverlap > 0);
+    }
+}
@@ -0,0 +1,80 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.map.TIntObjectMap;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.sr.SRResult;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestBatchSimilarity {
+
+    @Test
+    public void testScore() throws DaoException {
+        int n = BatchSimilarity.BLOCK_SIZE * 5 + 17;
+        int ids1[] = new int[n];
+        int ids2[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids1[i] = i % 10;
+            ids2[i] = i;
+        }
+        int unique[] = BatchSimilarity.uniqueIds(ids1, ids2);
+        assertEquals(n, unique.length);
+
+        final AtomicInteger fetches = new AtomicInteger();
+        final TIntObjectMap<Double> values = BatchSimilarity.fetch(unique, new BatchSimilarity.Fetcher<Double>() {
+            @Override
+            public Double fetch(int pageId) {
+                fetches.incrementAndGet();
+                return (pageId == 3) ? null : pageId * 2.0;
+            }
+        });
+        assertEquals(n, fetches.get());
+        assertEquals(n - 1, values.size());
+
+        SRResult results[] = BatchSimilarity.score(ids1, ids2, new BatchSimilarity.Scorer() {
+            @Override
+            public SRResult score(int pageId1, int pageId2) {
+                if (!values.containsKey(pageId1) || !values.containsKey(pageId2)) {
+                    return null;
+                }
+                return new SRResult(values.get(pageId1) + values.get(pageId2));
+            }
+        });
+        assertEquals(n, results.length);
+        for (int i = 0; i < n; i++) {
+            if (ids1[i] == 3 || ids2[i] == 3) {
+                assertNull(results[i]);
+            } else {
+                assertEquals(2.0 * (ids1[i] + ids2[i]), results[i].getScore(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testFailure() {
+        int n = BatchSimilarity.BLOCK_SIZE * 3;
+        int ids[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        try {
+            BatchSimilarity.score(ids, ids, new BatchSimilarity.Scorer() {
+                @Override
+                public SRResult score(int pageId1, int pageId2) throws DaoException {
+                    if (pageId1 == 500) {
+                        throw new DaoException("expected");
+                    }
+                    return new SRResult(1.0);
+                }
+            });
+            fail();
+        } catch (DaoException e) {
+            assertEquals("expected", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSortedSparseVector {
+
+    @Test
+    public void testCosine() {
+        Random random = new Random(0);
+        for (int trial = 0; trial < 100; trial++) {
+            TIntFloatMap x = randomMap(random);
+            TIntFloatMap y = randomMap(random);
+            SortedSparseVector sx = SortedSparseVector.fromMap(x);
+            SortedSparseVector sy = SortedSparseVector.fromMap(y);
+            assertEquals(x.size(), sx.size());
+            for (int i = 1; i < sx.size(); i++) {
+                assertEquals(true, sx.getId(i - 1) < sx.getId(i));
+            }
+
+            double dot = 0.0, xx = 0.0, yy = 0.0;
+            for (int id : x.keys()) {
+                xx += x.get(id) * x.get(id);
+                if (y.containsKey(id)) {
+                    dot += x.get(id) * y.get(id);
+                }
+            }
+            for (int id : y.keys()) {
+                yy += y.get(id) * y.get(id);
+            }
+            double expected = (xx * yy == 0) ? 0.0 : dot / Math.sqrt(xx * yy);
+            assertEquals(dot, SortedSparseVector.dot(sx, sy), 0.0001);
+            assertEquals(expected, SortedSparseVector.cosine(sx, sy), 0.0001);
+        }
+        SortedSparseVector empty = SortedSparseVector.fromMap(null);
+        assertEquals(0, empty.size());
+        assertEquals(0.0, SortedSparseVector.cosine(empty, SortedSparseVector.fromMap(randomMap(random))), 0.0);
+    }
+
+    private static TIntFloatMap randomMap(Random random) {
+        TIntFloatMap map = new TIntFloatHashMap();
+        int n = random.nextInt(50);
+        for (int i = 0; i < n; i++) {
+            map.put(random.nextInt(100), random.nextFloat());
+        }
+        return map;
+    }
+}
@@ -0,0 +1,89 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares max-score pruned mostSimilar queries in CosineSimilarity against the exhaustive
+ * inverted index scan on a real feature matrix and its transpose, such as those written
+ * by VectorBasedMonoSRMetric for ESA.
+ *
+ * Each query is a random row of the feature matrix. The benchmark checks that both paths
+ * return the same scores and reports the mean latency of each.
+ *
+ * usage: java org.wikibrain.sr.vector.BenchmarkCosineMostSimilar {feature_matrix} {transpose_matrix} [num_queries] [k]
+ */
+public class BenchmarkCosineMostSimilar {
+    public static void main(String args[]) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: java " + BenchmarkCosineMostSimilar.class.getName()
+                    + " feature_matrix transpose_matrix [num_queries] [k]");
+            System.exit(1);
+        }
+        SparseMatrix features = new SparseMatrix(new File(args[0]));
+        SparseMatrix transpose = new SparseMatrix(new File(args[1]));
+        int numQueries = args.length > 2 ? Integer.valueOf(args[2]) : 1000;
+        int k = args.length > 3 ? Integer.valueOf(args[3]) : 100;
+
+        CosineSimilarity pruned = new CosineSimilarity();
+        pruned.setMatrices(features, transpose);
+        CosineSimilarity exhaustive = new CosineSimilarity();
+        exhaustive.setMatrices(features, transpose);
+        exhaustive.setUseMaxScore(false);
+
+        Random random = new Random();
+        int rowIds[] = features.getRowIds();
+        TIntFloatMap queries[] = new TIntFloatMap[numQueries];
+        for (int i = 0; i < numQueries; i++) {
+            SparseMatrixRow row = features.getRow(rowIds[random.nextInt(rowIds.length)]);
+            queries[i] = new TIntFloatHashMap();
+            for (int j = 0; j < row.getNumCols(); j++) {
+                queries[i].put(row.getColIndex(j), row.getColValue(j));
+            }
+        }
+
+        // the first round warms up the matrices and the jit
+        for (int round = 0; round < 3; round++) {
+            long exhaustiveNanos = 0;
+            long prunedNanos = 0;
+            int mismatches = 0;
+            for (TIntFloatMap query : queries) {
+                long t1 = System.nanoTime();
+                SRResultList expected = exhaustive.mostSimilar(query, k, null);
+                long t2 = System.nanoTime();
+                SRResultList actual = pruned.mostSimilar(query, k, null);
+                long t3 = System.nanoTime();
+                exhaustiveNanos += t2 - t1;
+                prunedNanos += t3 - t2;
+                if (!sameScores(expected, actual)) {
+                    mismatches++;
+                }
+            }
+            System.err.println("round " + round + ":"
+                    + " exhaustive " + exhaustiveNanos / 1000000.0 / numQueries + " ms per query,"
+                    + " max-score " + prunedNanos / 1000000.0 / numQueries + " ms per query,"
+                    + " " + mismatches + " of " + numQueries + " results differ");
+        }
+        features.close();
+        transpose.close();
+    }
+
+    private static boolean sameScores(SRResultList expected, SRResultList actual) {
+        if (expected.numDocs() != actual.numDocs()) {
+            return false;
+        }
+        for (int i = 0; i < expected.numDocs(); i++) {
+            if (Math.abs(expected.getScore(i) - actual.getScore(i)) > 0.0001) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
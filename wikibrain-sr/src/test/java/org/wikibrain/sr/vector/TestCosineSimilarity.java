@@ -0,0 +1,69 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCosineSimilarity {
+
+    @Test
+    public void testMaxScoreMatchesExhaustive() throws IOException {
+        Random random = new Random(0);
+        File featureFile = File.createTempFile("features", null);
+        File transposeFile = File.createTempFile("transpose", null);
+        ValueConf vconf = new ValueConf(0.0f, 1.0f);
+        SparseMatrixWriter writer = new SparseMatrixWriter(featureFile, vconf);
+        TIntFloatMap rows[] = new TIntFloatMap[2000];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new TIntFloatHashMap();
+            int numCols = 1 + random.nextInt(40);
+            for (int j = 0; j < numCols; j++) {
+                // skewed features, so a few have very long postings
+                int feature = (int) (Math.pow(random.nextDouble(), 2) * 500);
+                rows[i].put(feature, random.nextFloat());
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, i * 2, rows[i]));
+        }
+        writer.finish();
+        SparseMatrix features = new SparseMatrix(featureFile);
+        new SparseMatrixTransposer(features, transposeFile, 1).transpose();
+        SparseMatrix transpose = new SparseMatrix(transposeFile);
+
+        CosineSimilarity pruned = new CosineSimilarity();
+        pruned.setMatrices(features, transpose);
+        CosineSimilarity exhaustive = new CosineSimilarity();
+        exhaustive.setMatrices(features, transpose);
+        exhaustive.setUseMaxScore(false);
+
+        TIntSet validIds = new TIntHashSet();
+        for (int i = 0; i < 20000; i += 3) {
+            validIds.add(i);
+        }
+        for (int trial = 0; trial < 100; trial++) {
+            TIntFloatMap query = new TIntFloatHashMap(rows[random.nextInt(rows.length)]);
+            int k = 1 + random.nextInt(50);
+            TIntSet valid = (trial % 2 == 0) ? null : validIds;
+            SRResultList expected = exhaustive.mostSimilar(query, k, valid);
+            SRResultList actual = pruned.mostSimilar(query, k, valid);
+            assertEquals(expected.numDocs(), actual.numDocs());
+            for (int i = 0; i < expected.numDocs(); i++) {
+                assertEquals(expected.getScore(i), actual.getScore(i), 0.0001);
+            }
+        }
+
+        features.close();
+        transpose.close();
+        featureFile.delete();
+        transposeFile.delete();
+    }
+}
@@ -0,0 +1,65 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.matrix.DenseVectorStore;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestDenseVectorSimilarity {
+
+    @Test
+    public void testCosine() {
+        float v1[] = { 1, 2, 3, 4, 5 };
+        float v2[] = { 5, 4, 3, 2, 1 };
+        assertEquals(35.0, DenseVectorSimilarity.dot(v1, v2), 0.0001);
+        assertEquals(35.0 / 55.0, DenseVectorSimilarity.cosine(v1, v2), 0.0001);
+        assertEquals(1.0, DenseVectorSimilarity.cosine(v1, v1), 0.0001);
+        assertEquals(0.0, DenseVectorSimilarity.cosine(v1, new float[5]), 0.0);
+    }
+
+    @Test
+    public void testMostSimilar() throws IOException {
+        Random random = new Random(0);
+        int dimensions = 10;
+        TIntObjectMap<float[]> vectors = new TIntObjectHashMap<float[]>();
+        for (int id = 0; id < 200; id++) {
+            float vector[] = new float[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                vector[i] = random.nextFloat() - 0.5f;
+            }
+            vectors.put(id * 3, vector);
+        }
+        File tmp = File.createTempFile("vectors", null);
+        DenseVectorStore.write(tmp, dimensions, vectors);
+        DenseVectorStore store = new DenseVectorStore(tmp);
+        DenseVectorSimilarity similarity = new DenseVectorSimilarity(store);
+
+        float query[] = vectors.get(30);
+        SRResultList results = similarity.mostSimilar(query, 10, null);
+        assertEquals(10, results.numDocs());
+        assertEquals(30, results.getId(0));
+        assertEquals(1.0, results.getScore(0), 0.0001);
+        for (int i = 0; i < results.numDocs(); i++) {
+            float expected = (float) DenseVectorSimilarity.cosine(query, vectors.get(results.getId(i)));
+            assertEquals(expected, results.getScore(i), 0.0001);
+            if (i > 0) {
+                assertEquals(true, results.getScore(i - 1) >= results.getScore(i));
+            }
+        }
+
+        TIntHashSet validIds = new TIntHashSet(new int[] { 3, 6, 9, 10 });
+        results = similarity.mostSimilar(query, 10, validIds);
+        assertEquals(3, results.numDocs());
+
+        store.close();
+        tmp.delete();
+    }
+}
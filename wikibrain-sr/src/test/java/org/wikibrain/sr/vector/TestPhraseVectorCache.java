@@ -0,0 +1,78 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestPhraseVectorCache {
+
+    @Test
+    public void testCache() throws IOException {
+        File dataDir = WpIOUtils.createTempDirectory("phraseVectorCache");
+        File path = new File(dataDir, "phraseVectors");
+        File features = new File(dataDir, "feature.matrix");
+        FileUtils.write(features, "abc");
+        List<File> inputs = Arrays.asList(features);
+
+        PhraseVectorCache cache = new PhraseVectorCache(path, Language.SIMPLE, 42, inputs, 2);
+        assertNull(cache.get("apple"));
+        cache.put("apple", makeVector(1, 0.5f, 7, 0.25f));
+        cache.put("banana", null);
+        cache.put("cherry", makeVector(3, 1.0f));
+
+        // whitespace is normalized, case is not
+        assertEquals(makeVector(1, 0.5f, 7, 0.25f), cache.get("  apple "));
+        assertNull(cache.get("Apple"));
+        assertTrue(cache.get("banana").isEmpty());
+
+        // returned vectors are copies
+        cache.get("cherry").put(4, 2.0f);
+        assertEquals(makeVector(3, 1.0f), cache.get("cherry"));
+        cache.close();
+
+        // vectors survive reopening, but only for the same language and config
+        cache = new PhraseVectorCache(path, Language.SIMPLE, 42, inputs, 2);
+        assertEquals(makeVector(1, 0.5f, 7, 0.25f), cache.get("apple"));
+        assertEquals(1, cache.getDiskHits());
+        assertTrue(cache.get("banana").isEmpty());
+        cache.close();
+        cache = new PhraseVectorCache(path, Language.SIMPLE, 43, inputs, 2);
+        assertNull(cache.get("apple"));
+        cache.close();
+
+        // files that aren't inputs don't matter
+        FileUtils.write(new File(dataDir, "unrelated.txt"), "xyz");
+        cache = new PhraseVectorCache(path, Language.SIMPLE, 42, inputs, 2);
+        assertEquals(makeVector(1, 0.5f, 7, 0.25f), cache.get("apple"));
+        cache.close();
+
+        // rebuilding an input invalidates the cache
+        FileUtils.write(features, "abcd");
+        cache = new PhraseVectorCache(path, Language.SIMPLE, 42, inputs, 2);
+        assertNull(cache.get("apple"));
+        cache.put("apple", makeVector(2, 1.0f));
+        cache.clear();
+        assertNull(cache.get("apple"));
+        cache.close();
+
+        FileUtils.deleteQuietly(dataDir);
+    }
+
+    private static TIntFloatMap makeVector(Object... idsAndValues) {
+        TIntFloatMap vector = new TIntFloatHashMap();
+        for (int i = 0; i < idsAndValues.length; i += 2) {
+            vector.put((Integer) idsAndValues[i], (Float) idsAndValues[i + 1]);
+        }
+        return vector;
+    }
+}
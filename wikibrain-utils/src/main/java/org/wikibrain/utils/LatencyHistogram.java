@@ -0,0 +1,96 @@
+package org.wikibrain.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of operation latencies.
+ *
+ * Latencies are counted in buckets whose upper bounds are powers of two microseconds,
+ * so percentiles are accurate to within a factor of two. Recording a latency is a couple
+ * of atomic increments, cheap enough for every call on a hot path.
+ */
+public class LatencyHistogram {
+    /**
+     * Bucket i holds latencies of less than 2^i microseconds; the last bucket holds the rest.
+     */
+    private static final int NUM_BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a single latency.
+     * @param nanos Elapsed time in nanoseconds, e.g. the difference of two calls to System.nanoTime().
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);  // smallest i with micros < 2^i
+        buckets.incrementAndGet(Math.min(bucket, NUM_BUCKETS - 1));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return (n == 0) ? 0.0 : totalNanos.get() / 1000000.0 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * Returns an upper bound on a percentile of the recorded latencies.
+     * @param p Percentile between 0 and 100.
+     * @return The upper bound of the bucket containing the percentile, in milliseconds,
+     *         or 0 if nothing has been recorded.
+     */
+    public double getPercentileMillis(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0.0;
+        }
+        long rank = (long) Math.ceil(p / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS - 1; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min((1L << i) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Discards all recorded latencies.
+     */
+    public void clear() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.2fms p50<=%.2fms p90<=%.2fms p99<=%.2fms max=%.2fms",
+                getCount(), getMeanMillis(), getPercentileMillis(50),
+                getPercentileMillis(90), getPercentileMillis(99), getMaxMillis());
+    }
+}
@@ -0,0 +1,215 @@
+package org.wikibrain.utils;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only open addressing hash map from longs to ints stored in a file.
+ *
+ * The file is memory mapped, so opening it takes constant time regardless of its size,
+ * entries live outside the Java heap, and processes that open the same file share
+ * its pages through the operating system's file cache.
+ *
+ * The file consists of a header followed by a table of keys and a table of values.
+ * Keys are placed with linear probing in a table at most half full, and a key of zero
+ * marks an empty slot (the value of the key zero itself is kept in the header).
+ */
+public class MappedLongIntMap {
+    private static final long MAGIC = 0x77624c6f6e67496eL;
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * The largest number of slots whose tables fit in a single mapped buffer.
+     */
+    private static final int MAX_CAPACITY = 1 << 27;
+
+    private final int noEntryValue;
+    private final int size;
+    private final int mask;
+    private final boolean hasZeroKey;
+    private final int zeroValue;
+    private final LongBuffer keys;
+    private final IntBuffer values;
+
+    private MappedLongIntMap(ByteBuffer buffer) throws IOException {
+        if (buffer.getLong(0) != MAGIC) {
+            throw new IOException("not a long to int map file");
+        }
+        int capacity = buffer.getInt(8);
+        this.size = buffer.getInt(12);
+        this.noEntryValue = buffer.getInt(16);
+        this.hasZeroKey = buffer.getInt(20) != 0;
+        this.zeroValue = buffer.getInt(24);
+        this.mask = capacity - 1;
+        this.keys = slice(buffer, HEADER_SIZE, capacity * 8).asLongBuffer();
+        this.values = slice(buffer, HEADER_SIZE + capacity * 8, capacity * 4).asIntBuffer();
+    }
+
+    /**
+     * Opens a map previously written by write().
+     */
+    public static MappedLongIntMap open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new MappedLongIntMap(buffer);
+        } finally {
+            // the mapping remains valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a map containing the specified entries to a file and opens it.
+     * If a key appears more than once, its last value is used.
+     *
+     * The map is written to a temporary file that is renamed over the file when
+     * complete (see WpIOUtils.replaceFile), so other processes never see a partially
+     * written map.
+     */
+    public static MappedLongIntMap write(File file, TLongList keys, TIntList values, int noEntryValue) throws IOException {
+        int capacity = getCapacity(keys.size());
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp" + System.nanoTime());
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(getFileSize(capacity));
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            fill(buffer, capacity, keys, values, noEntryValue);
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+        WpIOUtils.replaceFile(tmp, file);
+        return open(file);
+    }
+
+    /**
+     * Builds a map containing the specified entries on the heap rather than in a file.
+     */
+    public static MappedLongIntMap build(TLongList keys, TIntList values, int noEntryValue) throws IOException {
+        int capacity = getCapacity(keys.size());
+        ByteBuffer buffer = ByteBuffer.allocate((int) getFileSize(capacity));
+        fill(buffer, capacity, keys, values, noEntryValue);
+        return new MappedLongIntMap(buffer);
+    }
+
+    /**
+     * @return The value associated with the key, or the no entry value.
+     */
+    public int get(long key) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : noEntryValue;
+        }
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long k = keys.get(i);
+            if (k == key) {
+                return values.get(i);
+            } else if (k == 0) {
+                return noEntryValue;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long k = keys.get(i);
+            if (k == key) {
+                return true;
+            } else if (k == 0) {
+                return false;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    private static void fill(ByteBuffer buffer, int capacity, TLongList keyList, TIntList valueList, int noEntryValue) {
+        if (keyList.size() != valueList.size()) {
+            throw new IllegalArgumentException("found " + keyList.size() + " keys but " + valueList.size() + " values");
+        }
+        int mask = capacity - 1;
+        LongBuffer keys = slice(buffer, HEADER_SIZE, capacity * 8).asLongBuffer();
+        IntBuffer values = slice(buffer, HEADER_SIZE + capacity * 8, capacity * 4).asIntBuffer();
+        for (int i = 0; i < capacity; i++) {
+            keys.put(i, 0L);
+        }
+        int size = 0;
+        boolean hasZeroKey = false;
+        int zeroValue = noEntryValue;
+        for (int i = 0; i < keyList.size(); i++) {
+            long key = keyList.get(i);
+            if (key == 0) {
+                if (!hasZeroKey) {
+                    size++;
+                }
+                hasZeroKey = true;
+                zeroValue = valueList.get(i);
+                continue;
+            }
+            int j = slot(key, mask);
+            while (keys.get(j) != 0 && keys.get(j) != key) {
+                j = (j + 1) & mask;
+            }
+            if (keys.get(j) == 0) {
+                size++;
+            }
+            keys.put(j, key);
+            values.put(j, valueList.get(i));
+        }
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, size);
+        buffer.putInt(16, noEntryValue);
+        buffer.putInt(20, hasZeroKey ? 1 : 0);
+        buffer.putInt(24, zeroValue);
+    }
+
+    /**
+     * @return The smallest power of two that is at least twice the number of entries.
+     */
+    private static int getCapacity(int numEntries) {
+        int capacity = 2;
+        while (capacity < 2L * numEntries) {
+            capacity *= 2;
+        }
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("too many entries for a mapped long to int map: " + numEntries);
+        }
+        return capacity;
+    }
+
+    private static long getFileSize(int capacity) {
+        return HEADER_SIZE + 12L * capacity;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
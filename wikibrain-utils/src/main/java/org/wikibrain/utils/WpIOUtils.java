@@ -168,6 +168,24 @@ public class WpIOUtils {
         return tmpDir;
     }
 
+    /**
+     * Renames a file over another one. On POSIX file systems the rename is atomic, so
+     * readers see either the old file or the new one and never a missing file. Where a
+     * rename can't replace an existing file (Windows), the destination is deleted first.
+     * @param src
+     * @param dest
+     * @throws IOException If the file can't be renamed.
+     */
+    public static void replaceFile(File src, File dest) throws IOException {
+        if (src.renameTo(dest)) {
+            return;
+        }
+        if (dest.exists() && dest.delete() && src.renameTo(dest)) {
+            return;
+        }
+        throw new IOException("Could not rename " + src + " to " + dest);
+    }
+
     /**
      * @see WpIOUtils#createTempDirectory(String, boolean)
      * @return
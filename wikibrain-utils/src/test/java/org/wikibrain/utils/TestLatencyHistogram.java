@@ -0,0 +1,58 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLatencyHistogram {
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getPercentileMillis(50), 0.0);
+
+        // 90 fast calls of 100 micros, 10 slow calls of 50 millis.
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100 * 1000L);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(50 * 1000 * 1000L);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals((90 * 0.1 + 10 * 50.0) / 100, histogram.getMeanMillis(), 0.0001);
+        assertEquals(50.0, histogram.getMaxMillis(), 0.0001);
+
+        double p50 = histogram.getPercentileMillis(50);
+        assertTrue(p50 >= 0.1 && p50 <= 0.2);
+        double p90 = histogram.getPercentileMillis(90);
+        assertTrue(p90 >= 0.1 && p90 <= 0.2);
+        double p99 = histogram.getPercentileMillis(99);
+        assertTrue(p99 >= 50.0 && p99 <= 100.0);
+
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getMaxMillis(), 0.0);
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i * 1000L);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(9999 / 1000.0, histogram.getMaxMillis(), 0.0001);
+    }
+}
@@ -0,0 +1,69 @@
+package org.wikibrain.utils;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMappedLongIntMap {
+    @Test
+    public void testMap() throws IOException {
+        Random random = new Random(0);
+        TLongIntMap expected = new TLongIntHashMap(100, 0.5f, -1, -1);
+        TLongList keys = new TLongArrayList();
+        TIntList values = new TIntArrayList();
+        for (int i = 0; i < 50000; i++) {
+            // some duplicate keys, whose last value should win
+            long key = (i % 10 == 0) ? random.nextInt(1000) : random.nextLong();
+            int value = random.nextInt(Integer.MAX_VALUE);
+            keys.add(key);
+            values.add(value);
+            expected.put(key, value);
+        }
+        keys.add(0L);
+        values.add(42);
+        expected.put(0L, 42);
+
+        File file = File.createTempFile("longint", ".map");
+        try {
+            MappedLongIntMap.write(file, keys, values, -1);
+            MappedLongIntMap mapped = MappedLongIntMap.open(file);
+            MappedLongIntMap heap = MappedLongIntMap.build(keys, values, -1);
+            for (MappedLongIntMap map : new MappedLongIntMap[] { mapped, heap }) {
+                assertEquals(expected.size(), map.size());
+                for (long key : expected.keys()) {
+                    assertTrue(map.containsKey(key));
+                    assertEquals(expected.get(key), map.get(key));
+                }
+                for (int i = 0; i < 10000; i++) {
+                    long key = random.nextLong();
+                    if (!expected.containsKey(key)) {
+                        assertFalse(map.containsKey(key));
+                        assertEquals(-1, map.get(key));
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        MappedLongIntMap map = MappedLongIntMap.build(new TLongArrayList(), new TIntArrayList(), -7);
+        assertEquals(0, map.size());
+        assertEquals(-7, map.get(0L));
+        assertEquals(-7, map.get(123L));
+    }
+}